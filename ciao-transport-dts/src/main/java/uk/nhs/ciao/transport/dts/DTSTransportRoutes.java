@@ -1,18 +1,25 @@
 package uk.nhs.ciao.transport.dts;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Set;
 
 import org.apache.camel.CamelContext;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Sets;
+import com.hazelcast.core.HazelcastInstance;
 
 import uk.nhs.ciao.camel.CamelApplication;
 import uk.nhs.ciao.configuration.CIAOConfig;
 import uk.nhs.ciao.dts.ControlFile;
 import uk.nhs.ciao.transport.dts.address.DTSEndpointAddressHelper;
+import uk.nhs.ciao.transport.dts.cluster.DTSShardCoordinator;
+import uk.nhs.ciao.transport.dts.processor.DTSAsyncFileHousekeeper;
 import uk.nhs.ciao.transport.dts.processor.DTSFileHousekeeper;
+import uk.nhs.ciao.transport.dts.processor.DTSFolderWatcher;
+import uk.nhs.ciao.transport.dts.processor.DTSOutboxWriter;
 import uk.nhs.ciao.transport.dts.route.DTSDistributionEnvelopeSenderRoute;
 import uk.nhs.ciao.transport.dts.route.DTSIncomingFileRouterRoute;
 import uk.nhs.ciao.transport.dts.route.DTSMessageReceiverRoute;
@@ -22,8 +29,12 @@ import uk.nhs.ciao.transport.itk.ITKTransportRoutes;
 import uk.nhs.ciao.transport.itk.address.EndpointAddressHelper;
 import uk.nhs.ciao.transport.itk.route.DistributionEnvelopeReceiverRoute;
 import uk.nhs.ciao.transport.itk.route.DistributionEnvelopeSenderRoute;
+import uk.nhs.ciao.transport.itk.store.FileContentStore;
 
 public class DTSTransportRoutes extends ITKTransportRoutes {
+	private DTSFolderWatcher folderWatcher;
+	private FileContentStore contentStore;
+	
 	@Override
 	public void addRoutesToCamelContext(CamelContext context) throws Exception {
 		super.addRoutesToCamelContext(context);
@@ -44,14 +55,22 @@ public class DTSTransportRoutes extends ITKTransportRoutes {
 		route.setDTSFilePrefix(Strings.nullToEmpty(config.getConfigValue("dts.filePrefix")));
 		route.setIdGenerator(get(context, IdGenerator.class, "dtsIdGenerator"));
 		
-		// File housekeeping
-		final DTSFileHousekeeper fileHousekeeper = new DTSFileHousekeeper();
-		fileHousekeeper.setDestinationFolder(context.resolvePropertyPlaceholders("{{dts.completedFolder}}"));
-		route.setFileHousekeeper(fileHousekeeper);
+		// Batched file writing
+		if (Boolean.valueOf(getConfigValue(config, "dts.outboxWriter.enabled", "false"))) {
+			final DTSOutboxWriter outboxWriter = new DTSOutboxWriter(context,
+					new File(context.resolvePropertyPlaceholders("{{dts.rootFolder}}/OUT")),
+					new File(context.resolvePropertyPlaceholders("{{dts.temporaryFolder}}")));
+			outboxWriter.setDurability(DTSOutboxWriter.Durability.valueOf(
+					getConfigValue(config, "dts.outboxWriter.durability", "DATA").trim().toUpperCase()));
+			outboxWriter.setMaxBatchSize(Integer.parseInt(getConfigValue(config, "dts.outboxWriter.maxBatchSize", "100")));
+			context.addService(outboxWriter);
+			route.setOutboxWriter(outboxWriter);
+		}
 		
-		final DTSFileHousekeeper errorFileHousekeeper = new DTSFileHousekeeper();
-		errorFileHousekeeper.setDestinationFolder(context.resolvePropertyPlaceholders("{{dts.errorFolder}}"));
-		route.setErrorFileHousekeeper(errorFileHousekeeper);
+		// File housekeeping
+		final boolean archive = true;
+		route.setFileHousekeeper(createFileHousekeeper(context, config, "{{dts.completedFolder}}", archive));
+		route.setErrorFileHousekeeper(createFileHousekeeper(context, config, "{{dts.errorFolder}}", !archive));
 		
 		final ControlFile prototype = new ControlFile();
 		prototype.setWorkflowId(config.getConfigValue("dts.workflowId"));
@@ -83,6 +102,22 @@ public class DTSTransportRoutes extends ITKTransportRoutes {
 		route.setSentInProgressRepositoryId("dtsSentInProgressRepository");
 		route.setDTSFilePrefix(Strings.nullToEmpty(config.getConfigValue("dts.filePrefix")));
 		
+		// Folder consumer mode - watch or poll
+		if ("watch".equalsIgnoreCase(getConfigValue(config, "dts.folderConsumer", "poll"))) {
+			route.setFolderWatcher(getFolderWatcher(context));
+			route.setDTSInFolder(context.resolvePropertyPlaceholders("{{dts.rootFolder}}/IN"));
+			route.setDTSSentFolder(context.resolvePropertyPlaceholders("{{dts.rootFolder}}/SENT"));
+			route.setReconciliationInterval(Long.parseLong(
+					getConfigValue(config, "dts.folderConsumer.reconciliationInterval", "60000")));
+			route.setReadLockCheckInterval(Long.parseLong(
+					getConfigValue(config, "dts.folderConsumer.readLockCheckInterval", "1000")));
+		}
+		
+		// Share the folders between cluster members
+		if (Boolean.valueOf(getConfigValue(config, "dts.folderConsumer.sharding", "false"))) {
+			route.setShardCoordinator(createShardCoordinator(context));
+		}
+		
 		// common properties
 		route.setMailboxes(Arrays.asList(config.getConfigValue("dts.senderMailbox")));
 		
@@ -98,23 +133,98 @@ public class DTSTransportRoutes extends ITKTransportRoutes {
 	}
 	
 	private void addDTSMessageReceiverRoute(final CamelContext context) throws Exception {
+		final CIAOConfig config = CamelApplication.getConfig(context);
 		final DTSMessageReceiverRoute route = new DTSMessageReceiverRoute();
 		
 		route.setDTSMessageReceiverUri("direct:dtsMessageReceiver");
 		route.setPayloadDestinationUri(getDistributionEnvelopeReceiverUri());
 		
-		// File housekeeping
-		final DTSFileHousekeeper fileHousekeeper = new DTSFileHousekeeper();
-		fileHousekeeper.setDestinationFolder(context.resolvePropertyPlaceholders("{{dts.completedFolder}}"));
-		route.setFileHousekeeper(fileHousekeeper);
+		// Data file detection
+		if (Boolean.valueOf(getConfigValue(config, "dts.dataFileWatch.enabled", "true"))) {
+			route.setDataFileWatcher(getFolderWatcher(context));
+			route.setDataFileWatchedPollingInterval(Long.parseLong(
+					getConfigValue(config, "dts.dataFileWatch.pollingInterval", "2000")));
+		}
+		
+		// Parallel processing
+		route.setWorkerCount(Integer.parseInt(getConfigValue(config, "dts.receiver.workers", "4")));
+		route.setPreserveOrder(Boolean.valueOf(getConfigValue(config, "dts.receiver.preserveOrder", "true")));
 		
-		final DTSFileHousekeeper errorFileHousekeeper = new DTSFileHousekeeper();
-		errorFileHousekeeper.setDestinationFolder(context.resolvePropertyPlaceholders("{{dts.errorFolder}}"));
-		route.setErrorFileHousekeeper(errorFileHousekeeper);
+		// Large data files are published by reference
+		route.setContentStore(getContentStore(context));
+		route.setContentStoreThreshold(Long.parseLong(getConfigValue(config, "dts.contentStoreThreshold", "1048576")));
+		
+		// File housekeeping
+		final boolean archive = true;
+		route.setFileHousekeeper(createFileHousekeeper(context, config, "{{dts.completedFolder}}", archive));
+		route.setErrorFileHousekeeper(createFileHousekeeper(context, config, "{{dts.errorFolder}}", !archive));
 		
 		context.addRoutes(route);
 	}
 	
+	private DTSShardCoordinator createShardCoordinator(final CamelContext context) throws Exception {
+		final HazelcastInstance hazelcastInstance = get(context, HazelcastInstance.class, "hazelcastInstance");
+		Preconditions.checkState(hazelcastInstance != null,
+				"dts.folderConsumer.sharding requires a hazelcastInstance (repositoryConfig=hazelcast)");
+		
+		final DTSShardCoordinator shardCoordinator = new DTSShardCoordinator(hazelcastInstance, "dts-folder-claims");
+		context.addService(shardCoordinator);
+		
+		return shardCoordinator;
+	}
+	
+	/**
+	 * Creates a housekeeper which moves files to the specified folder (or deletes them if the folder is empty)
+	 * <p>
+	 * Housekeeping is performed in the background if <code>dts.housekeeping.async</code> is enabled
+	 */
+	private DTSFileHousekeeper createFileHousekeeper(final CamelContext context, final CIAOConfig config,
+			final String destinationFolder, final boolean archive) throws Exception {
+		if (!Boolean.valueOf(getConfigValue(config, "dts.housekeeping.async", "false"))) {
+			return new DTSFileHousekeeper(context.resolvePropertyPlaceholders(destinationFolder));
+		}
+		
+		final DTSAsyncFileHousekeeper fileHousekeeper = new DTSAsyncFileHousekeeper(context);
+		fileHousekeeper.setDestinationFolder(context.resolvePropertyPlaceholders(destinationFolder));
+		fileHousekeeper.setBatchInterval(Long.parseLong(getConfigValue(config, "dts.housekeeping.batchInterval", "1000")));
+		fileHousekeeper.setMaxAttempts(Integer.parseInt(getConfigValue(config, "dts.housekeeping.maxAttempts", "5")));
+		if (archive) {
+			fileHousekeeper.setArchivePeriod(Long.parseLong(getConfigValue(config, "dts.housekeeping.archivePeriod", "0")));
+		}
+		context.addService(fileHousekeeper);
+		
+		return fileHousekeeper;
+	}
+	
+	/**
+	 * The store shared by the DTS receiver and the distribution envelope receiver - created on first use
+	 * 
+	 * @return The content store, or null if <code>dts.contentStoreFolder</code> is not configured
+	 */
+	private FileContentStore getContentStore(final CamelContext context) throws Exception {
+		if (contentStore == null) {
+			final CIAOConfig config = CamelApplication.getConfig(context);
+			final String folder = getConfigValue(config, "dts.contentStoreFolder", "");
+			if (!folder.trim().isEmpty()) {
+				contentStore = new FileContentStore(new File(context.resolvePropertyPlaceholders(folder)));
+			}
+		}
+		
+		return contentStore;
+	}
+	
+	/**
+	 * The watcher shared by all watched DTS folders - created on first use
+	 */
+	private DTSFolderWatcher getFolderWatcher(final CamelContext context) throws Exception {
+		if (folderWatcher == null) {
+			folderWatcher = new DTSFolderWatcher();
+			context.addService(folderWatcher);
+		}
+		
+		return folderWatcher;
+	}
+	
 	/**
 	 * Updated default behaviour to inject the DTS workflow details into outgoing responses
 	 * @throws Exception 
@@ -122,6 +232,7 @@ public class DTSTransportRoutes extends ITKTransportRoutes {
 	@Override
 	protected void configureDistributionEnvelopeReceiverRoute(final CamelContext context, final DistributionEnvelopeReceiverRoute route) throws Exception {
 		super.configureDistributionEnvelopeReceiverRoute(context, route);
+		route.setContentStore(getContentStore(context));
 		
 		// have the injector pass the updated messages on to the original target route
 		final DTSResponseDetailsInjectorRoute injectorRoute = new DTSResponseDetailsInjectorRoute();
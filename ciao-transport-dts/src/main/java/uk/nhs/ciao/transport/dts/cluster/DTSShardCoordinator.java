@@ -0,0 +1,268 @@
+package uk.nhs.ciao.transport.dts.cluster;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.component.file.GenericFile;
+import org.apache.camel.component.file.GenericFileFilter;
+import org.apache.camel.support.ServiceSupport;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.hazelcast.core.Cluster;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MemberAttributeEvent;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * Shares the files in the DTS folders between the members of a Hazelcast cluster
+ * <p>
+ * Each file is owned by a single member - determined by a consistent hash of the file name over
+ * the current cluster membership (see {@link DTSShardRing}). Members only process the files they own,
+ * and the ring is rebuilt (and registered listeners notified) whenever a member joins or leaves.
+ * <p>
+ * Ownership can briefly overlap while members observe a membership change, so files are additionally
+ * claimed in a shared map before being processed. {@link #claim(Collection)} claims a batch of files
+ * with a single cluster operation; claims held by members which have left the cluster are taken over.
+ */
+@ManagedResource(description = "Shares DTS folder files between cluster members")
+public class DTSShardCoordinator extends ServiceSupport implements MembershipListener {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(DTSShardCoordinator.class);
+	private static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	/**
+	 * Listener notified when file ownership changes
+	 */
+	public interface Listener {
+		/**
+		 * Called when a member joins or leaves the cluster - previously foreign files may now be owned
+		 */
+		void shardsChanged();
+	}
+
+	private final HazelcastInstance hazelcastInstance;
+	private final String claimsMapName;
+	private final Set<Listener> listeners = new CopyOnWriteArraySet<Listener>();
+	private final AtomicLong rebalanceCount = new AtomicLong();
+	private final AtomicLong claimBatchCount = new AtomicLong();
+	private final AtomicLong claimedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+	private volatile IMap<String, String> claims;
+	private volatile String localMemberId;
+	private volatile DTSShardRing ring;
+	private String registrationId;
+
+	public DTSShardCoordinator(final HazelcastInstance hazelcastInstance, final String claimsMapName) {
+		this.hazelcastInstance = Preconditions.checkNotNull(hazelcastInstance, "hazelcastInstance");
+		this.claimsMapName = Preconditions.checkNotNull(claimsMapName, "claimsMapName");
+	}
+
+	/**
+	 * Number of positions each member occupies on the hash ring
+	 */
+	public void setVirtualNodes(final int virtualNodes) {
+		Preconditions.checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+		this.virtualNodes = virtualNodes;
+	}
+
+	public void addListener(final Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	@ManagedAttribute(description = "Id of the local cluster member")
+	public String getLocalMemberId() {
+		return localMemberId;
+	}
+
+	@ManagedAttribute(description = "Number of cluster members sharing the DTS folders")
+	public int getMemberCount() {
+		final DTSShardRing current = ring;
+		return current == null ? 0 : current.getMemberIds().size();
+	}
+
+	@ManagedAttribute(description = "Number of times ownership has been rebalanced")
+	public long getRebalanceCount() {
+		return rebalanceCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of claim operations sent to the cluster")
+	public long getClaimBatchCount() {
+		return claimBatchCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of files successfully claimed")
+	public long getClaimedCount() {
+		return claimedCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of files already claimed by another member")
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		final Cluster cluster = hazelcastInstance.getCluster();
+		claims = hazelcastInstance.getMap(claimsMapName);
+		localMemberId = cluster.getLocalMember().getUuid();
+
+		// Register before reading the members - a change in between triggers a second (harmless) rebalance
+		registrationId = cluster.addMembershipListener(this);
+		rebalance();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		if (registrationId != null) {
+			hazelcastInstance.getCluster().removeMembershipListener(registrationId);
+			registrationId = null;
+		}
+		ring = null;
+	}
+
+	/**
+	 * Tests if the local member owns the specified file
+	 * <p>
+	 * All files are owned locally until the coordinator has been started
+	 */
+	public boolean isOwned(final String fileName) {
+		final DTSShardRing current = ring;
+		if (current == null || current.isEmpty()) {
+			return true;
+		}
+
+		return localMemberId.equals(current.getOwner(fileName));
+	}
+
+	/**
+	 * Claims the specified files for the local member in a single cluster operation
+	 *
+	 * @return The keys which were claimed - other keys are already claimed by a live member (including
+	 * 			the local member)
+	 */
+	public Set<String> claim(final Collection<String> keys) {
+		final Set<String> claimed = Sets.newHashSet();
+		if (keys.isEmpty()) {
+			return claimed;
+		}
+
+		final DTSShardRing current = ring;
+		final Set<String> liveMemberIds = current == null ? null : Sets.newHashSet(current.getMemberIds());
+		final Map<String, Object> results = claims.executeOnKeys(Sets.newHashSet(keys),
+				new ClaimProcessor(localMemberId, liveMemberIds));
+		claimBatchCount.incrementAndGet();
+
+		for (final Entry<String, Object> result: results.entrySet()) {
+			if (Boolean.TRUE.equals(result.getValue())) {
+				claimed.add(result.getKey());
+			}
+		}
+
+		claimedCount.addAndGet(claimed.size());
+		rejectedCount.addAndGet(keys.size() - claimed.size());
+		return claimed;
+	}
+
+	/**
+	 * Releases a claim held by the local member
+	 */
+	public void release(final String key) {
+		claims.remove(key, localMemberId);
+	}
+
+	/**
+	 * Returns a file consumer filter which only accepts files owned by the local member
+	 */
+	public GenericFileFilter<File> getFileFilter() {
+		return new GenericFileFilter<File>() {
+			@Override
+			public boolean accept(final GenericFile<File> file) {
+				return file.isDirectory() || isOwned(file.getFileNameOnly());
+			}
+		};
+	}
+
+	@Override
+	public void memberAdded(final MembershipEvent membershipEvent) {
+		rebalance();
+	}
+
+	@Override
+	public void memberRemoved(final MembershipEvent membershipEvent) {
+		rebalance();
+	}
+
+	@Override
+	public void memberAttributeChanged(final MemberAttributeEvent memberAttributeEvent) {
+		// NOOP - ownership only depends on membership
+	}
+
+	private void rebalance() {
+		final Set<String> memberIds = Sets.newHashSet();
+		for (final Member member: hazelcastInstance.getCluster().getMembers()) {
+			memberIds.add(member.getUuid());
+		}
+
+		ring = new DTSShardRing(memberIds, virtualNodes);
+		rebalanceCount.incrementAndGet();
+		LOGGER.info(logMsg("Rebalanced DTS folder ownership - cluster has " + memberIds.size() + " member(s)"));
+
+		for (final Listener listener: listeners) {
+			try {
+				listener.shardsChanged();
+			} catch (RuntimeException e) {
+				LOGGER.warn(logMsg("DTS shard listener failed"), e);
+			}
+		}
+	}
+
+	/**
+	 * Claims an entry for a member - unless it is already claimed by a live member
+	 * <p>
+	 * A claim already held by the claiming member is rejected: the file is still being processed
+	 * locally and must not be dispatched a second time.
+	 */
+	private static class ClaimProcessor extends AbstractEntryProcessor<String, String> {
+		private static final long serialVersionUID = 1L;
+
+		private final String memberId;
+		private final Set<String> liveMemberIds;
+
+		public ClaimProcessor(final String memberId, final Set<String> liveMemberIds) {
+			this.memberId = memberId;
+			this.liveMemberIds = liveMemberIds;
+		}
+
+		@Override
+		public Object process(final Entry<String, String> entry) {
+			final String owner = entry.getValue();
+			if (owner == null || (!owner.equals(memberId)
+					&& liveMemberIds != null && !liveMemberIds.contains(owner))) {
+				entry.setValue(memberId);
+				return Boolean.TRUE;
+			}
+
+			return Boolean.FALSE;
+		}
+	}
+}
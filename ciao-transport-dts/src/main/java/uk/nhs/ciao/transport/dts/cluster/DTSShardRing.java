@@ -0,0 +1,73 @@
+package uk.nhs.ciao.transport.dts.cluster;
+
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Consistent hash ring assigning keys (DTS file names) to cluster members
+ * <p>
+ * Each member is placed on the ring at a number of virtual positions - so keys are spread evenly,
+ * and when a member joins or leaves only the keys in its own segments of the ring change owner.
+ * The owner of a key is determined from the key and the member ids alone, so every member with the
+ * same view of the cluster assigns the key to the same member.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public class DTSShardRing {
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+	private final Set<String> memberIds;
+	private final NavigableMap<Integer, String> ring = Maps.newTreeMap();
+
+	public DTSShardRing(final Collection<String> memberIds, final int virtualNodes) {
+		Preconditions.checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+		this.memberIds = ImmutableSet.copyOf(memberIds);
+
+		for (final String memberId: this.memberIds) {
+			for (int index = 0; index < virtualNodes; index++) {
+				final int position = hash(memberId + "#" + index);
+				final String existing = ring.get(position);
+
+				// Resolve (unlikely) collisions the same way on every member
+				if (existing == null || existing.compareTo(memberId) > 0) {
+					ring.put(position, memberId);
+				}
+			}
+		}
+	}
+
+	public Set<String> getMemberIds() {
+		return memberIds;
+	}
+
+	public boolean isEmpty() {
+		return ring.isEmpty();
+	}
+
+	/**
+	 * Returns the id of the member owning the specified key
+	 *
+	 * @return The owner id, or null if the ring has no members
+	 */
+	public String getOwner(final String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+
+		final Entry<Integer, String> entry = ring.ceilingEntry(hash(key));
+		return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+	}
+
+	private static int hash(final String value) {
+		return HASH_FUNCTION.hashString(value, Charsets.UTF_8).asInt();
+	}
+}
@@ -0,0 +1,120 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import uk.nhs.ciao.dts.ControlFile;
+import uk.nhs.ciao.dts.Event;
+import uk.nhs.ciao.dts.MessageType;
+import uk.nhs.ciao.dts.Status;
+import uk.nhs.ciao.dts.StatusRecord;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * The routing fields of a DTS control file
+ * <p>
+ * This is the subset of {@link ControlFile} needed to decide how (and whether) an incoming
+ * control file should be handled - it can be read without parsing the full control file.
+ *
+ * @see ControlFileHeaderReader
+ */
+public class ControlFileHeader {
+	private MessageType messageType;
+	private String workflowId;
+	private String fromDTS;
+	private String toDTS;
+	private Event event;
+	private Status status;
+	private String statusCode;
+
+	/**
+	 * Creates a header containing the routing fields of the specified control file
+	 */
+	public static ControlFileHeader valueOf(final ControlFile controlFile) {
+		if (controlFile == null) {
+			return null;
+		}
+
+		final ControlFileHeader header = new ControlFileHeader();
+		header.setMessageType(controlFile.getMessageType());
+		header.setWorkflowId(controlFile.getWorkflowId());
+		header.setFromDTS(controlFile.getFromDTS());
+		header.setToDTS(controlFile.getToDTS());
+
+		final StatusRecord statusRecord = controlFile.getStatusRecord();
+		if (statusRecord != null) {
+			header.setEvent(statusRecord.getEvent());
+			header.setStatus(statusRecord.getStatus());
+			header.setStatusCode(statusRecord.getStatusCode());
+		}
+
+		return header;
+	}
+
+	public MessageType getMessageType() {
+		return messageType;
+	}
+
+	public void setMessageType(final MessageType messageType) {
+		this.messageType = messageType;
+	}
+
+	public String getWorkflowId() {
+		return workflowId;
+	}
+
+	public void setWorkflowId(final String workflowId) {
+		this.workflowId = workflowId;
+	}
+
+	public String getFromDTS() {
+		return fromDTS;
+	}
+
+	public void setFromDTS(final String fromDTS) {
+		this.fromDTS = fromDTS;
+	}
+
+	public String getToDTS() {
+		return toDTS;
+	}
+
+	public void setToDTS(final String toDTS) {
+		this.toDTS = toDTS;
+	}
+
+	public Event getEvent() {
+		return event;
+	}
+
+	public void setEvent(final Event event) {
+		this.event = event;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(final Status status) {
+		this.status = status;
+	}
+
+	public String getStatusCode() {
+		return statusCode;
+	}
+
+	public void setStatusCode(final String statusCode) {
+		this.statusCode = statusCode;
+	}
+
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this)
+				.add("messageType", messageType)
+				.add("workflowId", workflowId)
+				.add("fromDTS", fromDTS)
+				.add("toDTS", toDTS)
+				.add("event", event)
+				.add("status", status)
+				.add("statusCode", statusCode)
+				.toString();
+	}
+}
@@ -0,0 +1,251 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadRuntimeException;
+
+import uk.nhs.ciao.dts.ControlFile;
+import uk.nhs.ciao.dts.Event;
+import uk.nhs.ciao.dts.MessageType;
+import uk.nhs.ciao.dts.Status;
+
+import com.google.common.io.Closeables;
+
+/**
+ * Reads the routing fields of a DTS control file (see {@link ControlFileHeader}) in a single StAX pass
+ * <p>
+ * Only the top-level routing elements and the <code>StatusRecord</code> are examined - the full
+ * {@link ControlFile} is not built. {@link #getHeader(Exchange)} caches the result on the exchange
+ * so that it is read at most once, however many routing decisions are made. A body which cannot be read
+ * as a control file (e.g. a truncated file) fails the exchange rather than being treated as unknown.
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public class ControlFileHeaderReader {
+	/**
+	 * Exchange property containing the cached {@link ControlFileHeader}
+	 */
+	public static final String PROPERTY_CONTROL_FILE_HEADER = "dtsControlFileHeader";
+
+	private static final int MAX_DEPTH = 16;
+
+	private final XMLInputFactory factory;
+
+	/**
+	 * Creates a new reader using the default XMLInputFactory
+	 */
+	public ControlFileHeaderReader() {
+		this(XMLInputFactory.newInstance());
+	}
+
+	/**
+	 * Creates a new reader using the specified XMLInputFactory
+	 * <p>
+	 * The factory is configured by the reader and should not be altered afterwards.
+	 */
+	public ControlFileHeaderReader(final XMLInputFactory factory) {
+		this.factory = factory;
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Returns the control file header of the exchange body - reading and caching it on first use
+	 * <p>
+	 * The body may be a {@link ControlFile} (no parsing is required), a String, or any type which can be
+	 * converted to an InputStream (e.g. a file). The body itself is not altered.
+	 *
+	 * @return The header, or null if the body is empty
+	 * @throws InvalidPayloadRuntimeException If the body could not be read as a control file
+	 */
+	public ControlFileHeader getHeader(final Exchange exchange) {
+		ControlFileHeader header = exchange.getProperty(PROPERTY_CONTROL_FILE_HEADER, ControlFileHeader.class);
+		if (header == null) {
+			header = readHeader(exchange);
+			if (header != null) {
+				exchange.setProperty(PROPERTY_CONTROL_FILE_HEADER, header);
+			}
+		}
+
+		return header;
+	}
+
+	private ControlFileHeader readHeader(final Exchange exchange) throws InvalidPayloadRuntimeException {
+		final Object body = exchange.getIn().getBody();
+		if (body == null) {
+			return null;
+		} else if (body instanceof ControlFile) {
+			return ControlFileHeader.valueOf((ControlFile)body);
+		}
+
+		try {
+			if (body instanceof String) {
+				return read(new StringReader((String)body));
+			}
+
+			final InputStream in = exchange.getIn().getBody(InputStream.class);
+			if (in == null) {
+				return null;
+			}
+
+			try {
+				return read(in);
+			} finally {
+				Closeables.closeQuietly(in);
+			}
+		} catch (IOException e) {
+			// Not a valid control file (e.g. truncated) - fail the exchange rather than ignoring the file
+			throw new InvalidPayloadRuntimeException(exchange, ControlFileHeader.class, e);
+		}
+	}
+
+	/**
+	 * Reads the control file header from the specified stream
+	 * <p>
+	 * The InputStream is not closed by this method.
+	 *
+	 * @throws IOException If the stream could not be read, or if the stream represents an invalid XML document
+	 */
+	public ControlFileHeader read(final InputStream in) throws IOException {
+		XMLStreamReader xml = null;
+		try {
+			xml = factory.createXMLStreamReader(in);
+			return read(xml);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			close(xml);
+		}
+	}
+
+	/**
+	 * Reads the control file header from the specified reader
+	 * <p>
+	 * The Reader is not closed by this method.
+	 *
+	 * @throws IOException If the reader could not be read, or if the reader represents an invalid XML document
+	 */
+	public ControlFileHeader read(final Reader reader) throws IOException {
+		XMLStreamReader xml = null;
+		try {
+			xml = factory.createXMLStreamReader(reader);
+			return read(xml);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			close(xml);
+		}
+	}
+
+	private ControlFileHeader read(final XMLStreamReader xml) throws XMLStreamException {
+		xml.nextTag();
+		final ControlFileHeader header = new ControlFileHeader();
+
+		// depth 1 == children of the root element, depth 2 == children of those elements
+		int depth = 1;
+		boolean inStatusRecord = false;
+		while (depth > 0) {
+			final int event = xml.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+				if (depth == 1) {
+					inStatusRecord = false;
+				}
+			} else if (event == XMLStreamConstants.START_ELEMENT) {
+				if (depth == MAX_DEPTH) {
+					throw new XMLStreamException("Maximum element depth exceeded", xml.getLocation());
+				}
+
+				final String name = xml.getLocalName();
+				if (depth == 1) {
+					if ("StatusRecord".equals(name)) {
+						inStatusRecord = true;
+						depth++;
+					} else if (setHeaderValue(header, name, xml)) {
+						// element text has been read (the reader is positioned on the end element)
+						continue;
+					} else {
+						depth++;
+					}
+				} else if (depth == 2 && inStatusRecord && setStatusValue(header, name, xml)) {
+					continue;
+				} else {
+					depth++;
+				}
+			}
+		}
+
+		return header;
+	}
+
+	private static boolean setHeaderValue(final ControlFileHeader header, final String name,
+			final XMLStreamReader xml) throws XMLStreamException {
+		if ("MessageType".equals(name)) {
+			header.setMessageType(valueOf(MessageType.class, xml.getElementText()));
+		} else if ("WorkflowId".equals(name)) {
+			header.setWorkflowId(emptyToNull(xml.getElementText()));
+		} else if ("From_DTS".equals(name)) {
+			header.setFromDTS(emptyToNull(xml.getElementText()));
+		} else if ("To_DTS".equals(name)) {
+			header.setToDTS(emptyToNull(xml.getElementText()));
+		} else {
+			return false;
+		}
+
+		return true;
+	}
+
+	private static boolean setStatusValue(final ControlFileHeader header, final String name,
+			final XMLStreamReader xml) throws XMLStreamException {
+		if ("Event".equals(name)) {
+			header.setEvent(valueOf(Event.class, xml.getElementText()));
+		} else if ("Status".equals(name)) {
+			header.setStatus(valueOf(Status.class, xml.getElementText()));
+		} else if ("StatusCode".equals(name)) {
+			header.setStatusCode(emptyToNull(xml.getElementText()));
+		} else {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Case-insensitive enum lookup - unknown values are treated as missing
+	 */
+	private static <T extends Enum<T>> T valueOf(final Class<T> type, final String text) {
+		final String value = text == null ? "" : text.trim();
+		for (final T constant: type.getEnumConstants()) {
+			if (constant.name().equalsIgnoreCase(value)) {
+				return constant;
+			}
+		}
+
+		return null;
+	}
+
+	private static String emptyToNull(final String text) {
+		final String value = text == null ? "" : text.trim();
+		return value.isEmpty() ? null : value;
+	}
+
+	private static void close(final XMLStreamReader xml) {
+		if (xml != null) {
+			try {
+				xml.close();
+			} catch (XMLStreamException e) {
+				// ignore - the underlying stream is owned by the caller
+			}
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Service;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Performs DTS file housekeeping in the background
+ * <p>
+ * {@link #cleanup(File)} queues the file and returns immediately. Queued files are moved or deleted in
+ * batches by a worker thread - files which cannot be moved/deleted are retried in later batches (up to
+ * the maximum number of attempts).
+ * <p>
+ * If an archive period is configured, files moved to the destination folder are compacted into zip
+ * archives on a separate schedule: once per period (e.g. hour), just after the period ends, all files in
+ * the destination folder are written to a single archive named by that period. Files are bucketed by when
+ * they were housekept rather than their modification time - so a backlog of old files results in one
+ * archive rather than many small ones. Archived files are removed from the destination folder.
+ */
+@ManagedResource(description = "Performs DTS file housekeeping in the background")
+public class DTSAsyncFileHousekeeper extends DTSFileHousekeeper implements Service {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(DTSAsyncFileHousekeeper.class);
+	private static final String ARCHIVE_SUFFIX = ".zip";
+
+	private final CamelContext context;
+	private final BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>();
+	private final Set<File> destinationFolders = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong archivedCount = new AtomicLong();
+	private final AtomicLong lastLag = new AtomicLong();
+	private final AtomicLong maxLag = new AtomicLong();
+	private long batchInterval = 1000;
+	private int maxBatchSize = 1000;
+	private int maxAttempts = 5;
+	private long archivePeriod;
+	private ScheduledExecutorService executorService;
+
+	public DTSAsyncFileHousekeeper(final CamelContext context) {
+		this.context = Preconditions.checkNotNull(context, "context");
+	}
+
+	/**
+	 * Time (in millis) between housekeeping batches
+	 */
+	public void setBatchInterval(final long batchInterval) {
+		Preconditions.checkArgument(batchInterval > 0, "batchInterval must be positive");
+		this.batchInterval = batchInterval;
+	}
+
+	/**
+	 * Maximum number of files housekept in one batch
+	 */
+	public void setMaxBatchSize(final int maxBatchSize) {
+		Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Maximum number of attempts to move/delete a file before giving up
+	 */
+	public void setMaxAttempts(final int maxAttempts) {
+		Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Time (in millis) covered by each archive - e.g. one hour
+	 * <p>
+	 * Archives are written once per period, aligned to the period boundaries (in UTC). If zero (the
+	 * default), moved files are not archived
+	 */
+	public void setArchivePeriod(final long archivePeriod) {
+		Preconditions.checkArgument(archivePeriod >= 0, "archivePeriod must not be negative");
+		this.archivePeriod = archivePeriod;
+	}
+
+	@ManagedAttribute(description = "Number of files waiting for housekeeping")
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	@ManagedAttribute(description = "Time (milliseconds) the oldest queued file has been waiting")
+	public long getCurrentLag() {
+		final Task oldest = queue.peek();
+		return oldest == null ? 0 : System.currentTimeMillis() - oldest.queuedTime;
+	}
+
+	@ManagedAttribute(description = "Time (milliseconds) between the most recently housekept file being queued and housekept")
+	public long getLastLag() {
+		return lastLag.get();
+	}
+
+	@ManagedAttribute(description = "Maximum time (milliseconds) between a file being queued and housekept")
+	public long getMaxLag() {
+		return maxLag.get();
+	}
+
+	@ManagedAttribute(description = "Number of files housekept")
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of failed attempts which have been retried")
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of files which could not be housekept after the maximum number of attempts")
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of files compacted into archives")
+	public long getArchivedCount() {
+		return archivedCount.get();
+	}
+
+	@Override
+	public synchronized void start() throws Exception {
+		if (executorService != null) {
+			return;
+		}
+
+		executorService = context.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "dts-housekeeper");
+		executorService.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					housekeepBatch();
+				} catch (Exception e) {
+					LOGGER.warn(logMsg("Unable to perform DTS file housekeeping"), e);
+				}
+			}
+		}, batchInterval, batchInterval, TimeUnit.MILLISECONDS);
+
+		if (archivePeriod > 0) {
+			// First run just after the current period ends
+			final long initialDelay = archivePeriod - (System.currentTimeMillis() % archivePeriod);
+			executorService.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						archive();
+					} catch (Exception e) {
+						LOGGER.warn(logMsg("Unable to archive DTS files"), e);
+					}
+				}
+			}, initialDelay, archivePeriod, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public synchronized void stop() throws Exception {
+		if (executorService == null) {
+			return;
+		}
+
+		context.getExecutorServiceManager().shutdownGraceful(executorService);
+		executorService = null;
+
+		// Complete any remaining housekeeping before stopping
+		while (!queue.isEmpty() && housekeepBatch()) {
+			// repeat
+		}
+	}
+
+	/**
+	 * Queues the file for housekeeping
+	 */
+	@Override
+	public void cleanup(final File file) {
+		if (file != null) {
+			queue.add(new Task(file));
+		}
+	}
+
+	/**
+	 * Housekeeps the queued files (up to the maximum batch size)
+	 *
+	 * @return true if any files were housekept successfully
+	 */
+	// default scope (for unit tests)
+	boolean housekeepBatch() {
+		final List<Task> batch = Lists.newArrayList();
+		queue.drainTo(batch, maxBatchSize);
+
+		boolean progress = false;
+		for (final Task task: batch) {
+			final File destinationFolder = getDestinationFolder(task.file);
+			if (housekeep(task.file)) {
+				progress = true;
+				completedCount.incrementAndGet();
+				recordLag(System.currentTimeMillis() - task.queuedTime);
+				if (destinationFolder != null) {
+					destinationFolders.add(destinationFolder);
+				}
+			} else if (++task.attempts < maxAttempts) {
+				retryCount.incrementAndGet();
+				queue.add(task);
+			} else {
+				failedCount.incrementAndGet();
+				LOGGER.warn(logMsg("Giving up on DTS file housekeeping after " + task.attempts + " attempts")
+						.fileName(task.file.getName()));
+			}
+		}
+
+		return progress;
+	}
+
+	/**
+	 * Compacts the housekept files in each destination folder into an archive for the period which has just ended
+	 * <p>
+	 * Runs once per archive period on the housekeeping thread - so no files are moved while the archive is
+	 * being written.
+	 */
+	// default scope (for unit tests)
+	void archive() {
+		final long periodStart = (System.currentTimeMillis() / archivePeriod - 1) * archivePeriod;
+		for (final File folder: destinationFolders) {
+			final File[] files = folder.listFiles();
+			if (files == null) {
+				continue;
+			}
+
+			final List<File> archiveFiles = Lists.newArrayList();
+			for (final File file: files) {
+				if (file.isFile() && !file.getName().endsWith(ARCHIVE_SUFFIX) && !file.getName().startsWith(".")) {
+					archiveFiles.add(file);
+				}
+			}
+
+			if (archiveFiles.isEmpty()) {
+				continue;
+			}
+
+			try {
+				archive(folder, periodStart, archiveFiles);
+			} catch (IOException e) {
+				LOGGER.warn(logMsg("Unable to archive DTS files").fileName(folder.getPath()), e);
+			}
+		}
+	}
+
+	private void archive(final File folder, final long periodStart, final List<File> files) throws IOException {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmm");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final String name = "dts-" + format.format(new Date(periodStart));
+
+		// An already archived period (e.g. following a restart) is written to an additional archive
+		File archive = new File(folder, name + ARCHIVE_SUFFIX);
+		for (int index = 1; archive.exists(); index++) {
+			archive = new File(folder, name + "-" + index + ARCHIVE_SUFFIX);
+		}
+
+		// Write to a hidden temporary file so a partial archive is never visible
+		final File temporaryFile = new File(folder, "." + archive.getName() + ".tmp");
+		final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(temporaryFile));
+		try {
+			for (final File file: files) {
+				final ZipEntry entry = new ZipEntry(file.getName());
+				entry.setTime(file.lastModified());
+				out.putNextEntry(entry);
+
+				final InputStream in = new FileInputStream(file);
+				try {
+					ByteStreams.copy(in, out);
+				} finally {
+					in.close();
+				}
+				out.closeEntry();
+			}
+		} catch (IOException e) {
+			out.close();
+			temporaryFile.delete();
+			throw e;
+		}
+		out.close();
+
+		if (!temporaryFile.renameTo(archive)) {
+			temporaryFile.delete();
+			throw new IOException("Unable to rename archive: " + archive);
+		}
+
+		// Only remove the files once the archive is complete
+		for (final File file: files) {
+			if (file.delete()) {
+				archivedCount.incrementAndGet();
+			}
+		}
+	}
+
+	private void recordLag(final long lag) {
+		lastLag.set(lag);
+
+		long max = maxLag.get();
+		while (lag > max && !maxLag.compareAndSet(max, lag)) {
+			max = maxLag.get();
+		}
+	}
+
+	/**
+	 * A queued file
+	 */
+	private static class Task {
+		private final File file;
+		private final long queuedTime;
+		private int attempts;
+
+		public Task(final File file) {
+			this.file = file;
+			this.queuedTime = System.currentTimeMillis();
+		}
+	}
+}
@@ -2,8 +2,11 @@ package uk.nhs.ciao.transport.dts.processor;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.camel.AsyncCallback;
 import org.apache.camel.AsyncProcessor;
@@ -19,7 +22,14 @@ import com.google.common.base.Preconditions;
 /**
  * Asynchronous poller that checks for the existence of a named DTS data file.
  * <p>
- * The poller attempts 
+ * The poller attempts to find the file up to <code>maxAttempts</code> times, waiting
+ * <code>pollingInterval</code> between each attempt.
+ * <p>
+ * If a {@link DTSFolderWatcher} is configured, the exchange is completed as soon as the watcher
+ * reports the file (the exchange continues on the poller's executor rather than the watcher thread).
+ * Polling continues as a fallback (for filesystems which do not deliver events)
+ * but using the longer <code>watchedPollingInterval</code> - the overall time spent waiting for the
+ * file is unchanged.
  */
 public class DTSDataFilePoller implements AsyncProcessor {
 	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(DTSDataFilePoller.class);
@@ -47,6 +57,8 @@ public class DTSDataFilePoller implements AsyncProcessor {
 	private final ScheduledExecutorService executorService;
 	private final long pollingInterval;
 	private final int maxAttempts;
+	private DTSFolderWatcher folderWatcher;
+	private long watchedPollingInterval = 2000;
 	
 	/**
 	 * Constructs a new poller
@@ -65,6 +77,21 @@ public class DTSDataFilePoller implements AsyncProcessor {
 		Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
 	}
 	
+	/**
+	 * Watcher used to detect data files as soon as they are created (optional)
+	 */
+	public void setFolderWatcher(final DTSFolderWatcher folderWatcher) {
+		this.folderWatcher = folderWatcher;
+	}
+	
+	/**
+	 * Time to wait between fallback poll attempts while the folder is being watched (in millis)
+	 */
+	public void setWatchedPollingInterval(final long watchedPollingInterval) {
+		Preconditions.checkArgument(watchedPollingInterval >= 0, "watchedPollingInterval must not be negative");
+		this.watchedPollingInterval = watchedPollingInterval;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -91,44 +118,18 @@ public class DTSDataFilePoller implements AsyncProcessor {
 		
 		LOGGER.info(CiaoLogMessage.logMsg("Waiting for DTS data file").fileName(fileName));
 		
-		class PollForFileTask implements Runnable {
-			private volatile int attempt;
-			
-			@Override
-			public void run() {
-				final boolean isSync = false;
-				run(isSync);
-			}
-			
-			public boolean run(final boolean isSync) {
-				try {
-					attempt++; // safe - only one thread runs concurrently
-					
-					if (fileExists(file)) {
-						LOGGER.info(CiaoLogMessage.logMsg("Succesfully found DTS data file").fileName(fileName));
-						addDataFileToMessage(exchange.getIn(), file);
-					} else if (attempt >= maxAttempts) {
-						final String message = "DTS data file could not be found - maximum attempts exceeded";
-						LOGGER.info(CiaoLogMessage.logMsg(message).fileName(fileName));
-						exchange.setException(new FileNotFoundException(message + ": " + file.getPath()));
-					} else {
-						executorService.schedule(this, pollingInterval, TimeUnit.MILLISECONDS);
-						return false;
-					}						
-				} catch (Exception e) {
-					exchange.setException(e);
-				}
-				
-				if (!isSync) {
-					callback.done(isSync);
-				}
-				
-				return true;
-			}
+		final PollForFileTask task = new PollForFileTask(exchange, callback, file, fileName);
+		
+		// The watch is registered before the first check - a file created in between is still reported
+		if (folderWatcher != null && folderWatcher.awaitFile(file, task)) {
+			final long interval = Math.max(pollingInterval, watchedPollingInterval);
+			final int attempts = interval == 0 ? maxAttempts :
+				(int)Math.max(1, (pollingInterval * maxAttempts + interval - 1) / interval);
+			task.watch(interval, attempts);
 		}
 		
 		final boolean isSync = true;
-		return new PollForFileTask().run(isSync);
+		return task.run(isSync);
 	}
 	
 	protected boolean fileExists(final File file) {
@@ -138,4 +139,139 @@ public class DTSDataFilePoller implements AsyncProcessor {
 	protected void addDataFileToMessage(final Message message, final File file) {
 		message.setHeader(HEADER_DATA_FILE, file);
 	}
+	
+	/**
+	 * Polls for a single data file - completing the exchange exactly once (whether the file is
+	 * found by polling, reported by the folder watcher, or not found at all)
+	 */
+	private class PollForFileTask implements Runnable, DTSFolderWatcher.Listener {
+		private final Exchange exchange;
+		private final AsyncCallback callback;
+		private final File file;
+		private final String fileName;
+		private final AtomicBoolean completed = new AtomicBoolean();
+		private long interval = pollingInterval;
+		private int attempts = maxAttempts;
+		private volatile int attempt;
+		private volatile ScheduledFuture<?> future;
+		
+		public PollForFileTask(final Exchange exchange, final AsyncCallback callback, final File file,
+				final String fileName) {
+			this.exchange = exchange;
+			this.callback = callback;
+			this.file = file;
+			this.fileName = fileName;
+		}
+		
+		public void watch(final long interval, final int attempts) {
+			this.interval = interval;
+			this.attempts = attempts;
+		}
+		
+		@Override
+		public void run() {
+			final boolean isSync = false;
+			run(isSync);
+		}
+		
+		public boolean run(final boolean isSync) {
+			if (completed.get()) {
+				// Already completed (asynchronously) by the folder watcher
+				return false;
+			}
+			
+			try {
+				attempt++; // safe - only one thread runs concurrently
+				
+				if (fileExists(file)) {
+					if (!complete()) {
+						return false;
+					}
+					LOGGER.info(CiaoLogMessage.logMsg("Succesfully found DTS data file").fileName(fileName));
+					addDataFileToMessage(exchange.getIn(), file);
+				} else if (attempt >= attempts) {
+					if (!complete()) {
+						return false;
+					}
+					final String message = "DTS data file could not be found - maximum attempts exceeded";
+					LOGGER.info(CiaoLogMessage.logMsg(message).fileName(fileName));
+					exchange.setException(new FileNotFoundException(message + ": " + file.getPath()));
+				} else {
+					future = executorService.schedule(this, interval, TimeUnit.MILLISECONDS);
+					return false;
+				}						
+			} catch (Exception e) {
+				if (!complete()) {
+					return false;
+				}
+				exchange.setException(e);
+			}
+			
+			if (!isSync) {
+				callback.done(isSync);
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Completes the exchange on the poller's executor - the remainder of the route must not run on
+		 * the shared folder watcher thread
+		 */
+		@Override
+		public void fileChanged(final File changedFile) {
+			if (completed.get() || !fileExists(file) || !complete()) {
+				return;
+			}
+			
+			final Runnable foundTask = new Runnable() {
+				@Override
+				public void run() {
+					fileFound();
+				}
+			};
+			
+			try {
+				executorService.execute(foundTask);
+			} catch (RejectedExecutionException e) {
+				// The executor is shutting down - the exchange must still be completed
+				fileFound();
+			}
+		}
+		
+		private void fileFound() {
+			try {
+				LOGGER.info(CiaoLogMessage.logMsg("Succesfully found DTS data file (watch event)").fileName(fileName));
+				addDataFileToMessage(exchange.getIn(), file);
+			} catch (Exception e) {
+				exchange.setException(e);
+			}
+			
+			final boolean isSync = false;
+			callback.done(isSync);
+		}
+		
+		/**
+		 * Marks the task as completed, cancelling any outstanding poll and watch
+		 * 
+		 * @return true if this call completed the task, or false if it had already been completed
+		 */
+		private boolean complete() {
+			if (!completed.compareAndSet(false, true)) {
+				return false;
+			}
+			
+			if (folderWatcher != null) {
+				// harmless if the task was never registered
+				folderWatcher.cancel(file, this);
+			}
+			
+			final ScheduledFuture<?> pending = future;
+			if (pending != null) {
+				pending.cancel(false);
+			}
+			
+			return true;
+		}
+	}
 }
\ No newline at end of file
@@ -40,19 +40,39 @@ public class DTSFileHousekeeper {
 	 * Perform housekeeping / cleanup on the specified DTS file
 	 */
 	public void cleanup(final File file) {
+		housekeep(file);
+	}
+	
+	/**
+	 * Returns the folder that the specified file is moved to
+	 * 
+	 * @return The destination folder, or null if the file is deleted
+	 */
+	protected File getDestinationFolder(final File file) {
+		return Strings.isNullOrEmpty(destinationFolder) ? null : new File(file.getParent(), destinationFolder);
+	}
+	
+	/**
+	 * Moves or deletes the specified file
+	 * 
+	 * @return true if housekeeping was successful (or there was nothing to do), false otherwise
+	 */
+	protected boolean housekeep(final File file) {
 		if (file == null || !file.isFile()) {
 			// Nothing to do
+			return true;
 		}
 		
 		// delete or move
-		if (Strings.isNullOrEmpty(destinationFolder)) {
+		final File folder = getDestinationFolder(file);
+		if (folder == null) {
 			if (!FileUtil.deleteFile(file)) {
 				LOGGER.warn(
 						logMsg("Unable to delete DTS file")
 						.fileName(file.getName()));
+				return false;
 			}
 		} else {
-			final File folder = new File(file.getParent(), destinationFolder);
 			if (!folder.exists()) {
 				folder.mkdirs();
 			}
@@ -60,12 +80,15 @@ public class DTSFileHousekeeper {
 			final File destination = new File(folder, file.getName());
 			try {
 				final boolean copyAndDeleteOnRenameFail = true;
-				FileUtil.renameFile(file, destination, copyAndDeleteOnRenameFail);
+				return FileUtil.renameFile(file, destination, copyAndDeleteOnRenameFail);
 			} catch (IOException e) {
 				LOGGER.warn(
 						logMsg("Unable to move DTS file to housekeeping folder")
 						.fileName(file.getName()), e);
+				return false;
 			}
 		}
+		
+		return true;
 	}
 }
@@ -0,0 +1,300 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Watches DTS folders for new files using a {@link WatchService} (inotify on Linux)
+ * <p>
+ * Listeners are registered for a named file (or for every file in a folder) and are notified
+ * (on the watcher thread) when the file is created or modified. Listeners remain registered until
+ * they are cancelled, and should check the file for themselves - an event does not guarantee that
+ * the file still exists. If events are lost (overflow), file listeners waiting on the affected folder
+ * are notified with their file, and folder listeners are notified with the folder itself.
+ * <p>
+ * Not all filesystems deliver events (e.g. network mounts), so callers should continue to poll
+ * - albeit much less frequently - while they are waiting.
+ */
+@ManagedResource(description = "Watches DTS folders for new files")
+public class DTSFolderWatcher extends ServiceSupport {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(DTSFolderWatcher.class);
+
+	/**
+	 * Notified when a watched file is created or modified
+	 */
+	public interface Listener {
+		void fileChanged(File file);
+	}
+
+	private final Object lock = new Object();
+	private final Map<Path, WatchKey> keysByFolder = Maps.newHashMap();
+	private final SetMultimap<File, Listener> listenersByFile = LinkedHashMultimap.create();
+	private final SetMultimap<Path, Listener> listenersByFolder = LinkedHashMultimap.create();
+	private final AtomicLong eventCount = new AtomicLong();
+	private final AtomicLong notificationCount = new AtomicLong();
+	private volatile WatchService watchService;
+	private Thread watcher;
+
+	@ManagedAttribute(description = "Number of folders being watched")
+	public int getWatchedFolderCount() {
+		synchronized (lock) {
+			return keysByFolder.size();
+		}
+	}
+
+	@ManagedAttribute(description = "Number of files with registered listeners")
+	public int getWaitingFileCount() {
+		synchronized (lock) {
+			return listenersByFile.keySet().size();
+		}
+	}
+
+	@ManagedAttribute(description = "Number of file system events received")
+	public long getEventCount() {
+		return eventCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of listener notifications")
+	public long getNotificationCount() {
+		return notificationCount.get();
+	}
+
+	/**
+	 * Registers a listener to be notified when the specified file is created or modified
+	 * <p>
+	 * Events are only delivered after this method returns true, so callers should check for
+	 * the file <strong>after</strong> registering to avoid missing a file created in between.
+	 *
+	 * @return true if the listener was registered, or false if the folder of the file could not be
+	 * 			watched (e.g. the watcher is not started) - in which case the caller should fall back
+	 * 			to polling
+	 */
+	public boolean awaitFile(final File file, final Listener listener) {
+		Preconditions.checkNotNull(file, "file");
+		Preconditions.checkNotNull(listener, "listener");
+
+		final File folder = file.getAbsoluteFile().getParentFile();
+		if (folder == null) {
+			return false;
+		}
+
+		synchronized (lock) {
+			if (!register(folder)) {
+				return false;
+			}
+
+			listenersByFile.put(file.getAbsoluteFile(), listener);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Registers a listener to be notified when any file in the specified folder is created or modified
+	 *
+	 * @return true if the listener was registered, or false if the folder could not be watched
+	 * @see #awaitFile(File, Listener)
+	 */
+	public boolean watchFolder(final File folder, final Listener listener) {
+		Preconditions.checkNotNull(folder, "folder");
+		Preconditions.checkNotNull(listener, "listener");
+
+		synchronized (lock) {
+			if (!register(folder.getAbsoluteFile())) {
+				return false;
+			}
+
+			listenersByFolder.put(folder.getAbsoluteFile().toPath(), listener);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes a previously registered listener
+	 */
+	public void cancel(final File file, final Listener listener) {
+		synchronized (lock) {
+			listenersByFile.remove(file.getAbsoluteFile(), listener);
+		}
+	}
+
+	/**
+	 * Removes a previously registered folder listener
+	 */
+	public void cancelFolder(final File folder, final Listener listener) {
+		synchronized (lock) {
+			listenersByFolder.remove(folder.getAbsoluteFile().toPath(), listener);
+		}
+	}
+
+	/**
+	 * Registers the folder with the watch service (if not already registered)
+	 * <p>
+	 * The caller must hold the lock
+	 */
+	private boolean register(final File folder) {
+		final WatchService service = watchService;
+		if (service == null) {
+			return false;
+		}
+
+		final Path path = folder.toPath();
+		if (!keysByFolder.containsKey(path)) {
+			try {
+				keysByFolder.put(path, path.register(service, ENTRY_CREATE, ENTRY_MODIFY));
+			} catch (IOException e) {
+				LOGGER.warn(logMsg("Unable to watch DTS folder - falling back to polling")
+						.fileName(folder.getPath()), e);
+				return false;
+			} catch (ClosedWatchServiceException e) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		watchService = FileSystems.getDefault().newWatchService();
+		watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWatcher();
+			}
+		}, "dts-folder-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		final WatchService service = watchService;
+		watchService = null;
+		if (service != null) {
+			// Wakes the watcher thread
+			service.close();
+		}
+
+		if (watcher != null) {
+			watcher.join(TimeUnit.SECONDS.toMillis(5));
+			watcher = null;
+		}
+
+		synchronized (lock) {
+			keysByFolder.clear();
+			listenersByFile.clear();
+			listenersByFolder.clear();
+		}
+	}
+
+	private void runWatcher() {
+		while (true) {
+			final WatchService service = watchService;
+			if (service == null) {
+				break;
+			}
+
+			final WatchKey key;
+			try {
+				key = service.take();
+			} catch (ClosedWatchServiceException e) {
+				break;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+			try {
+				processEvents(key);
+			} catch (RuntimeException e) {
+				LOGGER.warn(logMsg("Unable to process DTS folder events"), e);
+			}
+
+			if (!key.reset()) {
+				// Folder is no longer accessible - it is registered again on the next request
+				synchronized (lock) {
+					keysByFolder.values().remove(key);
+				}
+			}
+		}
+	}
+
+	private void processEvents(final WatchKey key) {
+		final Path folder = (Path)key.watchable();
+		final List<Listener> notifications = Lists.newArrayList();
+		final List<File> files = Lists.newArrayList();
+
+		for (final WatchEvent<?> event: key.pollEvents()) {
+			eventCount.incrementAndGet();
+
+			if (event.kind() == OVERFLOW) {
+				// Events were lost - notify everything waiting on the folder
+				synchronized (lock) {
+					for (final Map.Entry<File, Listener> entry: listenersByFile.entries()) {
+						if (folder.equals(entry.getKey().getParentFile().toPath())) {
+							files.add(entry.getKey());
+							notifications.add(entry.getValue());
+						}
+					}
+
+					for (final Listener listener: listenersByFolder.get(folder)) {
+						files.add(folder.toFile());
+						notifications.add(listener);
+					}
+				}
+			} else {
+				final File file = folder.resolve((Path)event.context()).toFile();
+				synchronized (lock) {
+					final Collection<Listener> listeners = listenersByFile.get(file);
+					for (final Listener listener: listeners) {
+						files.add(file);
+						notifications.add(listener);
+					}
+
+					for (final Listener listener: listenersByFolder.get(folder)) {
+						files.add(file);
+						notifications.add(listener);
+					}
+				}
+			}
+		}
+
+		// Listeners are called outside of the lock (they may cancel themselves)
+		for (int index = 0; index < notifications.size(); index++) {
+			notificationCount.incrementAndGet();
+			try {
+				notifications.get(index).fileChanged(files.get(index));
+			} catch (RuntimeException e) {
+				LOGGER.warn(logMsg("DTS folder listener failed").fileName(files.get(index).getName()), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Continues exchanges on a pool of worker threads - while keeping exchanges with the same key in order
+ * <p>
+ * The remainder of the route is processed by a worker thread. An exchange with the same key as an
+ * exchange which is still in progress is queued until the earlier exchange has <strong>completed</strong>
+ * (i.e. until the unit of work is done) - so exchanges sharing a key are processed one at a time in
+ * arrival order, while exchanges with different keys are processed in parallel. Exchanges without
+ * a key (or when no key expression is configured) are not ordered.
+ * <p>
+ * The number of queued and in-progress exchanges (the backlog) and the rate at which the backlog is
+ * being drained are published over JMX.
+ */
+@ManagedResource(description = "Dispatches DTS exchanges to worker threads - ordered by key")
+public class DTSKeyedDispatcher extends ServiceSupport implements AsyncProcessor {
+	private final CamelContext context;
+	private final int workerCount;
+	private Expression keyExpression;
+	private volatile ExecutorService executorService;
+
+	private final Object lock = new Object();
+	private final Map<String, Queue<Task>> queuesByKey = Maps.newHashMap();
+	private final AtomicInteger backlog = new AtomicInteger();
+	private final AtomicLong completedCount = new AtomicLong();
+	private volatile long backlogStartTime;
+	private volatile long backlogCompletedCount;
+
+	public DTSKeyedDispatcher(final CamelContext context, final int workerCount) {
+		this.context = Preconditions.checkNotNull(context, "context");
+		Preconditions.checkArgument(workerCount > 0, "workerCount must be positive");
+		this.workerCount = workerCount;
+	}
+
+	/**
+	 * Expression used to determine the ordering key of an exchange
+	 * <p>
+	 * If null, exchanges are not ordered.
+	 */
+	public void setKeyExpression(final Expression keyExpression) {
+		this.keyExpression = keyExpression;
+	}
+
+	@ManagedAttribute(description = "Number of worker threads")
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	@ManagedAttribute(description = "Number of exchanges which are queued or in progress")
+	public int getBacklog() {
+		return backlog.get();
+	}
+
+	@ManagedAttribute(description = "Number of keys with queued or in-progress exchanges")
+	public int getActiveKeyCount() {
+		synchronized (lock) {
+			return queuesByKey.size();
+		}
+	}
+
+	@ManagedAttribute(description = "Number of completed exchanges")
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	@ManagedAttribute(description = "Exchanges completed per second since the current backlog started")
+	public double getDrainRate() {
+		final long startTime = backlogStartTime;
+		if (startTime == 0) {
+			return 0;
+		}
+
+		final long elapsed = System.currentTimeMillis() - startTime;
+		return elapsed <= 0 ? 0 : (completedCount.get() - backlogCompletedCount) * 1000.0 / elapsed;
+	}
+
+	@ManagedAttribute(description = "Estimated time (seconds) to drain the current backlog")
+	public long getEstimatedDrainTime() {
+		final double rate = getDrainRate();
+		return rate <= 0 ? -1 : (long)Math.ceil(backlog.get() / rate);
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		executorService = context.getExecutorServiceManager().newFixedThreadPool(this, "dts-receiver-worker", workerCount);
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		if (executorService != null) {
+			context.getExecutorServiceManager().shutdownGraceful(executorService, TimeUnit.SECONDS.toMillis(30));
+			executorService = null;
+		}
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		AsyncProcessorHelper.process(this, exchange);
+	}
+
+	@Override
+	public boolean process(final Exchange exchange, final AsyncCallback callback) {
+		final String key = keyExpression == null ? null : keyExpression.evaluate(exchange, String.class);
+		final Task task = new Task(key, exchange, callback);
+
+		if (backlog.getAndIncrement() == 0) {
+			// a new backlog is starting - measure the drain rate from here
+			backlogCompletedCount = completedCount.get();
+			backlogStartTime = System.currentTimeMillis();
+		}
+
+		if (key != null) {
+			synchronized (lock) {
+				final Queue<Task> queue = queuesByKey.get(key);
+				if (queue != null) {
+					// an earlier exchange with the same key is still in progress
+					queue.add(task);
+					return false;
+				}
+
+				queuesByKey.put(key, new ArrayDeque<Task>());
+			}
+		}
+
+		submit(task);
+		return false;
+	}
+
+	private void submit(final Task task) {
+		final ExecutorService executor = executorService;
+		try {
+			if (executor == null) {
+				throw new RejectedExecutionException("DTS dispatcher is not started");
+			}
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// Not running - fail the exchange on the calling thread
+			task.exchange.setException(e);
+			task.run();
+		}
+	}
+
+	/**
+	 * Called when an exchange has completed - starting the next exchange with the same key (if any)
+	 */
+	private void release(final String key) {
+		completedCount.incrementAndGet();
+		if (backlog.decrementAndGet() == 0) {
+			backlogStartTime = 0;
+		}
+
+		if (key == null) {
+			return;
+		}
+
+		final Task next;
+		synchronized (lock) {
+			final Queue<Task> queue = queuesByKey.get(key);
+			next = queue == null ? null : queue.poll();
+			if (next == null) {
+				queuesByKey.remove(key);
+			}
+		}
+
+		if (next != null) {
+			submit(next);
+		}
+	}
+
+	/**
+	 * Continues the route for an exchange (on the current thread)
+	 */
+	private class Task implements Runnable {
+		private final String key;
+		private final Exchange exchange;
+		private final AsyncCallback callback;
+
+		public Task(final String key, final Exchange exchange, final AsyncCallback callback) {
+			this.key = key;
+			this.exchange = exchange;
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			exchange.addOnCompletion(new SynchronizationAdapter() {
+				@Override
+				public void onDone(final Exchange exchange) {
+					release(key);
+				}
+			});
+
+			final boolean doneSync = false;
+			callback.done(doneSync);
+		}
+	}
+}
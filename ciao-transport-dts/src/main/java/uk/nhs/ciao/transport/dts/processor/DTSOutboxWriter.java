@@ -0,0 +1,410 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Writes DTS data/control file pairs to the DTS OUT folder in batches
+ * <p>
+ * Exchanges may be submitted concurrently - they are queued and written by a single writer thread,
+ * which takes all queued pairs as one batch. Files are written to the temporary folder and then
+ * published with atomic renames: all data files in the batch are renamed before any control file,
+ * so the DTS client never sees a control file without its data file.
+ * <p>
+ * The {@link Durability} determines which writes are forced to disk before the exchange completes. The
+ * cost of forcing the folder (for {@link Durability#FULL}) is shared by every pair in the batch.
+ * <p>
+ * Exchanges are completed on a separate completion executor - the remainder of each route never runs on the
+ * writer thread. When the writer is stopped, any pairs which have not been written fail.
+ * <p>
+ * The body of the exchange is used as the data file content, and the {@link #PROPERTY_CONTROL_FILE}
+ * property as the control file content. The {@link Exchange#FILE_NAME} header specifies the name of
+ * the data file (the control file has the same name with a <code>.ctl</code> extension).
+ */
+@ManagedResource(description = "Writes DTS data/control file pairs in batches")
+public class DTSOutboxWriter extends ServiceSupport implements AsyncProcessor {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(DTSOutboxWriter.class);
+
+	/**
+	 * Exchange property containing the control file content
+	 */
+	public static final String PROPERTY_CONTROL_FILE = "dtsOutboxControlFile";
+
+	/**
+	 * Determines which writes are forced to disk before a pair is acknowledged
+	 */
+	public enum Durability {
+		/**
+		 * Nothing is forced - the files are left to the operating system to flush
+		 */
+		NONE,
+
+		/**
+		 * The content of each file is forced before it is published
+		 */
+		DATA,
+
+		/**
+		 * File content and the folder entries (renames) are forced - a published pair survives a crash
+		 */
+		FULL
+	}
+
+	private final CamelContext context;
+	private final File outboxFolder;
+	private final File temporaryFolder;
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+	private final Object queueLock = new Object(); // guards accepting (and additions to the queue)
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private Durability durability = Durability.DATA;
+	private int maxBatchSize = 100;
+	private boolean accepting;
+	private volatile ExecutorService executorService;
+	private volatile ExecutorService completionExecutorService;
+
+	/**
+	 * Creates a new writer
+	 *
+	 * @param outboxFolder The DTS OUT folder
+	 * @param temporaryFolder The folder to write files into before they are published - a relative folder is
+	 * 		resolved against the outbox folder. This must be on the same filesystem as the outbox folder.
+	 */
+	public DTSOutboxWriter(final CamelContext context, final File outboxFolder, final File temporaryFolder) {
+		this.context = Preconditions.checkNotNull(context, "context");
+		this.outboxFolder = Preconditions.checkNotNull(outboxFolder, "outboxFolder");
+		Preconditions.checkNotNull(temporaryFolder, "temporaryFolder");
+		this.temporaryFolder = temporaryFolder.isAbsolute() ? temporaryFolder : new File(outboxFolder, temporaryFolder.getPath());
+	}
+
+	public void setDurability(final Durability durability) {
+		this.durability = Preconditions.checkNotNull(durability, "durability");
+	}
+
+	/**
+	 * Maximum number of pairs written in one batch
+	 */
+	public void setMaxBatchSize(final int maxBatchSize) {
+		Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	@ManagedAttribute(description = "Durability level")
+	public String getDurability() {
+		return durability.name();
+	}
+
+	@ManagedAttribute(description = "Number of pairs waiting to be written")
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	@ManagedAttribute(description = "Number of batches written")
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of pairs written")
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of pairs which could not be written")
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	@ManagedAttribute(description = "Mean number of pairs per batch")
+	public double getMeanBatchSize() {
+		final long batches = batchCount.get();
+		return batches == 0 ? 0 : (writtenCount.get() + failedCount.get()) / (double)batches;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		completionExecutorService = context.getExecutorServiceManager().newDefaultThreadPool(this, "dts-outbox-completion");
+		executorService = context.getExecutorServiceManager().newSingleThreadExecutor(this, "dts-outbox-writer");
+		executorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeBatches();
+			}
+		});
+
+		synchronized (queueLock) {
+			accepting = true;
+		}
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		// No further pairs can be queued once the flag is cleared
+		synchronized (queueLock) {
+			accepting = false;
+		}
+
+		if (executorService != null) {
+			context.getExecutorServiceManager().shutdownGraceful(executorService, TimeUnit.SECONDS.toMillis(30));
+			executorService = null;
+		}
+
+		// Fail any pairs which were not written
+		final List<Write> remaining = Lists.newArrayList();
+		queue.drainTo(remaining);
+		for (final Write write: remaining) {
+			write.exchange.setException(new RejectedExecutionException("DTS outbox writer has stopped"));
+			failedCount.incrementAndGet();
+			write.done();
+		}
+
+		if (completionExecutorService != null) {
+			context.getExecutorServiceManager().shutdownGraceful(completionExecutorService, TimeUnit.SECONDS.toMillis(30));
+			completionExecutorService = null;
+		}
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		AsyncProcessorHelper.process(this, exchange);
+	}
+
+	@Override
+	public boolean process(final Exchange exchange, final AsyncCallback callback) {
+		final Write write;
+		try {
+			write = new Write(exchange, callback);
+		} catch (Exception e) {
+			exchange.setException(e);
+			callback.done(true);
+			return true;
+		}
+
+		synchronized (queueLock) {
+			if (accepting) {
+				queue.add(write);
+				return false;
+			}
+		}
+
+		exchange.setException(new RejectedExecutionException("DTS outbox writer is not started"));
+		callback.done(true);
+		return true;
+	}
+
+	private void writeBatches() {
+		final List<Write> batch = Lists.newArrayList();
+		while (isRunAllowed()) {
+			try {
+				final Write first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+
+				// Everything queued while the previous batch was being written joins this batch
+				batch.add(first);
+				queue.drainTo(batch, maxBatchSize - 1);
+				writeBatch(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (RuntimeException e) {
+				LOGGER.warn(logMsg("Unable to write DTS outbox batch"), e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes and publishes the batch, then completes each exchange
+	 */
+	private void writeBatch(final List<Write> batch) {
+		batchCount.incrementAndGet();
+		try {
+			// Write all temporary files
+			final List<Write> written = Lists.newArrayList();
+			for (final Write write: batch) {
+				try {
+					write.writeTemporaryFiles();
+					written.add(write);
+				} catch (Exception e) {
+					write.fail(e);
+				}
+			}
+
+			// Publish data files before any control file
+			final List<Write> dataPublished = Lists.newArrayList();
+			for (final Write write: written) {
+				try {
+					write.publishDataFile();
+					dataPublished.add(write);
+				} catch (Exception e) {
+					write.fail(e);
+				}
+			}
+			forceFolder();
+
+			for (final Write write: dataPublished) {
+				try {
+					write.publishControlFile();
+				} catch (Exception e) {
+					write.fail(e);
+				}
+			}
+			forceFolder();
+		} finally {
+			for (final Write write: batch) {
+				if (write.exchange.getException() == null) {
+					writtenCount.incrementAndGet();
+				} else {
+					failedCount.incrementAndGet();
+				}
+				write.done();
+			}
+		}
+	}
+
+	/**
+	 * Forces the renames in the outbox folder (if required by the durability level)
+	 */
+	private void forceFolder() {
+		if (durability != Durability.FULL) {
+			return;
+		}
+
+		try {
+			final FileChannel channel = FileChannel.open(outboxFolder.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Not supported on all platforms (e.g. Windows) - renames are then flushed by the operating system
+			LOGGER.debug(logMsg("Unable to force DTS outbox folder").fileName(outboxFolder.getPath()), e);
+		}
+	}
+
+	/**
+	 * A data/control file pair to write
+	 */
+	private class Write {
+		private final Exchange exchange;
+		private final AsyncCallback callback;
+		private final byte[] data;
+		private final byte[] control;
+		private final String dataFileName;
+		private final String controlFileName;
+
+		public Write(final Exchange exchange, final AsyncCallback callback) throws Exception {
+			this.exchange = exchange;
+			this.callback = callback;
+			this.data = exchange.getIn().getMandatoryBody(byte[].class);
+			this.control = context.getTypeConverter().mandatoryConvertTo(byte[].class, exchange,
+					exchange.getProperty(PROPERTY_CONTROL_FILE));
+
+			dataFileName = exchange.getIn().getHeader(Exchange.FILE_NAME, String.class);
+			Preconditions.checkArgument(dataFileName != null && dataFileName.endsWith(".dat"),
+					"Data file name must end with .dat: %s", dataFileName);
+			controlFileName = dataFileName.substring(0, dataFileName.length() - 4) + ".ctl";
+		}
+
+		public void writeTemporaryFiles() throws IOException {
+			if (!temporaryFolder.isDirectory() && !temporaryFolder.mkdirs() && !temporaryFolder.isDirectory()) {
+				throw new IOException("Unable to create DTS temporary folder: " + temporaryFolder);
+			}
+
+			writeFile(new File(temporaryFolder, dataFileName), data);
+			writeFile(new File(temporaryFolder, controlFileName), control);
+		}
+
+		public void publishDataFile() throws IOException {
+			move(dataFileName);
+		}
+
+		public void publishControlFile() throws IOException {
+			move(controlFileName);
+		}
+
+		public void fail(final Exception e) {
+			exchange.setException(e);
+
+			// Never leave a partial pair behind
+			new File(temporaryFolder, dataFileName).delete();
+			new File(temporaryFolder, controlFileName).delete();
+			new File(outboxFolder, dataFileName).delete();
+		}
+
+		/**
+		 * Completes the exchange on the completion executor - the remainder of the route must not run on
+		 * the writer thread
+		 */
+		public void done() {
+			final Runnable completionTask = new Runnable() {
+				@Override
+				public void run() {
+					final boolean doneSync = false;
+					callback.done(doneSync);
+				}
+			};
+
+			final ExecutorService completionExecutor = completionExecutorService;
+			if (completionExecutor != null) {
+				try {
+					completionExecutor.execute(completionTask);
+					return;
+				} catch (RejectedExecutionException e) {
+					// The executor is shutting down - the exchange must still be completed
+				}
+			}
+
+			completionTask.run();
+		}
+
+		private void writeFile(final File file, final byte[] content) throws IOException {
+			final FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(content);
+				if (durability != Durability.NONE) {
+					out.getChannel().force(true);
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		private void move(final String fileName) throws IOException {
+			Files.move(new File(temporaryFolder, fileName).toPath(), new File(outboxFolder, fileName).toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+}
@@ -10,6 +10,7 @@ import org.apache.camel.Header;
 import org.apache.camel.Predicate;
 import org.apache.camel.Processor;
 import org.apache.camel.Property;
+import org.apache.camel.model.ProcessorDefinition;
 
 import com.google.common.base.Strings;
 
@@ -20,6 +21,7 @@ import uk.nhs.ciao.dts.Status;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
 import uk.nhs.ciao.transport.dts.address.DTSEndpointAddress;
 import uk.nhs.ciao.transport.dts.processor.DTSFileHousekeeper;
+import uk.nhs.ciao.transport.dts.processor.DTSOutboxWriter;
 import uk.nhs.ciao.transport.dts.sequence.IdGenerator;
 import uk.nhs.ciao.transport.itk.envelope.Address;
 import uk.nhs.ciao.transport.itk.envelope.DistributionEnvelope;
@@ -39,6 +41,7 @@ public class DTSDistributionEnvelopeSenderRoute extends DistributionEnvelopeSend
 	// optional properties
 	private ControlFile prototypeControlFile;
 	private String dtsFilePrefix = "";
+	private DTSOutboxWriter outboxWriter;
 	
 	/**
 	 * URI of the DTS outbox
@@ -119,6 +122,16 @@ public class DTSDistributionEnvelopeSenderRoute extends DistributionEnvelopeSend
 		this.dtsFilePrefix = Strings.nullToEmpty(dtsFilePrefix);
 	}
 	
+	/**
+	 * Writer used to write data and control files in batches
+	 * <p>
+	 * If null (the default), each file is written by a <code>file://</code> producer using
+	 * {@link #setDTSMessageSenderUri(String)} and the temporary folder
+	 */
+	public void setOutboxWriter(final DTSOutboxWriter outboxWriter) {
+		this.outboxWriter = outboxWriter;
+	}
+	
 	@Override
 	public void configure() throws Exception {
 		configureRequestSender();
@@ -130,7 +143,7 @@ public class DTSDistributionEnvelopeSenderRoute extends DistributionEnvelopeSend
 		 * The output will be two files: a data file and a control file - individual parts
 		 * are constructed and stored as properties until the bodies are written in the final stage 
 		 */
-		from(getDistributionEnvelopeSenderUri())				
+		final ProcessorDefinition<?> route = from(getDistributionEnvelopeSenderUri())				
 			// Configure the distribution envelope
 			.convertBodyTo(DistributionEnvelope.class)
 			.bean(new DistributionEnvelopePopulator())
@@ -159,12 +172,28 @@ public class DTSDistributionEnvelopeSenderRoute extends DistributionEnvelopeSend
 				.toDTS("${property.controlFile.getToDTS}")
 				.eventName("constructed-dts-message")))
 			
+			// Obtain an id for the DTS transaction
+			.setProperty("dtsTransactionId").method(idGenerator, "generateId");
+		
+		if (outboxWriter != null) {
+			// write both files as a pair (batched with other messages)
+			route
+				.setBody().property("controlFile")
+				.convertBodyTo(String.class)
+				.setProperty(DTSOutboxWriter.PROPERTY_CONTROL_FILE).body()
+				
+				.setBody().property("distributionEnvelope")
+				.convertBodyTo(String.class)
+				.setHeader(Exchange.FILE_NAME).simple(dtsFilePrefix + "${property.dtsTransactionId}.dat")
+				.process(outboxWriter)
+			.end();
+			return;
+		}
+		
+		route
 			// write files through a temporary folder (to avoid the client process reading files before they are fully written)
 			.setHeader("tempPrefix").constant(dtsTemporaryFolder)
 			
-			// Obtain an id for the DTS transaction
-			.setProperty("dtsTransactionId").method(idGenerator, "generateId")
-			
 			// first write the data file
 			.setBody().property("distributionEnvelope")
 			.convertBodyTo(String.class)
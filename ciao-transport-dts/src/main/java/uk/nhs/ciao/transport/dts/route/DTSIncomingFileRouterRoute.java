@@ -3,12 +3,16 @@ package uk.nhs.ciao.transport.dts.route;
 import static org.apache.camel.builder.PredicateBuilder.*;
 import static uk.nhs.ciao.logging.CiaoCamelLogMessage.camelLogMsg;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Predicate;
+import org.apache.camel.component.file.FileEndpoint;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.spi.IdempotentRepository;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.Sets;
@@ -19,12 +23,24 @@ import uk.nhs.ciao.dts.ControlFile;
 import uk.nhs.ciao.dts.Event;
 import uk.nhs.ciao.dts.MessageType;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
+import uk.nhs.ciao.transport.dts.cluster.DTSShardCoordinator;
+import uk.nhs.ciao.transport.dts.processor.ControlFileHeader;
+import uk.nhs.ciao.transport.dts.processor.ControlFileHeaderReader;
+import uk.nhs.ciao.transport.dts.processor.DTSFolderWatcher;
+import uk.nhs.ciao.transport.dts.watch.DTSWatchedFolderEndpoint;
 
 /**
  * Monitors the DTS incoming message folders (IN, SENT) for control files
  * and routes them to an appropriate handler.
  * <p>
  * Housekeeping/cleanup of the folders is handled by delegate route.
+ * <p>
+ * By default the folders are monitored by polling <code>file://</code> consumers. If a folder watcher
+ * is configured, the folders are instead monitored by {@link DTSWatchedFolderEndpoint} consumers - only
+ * new control files are processed, rather than re-checking every file left in the folder on each poll.
+ * <p>
+ * If a shard coordinator is configured, the files in both folders are shared between the members of
+ * the cluster - each member only consumes the files it owns.
  */
 public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 	private static final CiaoCamelLogger LOGGER = CiaoCamelLogger.getLogger(DTSIncomingFileRouterRoute.class);
@@ -45,8 +61,19 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 	private final Set<String> mailboxes = Sets.newHashSet();
 	private final Set<String> workflowIds = Sets.newHashSet();
 	
+	/**
+	 * Shared by the IN and SENT monitors - the header is read once and cached on the exchange
+	 */
+	private final ControlFileHeaderReader controlFileHeaderReader = new ControlFileHeaderReader();
+	
 	// optional
 	private String dtsFilePrefix = "";
+	private DTSFolderWatcher folderWatcher;
+	private String dtsInFolder;
+	private String dtsSentFolder;
+	private long reconciliationInterval = 60000;
+	private long readLockCheckInterval = 1000;
+	private DTSShardCoordinator shardCoordinator;
 	
 	public void setDTSInUri(final String dtsInUri) {
 		this.dtsInUri = dtsInUri;
@@ -103,6 +130,53 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 		this.dtsFilePrefix = Strings.nullToEmpty(dtsFilePrefix);
 	}
 	
+	/**
+	 * Watcher used to monitor the IN and SENT folders
+	 * <p>
+	 * If null (the default), the folders are polled using the IN and SENT URIs. Otherwise the
+	 * folders specified by {@link #setDTSInFolder(String)} and {@link #setDTSSentFolder(String)}
+	 * are watched.
+	 */
+	public void setFolderWatcher(final DTSFolderWatcher folderWatcher) {
+		this.folderWatcher = folderWatcher;
+	}
+	
+	/**
+	 * Location of the IN folder (when a folder watcher is used)
+	 */
+	public void setDTSInFolder(final String dtsInFolder) {
+		this.dtsInFolder = dtsInFolder;
+	}
+	
+	/**
+	 * Location of the SENT folder (when a folder watcher is used)
+	 */
+	public void setDTSSentFolder(final String dtsSentFolder) {
+		this.dtsSentFolder = dtsSentFolder;
+	}
+	
+	/**
+	 * Time between reconciliation scans of the watched folders - used to find files where the event was missed
+	 */
+	public void setReconciliationInterval(final long reconciliationInterval) {
+		this.reconciliationInterval = reconciliationInterval;
+	}
+	
+	/**
+	 * Time for which a new file in a watched folder must remain unchanged before it is consumed
+	 */
+	public void setReadLockCheckInterval(final long readLockCheckInterval) {
+		this.readLockCheckInterval = readLockCheckInterval;
+	}
+	
+	/**
+	 * Coordinator used to share the IN and SENT folders between cluster members
+	 * <p>
+	 * If null (the default), every member consumes every file (competing through the in-progress repositories)
+	 */
+	public void setShardCoordinator(final DTSShardCoordinator shardCoordinator) {
+		this.shardCoordinator = shardCoordinator;
+	}
 	
 	@Override
 	public void configure() throws Exception {
@@ -112,6 +186,14 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 	
 
 	private void configureSentFolderMonitor() throws Exception {
+		if (folderWatcher != null) {
+			final String include = Strings.isNullOrEmpty(dtsFilePrefix) ? "..*\\.ctl" :
+				Pattern.quote(dtsFilePrefix) + "..*\\.ctl";
+			configureSentFolderMonitor(fromWatchedFolder(dtsSentFolder, include,
+					sentIdempotentRepositoryId, sentInProgressRepositoryId));
+			return;
+		}
+		
 		// Additional configuration parameters are appended to the endpoint URI
 		final URIBuilder uri = new URIBuilder(dtsSentUri);
 		
@@ -130,8 +212,12 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 		// Moving of files is handled manually in the delegate route due to difficulties in disabling
 		// the move option while using moveFailed
 		uri.set("noop", true);
-				
-		from(uri.toString())
+		
+		configureSentFolderMonitor(fromPolledFolder(uri));
+	}
+	
+	private void configureSentFolderMonitor(final RouteDefinition route) throws Exception {
+		route
 			/*
 			 * only interested in processing control files
 			 * this is not handled in the main consumer include parameter because
@@ -149,11 +235,20 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 	}
 	
 	private void configureInFolderMonitor() throws Exception {
+		if (folderWatcher != null) {
+			configureInFolderMonitor(fromWatchedFolder(dtsInFolder, "..*\\.ctl",
+					inIdempotentRepositoryId, inInProgressRepositoryId));
+			return;
+		}
+		
 		// Additional configuration parameters are appended to the endpoint URI
 		final URIBuilder uri = new URIBuilder(dtsInUri);
 		
 		// only handle control files
 		uri.set("include", "..*\\.ctl");
+		
+		// oldest first - a backlog is drained in the order it was received
+		uri.set("sortBy", "file:modified");
 				
 		// only process each file once
 		// Details of processed files should be kept in the repository (they can be expunged over time)
@@ -171,37 +266,43 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 		// the move option while using moveFailed
 		uri.set("noop", true);
 		
-		from(uri.toString())
+		configureInFolderMonitor(fromPolledFolder(uri));
+	}
+	
+	private void configureInFolderMonitor(final RouteDefinition route) throws Exception {
+		route
 			.process(LOGGER.info(camelLogMsg("Received incoming DTS control file")
 					.fileName(header(Exchange.FILE_NAME))))
-		
-			.convertBodyTo(ControlFile.class)
 
+			// Routing decisions only need the control file header - the full control file
+			// is only parsed for messages which are handled by this application
 			.choice()
 				// logging for unsupported control files
 				.when(not(isToDTSKnown()))
 					.process(LOGGER.info(camelLogMsg("Received DTS Data control file for unknown ToDTS mailbox - will not process")
 							.fileName(header(Exchange.FILE_NAME))
-							.workflowId("${body.getWorkflowId}")
-							.fromDTS("${body.getFromDTS}")
-							.toDTS("${body.getToDTS}")))
+							.workflowId("${property.dtsControlFileHeader?.getWorkflowId}")
+							.fromDTS("${property.dtsControlFileHeader?.getFromDTS}")
+							.toDTS("${property.dtsControlFileHeader?.getToDTS}")))
 					.stop() // will not handle
 				.endChoice()
 				.when(not(isWorkflowIdKnown()))
 					.process(LOGGER.info(camelLogMsg("Received DTS Data control file with unsupported workflowId - will not process")
 						.fileName(header(Exchange.FILE_NAME))
-						.workflowId("${body.getWorkflowId}")
-						.fromDTS("${body.getFromDTS}")
-						.toDTS("${body.getToDTS}")))
+						.workflowId("${property.dtsControlFileHeader?.getWorkflowId}")
+						.fromDTS("${property.dtsControlFileHeader?.getFromDTS}")
+						.toDTS("${property.dtsControlFileHeader?.getToDTS}")))
 					.stop() // will not handle
 				.endChoice()
 
 				// main routing
 				
 				.when(and(isMessageType(MessageType.Report), isEvent(Event.SEND)))
+					.convertBodyTo(ControlFile.class)
 					.to(dtsMessageSendNotificationReceiverUri)
 				.endChoice()
 				.when(and(isMessageType(MessageType.Data), isEvent(Event.TRANSFER)))
+					.convertBodyTo(ControlFile.class)
 					.to(dtsMessageReceiverUri)
 				.endChoice()
 
@@ -209,21 +310,50 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 				.otherwise()
 					.process(LOGGER.info(camelLogMsg("Received DTS Data control file with unsupported messageType and/or event - will not process")
 						.fileName(header(Exchange.FILE_NAME))
-						.workflowId("${body.getWorkflowId}")
-						.fromDTS("${body.getFromDTS}")
-						.toDTS("${body.getToDTS}")))
+						.workflowId("${property.dtsControlFileHeader?.getWorkflowId}")
+						.fromDTS("${property.dtsControlFileHeader?.getFromDTS}")
+						.toDTS("${property.dtsControlFileHeader?.getToDTS}")))
 					.stop() // will not handle
 				.endChoice()
 			.end()
 		.end();
 	}
 	
+	private RouteDefinition fromPolledFolder(final URIBuilder uri) {
+		if (shardCoordinator == null) {
+			return from(uri.toString());
+		}
+		
+		// only consume files owned by this cluster member
+		final FileEndpoint endpoint = getContext().getEndpoint(uri.toString(), FileEndpoint.class);
+		endpoint.setFilter(shardCoordinator.getFileFilter());
+		return from(endpoint);
+	}
+	
+	private RouteDefinition fromWatchedFolder(final String folder, final String include,
+			final String idempotentRepositoryId, final String inProgressRepositoryId) {
+		final DTSWatchedFolderEndpoint endpoint = new DTSWatchedFolderEndpoint(getContext(), new File(folder), folderWatcher);
+		endpoint.setInclude(Pattern.compile(include));
+		endpoint.setIdempotentRepository(lookupRepository(idempotentRepositoryId));
+		endpoint.setInProgressRepository(lookupRepository(inProgressRepositoryId));
+		endpoint.setReconciliationInterval(reconciliationInterval);
+		endpoint.setReadLockCheckInterval(readLockCheckInterval);
+		endpoint.setShardCoordinator(shardCoordinator);
+		
+		return from(endpoint);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private IdempotentRepository<String> lookupRepository(final String id) {
+		return getContext().getRegistry().lookupByNameAndType(id, IdempotentRepository.class);
+	}
+	
 	private Predicate isFromDTSKnown() {
 		return new Predicate() {
 			@Override
 			public boolean matches(final Exchange exchange) {
-				final ControlFile controlFile = exchange.getIn().getBody(ControlFile.class);
-				return controlFile != null && mailboxes.contains(controlFile.getFromDTS());
+				final ControlFileHeader header = controlFileHeaderReader.getHeader(exchange);
+				return header != null && mailboxes.contains(header.getFromDTS());
 			}
 		};
 	}
@@ -232,8 +362,8 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 		return new Predicate() {
 			@Override
 			public boolean matches(final Exchange exchange) {
-				final ControlFile controlFile = exchange.getIn().getBody(ControlFile.class);
-				return controlFile != null && mailboxes.contains(controlFile.getToDTS());
+				final ControlFileHeader header = controlFileHeaderReader.getHeader(exchange);
+				return header != null && mailboxes.contains(header.getToDTS());
 			}
 		};
 	}
@@ -242,29 +372,28 @@ public class DTSIncomingFileRouterRoute extends BaseRouteBuilder {
 		return new Predicate() {
 			@Override
 			public boolean matches(final Exchange exchange) {
-				final ControlFile controlFile = exchange.getIn().getBody(ControlFile.class);
-				return controlFile != null && workflowIds.contains(controlFile.getWorkflowId());
+				final ControlFileHeader header = controlFileHeaderReader.getHeader(exchange);
+				return header != null && workflowIds.contains(header.getWorkflowId());
 			}
 		};
 	}
 	
-	private static Predicate isEvent(final Event event) {
+	private Predicate isEvent(final Event event) {
 		return new Predicate() {
 			@Override
 			public boolean matches(final Exchange exchange) {
-				final ControlFile controlFile = exchange.getIn().getBody(ControlFile.class);
-				return controlFile != null && controlFile.getStatusRecord() != null &&
-						controlFile.getStatusRecord().getEvent() == event;
+				final ControlFileHeader header = controlFileHeaderReader.getHeader(exchange);
+				return header != null && header.getEvent() == event;
 			}
 		};
 	}
 	
-	private static Predicate isMessageType(final MessageType messageType) {
+	private Predicate isMessageType(final MessageType messageType) {
 		return new Predicate() {
 			@Override
 			public boolean matches(final Exchange exchange) {
-				final ControlFile controlFile = exchange.getIn().getBody(ControlFile.class);
-				return controlFile != null && controlFile.getMessageType() == messageType;
+				final ControlFileHeader header = controlFileHeaderReader.getHeader(exchange);
+				return header != null && header.getMessageType() == messageType;
 			}
 		};
 	}
@@ -9,13 +9,20 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
+import org.apache.camel.support.ExpressionAdapter;
+import org.apache.camel.support.SynchronizationAdapter;
 import org.apache.camel.util.toolbox.AggregationStrategies;
 
 import uk.nhs.ciao.camel.BaseRouteBuilder;
 import uk.nhs.ciao.dts.ControlFile;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
+import uk.nhs.ciao.transport.dts.processor.ControlFileHeader;
+import uk.nhs.ciao.transport.dts.processor.ControlFileHeaderReader;
 import uk.nhs.ciao.transport.dts.processor.DTSDataFilePoller;
 import uk.nhs.ciao.transport.dts.processor.DTSFileHousekeeper;
+import uk.nhs.ciao.transport.dts.processor.DTSFolderWatcher;
+import uk.nhs.ciao.transport.dts.processor.DTSKeyedDispatcher;
+import uk.nhs.ciao.transport.itk.store.FileContentStore;
 
 /**
  * 
@@ -35,6 +42,12 @@ public class DTSMessageReceiverRoute extends BaseRouteBuilder {
 	// optional properties
 	private long dataFilePollingInterval = 200;
 	private int dataFileMaxAttempts = 100; // == 20 seconds
+	private DTSFolderWatcher dataFileWatcher;
+	private long dataFileWatchedPollingInterval = 2000;
+	private int workerCount;
+	private boolean preserveOrder = true;
+	private FileContentStore contentStore;
+	private long contentStoreThreshold = 1024 * 1024;
 	
 	/**
 	 * URI where incoming DTS messages are received from
@@ -86,10 +99,65 @@ public class DTSMessageReceiverRoute extends BaseRouteBuilder {
 		this.dataFileMaxAttempts = dataFileMaxAttempts;
 	}
 	
+	/**
+	 * Watcher used to detect DTS data files as soon as they are created
+	 * <p>
+	 * If null, data files are only detected by polling
+	 */
+	public void setDataFileWatcher(final DTSFolderWatcher dataFileWatcher) {
+		this.dataFileWatcher = dataFileWatcher;
+	}
+	
+	/**
+	 * Time to wait between fallback poll attempts when the data file folder is being watched
+	 */
+	public void setDataFileWatchedPollingInterval(final long dataFileWatchedPollingInterval) {
+		this.dataFileWatchedPollingInterval = dataFileWatchedPollingInterval;
+	}
+	
+	/**
+	 * Number of worker threads used to process incoming messages in parallel
+	 * <p>
+	 * If zero (the default), messages are processed by the calling thread
+	 */
+	public void setWorkerCount(final int workerCount) {
+		this.workerCount = workerCount;
+	}
+	
+	/**
+	 * If true (the default), messages with the same sender mailbox and workflowId are
+	 * processed one at a time in the order they were received (when using worker threads)
+	 */
+	public void setPreserveOrder(final boolean preserveOrder) {
+		this.preserveOrder = preserveOrder;
+	}
+	
+	/**
+	 * Store used for large data files (claim-check)
+	 * <p>
+	 * If specified, data files larger than the threshold are copied to the store and only the
+	 * content reference is published. If null (the default), data files are always published in full.
+	 */
+	public void setContentStore(final FileContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+	
+	/**
+	 * Size (in bytes) above which data files are published by reference (when using a content store)
+	 */
+	public void setContentStoreThreshold(final long contentStoreThreshold) {
+		this.contentStoreThreshold = contentStoreThreshold;
+	}
+	
 	@Override
 	public void configure() throws Exception {
 		final ScheduledExecutorService executorService = getContext().getExecutorServiceManager()
 				.newSingleThreadScheduledExecutor(this, "data-file-poller");
+		final DTSDataFilePoller dataFilePoller = createDataFilePoller(executorService, dataFilePollingInterval, dataFileMaxAttempts);
+		if (dataFileWatcher != null) {
+			dataFilePoller.setFolderWatcher(dataFileWatcher);
+			dataFilePoller.setWatchedPollingInterval(dataFileWatchedPollingInterval);
+		}
 
 		from(dtsMessageReceiverUri)
 			.onCompletion()
@@ -103,11 +171,14 @@ public class DTSMessageReceiverRoute extends BaseRouteBuilder {
 			.setHeader("controlFileName").header(Exchange.FILE_NAME)
 			//.convertBodyTo(ControlFile.class)
 			
+			// Continue on a worker thread (if configured)
+			.process(createDispatcher())
+			
 			// Wait for the associated data file
 			.setHeader(HEADER_DTS_FOLDER_NAME).header(Exchange.FILE_PARENT)
 			.setHeader(HEADER_DATA_FILE_NAME, regexReplaceAll(
 					simple("${header.CamelFileName}"), "(..*)\\.ctl", "$1.dat"))
-			.process(createDataFilePoller(executorService, dataFilePollingInterval, dataFileMaxAttempts))
+			.process(dataFilePoller)
 			
 			// Publish the payload (using multicast to maintain original message)
 			.multicast(AggregationStrategies.useOriginal())
@@ -115,10 +186,10 @@ public class DTSMessageReceiverRoute extends BaseRouteBuilder {
 				.pipeline()
 					.setProperty("dtsControlFile").body(ControlFile.class)
 					.setBody().header(HEADER_DATA_FILE)
-					.convertBodyTo(byte[].class)
+					.process(new PayloadLoader())
 					
 					// Store the control file properties - it may be required for future DTS exchanges (especially the workflowId)
-					.removeHeaders("*")
+					.removeHeaders("*", FileContentStore.HEADER_CONTENT_REFERENCE)
 					.setHeader(HEADER_WORKFLOW_ID).simple("${property.dtsControlFile.getWorkflowId}")
 					.setHeader(HEADER_FROM_DTS).simple("${property.dtsControlFile.getFromDTS}")
 					.setHeader(HEADER_TO_DTS).simple("${property.dtsControlFile.getToDTS}")
@@ -139,6 +210,25 @@ public class DTSMessageReceiverRoute extends BaseRouteBuilder {
 		.end();
 	}
 	
+	private Processor createDispatcher() throws Exception {
+		if (workerCount <= 0) {
+			return new Processor() {
+				@Override
+				public void process(final Exchange exchange) throws Exception {
+					// NOOP - continue on the calling thread
+				}
+			};
+		}
+		
+		final DTSKeyedDispatcher dispatcher = new DTSKeyedDispatcher(getContext(), workerCount);
+		if (preserveOrder) {
+			dispatcher.setKeyExpression(new MailboxWorkflowKey());
+		}
+		getContext().addService(dispatcher);
+		
+		return dispatcher;
+	}
+	
 	// protected scope (for unit tests)
 	
 	protected DTSDataFilePoller createDataFilePoller(final ScheduledExecutorService executorService,
@@ -146,6 +236,45 @@ public class DTSMessageReceiverRoute extends BaseRouteBuilder {
 		return new DTSDataFilePoller(executorService, pollingInterval, maxAttempts);
 	}
 
+	/**
+	 * Orders messages by sender mailbox and workflowId
+	 */
+	private static class MailboxWorkflowKey extends ExpressionAdapter {
+		private final ControlFileHeaderReader controlFileHeaderReader = new ControlFileHeaderReader();
+		
+		@Override
+		public Object evaluate(final Exchange exchange) {
+			final ControlFileHeader header = controlFileHeaderReader.getHeader(exchange);
+			return header == null ? null : header.getFromDTS() + "/" + header.getWorkflowId();
+		}
+	}
+	
+	/**
+	 * Loads the data file payload - large files are copied to the content store and sent by reference
+	 * <p>
+	 * If the reference cannot be published the stored copy is removed (the data file is retried or
+	 * moved to the error folder)
+	 */
+	private class PayloadLoader implements Processor {
+		@Override
+		public void process(final Exchange exchange) throws Exception {
+			final Object body = exchange.getIn().getBody();
+			if (contentStore != null && body instanceof File && ((File)body).length() > contentStoreThreshold) {
+				final String reference = contentStore.store((File)body);
+				exchange.addOnCompletion(new SynchronizationAdapter() {
+					@Override
+					public void onFailure(final Exchange exchange) {
+						contentStore.delete(reference);
+					}
+				});
+				exchange.getIn().setHeader(FileContentStore.HEADER_CONTENT_REFERENCE, reference);
+				exchange.getIn().setBody(reference);
+			} else {
+				exchange.getIn().setBody(exchange.getIn().getMandatoryBody(byte[].class));
+			}
+		}
+	}
+	
 	/**
 	 * If successful, housekeeping is applied to the control and data files
 	 */
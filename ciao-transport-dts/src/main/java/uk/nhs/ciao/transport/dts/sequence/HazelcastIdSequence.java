@@ -1,11 +1,13 @@
 package uk.nhs.ciao.transport.dts.sequence;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map.Entry;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Preconditions;
 import com.hazelcast.core.DistributedObject;
 import com.hazelcast.core.IMap;
+import com.hazelcast.map.AbstractEntryProcessor;
 
 /**
  * {@link DTSIdSequence} implementation similar to {@link com.hazelcast.core.IdGenerator} however the distributed
@@ -16,24 +18,36 @@ import com.hazelcast.core.IMap;
  * Additionally the backing {@link HazelcastIdSequenceService} needs to be added to the Hazelcast configuration
  * so that hazelcast can provide sequence instances (via
  * {@link com.hazelcast.core.HazelcastInstance#getDistributedObject(String, Object)}.
- * 
+ * <p>
+ * Each node claims ranges of the counter (a whole number of blocks) from the map entry with a single
+ * entry processor call. IDs are then issued locally without locking. The next range is claimed in the
+ * background once half of the current range has been issued, and the number of blocks claimed adapts
+ * to how quickly the previous range was used.
+ *
  * @see HazelcastIdSequenceFactory
  */
 public class HazelcastIdSequence extends DTSIdSequence implements DistributedObject {
 	private static final int BLOCK_SIZE = 10000;
+	private static final int MAX_BLOCKS = 16;
+
+	/**
+	 * Target time (in millis) for a node to use a claimed range - faster ranges claim more blocks next time,
+	 * slower ranges claim fewer
+	 */
+	private static final long TARGET_RANGE_DURATION = 10000;
 
     private final String name;
     private final IMap<String, Long> sequencesMap;
     private final String entryKey;
-	private AtomicInteger residue;
-	private AtomicLong local;
+    private volatile Range range;
+    private volatile Claim nextClaim;
+    private volatile int blocks = 1;
 
     public HazelcastIdSequence(final String name, final IMap<String, Long> sequencesMap, final String entryKey) {
         this.name = name;
         this.sequencesMap = Preconditions.checkNotNull(sequencesMap);
         this.entryKey = Preconditions.checkNotNull(entryKey);
-        this.residue = new AtomicInteger(BLOCK_SIZE);
-        this.local = new AtomicLong(-1);
+        this.range = new Range(0, 0);
     }
 
     /**
@@ -48,8 +62,7 @@ public class HazelcastIdSequence extends DTSIdSequence implements DistributedObj
         synchronized (this) {
             final boolean init = sequencesMap.putIfAbsent(entryKey, step + 1) == null;
             if (init) {
-                local.set(step);
-                residue.set((int) (counter % BLOCK_SIZE) + 1);
+                range = new Range(counter + 1, (step + 1) * BLOCK_SIZE);
             }
             return init;
         }
@@ -57,20 +70,21 @@ public class HazelcastIdSequence extends DTSIdSequence implements DistributedObj
 
     @Override
     protected long incrementCounter() {
-        int value = residue.getAndIncrement();
-        if (value >= BLOCK_SIZE) {
-            synchronized (this) {
-                value = residue.get();
-                if (value >= BLOCK_SIZE) {
-                    local.set(getAndIncrementCounter());
-                    residue.set(0);
-                }
-                return incrementCounter();
-            }
-        }
-        return local.get() * BLOCK_SIZE + value;
+    	while (true) {
+    		final Range current = range;
+    		final long value = current.next.getAndIncrement();
+    		if (value < current.end) {
+    			// Exactly one caller sees the midpoint - it starts claiming the next range
+    			if (value == current.midpoint) {
+    				prefetch();
+    			}
+    			return value;
+    		}
+
+    		nextRange(current);
+    	}
     }
-    
+
     @Override
     public Object getId() {
         return name;
@@ -89,28 +103,122 @@ public class HazelcastIdSequence extends DTSIdSequence implements DistributedObj
     @Override
     public void destroy() {
         sequencesMap.destroy();
-        residue = null;
-        local = null;
+        range = null;
+        nextClaim = null;
+    }
+
+    /**
+     * Starts claiming the next range in the background
+     */
+    private void prefetch() {
+    	final int claimBlocks = blocks;
+    	nextClaim = new Claim(claimBlocks, sequencesMap.submitToKey(entryKey, new ClaimProcessor(claimBlocks)));
+    }
+
+    /**
+     * Replaces the exhausted range with the next claimed range (unless another thread has already done so)
+     */
+    private synchronized void nextRange(final Range exhausted) {
+    	if (range != exhausted) {
+    		return;
+    	}
+
+    	adaptBlocks(exhausted);
+
+    	final Claim claim = nextClaim;
+    	nextClaim = null;
+
+    	Long firstBlock = null;
+    	int claimedBlocks = 0;
+    	if (claim != null) {
+    		try {
+    			firstBlock = (Long)claim.future.get();
+    			claimedBlocks = claim.blocks;
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		} catch (Exception e) {
+    			// The range is claimed again below - at worst the prefetched blocks are skipped
+    		}
+    	}
+
+    	if (firstBlock == null) {
+    		claimedBlocks = blocks;
+    		firstBlock = getAndIncrementCounter(claimedBlocks);
+    	}
+
+    	range = new Range(firstBlock * BLOCK_SIZE, (firstBlock + claimedBlocks) * BLOCK_SIZE);
     }
-    
+
+    /**
+     * Adjusts the number of blocks to claim based on how long the exhausted range lasted
+     */
+    private void adaptBlocks(final Range exhausted) {
+    	if (exhausted.end == 0) {
+    		return; // not a claimed range
+    	}
+
+    	final long duration = System.currentTimeMillis() - exhausted.createdTime;
+    	if (duration < TARGET_RANGE_DURATION / 2 && blocks < MAX_BLOCKS) {
+    		blocks = blocks * 2;
+    	} else if (duration > TARGET_RANGE_DURATION * 2 && blocks > 1) {
+    		blocks = blocks / 2;
+    	}
+    }
+
     /**
      * Gets (and claims) the current counter value for this node, and increments the cluster-wide entry in the backing map
      */
-    private long getAndIncrementCounter() {
-    	boolean updated = false;
-    	Long previous = null;
-    	
-    	// Use a CAS strategy to update the map entry
-    	while (!updated) {
-    		previous = sequencesMap.get(entryKey);
-	    	long next = previous == null ? 1 : previous + 1;
-	    	if (previous == null) {
-	    		updated = sequencesMap.putIfAbsent(entryKey, next) == null;
-	    	} else {
-	    		updated = sequencesMap.replace(entryKey, previous, next);
-	    	}
+    private long getAndIncrementCounter(final int claimBlocks) {
+    	return (Long)sequencesMap.executeOnKey(entryKey, new ClaimProcessor(claimBlocks));
+    }
+
+    /**
+     * A range of counter values claimed by this node
+     */
+    private static class Range {
+    	private final AtomicLong next;
+    	private final long end;
+    	private final long midpoint;
+    	private final long createdTime;
+
+    	public Range(final long start, final long end) {
+    		this.next = new AtomicLong(start);
+    		this.end = end;
+    		this.midpoint = start + (end - start) / 2;
+    		this.createdTime = System.currentTimeMillis();
+    	}
+    }
+
+    /**
+     * A range claim in progress
+     */
+    private static class Claim {
+    	private final int blocks;
+    	private final Future<Object> future;
+
+    	public Claim(final int blocks, final Future<Object> future) {
+    		this.blocks = blocks;
+    		this.future = future;
+    	}
+    }
+
+    /**
+     * Returns the current block counter and increments the entry by the number of blocks being claimed
+     */
+    private static class ClaimProcessor extends AbstractEntryProcessor<String, Long> {
+    	private static final long serialVersionUID = 1L;
+
+    	private final int blocks;
+
+    	public ClaimProcessor(final int blocks) {
+    		this.blocks = blocks;
+    	}
+
+    	@Override
+    	public Object process(final Entry<String, Long> entry) {
+    		final long previous = entry.getValue() == null ? 0 : entry.getValue();
+    		entry.setValue(previous + blocks);
+    		return previous;
     	}
-    	
-    	return previous == null ? 0 : previous;
     }
 }
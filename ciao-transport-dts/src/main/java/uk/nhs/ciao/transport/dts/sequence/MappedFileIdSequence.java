@@ -0,0 +1,236 @@
+package uk.nhs.ciao.transport.dts.sequence;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Implementation of {@link DTSIdSequence} which resumes from its previous position after a restart.
+ * <p>
+ * The counter reserves ranges of IDs by recording a high-water mark in a small memory-mapped file - IDs
+ * below the recorded high-water mark are issued from an {@link AtomicLong} without locking or forcing
+ * the file. After a restart the counter resumes from the recorded high-water mark, so no issued ID is
+ * reused (some reserved IDs are skipped).
+ * <p>
+ * The file holds two checksummed slots which are written alternately. A partially written slot fails
+ * its checksum and is ignored - the counter then resumes one range beyond the remaining slot.
+ * Each high-water mark is forced to disk before the IDs it reserves are issued, so the sequence also
+ * survives an operating system crash - the cost is one flush per range rather than per ID. The next range
+ * is reserved when half of the current range has been issued: a single caller performs the flush while
+ * other callers continue to be issued IDs from the current range. Callers only wait for the flush if the
+ * current range is exhausted - a larger reserve size reduces how often this can happen.
+ * <p>
+ * The file is locked while the sequence is open - opening a second sequence on the same file (in this
+ * or another process) fails. Instances of this class are not suitable for clustered deployments.
+ */
+public class MappedFileIdSequence extends DTSIdSequence implements Closeable {
+	private static final int SLOT_SIZE = 16;
+	private static final int SLOT_COUNT = 2;
+	private static final int DEFAULT_RESERVE_SIZE = 1000;
+
+	/**
+	 * Files opened by this process - a second channel must not be opened on a locked file (closing it
+	 * would release the lock held by the first channel on some platforms)
+	 */
+	private static final Set<String> OPEN_FILES = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final int reserveSize;
+	private final String path;
+	private final RandomAccessFile randomAccessFile;
+	private final FileLock fileLock;
+	private final MappedByteBuffer buffer;
+	private final AtomicLong counter;
+	private final ReentrantLock reserveLock = new ReentrantLock();
+	private volatile long highWaterMark;
+	private int nextSlot;
+
+	public MappedFileIdSequence(final File file) throws IOException {
+		this(file, DEFAULT_RESERVE_SIZE);
+	}
+
+	/**
+	 * Opens the sequence backed by the specified file (the file is created if required)
+	 *
+	 * @param reserveSize The number of IDs reserved by each high-water mark update
+	 * @throws IOException If the file could not be opened, or is already in use by another sequence
+	 */
+	public MappedFileIdSequence(final File file, final int reserveSize) throws IOException {
+		Preconditions.checkNotNull(file, "file");
+		Preconditions.checkArgument(reserveSize > 1, "reserveSize must be greater than 1");
+		this.reserveSize = reserveSize;
+
+		final File folder = file.getAbsoluteFile().getParentFile();
+		if (folder != null && !folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+			throw new IOException("Unable to create folder: " + folder);
+		}
+
+		path = file.getCanonicalPath();
+		if (!OPEN_FILES.add(path)) {
+			throw new IOException("ID sequence file is already in use: " + file);
+		}
+
+		try {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				fileLock = lock(file);
+				buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, SLOT_SIZE * SLOT_COUNT);
+			} catch (IOException e) {
+				randomAccessFile.close(); // also releases the lock
+				throw e;
+			}
+		} catch (IOException e) {
+			OPEN_FILES.remove(path);
+			throw e;
+		}
+
+		final long first = readSlot(0);
+		final long second = readSlot(1);
+		if (first >= 0 && second >= 0) {
+			highWaterMark = Math.max(first, second);
+			counter = new AtomicLong(highWaterMark);
+			nextSlot = first < second ? 0 : 1;
+		} else if (first >= 0 || second >= 0) {
+			// The other slot is either unused or was partially written (holding at most one further range)
+			highWaterMark = Math.max(first, second);
+			counter = new AtomicLong(highWaterMark + reserveSize);
+			nextSlot = first < 0 ? 0 : 1;
+		} else {
+			highWaterMark = 0;
+			counter = new AtomicLong();
+			nextSlot = 0;
+		}
+	}
+
+	/**
+	 * Configures the counter using the specified value (if it has not already been initialised)
+	 */
+	public boolean init(final long counter) {
+		reserveLock.lock();
+		try {
+			if (counter <= 0 || highWaterMark != 0 || this.counter.get() != 0) {
+				return false;
+			}
+
+			writeHighWaterMark(counter + reserveSize);
+			this.counter.set(counter);
+			return true;
+		} finally {
+			reserveLock.unlock();
+		}
+	}
+
+	@Override
+	protected long incrementCounter() {
+		final long value = counter.getAndIncrement();
+		if (value >= highWaterMark) {
+			// The value has not been reserved yet - it must not be issued until the high-water mark is forced
+			reserveLock.lock();
+			try {
+				reserve(value);
+			} finally {
+				reserveLock.unlock();
+			}
+		} else if (value >= highWaterMark - reserveSize / 2 && reserveLock.tryLock()) {
+			// Reserve the next range ahead of time - callers do not wait if another caller is already reserving
+			try {
+				reserve(value);
+			} finally {
+				reserveLock.unlock();
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Forces the high-water mark to disk, releases the lock and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		reserveLock.lock();
+		try {
+			if (!randomAccessFile.getChannel().isOpen()) {
+				return;
+			}
+
+			buffer.force();
+			fileLock.release();
+			randomAccessFile.close();
+		} finally {
+			OPEN_FILES.remove(path);
+			reserveLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes an exclusive lock on the file - each file must only be used by a single sequence
+	 */
+	private FileLock lock(final File file) throws IOException {
+		final FileLock lock;
+		try {
+			lock = randomAccessFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Already locked elsewhere in this process
+			throw new IOException("ID sequence file is already in use: " + file, e);
+		}
+
+		if (lock == null) {
+			throw new IOException("ID sequence file is already in use by another process: " + file);
+		}
+		return lock;
+	}
+
+	/**
+	 * Records high-water marks until the value is reserved (and half a range beyond it)
+	 * <p>
+	 * Only called while holding the reserve lock
+	 */
+	private void reserve(final long value) {
+		while (value >= highWaterMark - reserveSize / 2) {
+			// Each update advances by exactly one range - recovery from a partial write relies on this
+			writeHighWaterMark(highWaterMark + reserveSize);
+		}
+	}
+
+	/**
+	 * Records and forces the high-water mark - IDs below it may be issued once this method returns
+	 */
+	private void writeHighWaterMark(final long value) {
+		final int offset = nextSlot * SLOT_SIZE;
+		buffer.putLong(offset, value);
+		buffer.putLong(offset + 8, checksum(value));
+		buffer.force();
+
+		nextSlot = (nextSlot + 1) % SLOT_COUNT;
+		highWaterMark = value;
+	}
+
+	/**
+	 * @return The high-water mark stored in the slot, or -1 if the slot is empty or invalid
+	 */
+	private long readSlot(final int slot) {
+		final int offset = slot * SLOT_SIZE;
+		final long value = buffer.getLong(offset);
+		final long checksum = buffer.getLong(offset + 8);
+		return value > 0 && checksum == checksum(value) ? value : -1;
+	}
+
+	private static long checksum(final long value) {
+		final CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putLong(value).array());
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,474 @@
+package uk.nhs.ciao.transport.dts.watch;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.impl.DefaultConsumer;
+import org.apache.camel.spi.IdempotentRepository;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+import uk.nhs.ciao.transport.dts.cluster.DTSShardCoordinator;
+import uk.nhs.ciao.transport.dts.processor.DTSFolderWatcher;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Consumes new files from a watched DTS folder
+ * <p>
+ * The names of files in the folder are held in memory. A file is only dispatched when its name is
+ * first seen - either from a folder event or from the periodic reconciliation scan (which also catches
+ * events which were missed or not delivered by the filesystem). Files which are left in the folder
+ * (e.g. unknown files intended for another application) are not checked again.
+ * <p>
+ * A new file is only dispatched once its length and modification time have remained unchanged for the
+ * read lock check interval (so a file which is still being written is not consumed). Empty files, and
+ * files which fail to be processed, are forgotten and retried by the next reconciliation scan.
+ * <p>
+ * Files are dispatched asynchronously with the same headers as a <code>file://</code> consumer, and the
+ * content of the file as a String body. Files are not moved or deleted - housekeeping is handled by the route.
+ * <p>
+ * If the endpoint has a shard coordinator, only files owned by the local cluster member are consumed. The
+ * new files found by a scan are claimed with a single cluster operation, and the folder is re-scanned when
+ * ownership changes.
+ */
+@ManagedResource(description = "Consumes new files from a watched DTS folder")
+public class DTSWatchedFolderConsumer extends DefaultConsumer implements DTSFolderWatcher.Listener,
+		DTSShardCoordinator.Listener {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(DTSWatchedFolderConsumer.class);
+	private static final Comparator<File> OLDEST_FIRST = new Comparator<File>() {
+		@Override
+		public int compare(final File file1, final File file2) {
+			final long modified1 = file1.lastModified();
+			final long modified2 = file2.lastModified();
+			return modified1 < modified2 ? -1 : (modified1 == modified2 ? 0 : 1);
+		}
+	};
+
+	private final DTSWatchedFolderEndpoint endpoint;
+	private final File folder;
+	private final DTSShardCoordinator shardCoordinator;
+	private final Set<String> knownFileNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong eventDiscoveryCount = new AtomicLong();
+	private final AtomicLong scanDiscoveryCount = new AtomicLong();
+	private final AtomicLong scanCount = new AtomicLong();
+	private final AtomicLong dispatchCount = new AtomicLong();
+	private final AtomicLong latencyCount = new AtomicLong();
+	private final AtomicLong totalDiscoveryLatency = new AtomicLong();
+	private final AtomicLong maxDiscoveryLatency = new AtomicLong();
+	private final AtomicInteger inflightCount = new AtomicInteger();
+	private ScheduledExecutorService executorService;
+	private volatile boolean watching;
+
+	public DTSWatchedFolderConsumer(final DTSWatchedFolderEndpoint endpoint, final Processor processor) {
+		super(endpoint, processor);
+		this.endpoint = endpoint;
+		this.folder = endpoint.getFolder().getAbsoluteFile();
+		this.shardCoordinator = endpoint.getShardCoordinator();
+	}
+
+	@ManagedAttribute(description = "Watched folder")
+	public String getFolderName() {
+		return folder.getPath();
+	}
+
+	@ManagedAttribute(description = "Whether folder events are being received (otherwise only the reconciliation scan is used)")
+	public boolean isWatching() {
+		return watching;
+	}
+
+	@ManagedAttribute(description = "Number of file names held in the directory state")
+	public int getKnownFileCount() {
+		return knownFileNames.size();
+	}
+
+	@ManagedAttribute(description = "Number of files discovered from folder events")
+	public long getEventDiscoveryCount() {
+		return eventDiscoveryCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of files discovered by a reconciliation scan (including the initial scan)")
+	public long getScanDiscoveryCount() {
+		return scanDiscoveryCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of reconciliation scans")
+	public long getScanCount() {
+		return scanCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of files dispatched to the route")
+	public long getDispatchCount() {
+		return dispatchCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of files currently being processed")
+	public int getInflightCount() {
+		return inflightCount.get();
+	}
+
+	@ManagedAttribute(description = "Mean time (milliseconds) between a file being modified and it being dispatched")
+	public long getMeanDiscoveryLatency() {
+		final long count = latencyCount.get();
+		return count == 0 ? 0 : totalDiscoveryLatency.get() / count;
+	}
+
+	@ManagedAttribute(description = "Maximum time (milliseconds) between a file being modified and it being dispatched")
+	public long getMaxDiscoveryLatency() {
+		return maxDiscoveryLatency.get();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		super.doStart();
+
+		executorService = endpoint.getCamelContext().getExecutorServiceManager()
+				.newSingleThreadScheduledExecutor(this, "dts-watched-folder");
+
+		// Watch before the initial scan - files created in between are found by either (or both)
+		watching = endpoint.getFolderWatcher().watchFolder(folder, this);
+		if (!watching) {
+			LOGGER.warn(logMsg("DTS folder events are not available - relying on reconciliation scans")
+					.fileName(folder.getPath()));
+		}
+
+		if (shardCoordinator != null) {
+			shardCoordinator.addListener(this);
+		}
+
+		executorService.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				scan();
+			}
+		}, 0, endpoint.getReconciliationInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		endpoint.getFolderWatcher().cancelFolder(folder, this);
+		watching = false;
+
+		if (shardCoordinator != null) {
+			shardCoordinator.removeListener(this);
+		}
+
+		if (executorService != null) {
+			endpoint.getCamelContext().getExecutorServiceManager().shutdown(executorService);
+			executorService = null;
+		}
+
+		knownFileNames.clear();
+		super.doStop();
+	}
+
+	/**
+	 * Called (on the watcher thread) when a file in the folder is created or modified
+	 */
+	@Override
+	public void fileChanged(final File file) {
+		final ScheduledExecutorService executor = executorService;
+		if (executor == null || !isRunAllowed()) {
+			return;
+		}
+
+		if (folder.equals(file)) {
+			// Events were lost - fall back to a full scan
+			scheduleScan(executor);
+		} else if (isIncluded(file.getName()) && knownFileNames.add(file.getName())) {
+			eventDiscoveryCount.incrementAndGet();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					final boolean measureLatency = true;
+					dispatchWhenStable(Collections.singletonList(file), measureLatency);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called when cluster membership changes - files owned by other members may now be owned locally
+	 */
+	@Override
+	public void shardsChanged() {
+		final ScheduledExecutorService executor = executorService;
+		if (executor != null && isRunAllowed()) {
+			scheduleScan(executor);
+		}
+	}
+
+	private void scheduleScan(final ScheduledExecutorService executor) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				scan();
+			}
+		});
+	}
+
+	/**
+	 * Tests if the file is included by the endpoint and (when sharded) owned by the local member
+	 */
+	private boolean isIncluded(final String fileName) {
+		return endpoint.isIncluded(fileName) && (shardCoordinator == null || shardCoordinator.isOwned(fileName));
+	}
+
+	/**
+	 * Reconciles the directory state with the contents of the folder - dispatching any new files
+	 */
+	private void scan() {
+		try {
+			final String[] names = folder.list();
+			if (names == null) {
+				return;
+			}
+
+			// Files found by the initial scan pre-date the consumer - latency is not meaningful
+			final boolean measureLatency = scanCount.incrementAndGet() > 1;
+			final Set<String> currentNames = Sets.newHashSet();
+			final List<File> newFiles = Lists.newArrayList();
+			for (final String name: names) {
+				if (!isIncluded(name)) {
+					continue;
+				}
+
+				currentNames.add(name);
+				if (knownFileNames.add(name)) {
+					scanDiscoveryCount.incrementAndGet();
+					newFiles.add(new File(folder, name));
+				}
+			}
+
+			// Oldest first - a backlog is drained in the order it was received
+			Collections.sort(newFiles, OLDEST_FIRST);
+			dispatchWhenStable(newFiles, measureLatency);
+
+			// Forget files which have been removed (i.e. by housekeeping) or are now owned by another member
+			knownFileNames.retainAll(currentNames);
+		} catch (Exception e) {
+			getExceptionHandler().handleException("Unable to scan DTS folder: " + folder, e);
+		}
+	}
+
+	/**
+	 * Dispatches the new files (in order) once their length and modification time are no longer changing
+	 */
+	private void dispatchWhenStable(final List<File> files, final boolean measureLatency) {
+		final long interval = endpoint.getReadLockCheckInterval();
+		if (interval == 0) {
+			dispatch(files, measureLatency);
+			return;
+		}
+
+		final List<FileSnapshot> snapshots = Lists.newArrayList();
+		for (final File file: files) {
+			snapshots.add(new FileSnapshot(file));
+		}
+		scheduleStabilityCheck(snapshots, measureLatency, interval);
+	}
+
+	private void scheduleStabilityCheck(final List<FileSnapshot> snapshots, final boolean measureLatency,
+			final long interval) {
+		final ScheduledExecutorService executor = executorService;
+		if (snapshots.isEmpty() || executor == null || !isRunAllowed()) {
+			return;
+		}
+
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				checkStability(snapshots, measureLatency, interval);
+			}
+		}, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Dispatches the files which have not changed since the snapshot, and re-checks the others later
+	 */
+	private void checkStability(final List<FileSnapshot> snapshots, final boolean measureLatency,
+			final long interval) {
+		try {
+			final List<File> stableFiles = Lists.newArrayList();
+			final List<FileSnapshot> changedSnapshots = Lists.newArrayList();
+			for (final FileSnapshot snapshot: snapshots) {
+				final FileSnapshot current = new FileSnapshot(snapshot.file);
+				if (!snapshot.file.isFile()) {
+					// removed while waiting - nothing to dispatch
+					continue;
+				} else if (current.length == 0) {
+					// not yet written - the next reconciliation scan will find it again
+					knownFileNames.remove(snapshot.file.getName());
+				} else if (current.isUnchanged(snapshot)) {
+					stableFiles.add(snapshot.file);
+				} else {
+					changedSnapshots.add(current);
+				}
+			}
+
+			dispatch(stableFiles, measureLatency);
+			scheduleStabilityCheck(changedSnapshots, measureLatency, interval);
+		} catch (Exception e) {
+			getExceptionHandler().handleException("Unable to check DTS files in folder: " + folder, e);
+		}
+	}
+
+	/**
+	 * Dispatches the new files (in order) - skipping files which have already been processed or are claimed elsewhere
+	 */
+	private void dispatch(final List<File> files, final boolean measureLatency) {
+		if (!isRunAllowed()) {
+			return;
+		}
+
+		final IdempotentRepository<String> idempotentRepository = endpoint.getIdempotentRepository();
+		final Map<String, File> unprocessedFiles = Maps.newLinkedHashMap();
+		for (final File file: files) {
+			final String key = file.getAbsolutePath();
+			if (file.isFile() && (idempotentRepository == null || !idempotentRepository.contains(key))) {
+				unprocessedFiles.put(key, file);
+			}
+		}
+
+		for (final String key: claim(unprocessedFiles.keySet())) {
+			dispatch(key, unprocessedFiles.get(key), measureLatency);
+		}
+	}
+
+	/**
+	 * Claims the files for processing by this consumer
+	 *
+	 * @return The claimed keys (in the original order)
+	 */
+	private Collection<String> claim(final Set<String> keys) {
+		final List<String> claimed = Lists.newArrayList();
+		if (shardCoordinator != null) {
+			// a single cluster operation for all files
+			final Set<String> claimedKeys = shardCoordinator.claim(keys);
+			for (final String key: keys) {
+				if (claimedKeys.contains(key)) {
+					claimed.add(key);
+				}
+			}
+		} else {
+			final IdempotentRepository<String> inProgressRepository = endpoint.getInProgressRepository();
+			for (final String key: keys) {
+				// otherwise being processed elsewhere
+				if (inProgressRepository == null || inProgressRepository.add(key)) {
+					claimed.add(key);
+				}
+			}
+		}
+		return claimed;
+	}
+
+	private void release(final String key) {
+		if (shardCoordinator != null) {
+			shardCoordinator.release(key);
+		} else if (endpoint.getInProgressRepository() != null) {
+			endpoint.getInProgressRepository().remove(key);
+		}
+	}
+
+	private void dispatch(final String key, final File file, final boolean measureLatency) {
+		final IdempotentRepository<String> idempotentRepository = endpoint.getIdempotentRepository();
+		final Exchange exchange = endpoint.createExchange();
+		try {
+			populateExchange(exchange, file);
+		} catch (Exception e) {
+			// retried by the next reconciliation scan
+			knownFileNames.remove(file.getName());
+			release(key);
+			getExceptionHandler().handleException("Unable to read DTS file: " + file, e);
+			return;
+		}
+
+		if (measureLatency) {
+			recordLatency(file);
+		}
+		dispatchCount.incrementAndGet();
+		inflightCount.incrementAndGet();
+		getAsyncProcessor().process(exchange, new AsyncCallback() {
+			@Override
+			public void done(final boolean doneSync) {
+				try {
+					if (exchange.getException() == null) {
+						if (idempotentRepository != null) {
+							idempotentRepository.add(key);
+						}
+					} else {
+						// retried by the next reconciliation scan
+						knownFileNames.remove(file.getName());
+						getExceptionHandler().handleException("Error processing DTS file: " + file,
+								exchange, exchange.getException());
+					}
+				} finally {
+					release(key);
+					inflightCount.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	private void populateExchange(final Exchange exchange, final File file) throws Exception {
+		exchange.setFromEndpoint(endpoint);
+		exchange.getIn().setHeader(Exchange.FILE_NAME, file.getName());
+		exchange.getIn().setHeader(Exchange.FILE_NAME_ONLY, file.getName());
+		exchange.getIn().setHeader(Exchange.FILE_NAME_CONSUMED, file.getName());
+		exchange.getIn().setHeader(Exchange.FILE_PARENT, file.getParent());
+		exchange.getIn().setHeader(Exchange.FILE_PATH, file.getPath());
+		exchange.getIn().setHeader(Exchange.FILE_LENGTH, file.length());
+		exchange.getIn().setHeader(Exchange.FILE_LAST_MODIFIED, file.lastModified());
+		exchange.getIn().setBody(Files.toString(file, Charsets.UTF_8));
+	}
+
+	private void recordLatency(final File file) {
+		final long latency = Math.max(0, System.currentTimeMillis() - file.lastModified());
+		latencyCount.incrementAndGet();
+		totalDiscoveryLatency.addAndGet(latency);
+
+		long max = maxDiscoveryLatency.get();
+		while (latency > max && !maxDiscoveryLatency.compareAndSet(max, latency)) {
+			max = maxDiscoveryLatency.get();
+		}
+	}
+
+	/**
+	 * The length and modification time of a file at a point in time
+	 */
+	private static class FileSnapshot {
+		private final File file;
+		private final long length;
+		private final long lastModified;
+
+		public FileSnapshot(final File file) {
+			this.file = file;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+
+		public boolean isUnchanged(final FileSnapshot other) {
+			return length == other.length && lastModified == other.lastModified;
+		}
+	}
+}
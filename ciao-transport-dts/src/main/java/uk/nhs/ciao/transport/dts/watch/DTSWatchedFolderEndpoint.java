@@ -0,0 +1,155 @@
+package uk.nhs.ciao.transport.dts.watch;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Consumer;
+import org.apache.camel.Processor;
+import org.apache.camel.Producer;
+import org.apache.camel.impl.DefaultEndpoint;
+import org.apache.camel.spi.IdempotentRepository;
+
+import uk.nhs.ciao.transport.dts.cluster.DTSShardCoordinator;
+import uk.nhs.ciao.transport.dts.processor.DTSFolderWatcher;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Consumer-only endpoint which receives new files from a watched DTS folder
+ * <p>
+ * This is an alternative to a <code>file://</code> consumer in <code>noop</code> mode for large
+ * shared DTS folders: files are discovered from folder events rather than by re-listing the folder,
+ * and the idempotent repositories are only checked once for each new file.
+ *
+ * @see DTSWatchedFolderConsumer
+ */
+public class DTSWatchedFolderEndpoint extends DefaultEndpoint {
+	private final File folder;
+	private final DTSFolderWatcher folderWatcher;
+	private Pattern include;
+	private IdempotentRepository<String> idempotentRepository;
+	private IdempotentRepository<String> inProgressRepository;
+	private long reconciliationInterval = 60000;
+	private long readLockCheckInterval = 1000;
+	private DTSShardCoordinator shardCoordinator;
+
+	public DTSWatchedFolderEndpoint(final CamelContext context, final File folder, final DTSFolderWatcher folderWatcher) {
+		super();
+		this.folder = Preconditions.checkNotNull(folder, "folder");
+		this.folderWatcher = Preconditions.checkNotNull(folderWatcher, "folderWatcher");
+
+		setCamelContext(context);
+		setEndpointUri("dts-watch://" + folder.getPath().replace('\\', '/'));
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+
+	public DTSFolderWatcher getFolderWatcher() {
+		return folderWatcher;
+	}
+
+	public Pattern getInclude() {
+		return include;
+	}
+
+	/**
+	 * Only files with a name matching the pattern are consumed (optional)
+	 */
+	public void setInclude(final Pattern include) {
+		this.include = include;
+	}
+
+	public IdempotentRepository<String> getIdempotentRepository() {
+		return idempotentRepository;
+	}
+
+	/**
+	 * Repository of files which have already been processed (optional)
+	 * <p>
+	 * Entries are keyed by the absolute path of the file - matching the default key of a file consumer
+	 */
+	public void setIdempotentRepository(final IdempotentRepository<String> idempotentRepository) {
+		this.idempotentRepository = idempotentRepository;
+	}
+
+	public IdempotentRepository<String> getInProgressRepository() {
+		return inProgressRepository;
+	}
+
+	/**
+	 * Repository of files which are currently being processed (optional)
+	 * <p>
+	 * Used to ensure a file is only processed by one application when the folder is shared
+	 */
+	public void setInProgressRepository(final IdempotentRepository<String> inProgressRepository) {
+		this.inProgressRepository = inProgressRepository;
+	}
+
+	public long getReconciliationInterval() {
+		return reconciliationInterval;
+	}
+
+	/**
+	 * Time (in millis) between full scans of the folder, used to find files where the event was missed
+	 */
+	public void setReconciliationInterval(final long reconciliationInterval) {
+		Preconditions.checkArgument(reconciliationInterval > 0, "reconciliationInterval must be positive");
+		this.reconciliationInterval = reconciliationInterval;
+	}
+
+	public long getReadLockCheckInterval() {
+		return readLockCheckInterval;
+	}
+
+	/**
+	 * Time (in millis) for which the length and modification time of a new file must remain unchanged
+	 * before it is consumed - equivalent to the <code>changed</code> read lock of a file consumer
+	 * <p>
+	 * If 0, files are consumed as soon as they are found
+	 */
+	public void setReadLockCheckInterval(final long readLockCheckInterval) {
+		Preconditions.checkArgument(readLockCheckInterval >= 0, "readLockCheckInterval must not be negative");
+		this.readLockCheckInterval = readLockCheckInterval;
+	}
+
+	public DTSShardCoordinator getShardCoordinator() {
+		return shardCoordinator;
+	}
+
+	/**
+	 * Coordinator used to share the folder between cluster members (optional)
+	 * <p>
+	 * If specified, only files owned by the local member are consumed, and new files are claimed
+	 * in batches through the coordinator instead of one at a time through the in-progress repository
+	 */
+	public void setShardCoordinator(final DTSShardCoordinator shardCoordinator) {
+		this.shardCoordinator = shardCoordinator;
+	}
+
+	/**
+	 * Tests if the name of the file is included by this endpoint
+	 */
+	public boolean isIncluded(final String fileName) {
+		return include == null || include.matcher(fileName).matches();
+	}
+
+	@Override
+	public Producer createProducer() throws Exception {
+		throw new UnsupportedOperationException("Producer is not supported for: " + getEndpointUri());
+	}
+
+	@Override
+	public Consumer createConsumer(final Processor processor) throws Exception {
+		final DTSWatchedFolderConsumer consumer = new DTSWatchedFolderConsumer(this, processor);
+		configureConsumer(consumer);
+		return consumer;
+	}
+
+	@Override
+	public boolean isSingleton() {
+		return true;
+	}
+}
@@ -0,0 +1,92 @@
+package uk.nhs.ciao.transport.dts.cluster;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.NetworkConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * Unit tests for {@link DTSShardCoordinator}
+ */
+public class DTSShardCoordinatorTest {
+	private HazelcastInstance hazelcastInstance;
+	private DTSShardCoordinator coordinator;
+
+	@Before
+	public void setup() throws Exception {
+		final Config config = new Config();
+		final NetworkConfig networkConfig = config.getNetworkConfig();
+		networkConfig.getInterfaces().setEnabled(true);
+		networkConfig.getInterfaces().setInterfaces(Arrays.asList("127.0.0.1"));
+		networkConfig.getJoin().getMulticastConfig().setEnabled(false);
+		networkConfig.getJoin().getTcpIpConfig().setMembers(Arrays.asList("127.0.0.1:5701"));
+		networkConfig.getJoin().getTcpIpConfig().setEnabled(true);
+
+		hazelcastInstance = Hazelcast.newHazelcastInstance(config);
+		coordinator = new DTSShardCoordinator(hazelcastInstance, "claims");
+		coordinator.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		coordinator.stop();
+		Hazelcast.shutdownAll();
+	}
+
+	@Test
+	public void testSingleMemberOwnsAllFiles() {
+		assertEquals(1, coordinator.getMemberCount());
+		assertTrue(coordinator.isOwned("file1.ctl"));
+		assertTrue(coordinator.isOwned("file2.ctl"));
+	}
+
+	@Test
+	public void testFilesAreClaimedInOneBatch() {
+		final Set<String> keys = Sets.newHashSet("/IN/file1.ctl", "/IN/file2.ctl", "/IN/file3.ctl");
+
+		assertEquals(keys, coordinator.claim(keys));
+		assertEquals(1, coordinator.getClaimBatchCount());
+		assertEquals(3, coordinator.getClaimedCount());
+	}
+
+	@Test
+	public void testClaimsOfDepartedMembersAreTakenOver() {
+		final IMap<String, String> claims = hazelcastInstance.getMap("claims");
+		claims.put("/IN/stale.ctl", coordinator.getLocalMemberId() + "-departed");
+
+		assertEquals(Sets.newHashSet("/IN/stale.ctl"), coordinator.claim(Sets.newHashSet("/IN/stale.ctl")));
+		assertEquals(coordinator.getLocalMemberId(), claims.get("/IN/stale.ctl"));
+	}
+
+	@Test
+	public void testFilesClaimedByTheSameMemberAreNotClaimedAgain() {
+		final Set<String> keys = Sets.newHashSet("/IN/file1.ctl");
+		assertEquals(keys, coordinator.claim(keys));
+
+		assertTrue(coordinator.claim(keys).isEmpty());
+		assertEquals(1, coordinator.getClaimedCount());
+		assertEquals(1, coordinator.getRejectedCount());
+	}
+
+	@Test
+	public void testReleasedFilesCanBeClaimedAgain() {
+		final Set<String> keys = Sets.newHashSet("/IN/file1.ctl");
+		coordinator.claim(keys);
+		coordinator.release("/IN/file1.ctl");
+
+		final IMap<String, String> claims = hazelcastInstance.getMap("claims");
+		assertFalse(claims.containsKey("/IN/file1.ctl"));
+		assertEquals(keys, coordinator.claim(keys));
+	}
+}
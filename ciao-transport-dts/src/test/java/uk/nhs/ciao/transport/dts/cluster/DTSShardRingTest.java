@@ -0,0 +1,64 @@
+package uk.nhs.ciao.transport.dts.cluster;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Unit tests for {@link DTSShardRing}
+ */
+public class DTSShardRingTest {
+	@Test
+	public void testEmptyRingHasNoOwner() {
+		final DTSShardRing ring = new DTSShardRing(Arrays.<String>asList(), 16);
+
+		assertTrue(ring.isEmpty());
+		assertNull(ring.getOwner("file.ctl"));
+	}
+
+	@Test
+	public void testOwnerDoesNotDependOnMemberOrder() {
+		final DTSShardRing ring1 = new DTSShardRing(Arrays.asList("a", "b", "c"), 128);
+		final DTSShardRing ring2 = new DTSShardRing(Arrays.asList("c", "a", "b"), 128);
+
+		for (int index = 0; index < 1000; index++) {
+			final String fileName = "file" + index + ".ctl";
+			assertEquals(ring1.getOwner(fileName), ring2.getOwner(fileName));
+		}
+	}
+
+	@Test
+	public void testFilesAreSpreadBetweenMembers() {
+		final DTSShardRing ring = new DTSShardRing(Arrays.asList("a", "b", "c"), 128);
+
+		final Map<String, Integer> counts = Maps.newHashMap();
+		for (int index = 0; index < 3000; index++) {
+			final String owner = ring.getOwner("file" + index + ".ctl");
+			counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+		}
+
+		assertEquals(3, counts.size());
+		for (final int count: counts.values()) {
+			assertTrue("Uneven distribution: " + counts, count > 500 && count < 1500);
+		}
+	}
+
+	@Test
+	public void testOnlyFilesOfRemovedMemberChangeOwner() {
+		final DTSShardRing before = new DTSShardRing(Arrays.asList("a", "b", "c"), 128);
+		final DTSShardRing after = new DTSShardRing(Arrays.asList("a", "b"), 128);
+
+		for (int index = 0; index < 1000; index++) {
+			final String fileName = "file" + index + ".ctl";
+			final String owner = before.getOwner(fileName);
+			if (!"c".equals(owner)) {
+				assertEquals(owner, after.getOwner(fileName));
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadRuntimeException;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.dts.AddressType;
+import uk.nhs.ciao.dts.ControlFile;
+import uk.nhs.ciao.dts.Event;
+import uk.nhs.ciao.dts.MessageType;
+import uk.nhs.ciao.dts.Status;
+import uk.nhs.ciao.dts.StatusRecord;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Unit tests for {@link ControlFileHeaderReader}
+ */
+public class ControlFileHeaderReaderTest {
+	private CamelContext context;
+	private ControlFileHeaderReader reader;
+	private ControlFile controlFile;
+
+	@Before
+	public void setup() throws Exception {
+		context = new DefaultCamelContext();
+		context.start();
+
+		reader = new ControlFileHeaderReader();
+
+		controlFile = new ControlFile();
+		controlFile.setLocalId("1234");
+		controlFile.setMessageType(MessageType.Data);
+		controlFile.setAddressType(AddressType.DTS);
+		controlFile.setWorkflowId("workflow-1");
+		controlFile.setFromDTS("from-dts");
+		controlFile.setToDTS("to-dts");
+
+		final StatusRecord statusRecord = new StatusRecord();
+		statusRecord.setEvent(Event.TRANSFER);
+		statusRecord.setStatus(Status.SUCCESS);
+		statusRecord.setStatusCode("00");
+		controlFile.setStatusRecord(statusRecord);
+		controlFile.applyDefaults();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		context.stop();
+	}
+
+	@Test
+	public void testHeaderMatchesSerializedControlFile() throws Exception {
+		final String xml = context.getTypeConverter().mandatoryConvertTo(String.class, controlFile);
+		final ControlFileHeader header = reader.read(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)));
+
+		assertHeader(header);
+	}
+
+	@Test
+	public void testHeaderIsCachedOnExchange() throws Exception {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setBody(context.getTypeConverter().mandatoryConvertTo(String.class, controlFile));
+
+		final ControlFileHeader header = reader.getHeader(exchange);
+		assertHeader(header);
+		assertSame(header, reader.getHeader(exchange));
+		assertSame(header, exchange.getProperty(ControlFileHeaderReader.PROPERTY_CONTROL_FILE_HEADER));
+	}
+
+	@Test
+	public void testHeaderIsCopiedFromControlFileBody() throws Exception {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setBody(controlFile);
+
+		assertHeader(reader.getHeader(exchange));
+	}
+
+	@Test(expected=InvalidPayloadRuntimeException.class)
+	public void testInvalidBodyIsRejected() throws Exception {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setBody("not a control file");
+
+		reader.getHeader(exchange);
+	}
+
+	@Test
+	public void testTruncatedControlFileIsRejected() throws Exception {
+		final String xml = context.getTypeConverter().mandatoryConvertTo(String.class, controlFile);
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setBody(new ByteArrayInputStream(xml.substring(0, xml.length() / 2).getBytes(Charsets.UTF_8)));
+
+		try {
+			reader.getHeader(exchange);
+			fail("Expected InvalidPayloadRuntimeException");
+		} catch (InvalidPayloadRuntimeException e) {
+			// expected
+		}
+		assertNull(exchange.getProperty(ControlFileHeaderReader.PROPERTY_CONTROL_FILE_HEADER));
+	}
+
+	@Test
+	public void testEmptyBodyHasNoHeader() throws Exception {
+		final Exchange exchange = new DefaultExchange(context);
+
+		assertNull(reader.getHeader(exchange));
+	}
+
+	private void assertHeader(final ControlFileHeader header) {
+		assertNotNull(header);
+		assertEquals(MessageType.Data, header.getMessageType());
+		assertEquals("workflow-1", header.getWorkflowId());
+		assertEquals("from-dts", header.getFromDTS());
+		assertEquals("to-dts", header.getToDTS());
+		assertEquals(Event.TRANSFER, header.getEvent());
+		assertEquals(Status.SUCCESS, header.getStatus());
+		assertEquals("00", header.getStatusCode());
+	}
+}
@@ -0,0 +1,133 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link DTSAsyncFileHousekeeper}
+ */
+public class DTSAsyncFileHousekeeperTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private CamelContext context;
+	private File inFolder;
+	private DTSAsyncFileHousekeeper housekeeper;
+
+	@Before
+	public void setup() throws Exception {
+		context = new DefaultCamelContext();
+		context.start();
+
+		inFolder = temporaryFolder.newFolder("IN");
+		housekeeper = new DTSAsyncFileHousekeeper(context);
+		housekeeper.setDestinationFolder("completed");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		housekeeper.stop();
+		context.stop();
+	}
+
+	@Test
+	public void testFilesAreMovedInBackground() throws Exception {
+		final File file = writeFile("file1.ctl");
+		housekeeper.setBatchInterval(50);
+		housekeeper.start();
+
+		housekeeper.cleanup(file);
+
+		final File destination = new File(inFolder, "completed/file1.ctl");
+		for (int attempt = 0; attempt < 100 && housekeeper.getCompletedCount() == 0; attempt++) {
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+
+		assertTrue(destination.isFile());
+		assertFalse(file.exists());
+		assertEquals(1, housekeeper.getCompletedCount());
+		assertEquals(0, housekeeper.getQueueSize());
+	}
+
+	@Test
+	public void testFilesAreDeletedWithoutDestination() throws Exception {
+		final File file = writeFile("file1.ctl");
+		housekeeper.setDestinationFolder(null);
+
+		housekeeper.cleanup(file);
+		assertTrue("Housekeeping should be asynchronous", file.exists());
+
+		housekeeper.housekeepBatch();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testRemainingFilesAreHousekeptOnStop() throws Exception {
+		final File file = writeFile("file1.ctl");
+		housekeeper.setBatchInterval(60000);
+		housekeeper.start();
+
+		housekeeper.cleanup(file);
+		housekeeper.stop();
+
+		assertTrue(new File(inFolder, "completed/file1.ctl").isFile());
+	}
+
+	@Test
+	public void testHousekeptFilesAreArchivedTogether() throws Exception {
+		final long archivePeriod = TimeUnit.HOURS.toMillis(1);
+		housekeeper.setArchivePeriod(archivePeriod);
+
+		// Files are bucketed by when they were housekept - not by their modification time
+		final File oldFile = writeFile("old.ctl");
+		oldFile.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(3));
+		final File newFile = writeFile("new.ctl");
+
+		housekeeper.cleanup(oldFile);
+		housekeeper.cleanup(newFile);
+		housekeeper.housekeepBatch();
+		housekeeper.archive();
+
+		final File completedFolder = new File(inFolder, "completed");
+		assertFalse(new File(completedFolder, "old.ctl").exists());
+		assertFalse(new File(completedFolder, "new.ctl").exists());
+		assertEquals(2, housekeeper.getArchivedCount());
+
+		final File[] archives = completedFolder.listFiles();
+		assertEquals(1, archives.length);
+		assertTrue(archives[0].getName().endsWith(".zip"));
+
+		final ZipFile zipFile = new ZipFile(archives[0]);
+		try {
+			assertNotNull(zipFile.getEntry("old.ctl"));
+			assertNotNull(zipFile.getEntry("new.ctl"));
+			assertEquals(2, zipFile.size());
+		} finally {
+			zipFile.close();
+		}
+
+		// Nothing further to archive
+		housekeeper.archive();
+		assertEquals(1, completedFolder.listFiles().length);
+	}
+
+	private File writeFile(final String name) throws Exception {
+		final File file = new File(inFolder, name);
+		Files.write(name, file, Charsets.UTF_8);
+		return file;
+	}
+}
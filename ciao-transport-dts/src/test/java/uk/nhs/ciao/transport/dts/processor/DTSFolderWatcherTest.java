@@ -0,0 +1,87 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link DTSFolderWatcher}
+ */
+public class DTSFolderWatcherTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File folder;
+	private DTSFolderWatcher watcher;
+
+	@Before
+	public void setup() throws Exception {
+		folder = temporaryFolder.newFolder("IN");
+		watcher = new DTSFolderWatcher();
+		watcher.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		watcher.stop();
+	}
+
+	@Test
+	public void testListenerIsNotifiedWhenFileIsCreated() throws Exception {
+		final File file = new File(folder, "example.dat");
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		assertTrue(watcher.awaitFile(file, new DTSFolderWatcher.Listener() {
+			@Override
+			public void fileChanged(final File changedFile) {
+				if (changedFile.isFile()) {
+					latch.countDown();
+				}
+			}
+		}));
+		assertEquals(1, watcher.getWatchedFolderCount());
+		assertEquals(1, watcher.getWaitingFileCount());
+
+		Files.write("payload", file, Charsets.UTF_8);
+		assertTrue("Listener was not notified", latch.await(30, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCancelledListenerIsRemoved() throws Exception {
+		final File file = new File(folder, "example.dat");
+		final DTSFolderWatcher.Listener listener = new DTSFolderWatcher.Listener() {
+			@Override
+			public void fileChanged(final File changedFile) {
+				fail("Cancelled listener should not be notified");
+			}
+		};
+
+		assertTrue(watcher.awaitFile(file, listener));
+		watcher.cancel(file, listener);
+		assertEquals(0, watcher.getWaitingFileCount());
+	}
+
+	@Test
+	public void testStoppedWatcherRequiresPolling() throws Exception {
+		watcher.stop();
+
+		final DTSFolderWatcher.Listener listener = new DTSFolderWatcher.Listener() {
+			@Override
+			public void fileChanged(final File changedFile) {
+				// NOOP
+			}
+		};
+		assertFalse(watcher.awaitFile(new File(folder, "example.dat"), listener));
+	}
+}
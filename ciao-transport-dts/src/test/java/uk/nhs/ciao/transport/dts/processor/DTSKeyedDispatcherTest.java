@@ -0,0 +1,148 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.ExpressionBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultUnitOfWork;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Unit tests for {@link DTSKeyedDispatcher}
+ */
+public class DTSKeyedDispatcherTest {
+	private CamelContext context;
+	private DTSKeyedDispatcher dispatcher;
+
+	@Before
+	public void setup() throws Exception {
+		context = new DefaultCamelContext();
+		context.start();
+
+		dispatcher = new DTSKeyedDispatcher(context, 4);
+		dispatcher.setKeyExpression(ExpressionBuilder.headerExpression("key"));
+		dispatcher.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dispatcher.stop();
+		context.stop();
+	}
+
+	@Test
+	public void testExchangesWithTheSameKeyAreProcessedInOrder() throws Exception {
+		final Map<String, List<Integer>> processed = Maps.newHashMap();
+		final CountDownLatch latch = new CountDownLatch(20);
+
+		for (int index = 0; index < 20; index++) {
+			final Exchange exchange = createExchange(index % 2 == 0 ? "even" : "odd");
+			final int sequence = index;
+			dispatcher.process(exchange, new AsyncCallback() {
+				@Override
+				public void done(final boolean doneSync) {
+					final String key = exchange.getIn().getHeader("key", String.class);
+					synchronized (processed) {
+						if (!processed.containsKey(key)) {
+							processed.put(key, Lists.<Integer>newArrayList());
+						}
+						processed.get(key).add(sequence);
+					}
+
+					complete(exchange);
+					latch.countDown();
+				}
+			});
+		}
+
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertEquals(Lists.newArrayList(0, 2, 4, 6, 8, 10, 12, 14, 16, 18), processed.get("even"));
+		assertEquals(Lists.newArrayList(1, 3, 5, 7, 9, 11, 13, 15, 17, 19), processed.get("odd"));
+		assertEquals(20, dispatcher.getCompletedCount());
+		assertEquals(0, dispatcher.getBacklog());
+		assertEquals(0, dispatcher.getActiveKeyCount());
+	}
+
+	@Test
+	public void testDifferentKeysAreProcessedInParallel() throws Exception {
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch finished = new CountDownLatch(2);
+
+		for (final String key: new String[] {"mailbox-1/workflow", "mailbox-2/workflow"}) {
+			final Exchange exchange = createExchange(key);
+			dispatcher.process(exchange, new AsyncCallback() {
+				@Override
+				public void done(final boolean doneSync) {
+					started.countDown();
+					try {
+						// both exchanges must be in progress at the same time
+						if (started.await(10, TimeUnit.SECONDS)) {
+							finished.countDown();
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						complete(exchange);
+					}
+				}
+			});
+		}
+
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSameKeyWaitsForEarlierExchangeToComplete() throws Exception {
+		final Exchange first = createExchange("mailbox/workflow");
+		final CountDownLatch firstStarted = new CountDownLatch(1);
+		dispatcher.process(first, new AsyncCallback() {
+			@Override
+			public void done(final boolean doneSync) {
+				// not completed until later
+				firstStarted.countDown();
+			}
+		});
+
+		final Exchange second = createExchange("mailbox/workflow");
+		final CountDownLatch secondStarted = new CountDownLatch(1);
+		dispatcher.process(second, new AsyncCallback() {
+			@Override
+			public void done(final boolean doneSync) {
+				secondStarted.countDown();
+				complete(second);
+			}
+		});
+
+		assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+		assertFalse(secondStarted.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(2, dispatcher.getBacklog());
+
+		complete(first);
+		assertTrue(secondStarted.await(10, TimeUnit.SECONDS));
+	}
+
+	private Exchange createExchange(final String key) {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setHeader("key", key);
+		exchange.setUnitOfWork(new DefaultUnitOfWork(exchange));
+		return exchange;
+	}
+
+	private static void complete(final Exchange exchange) {
+		exchange.getUnitOfWork().done(exchange);
+	}
+}
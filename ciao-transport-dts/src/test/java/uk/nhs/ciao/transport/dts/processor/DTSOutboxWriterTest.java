@@ -0,0 +1,144 @@
+package uk.nhs.ciao.transport.dts.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link DTSOutboxWriter}
+ */
+public class DTSOutboxWriterTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private CamelContext context;
+	private File outboxFolder;
+	private DTSOutboxWriter writer;
+
+	@Before
+	public void setup() throws Exception {
+		context = new DefaultCamelContext();
+		context.start();
+
+		outboxFolder = temporaryFolder.newFolder("OUT");
+		writer = new DTSOutboxWriter(context, outboxFolder, new File("../dts-temp"));
+		writer.setDurability(DTSOutboxWriter.Durability.FULL);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		writer.stop();
+		context.stop();
+	}
+
+	@Test
+	public void testPairsAreWrittenToOutbox() throws Exception {
+		writer.start();
+
+		final List<Exchange> exchanges = Lists.newArrayList();
+		for (int index = 0; index < 20; index++) {
+			exchanges.add(createExchange("prefix" + index + ".dat", "data" + index, "control" + index));
+		}
+		send(exchanges);
+
+		for (int index = 0; index < 20; index++) {
+			assertNull(exchanges.get(index).getException());
+			assertEquals("data" + index, Files.toString(new File(outboxFolder, "prefix" + index + ".dat"), Charsets.UTF_8));
+			assertEquals("control" + index, Files.toString(new File(outboxFolder, "prefix" + index + ".ctl"), Charsets.UTF_8));
+		}
+
+		assertEquals(20, writer.getWrittenCount());
+		assertTrue(writer.getBatchCount() <= 20);
+		assertEquals(0, new File(temporaryFolder.getRoot(), "dts-temp").list().length);
+	}
+
+	@Test
+	public void testInvalidFileNameIsRejected() throws Exception {
+		writer.start();
+
+		final Exchange exchange = createExchange("prefix.txt", "data", "control");
+		send(Lists.newArrayList(exchange));
+
+		assertNotNull(exchange.getException());
+		assertEquals(0, outboxFolder.list().length);
+	}
+
+	@Test
+	public void testExchangesAreRejectedWhenNotStarted() throws Exception {
+		final Exchange exchange = createExchange("prefix.dat", "data", "control");
+		send(Lists.newArrayList(exchange));
+
+		assertNotNull(exchange.getException());
+	}
+
+	@Test
+	public void testExchangesAreRejectedOnceStopped() throws Exception {
+		writer.start();
+		writer.stop();
+
+		final Exchange exchange = createExchange("prefix.dat", "data", "control");
+		send(Lists.newArrayList(exchange));
+
+		assertNotNull(exchange.getException());
+		assertEquals(0, outboxFolder.list().length);
+	}
+
+	@Test
+	public void testExchangesAreNotCompletedOnWriterThread() throws Exception {
+		writer.start();
+
+		final AtomicReference<String> threadName = new AtomicReference<String>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		writer.process(createExchange("prefix.dat", "data", "control"), new AsyncCallback() {
+			@Override
+			public void done(final boolean doneSync) {
+				threadName.set(Thread.currentThread().getName());
+				latch.countDown();
+			}
+		});
+
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertFalse(threadName.get(), threadName.get().contains("dts-outbox-writer"));
+	}
+
+	private Exchange createExchange(final String fileName, final String data, final String control) {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setHeader(Exchange.FILE_NAME, fileName);
+		exchange.getIn().setBody(data);
+		exchange.setProperty(DTSOutboxWriter.PROPERTY_CONTROL_FILE, control);
+		return exchange;
+	}
+
+	private void send(final List<Exchange> exchanges) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(exchanges.size());
+		for (final Exchange exchange: exchanges) {
+			writer.process(exchange, new AsyncCallback() {
+				@Override
+				public void done(final boolean doneSync) {
+					latch.countDown();
+				}
+			});
+		}
+
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+	}
+}
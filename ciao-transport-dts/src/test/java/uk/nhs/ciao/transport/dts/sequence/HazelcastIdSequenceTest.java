@@ -1,7 +1,13 @@
 package uk.nhs.ciao.transport.dts.sequence;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.junit.After;
@@ -9,12 +15,14 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.hazelcast.config.Config;
 import com.hazelcast.config.NetworkConfig;
 import com.hazelcast.config.ServiceConfig;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
 
 /**
  * Unit tests for {@link HazelcastIdSequence}
@@ -70,4 +78,40 @@ public class HazelcastIdSequenceTest {
 		Assert.assertEquals("99999999", sequence.generateId());
 		Assert.assertEquals("00000001", sequence.generateId());
 	}
+	
+	@Test
+	public void testConcurrentSequencesIssueUniqueCounters() throws Exception {
+		// Two sequences sharing the same entry simulate two cluster nodes
+		final IMap<String, Long> map = hazelcastInstance.getMap(HazelcastIdSequenceService.MAP_NAME);
+		final HazelcastIdSequence node1 = new HazelcastIdSequence("node1", map, "seq");
+		final HazelcastIdSequence node2 = new HazelcastIdSequence("node2", map, "seq");
+		
+		final int threads = 4;
+		final int countPerThread = 25000;
+		final Set<Long> counters = Sets.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		final ExecutorService executorService = Executors.newFixedThreadPool(threads * 2);
+		try {
+			final List<Future<?>> futures = Lists.newArrayList();
+			for (int thread = 0; thread < threads * 2; thread++) {
+				final HazelcastIdSequence sequence = thread % 2 == 0 ? node1 : node2;
+				futures.add(executorService.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int count = 0; count < countPerThread; count++) {
+							Assert.assertTrue("Counters should be unique", counters.add(sequence.incrementCounter()));
+						}
+						return null;
+					}
+				}));
+			}
+			
+			for (final Future<?> future: futures) {
+				future.get();
+			}
+		} finally {
+			executorService.shutdownNow();
+		}
+		
+		Assert.assertEquals(threads * 2 * countPerThread, counters.size());
+	}
 }
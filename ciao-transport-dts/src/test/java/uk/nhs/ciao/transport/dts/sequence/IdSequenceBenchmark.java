@@ -0,0 +1,95 @@
+package uk.nhs.ciao.transport.dts.sequence;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.NetworkConfig;
+import com.hazelcast.config.ServiceConfig;
+import com.hazelcast.core.Hazelcast;
+
+/**
+ * JMH comparison of the {@link HazelcastIdSequence} and {@link AtomicIdSequence} implementations when
+ * IDs are generated concurrently
+ * <p>
+ * Not run as part of the unit tests - run via {@link #main(String[])} from the test classpath
+ * (the benchmark classes are generated by the JMH annotation processor during test-compile).
+ * The number of threads can be changed with the JMH <code>-t</code> option.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class IdSequenceBenchmark {
+	@Param({"hazelcast", "atomic"})
+	public String sequenceType;
+	
+	private DTSIdSequence sequence;
+	
+	@Setup
+	public void setup() throws Exception {
+		if ("hazelcast".equals(sequenceType)) {
+			final HazelcastIdSequenceFactory factory = new HazelcastIdSequenceFactory(
+					Hazelcast.newHazelcastInstance(createConfig()), "benchmark");
+			sequence = factory.getObject();
+		} else {
+			sequence = new AtomicIdSequence();
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		Hazelcast.shutdownAll();
+	}
+	
+	@Benchmark
+	public String generateId() {
+		return sequence.generateId();
+	}
+	
+	/**
+	 * Single member configuration with the ID sequence service registered
+	 */
+	private static Config createConfig() {
+		final ServiceConfig serviceConfig = new ServiceConfig();
+		serviceConfig.setEnabled(true);
+		serviceConfig.setName(HazelcastIdSequenceService.SERVICE_NAME);
+		serviceConfig.setClassName(HazelcastIdSequenceService.class.getCanonicalName());
+		
+		final Config config = new Config();
+		config.getServicesConfig().addServiceConfig(serviceConfig);
+		
+		final NetworkConfig networkConfig = config.getNetworkConfig();
+		networkConfig.getJoin().getMulticastConfig().setEnabled(false);
+		networkConfig.getJoin().getTcpIpConfig().setMembers(Arrays.asList("127.0.0.1"));
+		networkConfig.getJoin().getTcpIpConfig().setEnabled(true);
+		return config;
+	}
+	
+	public static void main(final String[] args) throws Exception {
+		final Options options = new OptionsBuilder()
+			.include(IdSequenceBenchmark.class.getSimpleName())
+			.build();
+		new Runner(options).run();
+	}
+}
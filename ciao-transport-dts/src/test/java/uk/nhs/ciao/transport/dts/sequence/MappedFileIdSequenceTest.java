@@ -0,0 +1,111 @@
+package uk.nhs.ciao.transport.dts.sequence;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link MappedFileIdSequence}
+ */
+public class MappedFileIdSequenceTest {
+	private static final int RESERVE_SIZE = 100;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File file;
+	private MappedFileIdSequence sequence;
+
+	@Before
+	public void setup() throws Exception {
+		file = new File(temporaryFolder.getRoot(), "sequence/dts-id-sequence");
+		sequence = new MappedFileIdSequence(file, RESERVE_SIZE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sequence.close();
+	}
+
+	@Test
+	public void testInitialId() {
+		assertEquals("00000001", sequence.generateId());
+		assertEquals("00000002", sequence.generateId());
+	}
+
+	@Test
+	public void testInit() {
+		assertTrue(sequence.init(99999997));
+		assertFalse(sequence.init(5));
+
+		assertEquals("99999998", sequence.generateId());
+		assertEquals("99999999", sequence.generateId());
+		assertEquals("00000001", sequence.generateId());
+	}
+
+	@Test
+	public void testSequenceResumesAfterRestart() throws Exception {
+		final long last = issue(sequence, 250);
+		sequence.close();
+
+		sequence = new MappedFileIdSequence(file, RESERVE_SIZE);
+		assertTrue(sequence.incrementCounter() > last);
+		assertFalse(sequence.init(5));
+	}
+
+	@Test
+	public void testFileCannotBeUsedByTwoSequences() throws Exception {
+		try {
+			new MappedFileIdSequence(file, RESERVE_SIZE);
+			fail("Expected the locked file to be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// The original sequence is unaffected
+		assertTrue(sequence.incrementCounter() >= 0);
+	}
+
+	@Test
+	public void testSequenceResumesAfterPartialWrite() throws Exception {
+		final long last = issue(sequence, 250);
+		sequence.close();
+
+		// Corrupt the checksum of the most recent high-water mark
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			final long first = randomAccessFile.readLong();
+			randomAccessFile.seek(16);
+			final long second = randomAccessFile.readLong();
+
+			randomAccessFile.seek(first > second ? 8 : 24);
+			randomAccessFile.writeLong(0);
+		} finally {
+			randomAccessFile.close();
+		}
+
+		sequence = new MappedFileIdSequence(file, RESERVE_SIZE);
+		assertTrue(sequence.incrementCounter() > last);
+	}
+
+	/**
+	 * @return The last counter value issued
+	 */
+	private long issue(final MappedFileIdSequence sequence, final int count) {
+		long last = -1;
+		for (int index = 0; index < count; index++) {
+			final long value = sequence.incrementCounter();
+			assertTrue("Counter values should increase", value > last);
+			last = value;
+		}
+		return last;
+	}
+}
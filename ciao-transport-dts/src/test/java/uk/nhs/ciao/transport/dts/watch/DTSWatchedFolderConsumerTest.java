@@ -0,0 +1,171 @@
+package uk.nhs.ciao.transport.dts.watch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.processor.idempotent.MemoryIdempotentRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.transport.dts.processor.DTSFolderWatcher;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link DTSWatchedFolderConsumer}
+ */
+public class DTSWatchedFolderConsumerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File folder;
+	private CamelContext context;
+	private DTSFolderWatcher folderWatcher;
+	private MemoryIdempotentRepository idempotentRepository;
+	private MockEndpoint output;
+	private final AtomicInteger attempts = new AtomicInteger();
+
+	@Before
+	public void setup() throws Exception {
+		folder = temporaryFolder.newFolder("IN");
+		context = new DefaultCamelContext();
+		folderWatcher = new DTSFolderWatcher();
+		idempotentRepository = new MemoryIdempotentRepository();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		context.stop();
+	}
+
+	@Test
+	public void testNewControlFilesAreConsumed() throws Exception {
+		writeFile("existing.ctl", "existing");
+		context.addService(folderWatcher);
+		startRoute(60000);
+
+		output.expectedBodiesReceivedInAnyOrder("existing", "new");
+		writeFile("new.dat", "data file");
+		writeFile("new.ctl", "new");
+
+		output.assertIsSatisfied(30000);
+		assertEquals("new.ctl", findExchange("new").getIn().getHeader(Exchange.FILE_NAME));
+		assertEquals(folder.getAbsolutePath(), findExchange("new").getIn().getHeader(Exchange.FILE_PARENT));
+		assertTrue(idempotentRepository.contains(new File(folder, "new.ctl").getAbsolutePath()));
+	}
+
+	@Test
+	public void testProcessedFilesAreNotConsumedAgain() throws Exception {
+		final File file = writeFile("processed.ctl", "processed");
+		idempotentRepository.add(file.getAbsolutePath());
+		context.addService(folderWatcher);
+		startRoute(60000);
+
+		output.expectedBodiesReceived("unprocessed");
+		writeFile("unprocessed.ctl", "unprocessed");
+
+		output.assertIsSatisfied(30000);
+	}
+
+	@Test
+	public void testReconciliationScanFindsFilesWithoutEvents() throws Exception {
+		// the watcher is never started - so no events are delivered
+		startRoute(100);
+
+		output.expectedBodiesReceived("scanned");
+		writeFile("scanned.ctl", "scanned");
+
+		output.assertIsSatisfied(30000);
+	}
+
+	@Test
+	public void testFilesAreConsumedOnceUnchanged() throws Exception {
+		context.addService(folderWatcher);
+		startRoute(60000, 500, 0);
+
+		output.expectedBodiesReceived("partial content");
+		final File file = writeFile("growing.ctl", "partial");
+		TimeUnit.MILLISECONDS.sleep(100);
+		Files.append(" content", file, Charsets.UTF_8);
+
+		output.assertIsSatisfied(30000);
+	}
+
+	@Test
+	public void testFailedFilesAreRetriedByReconciliationScan() throws Exception {
+		context.addService(folderWatcher);
+		startRoute(100, 0, 1);
+
+		output.expectedBodiesReceived("retried");
+		final File file = writeFile("retried.ctl", "retried");
+
+		output.assertIsSatisfied(30000);
+		assertEquals(2, attempts.get());
+		assertTrue(idempotentRepository.contains(file.getAbsolutePath()));
+	}
+
+	private void startRoute(final long reconciliationInterval) throws Exception {
+		startRoute(reconciliationInterval, 100, 0);
+	}
+
+	private void startRoute(final long reconciliationInterval, final long readLockCheckInterval,
+			final int failures) throws Exception {
+		final DTSWatchedFolderEndpoint endpoint = new DTSWatchedFolderEndpoint(context, folder, folderWatcher);
+		endpoint.setInclude(Pattern.compile("..*\\.ctl"));
+		endpoint.setIdempotentRepository(idempotentRepository);
+		endpoint.setReconciliationInterval(reconciliationInterval);
+		endpoint.setReadLockCheckInterval(readLockCheckInterval);
+
+		context.addRoutes(new RouteBuilder() {
+			@Override
+			public void configure() throws Exception {
+				from(endpoint)
+					.process(new Processor() {
+						@Override
+						public void process(final Exchange exchange) throws Exception {
+							if (attempts.incrementAndGet() <= failures) {
+								throw new IOException("Simulated failure");
+							}
+						}
+					})
+					.to("mock:output");
+			}
+		});
+
+		output = MockEndpoint.resolve(context, "mock:output");
+		context.start();
+
+		// allow the initial scan to complete
+		TimeUnit.MILLISECONDS.sleep(200);
+	}
+
+	private File writeFile(final String name, final String content) throws Exception {
+		final File file = new File(folder, name);
+		Files.write(content, file, Charsets.UTF_8);
+		return file;
+	}
+
+	private Exchange findExchange(final String body) {
+		for (final Exchange exchange: output.getReceivedExchanges()) {
+			if (body.equals(exchange.getIn().getBody(String.class))) {
+				return exchange;
+			}
+		}
+		return null;
+	}
+}
@@ -18,6 +18,7 @@ import uk.nhs.ciao.transport.itk.route.DistributionEnvelopeSenderRoute;
 import uk.nhs.ciao.transport.itk.route.EndpointAddressEnricherRoute;
 import uk.nhs.ciao.transport.itk.route.ItkDocumentSenderRoute;
 import uk.nhs.ciao.transport.itk.route.ItkMessageReceiverRoute;
+import uk.nhs.ciao.transport.itk.stage.StageConfiguration;
 
 public abstract class ITKTransportRoutes  implements RoutesBuilder {
 	@Override
@@ -91,6 +92,7 @@ public abstract class ITKTransportRoutes  implements RoutesBuilder {
 		route.setDistributionEnvelopeSenderUri("direct:distribution-envelope-sender");
 		route.setIdempotentRepository(get(context, IdempotentRepository.class, "distributionEnvelopeIdempotentRepository"));
 		route.setInfrastructureResponseFactory(new InfrastructureResponseFactory());
+		route.setStageConfiguration(createStageConfiguration(CamelApplication.getConfig(context)));
 	}
 	
 	private void addItkMessageReceiverRoute(final CamelContext context) throws Exception {
@@ -137,4 +139,32 @@ public abstract class ITKTransportRoutes  implements RoutesBuilder {
 	protected <T> T get(final CamelContext context, final Class<T> type, final String name) {
 		return type.cast(context.getRegistry().lookupByName(name));
 	}
+	
+	/**
+	 * Creates the configuration of bounded internal seda stages from the <code>internalStage.*</code>
+	 * properties
+	 * <p>
+	 * Bounded stages are disabled by default (<code>internalStage.enabled=false</code>) so that the standard
+	 * unbounded seda queues are used unless a capacity limit is explicitly requested
+	 * 
+	 * @return The stage configuration, or null if bounded stages are disabled
+	 */
+	protected StageConfiguration createStageConfiguration(final CIAOConfig config) throws Exception {
+		if (!Boolean.valueOf(getConfigValue(config, "internalStage.enabled", "false"))) {
+			return null;
+		}
+		
+		final StageConfiguration stageConfiguration = new StageConfiguration();
+		stageConfiguration.setCapacity(Integer.parseInt(getConfigValue(config, "internalStage.capacity", "1000")));
+		stageConfiguration.setBlockWhenFull(Boolean.valueOf(getConfigValue(config, "internalStage.blockWhenFull", "true")));
+		stageConfiguration.setConcurrentConsumers(Integer.parseInt(getConfigValue(config, "internalStage.concurrentConsumers", "1")));
+		return stageConfiguration;
+	}
+	
+	/**
+	 * Returns the value of an optional CIAO property, or the specified default if the property has not been defined
+	 */
+	protected String getConfigValue(final CIAOConfig config, final String key, final String defaultValue) throws Exception {
+		return config.getConfigKeys().contains(key) ? config.getConfigValue(key) : defaultValue;
+	}
 }
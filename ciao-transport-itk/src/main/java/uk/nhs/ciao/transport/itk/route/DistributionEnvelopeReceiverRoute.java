@@ -10,6 +10,9 @@ import uk.nhs.ciao.camel.BaseRouteBuilder;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
 import uk.nhs.ciao.transport.itk.envelope.DistributionEnvelope;
 import uk.nhs.ciao.transport.itk.envelope.InfrastructureResponseFactory;
+import uk.nhs.ciao.transport.itk.stage.StageConfiguration;
+import uk.nhs.ciao.transport.itk.store.ContentReferenceResolver;
+import uk.nhs.ciao.transport.itk.store.FileContentStore;
 
 /**
  * Routes to handle incoming ITK distribution envelopes (from spine payloads).
@@ -29,6 +32,8 @@ public class DistributionEnvelopeReceiverRoute extends BaseRouteBuilder {
 	private String distributionEnvelopeSenderUri;
 	private IdempotentRepository<?> idempotentRepository;
 	private InfrastructureResponseFactory infrastructureResponseFactory;
+	private StageConfiguration stageConfiguration;
+	private FileContentStore contentStore;
 	
 	/**
 	 * URI where incoming distribution envelope messages are received from
@@ -69,6 +74,22 @@ public class DistributionEnvelopeReceiverRoute extends BaseRouteBuilder {
 		this.infrastructureResponseFactory = infrastructureResponseFactory;
 	}
 	
+	/**
+	 * Optional configuration of the internal seda stages - if not specified unbounded
+	 * seda queues are used
+	 */
+	public void setStageConfiguration(final StageConfiguration stageConfiguration) {
+		this.stageConfiguration = stageConfiguration;
+	}
+	
+	/**
+	 * Optional store of large incoming envelopes - envelopes received as a content reference
+	 * (claim-check) are parsed directly from the store
+	 */
+	public void setContentStore(final FileContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+	
 	/**
 	 * URI of internal route to publish outgoing payloads and to create the
 	 * associated async infrastructure responses
@@ -99,6 +120,10 @@ public class DistributionEnvelopeReceiverRoute extends BaseRouteBuilder {
 	
 	@Override
 	public void configure() throws Exception {
+		if (stageConfiguration != null) {
+			stageConfiguration.registerStage(getContext(), getInfrastructureResponseSenderUri(), "infrastructure-response-sender");
+		}
+		
 		configureDistributionEnvelopeReceiver();
 		configurePayloadPublisher();
 		configureDeliveryFailureSender();
@@ -121,6 +146,8 @@ public class DistributionEnvelopeReceiverRoute extends BaseRouteBuilder {
 			)
 			.transacted("PROPAGATION_REQUIRED")
 			
+			// Large envelopes are sent by reference
+			.process(new ContentReferenceResolver(contentStore))
 			.convertBodyTo(DistributionEnvelope.class)
 			.doTry()
 				.process(LOGGER.info(camelLogMsg("Verifying received DistributionEnvelope")
@@ -0,0 +1,120 @@
+package uk.nhs.ciao.transport.itk.stage;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.component.seda.SedaComponent;
+import org.apache.camel.component.seda.SedaEndpoint;
+import org.apache.camel.support.ServiceSupport;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded internal seda stage
+ * <p>
+ * The stage is a standard Camel seda endpoint backed by a {@link StageQueue} - so routes continue to
+ * reference the stage by URI. Unlike the default seda endpoint, the queue has a fixed capacity and full
+ * stages either block or reject producers.
+ * <p>
+ * When added to a CamelContext (via {@link org.apache.camel.CamelContext#addService(Object)})
+ * the queue depth, wait time and throughput are published over JMX.
+ */
+@ManagedResource(description = "Internal seda stage")
+public class Stage extends ServiceSupport {
+	private final String name;
+	private final StageConfiguration configuration;
+	private final StageQueue queue;
+
+	public Stage(final String name, final StageConfiguration configuration) {
+		this.name = Preconditions.checkNotNull(name);
+		this.configuration = Preconditions.checkNotNull(configuration);
+		this.queue = new StageQueue(configuration.getCapacity());
+	}
+
+	public StageQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * Binds the stage endpoint to the specified URI and adds the stage to the context as a service
+	 */
+	public void register(final CamelContext context, final String uri) throws Exception {
+		final SedaComponent component = context.getComponent("seda", SedaComponent.class);
+		final SedaEndpoint endpoint = new SedaEndpoint(uri, component, queue, configuration.getConcurrentConsumers());
+		endpoint.setSize(configuration.getCapacity());
+		endpoint.setBlockWhenFull(configuration.isBlockWhenFull());
+
+		context.addEndpoint(uri, endpoint);
+		context.addService(this);
+	}
+
+	@ManagedAttribute(description = "Stage name")
+	public String getName() {
+		return name;
+	}
+
+	@ManagedAttribute(description = "Maximum number of queued exchanges")
+	public int getCapacity() {
+		return configuration.getCapacity();
+	}
+
+	@ManagedAttribute(description = "Whether producers block (rather than fail) when the stage is full")
+	public boolean isBlockWhenFull() {
+		return configuration.isBlockWhenFull();
+	}
+
+	@ManagedAttribute(description = "Number of consumer threads")
+	public int getConcurrentConsumers() {
+		return configuration.getConcurrentConsumers();
+	}
+
+	@ManagedAttribute(description = "Number of exchanges waiting to be processed")
+	public int getDepth() {
+		return queue.size();
+	}
+
+	@ManagedAttribute(description = "Total number of exchanges added to the stage")
+	public long getEnqueuedCount() {
+		return queue.getEnqueuedCount();
+	}
+
+	@ManagedAttribute(description = "Total number of exchanges taken from the stage")
+	public long getDequeuedCount() {
+		return queue.getDequeuedCount();
+	}
+
+	@ManagedAttribute(description = "Number of exchanges rejected because the stage was full")
+	public long getRejectedCount() {
+		return queue.getRejectedCount();
+	}
+
+	@ManagedAttribute(description = "Mean time (milliseconds) exchanges waited in the stage")
+	public double getMeanWaitTime() {
+		return queue.getMeanWaitTime();
+	}
+
+	@ManagedAttribute(description = "Maximum time (milliseconds) an exchange waited in the stage")
+	public long getMaxWaitTime() {
+		return queue.getMaxWaitTime();
+	}
+
+	@ManagedAttribute(description = "Exchanges processed per second (averaged over the last minute)")
+	public double getThroughput() {
+		return queue.getThroughput();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		// NOOP - the lifecycle of the queue is managed by the seda endpoint
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		// NOOP
+	}
+
+	@Override
+	public String toString() {
+		return "Stage[" + name + "]";
+	}
+}
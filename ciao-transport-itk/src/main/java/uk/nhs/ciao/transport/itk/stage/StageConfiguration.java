@@ -0,0 +1,67 @@
+package uk.nhs.ciao.transport.itk.stage;
+
+import org.apache.camel.CamelContext;
+
+/**
+ * Configuration shared by the internal seda {@link Stage}s of a route
+ * <p>
+ * Routes which support stages register them (via {@link #registerStage(CamelContext, String, String)})
+ * before referencing the corresponding internal seda URIs - otherwise the standard unbounded seda
+ * endpoint is used.
+ */
+public class StageConfiguration {
+	private int capacity = 1000;
+	private boolean blockWhenFull = true;
+	private int concurrentConsumers = 1;
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * The maximum number of exchanges which can be queued in each stage
+	 */
+	public void setCapacity(final int capacity) {
+		this.capacity = capacity;
+	}
+
+	public boolean isBlockWhenFull() {
+		return blockWhenFull;
+	}
+
+	/**
+	 * If true, producers are blocked until space is available in a full stage, otherwise the
+	 * exchange is rejected (the producer fails with an IllegalStateException)
+	 */
+	public void setBlockWhenFull(final boolean blockWhenFull) {
+		this.blockWhenFull = blockWhenFull;
+	}
+
+	public int getConcurrentConsumers() {
+		return concurrentConsumers;
+	}
+
+	/**
+	 * The number of threads consuming from each stage
+	 */
+	public void setConcurrentConsumers(final int concurrentConsumers) {
+		this.concurrentConsumers = concurrentConsumers;
+	}
+
+	/**
+	 * Creates a stage using this configuration and registers it with the context
+	 * <p>
+	 * The stage endpoint is bound to the specified URI, and the stage is added as a service
+	 * (publishing its statistics over JMX)
+	 *
+	 * @param context The context to register the stage with
+	 * @param uri The (seda) URI used by routes to reference the stage
+	 * @param name The name of the stage (used in logs / statistics)
+	 * @return The registered stage
+	 */
+	public Stage registerStage(final CamelContext context, final String uri, final String name) throws Exception {
+		final Stage stage = new Stage(name, this);
+		stage.register(context, uri);
+		return stage;
+	}
+}
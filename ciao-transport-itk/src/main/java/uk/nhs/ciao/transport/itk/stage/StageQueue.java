@@ -0,0 +1,168 @@
+package uk.nhs.ciao.transport.itk.stage;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+
+import uk.nhs.ciao.transport.itk.util.RateCounter;
+
+/**
+ * Bounded queue of exchanges backing an internal seda {@link Stage}
+ * <p>
+ * The time each exchange spends waiting in the queue and the consumer throughput are recorded.
+ * <p>
+ * The queue is held in memory only - queued exchanges are lost if the process fails - and consumers
+ * take one exchange at a time (as with the standard seda queue).
+ */
+public class StageQueue extends LinkedBlockingQueue<Exchange> {
+	private static final long serialVersionUID = 1L;
+	private static final String ENQUEUED_TIME_PROPERTY = "ciao.stage.enqueuedTime";
+
+	private final AtomicLong enqueuedCount = new AtomicLong();
+	private final AtomicLong dequeuedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+	private final transient RateCounter throughput = new RateCounter();
+
+	public StageQueue(final int capacity) {
+		super(capacity);
+	}
+
+	@Override
+	public boolean offer(final Exchange exchange) {
+		markEnqueued(exchange);
+		if (super.offer(exchange)) {
+			enqueuedCount.incrementAndGet();
+			return true;
+		}
+
+		markRejected(exchange);
+		return false;
+	}
+
+	@Override
+	public boolean offer(final Exchange exchange, final long timeout, final TimeUnit unit) throws InterruptedException {
+		markEnqueued(exchange);
+		boolean enqueued = false;
+		try {
+			enqueued = super.offer(exchange, timeout, unit);
+		} finally {
+			if (enqueued) {
+				enqueuedCount.incrementAndGet();
+			} else {
+				markRejected(exchange);
+			}
+		}
+		return enqueued;
+	}
+
+	@Override
+	public void put(final Exchange exchange) throws InterruptedException {
+		markEnqueued(exchange);
+		boolean enqueued = false;
+		try {
+			super.put(exchange);
+			enqueued = true;
+		} finally {
+			if (enqueued) {
+				enqueuedCount.incrementAndGet();
+			} else {
+				markRejected(exchange);
+			}
+		}
+	}
+
+	@Override
+	public Exchange poll() {
+		return markDequeued(super.poll());
+	}
+
+	@Override
+	public Exchange poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return markDequeued(super.poll(timeout, unit));
+	}
+
+	@Override
+	public Exchange take() throws InterruptedException {
+		return markDequeued(super.take());
+	}
+
+	public long getEnqueuedCount() {
+		return enqueuedCount.get();
+	}
+
+	public long getDequeuedCount() {
+		return dequeuedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Mean time (in milliseconds) exchanges have waited in the queue
+	 */
+	public double getMeanWaitTime() {
+		final long count = dequeuedCount.get();
+		return count == 0 ? 0 : totalWaitTime.get() / (double) count;
+	}
+
+	/**
+	 * Maximum time (in milliseconds) an exchange has waited in the queue
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	/**
+	 * Exchanges consumed per second (averaged over the last minute)
+	 */
+	public double getThroughput() {
+		return throughput.getRatePerSecond();
+	}
+
+	/**
+	 * The enqueued time is recorded before the exchange is added - a consumer may take the exchange
+	 * as soon as it is in the queue
+	 */
+	private void markEnqueued(final Exchange exchange) {
+		if (exchange != null) {
+			exchange.setProperty(ENQUEUED_TIME_PROPERTY, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Clears the enqueued time of an exchange which was not added to the queue
+	 */
+	private void markRejected(final Exchange exchange) {
+		rejectedCount.incrementAndGet();
+		if (exchange != null) {
+			exchange.removeProperty(ENQUEUED_TIME_PROPERTY);
+		}
+	}
+
+	private Exchange markDequeued(final Exchange exchange) {
+		if (exchange == null) {
+			return null;
+		}
+
+		dequeuedCount.incrementAndGet();
+		throughput.increment();
+
+		final Object enqueuedTime = exchange.removeProperty(ENQUEUED_TIME_PROPERTY);
+		if (enqueuedTime instanceof Long) {
+			final long waitTime = Math.max(0, System.currentTimeMillis() - (Long) enqueuedTime);
+			totalWaitTime.addAndGet(waitTime);
+
+			long max = maxWaitTime.get();
+			while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime)) {
+				max = maxWaitTime.get();
+			}
+		}
+
+		return exchange;
+	}
+}
@@ -0,0 +1,74 @@
+package uk.nhs.ciao.transport.itk.store;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Replaces a claim-check reference (see {@link FileContentStore#HEADER_CONTENT_REFERENCE}) with a
+ * memory-mapped stream of the stored content
+ * <p>
+ * Messages without a reference are not altered. If the exchange runs in a (Spring managed) transaction,
+ * the stored content is removed once the transaction commits - if it rolls back the content is kept so
+ * that the redelivered message can be resolved again. Otherwise the content is removed once the exchange
+ * completes successfully.
+ */
+public class ContentReferenceResolver implements Processor {
+	private final FileContentStore contentStore;
+
+	/**
+	 * Creates a new resolver
+	 *
+	 * @param contentStore The store to read content from - if null, messages containing a reference are rejected
+	 */
+	public ContentReferenceResolver(final FileContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final Message in = exchange.getIn();
+		final String reference = in.getHeader(FileContentStore.HEADER_CONTENT_REFERENCE, String.class);
+		if (reference == null) {
+			return;
+		} else if (contentStore == null) {
+			throw new IllegalStateException("Received a content reference but no content store is configured: " + reference);
+		}
+
+		in.setBody(contentStore.open(reference));
+		in.removeHeader(FileContentStore.HEADER_CONTENT_REFERENCE);
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			deleteOnCommit(reference);
+		} else {
+			deleteOnSuccess(exchange, reference);
+		}
+	}
+
+	/**
+	 * The exchange may complete before the consuming transaction commits - so deletion waits for the commit
+	 */
+	private void deleteOnCommit(final String reference) {
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCompletion(final int status) {
+				if (status == TransactionSynchronization.STATUS_COMMITTED) {
+					contentStore.delete(reference);
+				}
+			}
+		});
+	}
+
+	private void deleteOnSuccess(final Exchange exchange, final String reference) {
+		exchange.addOnCompletion(new SynchronizationAdapter() {
+			@Override
+			public void onComplete(final Exchange exchange) {
+				contentStore.delete(reference);
+			}
+		});
+	}
+}
@@ -0,0 +1,182 @@
+package uk.nhs.ciao.transport.itk.store;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+/**
+ * Folder based store for large payloads (claim-check)
+ * <p>
+ * Rather than sending a large payload through the message broker, the payload is copied into the
+ * store and only the returned reference is sent. The receiver uses the reference to read the payload
+ * directly from a memory-mapped view of the stored file - the payload is never held on the heap.
+ * <p>
+ * The folder must be accessible to both the sender and receiver of the reference (e.g. a shared
+ * filesystem when the receiver may run on another machine). Content is written to a temporary file
+ * and renamed - so a reference is only returned once the complete content is visible.
+ */
+public class FileContentStore {
+	/**
+	 * Message header containing the content reference (in place of the payload)
+	 */
+	public static final String HEADER_CONTENT_REFERENCE = "ciaoContentReference";
+
+	private static final String SUFFIX = ".content";
+	private static final Pattern REFERENCE_PATTERN = Pattern.compile("[0-9a-f\\-]+" + Pattern.quote(SUFFIX));
+
+	private final File folder;
+
+	public FileContentStore(final File folder) {
+		this.folder = Preconditions.checkNotNull(folder, "folder");
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+
+	/**
+	 * Copies the content of the specified file into the store
+	 *
+	 * @return The reference of the stored content
+	 */
+	public String store(final File source) throws IOException {
+		if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+			throw new IOException("Unable to create content store folder: " + folder);
+		}
+
+		final String reference = UUID.randomUUID().toString() + SUFFIX;
+		final File temporaryFile = new File(folder, "." + reference + ".tmp");
+		try {
+			Files.copy(source, temporaryFile);
+			Files.move(temporaryFile, getFile(reference));
+		} finally {
+			if (temporaryFile.exists() && !temporaryFile.delete()) {
+				temporaryFile.deleteOnExit();
+			}
+		}
+
+		return reference;
+	}
+
+	/**
+	 * Opens a memory-mapped stream over the stored content
+	 * <p>
+	 * The mapping remains valid after the stream is closed (until it is garbage collected)
+	 *
+	 * @throws FileNotFoundException If the store does not contain the referenced content
+	 */
+	public InputStream open(final String reference) throws IOException {
+		final File file = getFile(reference);
+		if (!file.isFile()) {
+			throw new FileNotFoundException("Content not found in store: " + reference);
+		}
+
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			return new ByteBufferInputStream(buffer);
+		} finally {
+			// The mapping does not depend on the file remaining open
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Returns the size (in bytes) of the stored content
+	 */
+	public long size(final String reference) {
+		return getFile(reference).length();
+	}
+
+	/**
+	 * Tests if the store contains the referenced content
+	 */
+	public boolean contains(final String reference) {
+		return getFile(reference).isFile();
+	}
+
+	/**
+	 * Removes the referenced content from the store
+	 *
+	 * @return true if the content was removed
+	 */
+	public boolean delete(final String reference) {
+		return getFile(reference).delete();
+	}
+
+	private File getFile(final String reference) {
+		// Only references created by the store are accepted (e.g. no path segments)
+		Preconditions.checkArgument(reference != null && REFERENCE_PATTERN.matcher(reference).matches(),
+				"Invalid content reference: %s", reference);
+		return new File(folder, reference);
+	}
+
+	/**
+	 * InputStream reading from a ByteBuffer
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		private int mark;
+
+		public ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) {
+			if (length == 0) {
+				return 0;
+			} else if (!buffer.hasRemaining()) {
+				return -1;
+			}
+
+			final int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public long skip(final long count) {
+			final int skipped = (int)Math.max(0, Math.min(count, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(final int readLimit) {
+			mark = buffer.position();
+		}
+
+		@Override
+		public synchronized void reset() {
+			buffer.position(mark);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package uk.nhs.ciao.transport.itk.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Lock-free counter of events over a sliding window of one-second buckets.
+ * <p>
+ * Used to publish 'per second' rates (e.g. handshakes per second) as metrics without
+ * requiring a background sampling thread.
+ * <p>
+ * Each bucket packs its second (high 32 bits) and count (low 32 bits) into a single long, so
+ * a stale bucket is reset and counted into with one compare-and-set - concurrent increments
+ * are never lost when a bucket rolls over.
+ */
+public class RateCounter {
+	private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+	private final int windowSeconds;
+	private final AtomicLongArray buckets;
+
+	/**
+	 * Creates a counter with a 60 second window
+	 */
+	public RateCounter() {
+		this(60);
+	}
+
+	public RateCounter(final int windowSeconds) {
+		Preconditions.checkArgument(windowSeconds > 0, "windowSeconds must be positive");
+		this.windowSeconds = windowSeconds;
+		this.buckets = new AtomicLongArray(windowSeconds);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(final long delta) {
+		final long second = currentSecond();
+		final int index = (int) (second % windowSeconds);
+
+		while (true) {
+			final long bucket = buckets.get(index);
+			final long bucketSecond = bucket >>> 32;
+
+			// A stale bucket is restarted for the current second (a bucket already moved on by a
+			// more recent caller absorbs the delta)
+			final long count = bucketSecond >= second ? (bucket & COUNT_MASK) + delta : delta;
+			final long updated = (Math.max(bucketSecond, second) << 32) | Math.min(count, COUNT_MASK);
+			if (buckets.compareAndSet(index, bucket, updated)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The total number of events recorded within the window
+	 */
+	public long getCount() {
+		final long oldest = currentSecond() - windowSeconds;
+		long total = 0;
+		for (int index = 0; index < windowSeconds; index++) {
+			final long bucket = buckets.get(index);
+			if ((bucket >>> 32) > oldest) {
+				total += bucket & COUNT_MASK;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * The average number of events per second within the window
+	 */
+	public double getRatePerSecond() {
+		return getCount() / (double) windowSeconds;
+	}
+
+	protected long currentSecond() {
+		return System.currentTimeMillis() / 1000;
+	}
+}
@@ -0,0 +1,108 @@
+package uk.nhs.ciao.transport.itk.stage;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for {@link StageQueue}
+ */
+public class StageQueueTest {
+	private CamelContext context;
+	private StageQueue queue;
+
+	@Before
+	public void setup() {
+		context = new DefaultCamelContext();
+		queue = new StageQueue(5);
+	}
+
+	@Test
+	public void testFullQueueRejectsOffers() {
+		for (int index = 0; index < 5; index++) {
+			assertTrue(queue.offer(createExchange()));
+		}
+
+		final Exchange rejected = createExchange();
+		assertFalse(queue.offer(rejected));
+		assertEquals(5, queue.getEnqueuedCount());
+		assertEquals(1, queue.getRejectedCount());
+		
+		// Rejected exchanges are not marked as enqueued
+		assertNull(rejected.getProperty("ciao.stage.enqueuedTime"));
+		
+		assertFalse(queue.offer(rejected, 10, TimeUnit.MILLISECONDS));
+		assertEquals(2, queue.getRejectedCount());
+		assertNull(rejected.getProperty("ciao.stage.enqueuedTime"));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testFullQueueFailsAdd() {
+		for (int index = 0; index < 6; index++) {
+			queue.add(createExchange());
+		}
+	}
+
+	@Test
+	public void testConsumerTakesExchangesInOrder() throws Exception {
+		final Exchange first = createExchange();
+		final Exchange second = createExchange();
+		final Exchange third = createExchange();
+		queue.put(first);
+		queue.put(second);
+		queue.put(third);
+
+		assertSame(first, queue.poll(100, TimeUnit.MILLISECONDS));
+		assertSame(second, queue.poll());
+		assertSame(third, queue.take());
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+		assertTrue(queue.isEmpty());
+		assertEquals(3, queue.getDequeuedCount());
+	}
+
+	@Test
+	public void testRemainingExchangesCanBeDrained() throws Exception {
+		final Exchange first = createExchange();
+		final Exchange second = createExchange();
+		final Exchange third = createExchange();
+		queue.put(first);
+		queue.put(second);
+		queue.put(third);
+
+		assertSame(first, queue.poll());
+
+		// Exchanges which have not been consumed remain in the queue (e.g. when the consumers are stopped)
+		final List<Exchange> remaining = Lists.newArrayList();
+		assertEquals(2, queue.size());
+		assertEquals(2, queue.drainTo(remaining));
+		assertEquals(Lists.newArrayList(second, third), remaining);
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testWaitTimeIsRecorded() throws Exception {
+		final Exchange exchange = createExchange();
+		queue.put(exchange);
+		Thread.sleep(20);
+
+		assertSame(exchange, queue.poll());
+		assertTrue(queue.getMaxWaitTime() >= 10);
+		assertTrue(queue.getMeanWaitTime() >= 10);
+		assertNull(exchange.getProperty("ciao.stage.enqueuedTime"));
+	}
+
+	private Exchange createExchange() {
+		return new DefaultExchange(context);
+	}
+}
@@ -0,0 +1,91 @@
+package uk.nhs.ciao.transport.itk.store;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.spi.Synchronization;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link ContentReferenceResolver}
+ */
+public class ContentReferenceResolverTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private FileContentStore store;
+	private ContentReferenceResolver resolver;
+	private String reference;
+
+	@Before
+	public void setup() throws Exception {
+		store = new FileContentStore(new File(temporaryFolder.getRoot(), "store"));
+		resolver = new ContentReferenceResolver(store);
+
+		final File source = temporaryFolder.newFile("payload.dat");
+		Files.write("<DistributionEnvelope/>", source, Charsets.UTF_8);
+		reference = store.store(source);
+	}
+
+	@After
+	public void tearDown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	@Test
+	public void testContentIsDeletedWhenTransactionCommits() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		final Exchange exchange = resolve();
+
+		// Completing the exchange does not remove the content before the commit
+		final List<Synchronization> synchronizations = exchange.handoverCompletions();
+		if (synchronizations != null) {
+			for (final Synchronization synchronization: synchronizations) {
+				synchronization.onComplete(exchange);
+			}
+		}
+		assertTrue(store.contains(reference));
+
+		completeTransaction(TransactionSynchronization.STATUS_COMMITTED);
+		assertFalse(store.contains(reference));
+	}
+
+	@Test
+	public void testContentIsKeptWhenTransactionRollsBack() throws Exception {
+		TransactionSynchronizationManager.initSynchronization();
+		resolve();
+
+		completeTransaction(TransactionSynchronization.STATUS_ROLLED_BACK);
+		assertTrue(store.contains(reference));
+	}
+
+	private Exchange resolve() throws Exception {
+		final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		exchange.getIn().setHeader(FileContentStore.HEADER_CONTENT_REFERENCE, reference);
+		resolver.process(exchange);
+		assertNull(exchange.getIn().getHeader(FileContentStore.HEADER_CONTENT_REFERENCE));
+		return exchange;
+	}
+
+	private void completeTransaction(final int status) {
+		for (final TransactionSynchronization synchronization: TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCompletion(status);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package uk.nhs.ciao.transport.itk.store;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link FileContentStore}
+ */
+public class FileContentStoreTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private FileContentStore store;
+	private File source;
+
+	@Before
+	public void setup() throws Exception {
+		store = new FileContentStore(new File(temporaryFolder.getRoot(), "store"));
+		source = temporaryFolder.newFile("payload.dat");
+		Files.write("<DistributionEnvelope/>", source, Charsets.UTF_8);
+	}
+
+	@Test
+	public void testStoredContentCanBeRead() throws Exception {
+		final String reference = store.store(source);
+
+		assertTrue(store.contains(reference));
+		assertEquals(source.length(), store.size(reference));
+
+		final InputStream in = store.open(reference);
+		try {
+			assertEquals("<DistributionEnvelope/>", new String(ByteStreams.toByteArray(in), Charsets.UTF_8));
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testStoredContentIsIndependentOfSource() throws Exception {
+		final String reference = store.store(source);
+		assertTrue(source.delete());
+
+		assertTrue(store.contains(reference));
+	}
+
+	@Test
+	public void testDeletedContentCannotBeRead() throws Exception {
+		final String reference = store.store(source);
+		assertTrue(store.delete(reference));
+
+		assertFalse(store.contains(reference));
+		try {
+			store.open(reference);
+			fail("Expected FileNotFoundException");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReferencesOutsideStoreAreRejected() throws Exception {
+		store.open("../payload.dat");
+	}
+}
@@ -0,0 +1,107 @@
+package uk.nhs.ciao.transport.itk.util;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for {@link RateCounter}
+ */
+public class RateCounterTest {
+	private long now;
+	private RateCounter counter;
+
+	@Before
+	public void setup() {
+		now = 1000;
+		counter = new RateCounter(10) {
+			@Override
+			protected long currentSecond() {
+				return now;
+			}
+		};
+	}
+
+	@Test
+	public void testEventsAreCountedWithinWindow() {
+		counter.increment();
+		now++;
+		counter.add(3);
+
+		assertEquals(4, counter.getCount());
+		assertEquals(0.4, counter.getRatePerSecond(), 0.0001);
+	}
+
+	@Test
+	public void testEventsOutsideWindowAreExpired() {
+		counter.add(5);
+		now += 5;
+		counter.add(2);
+
+		now += 5;
+		assertEquals(2, counter.getCount());
+
+		now += 5;
+		assertEquals(0, counter.getCount());
+	}
+
+	@Test
+	public void testStaleBucketIsReset() {
+		counter.add(5);
+		now += 10; // same bucket index - next window
+		counter.increment();
+
+		assertEquals(1, counter.getCount());
+	}
+
+	@Test
+	public void testConcurrentIncrementsAreNotLostOnRollover() throws Exception {
+		final AtomicLong second = new AtomicLong(1000);
+		final RateCounter concurrentCounter = new RateCounter(60) {
+			@Override
+			protected long currentSecond() {
+				return second.get();
+			}
+		};
+
+		final int threads = 4;
+		final int incrementsPerThread = 100000;
+		final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Void>> futures = Lists.newArrayList();
+			for (int thread = 0; thread < threads; thread++) {
+				futures.add(executorService.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int count = 0; count < incrementsPerThread; count++) {
+							concurrentCounter.increment();
+							if (count % 20000 == 0) {
+								second.incrementAndGet(); // roll over onto a new bucket
+							}
+						}
+						return null;
+					}
+				}));
+			}
+
+			for (final Future<Void> future: futures) {
+				future.get();
+			}
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		// 20 seconds have passed - every bucket is still within the window
+		assertEquals(threads * incrementsPerThread, concurrentCounter.getCount());
+	}
+}
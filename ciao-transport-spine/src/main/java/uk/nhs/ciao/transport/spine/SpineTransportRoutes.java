@@ -1,14 +1,23 @@
 package uk.nhs.ciao.transport.spine;
 
+import java.io.File;
+
 import org.apache.camel.CamelContext;
 import org.apache.camel.spi.IdempotentRepository;
 
+import uk.nhs.ciao.camel.CamelApplication;
 import uk.nhs.ciao.configuration.CIAOConfig;
 import uk.nhs.ciao.transport.itk.ITKTransportRoutes;
 import uk.nhs.ciao.transport.itk.address.EndpointAddressHelper;
 import uk.nhs.ciao.transport.spine.address.SpineEndpointAddressHelper;
+import uk.nhs.ciao.transport.spine.concurrency.DestinationConcurrencyLimiter;
 import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
 import uk.nhs.ciao.transport.spine.hl7.HL7Part;
+import uk.nhs.ciao.transport.spine.http.AdmissionController;
+import uk.nhs.ciao.transport.spine.http.HttpServerConnectionStatistics;
+import uk.nhs.ciao.transport.spine.http.SpineConnectionManager;
+import uk.nhs.ciao.transport.spine.idempotent.DuplicateMessageDetector;
+import uk.nhs.ciao.transport.spine.journal.PayloadJournal;
 import uk.nhs.ciao.transport.spine.route.EbxmlAckReceiverRoute;
 import uk.nhs.ciao.transport.spine.route.HttpServerRoute;
 import uk.nhs.ciao.transport.spine.route.MultipartMessageReceiverRoute;
@@ -65,6 +74,28 @@ public class SpineTransportRoutes extends ITKTransportRoutes {
 		route.setEbxmlAckReceiverUri("{{spine.replyUri}}");
 		route.setMultipartMessageResponseUri("jms:queue:{{multipartMessageResponseQueue}}");
 		
+		// Publish pool/handshake metrics for the shared http4 connection manager (if configured)
+		final SpineConnectionManager connectionManager = context.getRegistry().lookupByNameAndType(
+				"spineConnectionManager", SpineConnectionManager.class);
+		if (connectionManager != null) {
+			context.addService(connectionManager);
+		}
+		
+		final CIAOConfig config = CamelApplication.getConfig(context);
+		if (Boolean.valueOf(getConfigValue(config, "spine.destinationConcurrency.enabled", "false"))) {
+			final DestinationConcurrencyLimiter limiter = new DestinationConcurrencyLimiter();
+			limiter.setInitialLimit(Integer.parseInt(getConfigValue(config, "spine.destinationConcurrency.initialLimit", "4")));
+			limiter.setMinLimit(Integer.parseInt(getConfigValue(config, "spine.destinationConcurrency.minLimit", "1")));
+			limiter.setMaxLimit(Integer.parseInt(getConfigValue(config, "spine.destinationConcurrency.maxLimit", "20")));
+			limiter.setLatencyThreshold(Long.parseLong(getConfigValue(config, "spine.destinationConcurrency.latencyThreshold", "10000")));
+			limiter.setBackoffRatio(Double.parseDouble(getConfigValue(config, "spine.destinationConcurrency.backoffRatio", "0.5")));
+			context.addService(limiter);
+			
+			route.setDestinationConcurrencyLimiter(limiter);
+			route.setMultipartMessageRequeueUri("jms:queue:{{multipartMessageSenderQueue}}");
+			route.setRequeueDelay(Long.parseLong(getConfigValue(config, "spine.destinationConcurrency.requeueDelay", "1000")));
+		}
+		
 		context.addRoutes(route);
 	}
 	
@@ -75,6 +106,20 @@ public class SpineTransportRoutes extends ITKTransportRoutes {
 		route.setEbxmlAckReceiverUrl("direct:ebxml-ack-receiver");
 		route.setMultipartMessageReceiverUrl("direct:multipart-message-receiever");
 		
+		final CIAOConfig config = CamelApplication.getConfig(context);
+		final HttpServerConnectionStatistics connectionStatistics = new HttpServerConnectionStatistics();
+		connectionStatistics.setIdleTimeout(Long.parseLong(getConfigValue(config, "spine.http.idleTimeout", "60000")));
+		context.addService(connectionStatistics);
+		route.setConnectionStatistics(connectionStatistics);
+		
+		final AdmissionController admissionController = new AdmissionController();
+		admissionController.setMaxRequestSize(Long.parseLong(getConfigValue(config, "spine.admission.maxRequestSize", "0")));
+		admissionController.setMaxInFlightBytes(Long.parseLong(getConfigValue(config, "spine.admission.maxInFlightBytes", "0")));
+		admissionController.setMaxInFlightRequests(Integer.parseInt(getConfigValue(config, "spine.admission.maxInFlightRequests", "0")));
+		admissionController.setRetryAfter(Integer.parseInt(getConfigValue(config, "spine.admission.retryAfter", "30")));
+		context.addService(admissionController);
+		route.setAdmissionController(admissionController);
+		
 		context.addRoutes(route);
 	}
 	
@@ -93,7 +138,37 @@ public class SpineTransportRoutes extends ITKTransportRoutes {
 		route.setMultipartReceiverUri("direct:multipart-message-receiever");
 		route.setPayloadDestinationUri(getDistributionEnvelopeReceiverUri());
 		route.setEbxmlResponseDestinationUri("{{spine.toUri}}");
-		route.setIdempotentRepository(get(context, IdempotentRepository.class, "multipartMessageIdempotentRepository"));
+		@SuppressWarnings("unchecked")
+		final IdempotentRepository<String> idempotentRepository = get(context, IdempotentRepository.class,
+				"multipartMessageIdempotentRepository");
+		route.setIdempotentRepository(idempotentRepository);
+		
+		final CIAOConfig config = CamelApplication.getConfig(context);
+		if (Boolean.valueOf(getConfigValue(config, "spine.duplicateDetection.enabled", "false"))) {
+			final DuplicateMessageDetector detector = new DuplicateMessageDetector(idempotentRepository);
+			detector.setExpectedInsertions(Integer.parseInt(getConfigValue(config, "spine.duplicateDetection.expectedMessages", "100000")));
+			detector.setAcknowledgementCacheSize(Long.parseLong(getConfigValue(config, "spine.duplicateDetection.ackCacheSize", "10000")));
+			context.addService(detector);
+			
+			route.setDuplicateMessageDetector(detector);
+		}
+		
+		route.setStageConfiguration(createStageConfiguration(config));
+		
+		final String spoolThreshold = getConfigValue(config, "spine.multipart.spoolThreshold", "");
+		if (!spoolThreshold.trim().isEmpty()) {
+			route.setSpoolThreshold(Integer.parseInt(spoolThreshold.trim()));
+		}
+		
+		final String journalFolder = getConfigValue(config, "spine.inbound.journalFolder", "");
+		if (!journalFolder.trim().isEmpty()) {
+			final PayloadJournal journal = new PayloadJournal(new File(journalFolder.trim()));
+			journal.setSegmentSize(Long.parseLong(getConfigValue(config, "spine.inbound.journalSegmentSize", "67108864")));
+			journal.setMaxBatchSize(Integer.parseInt(getConfigValue(config, "spine.inbound.journalMaxBatchSize", "256")));
+			context.addService(journal);
+			
+			route.setPayloadJournal(journal);
+		}
 		
 		context.addRoutes(route);
 	}
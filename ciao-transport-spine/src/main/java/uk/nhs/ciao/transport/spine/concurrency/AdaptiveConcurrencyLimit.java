@@ -0,0 +1,91 @@
+package uk.nhs.ciao.transport.spine.concurrency;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Concurrency limit which adapts to the observed latency of completed requests using
+ * an additive-increase / multiplicative-decrease (AIMD) algorithm.
+ * <ul>
+ * <li>A successful request completing within the latency threshold increases the limit
+ * by roughly one for each 'window' of completed requests
+ * <li>A failed request (or one exceeding the latency threshold) multiplies the limit by
+ * the configured backoff ratio
+ * </ul>
+ * The limit is always kept within the configured minimum and maximum values.
+ */
+public class AdaptiveConcurrencyLimit {
+	private final int minLimit;
+	private final int maxLimit;
+	private final long latencyThreshold;
+	private final double backoffRatio;
+
+	// guarded by this
+	private double limit;
+	private int inFlight;
+
+	/**
+	 * Creates a new limit
+	 *
+	 * @param initialLimit The starting limit
+	 * @param minLimit The minimum allowed limit (must be at least one)
+	 * @param maxLimit The maximum allowed limit
+	 * @param latencyThreshold Requests taking longer than this value (in milliseconds) are treated as a congestion signal
+	 * @param backoffRatio The ratio applied to the limit when congestion is detected (between 0 and 1)
+	 */
+	public AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit,
+			final long latencyThreshold, final double backoffRatio) {
+		Preconditions.checkArgument(minLimit > 0, "minLimit must be positive");
+		Preconditions.checkArgument(maxLimit >= minLimit, "maxLimit must be greater than or equal to minLimit");
+		Preconditions.checkArgument(backoffRatio > 0 && backoffRatio < 1, "backoffRatio must be between 0 and 1");
+
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.latencyThreshold = latencyThreshold;
+		this.backoffRatio = backoffRatio;
+		this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+	}
+
+	/**
+	 * Attempts to acquire a permit for a new request
+	 *
+	 * @return true if a permit was acquired, or false if the limit has been reached
+	 */
+	public synchronized boolean tryAcquire() {
+		if (inFlight >= getLimit()) {
+			return false;
+		}
+
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Releases a permit previously obtained via {@link #tryAcquire()} and adjusts
+	 * the limit based on the outcome of the request
+	 *
+	 * @param latency The time taken (in milliseconds) to complete the request
+	 * @param success true if the request completed successfully
+	 */
+	public synchronized void release(final long latency, final boolean success) {
+		final int previousInFlight = inFlight;
+		if (inFlight > 0) {
+			inFlight--;
+		}
+
+		if (!success || latency > latencyThreshold) {
+			limit = Math.max(minLimit, limit * backoffRatio);
+		} else if (previousInFlight * 2 >= limit) {
+			// Only grow the limit when it is actually being used - otherwise
+			// a quiet destination would drift up to the maximum
+			limit = Math.min(maxLimit, limit + (1.0 / limit));
+		}
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+}
@@ -0,0 +1,165 @@
+package uk.nhs.ciao.transport.spine.concurrency;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedOperation;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
+/**
+ * Maintains a separate {@link AdaptiveConcurrencyLimit} (bulkhead) for each destination
+ * (e.g. MHS party key) so that a single slow or unreachable destination cannot consume
+ * all available sender threads.
+ * <p>
+ * Limits are created on demand the first time a destination is seen. Requests without
+ * a destination key are not limited.
+ * <p>
+ * When added to a CamelContext (via {@link org.apache.camel.CamelContext#addService(Object)})
+ * the per-destination in-flight counts and limits are published over JMX.
+ */
+@ManagedResource(description = "Per-destination adaptive concurrency limits")
+public class DestinationConcurrencyLimiter extends ServiceSupport {
+	private final ConcurrentMap<String, AdaptiveConcurrencyLimit> limits = Maps.newConcurrentMap();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private int initialLimit = 4;
+	private int minLimit = 1;
+	private int maxLimit = 20;
+	private long latencyThreshold = 10000;
+	private double backoffRatio = 0.5;
+
+	/**
+	 * The limit used for destinations which have not yet been seen
+	 */
+	public void setInitialLimit(final int initialLimit) {
+		this.initialLimit = initialLimit;
+	}
+
+	/**
+	 * The lower bound of each destination limit
+	 */
+	public void setMinLimit(final int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	/**
+	 * The upper bound of each destination limit
+	 */
+	public void setMaxLimit(final int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Requests taking longer than this value (in milliseconds) are treated as a sign of
+	 * congestion at the destination
+	 */
+	public void setLatencyThreshold(final long latencyThreshold) {
+		this.latencyThreshold = latencyThreshold;
+	}
+
+	/**
+	 * The ratio applied to a destination limit when congestion is detected
+	 */
+	public void setBackoffRatio(final double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * Attempts to acquire a permit for the specified destination
+	 *
+	 * @return true if a permit was acquired (or the destination is unknown), or false if the destination is saturated
+	 */
+	public boolean tryAcquire(final String destination) {
+		if (Strings.isNullOrEmpty(destination)) {
+			return true;
+		}
+
+		final boolean acquired = getOrCreateLimit(destination).tryAcquire();
+		if (!acquired) {
+			rejectedCount.incrementAndGet();
+		}
+		return acquired;
+	}
+
+	/**
+	 * Releases a permit previously acquired via {@link #tryAcquire(String)}
+	 *
+	 * @param latency The time taken (in milliseconds) to complete the request
+	 * @param success true if the request completed successfully
+	 */
+	public void release(final String destination, final long latency, final boolean success) {
+		if (Strings.isNullOrEmpty(destination)) {
+			return;
+		}
+
+		final AdaptiveConcurrencyLimit limit = limits.get(destination);
+		if (limit != null) {
+			limit.release(latency, success);
+		}
+	}
+
+	@ManagedAttribute(description = "Number of in-flight requests keyed by destination")
+	public Map<String, Integer> getInFlightCounts() {
+		final Map<String, Integer> counts = new TreeMap<String, Integer>();
+		for (final Entry<String, AdaptiveConcurrencyLimit> entry: limits.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().getInFlight());
+		}
+		return counts;
+	}
+
+	@ManagedAttribute(description = "Current concurrency limit keyed by destination")
+	public Map<String, Integer> getLimits() {
+		final Map<String, Integer> values = new TreeMap<String, Integer>();
+		for (final Entry<String, AdaptiveConcurrencyLimit> entry: limits.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getLimit());
+		}
+		return values;
+	}
+
+	@ManagedAttribute(description = "Number of requests rejected because the destination was saturated")
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@ManagedOperation(description = "Current in-flight requests for the destination")
+	public int getInFlight(final String destination) {
+		final AdaptiveConcurrencyLimit limit = limits.get(destination);
+		return limit == null ? 0 : limit.getInFlight();
+	}
+
+	@ManagedOperation(description = "Current concurrency limit for the destination")
+	public int getLimit(final String destination) {
+		final AdaptiveConcurrencyLimit limit = limits.get(destination);
+		return limit == null ? initialLimit : limit.getLimit();
+	}
+
+	private AdaptiveConcurrencyLimit getOrCreateLimit(final String destination) {
+		AdaptiveConcurrencyLimit limit = limits.get(destination);
+		if (limit == null) {
+			final AdaptiveConcurrencyLimit newLimit = new AdaptiveConcurrencyLimit(initialLimit, minLimit,
+					maxLimit, latencyThreshold, backoffRatio);
+			limit = limits.putIfAbsent(destination, newLimit);
+			if (limit == null) {
+				limit = newLimit;
+			}
+		}
+		return limit;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		// NOOP
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		// NOOP
+	}
+}
@@ -0,0 +1,203 @@
+package uk.nhs.ciao.transport.spine.ebxml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Extracts the fields required to process an incoming ebXml acknowledgment (or message error)
+ * in a single StAX pass of the SOAP header.
+ * <p>
+ * The extracted fields are keyed by header name (see <code>HEADER_*</code>). The header names
+ * are valid JMS property names, allowing the values to travel with the message and be consumed
+ * without parsing the XML again. Scanning stops as soon as the SOAP body is reached.
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public class EbxmlAckScanner {
+	public static final String HEADER_MESSAGE_ID = "spineEbxmlMessageId";
+	public static final String HEADER_REF_TO_MESSAGE_ID = "spineEbxmlRefToMessageId";
+	public static final String HEADER_SERVICE = "spineEbxmlService";
+	public static final String HEADER_ACTION = "spineEbxmlAction";
+	public static final String HEADER_TO_PARTY = "spineEbxmlToParty";
+	public static final String HEADER_ACKNOWLEDGMENT = "spineEbxmlAcknowledgment";
+	public static final String HEADER_ERROR_MESSAGE = "spineEbxmlErrorMessage";
+	public static final String HEADER_ERROR_SEVERITY = "spineEbxmlErrorSeverity";
+
+	/**
+	 * The names of all headers which may be extracted by the scanner
+	 */
+	public static final Set<String> HEADERS = ImmutableSet.of(HEADER_MESSAGE_ID, HEADER_REF_TO_MESSAGE_ID,
+			HEADER_SERVICE, HEADER_ACTION, HEADER_TO_PARTY, HEADER_ACKNOWLEDGMENT, HEADER_ERROR_MESSAGE,
+			HEADER_ERROR_SEVERITY);
+
+	private static final String SOAP_URI = "http://schemas.xmlsoap.org/soap/envelope/";
+	private static final String EBXML_URI = "http://www.oasis-open.org/committees/ebxml-msg/schema/msg-header-2_0.xsd";
+
+	private final XMLInputFactory factory;
+
+	/**
+	 * Creates a new scanner using the default XMLInputFactory
+	 */
+	public EbxmlAckScanner() {
+		this(XMLInputFactory.newInstance());
+	}
+
+	/**
+	 * Creates a new scanner using the specified XMLInputFactory
+	 * <p>
+	 * The factory is configured by the scanner and should not be altered afterwards.
+	 */
+	public EbxmlAckScanner(final XMLInputFactory factory) {
+		this.factory = factory;
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Scans the specified XML document
+	 *
+	 * @see #scan(Reader)
+	 */
+	public Map<String, Object> scan(final String xml) throws IOException {
+		return scan(new StringReader(xml));
+	}
+
+	/**
+	 * Scans the specified XML document
+	 * <p>
+	 * The acknowledgment and error message flags are always included in the result, other
+	 * values are only included if present in the document.
+	 *
+	 * @param reader The document to scan
+	 * @return The extracted values keyed by header name
+	 * @throws IOException If the document could not be read, or is not valid XML
+	 */
+	public Map<String, Object> scan(final Reader reader) throws IOException {
+		final Map<String, Object> headers = Maps.newLinkedHashMap();
+		headers.put(HEADER_ACKNOWLEDGMENT, false);
+		headers.put(HEADER_ERROR_MESSAGE, false);
+
+		XMLStreamReader xml = null;
+		try {
+			xml = factory.createXMLStreamReader(reader);
+
+			// PartyId and RefToMessageId also appear in other elements (From, Acknowledgment)
+			boolean inTo = false;
+			boolean inMessageData = false;
+			while (xml.hasNext()) {
+				final int event = xml.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					if (isEbxmlElement(xml, "To")) {
+						inTo = false;
+					} else if (isEbxmlElement(xml, "MessageData")) {
+						inMessageData = false;
+					}
+					continue;
+				} else if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+
+				final String namespace = xml.getNamespaceURI();
+				final String name = xml.getLocalName();
+				if (SOAP_URI.equals(namespace) && "Body".equals(name)) {
+					break; // nothing of interest after the header
+				} else if (!EBXML_URI.equals(namespace)) {
+					continue;
+				}
+
+				if ("To".equals(name)) {
+					inTo = true;
+				} else if ("MessageData".equals(name)) {
+					inMessageData = true;
+				} else if ("PartyId".equals(name) && inTo) {
+					headers.put(HEADER_TO_PARTY, xml.getElementText());
+				} else if ("Service".equals(name)) {
+					headers.put(HEADER_SERVICE, xml.getElementText());
+				} else if ("Action".equals(name)) {
+					headers.put(HEADER_ACTION, xml.getElementText());
+				} else if ("MessageId".equals(name) && inMessageData) {
+					headers.put(HEADER_MESSAGE_ID, xml.getElementText());
+				} else if ("RefToMessageId".equals(name) && inMessageData) {
+					headers.put(HEADER_REF_TO_MESSAGE_ID, xml.getElementText());
+				} else if ("Acknowledgment".equals(name)) {
+					headers.put(HEADER_ACKNOWLEDGMENT, true);
+				} else if ("ErrorList".equals(name)) {
+					headers.put(HEADER_ERROR_MESSAGE, true);
+				} else if ("Error".equals(name)) {
+					// matches EbxmlEnvelopeParser - the last error in the list determines the severity
+					final String severity = xml.getAttributeValue(EBXML_URI, "severity");
+					if (severity != null) {
+						headers.put(HEADER_ERROR_SEVERITY, normaliseSeverity(severity));
+					}
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			if (xml != null) {
+				try {
+					xml.close();
+				} catch (XMLStreamException e) {
+					// ignore - the underlying reader is owned by the caller
+				}
+			}
+		}
+
+		return headers;
+	}
+
+	/**
+	 * Returns the values of an already parsed envelope keyed by header name
+	 * <p>
+	 * The result is equivalent to scanning the serialized form of the envelope.
+	 */
+	public static Map<String, Object> getHeaders(final EbxmlEnvelope envelope) {
+		final Map<String, Object> headers = Maps.newLinkedHashMap();
+		putIfNotNull(headers, HEADER_MESSAGE_ID, envelope.getMessageData().getMessageId());
+		putIfNotNull(headers, HEADER_REF_TO_MESSAGE_ID, envelope.getMessageData().getRefToMessageId());
+		putIfNotNull(headers, HEADER_SERVICE, envelope.getService());
+		putIfNotNull(headers, HEADER_ACTION, envelope.getAction());
+		putIfNotNull(headers, HEADER_TO_PARTY, envelope.getToParty());
+		headers.put(HEADER_ACKNOWLEDGMENT, envelope.isAcknowledgment());
+		headers.put(HEADER_ERROR_MESSAGE, envelope.isErrorMessage());
+		if (envelope.isErrorMessage()) {
+			putIfNotNull(headers, HEADER_ERROR_SEVERITY, normaliseSeverity(envelope.getError().getSeverity()));
+		}
+		return headers;
+	}
+
+	private static boolean isEbxmlElement(final XMLStreamReader xml, final String name) {
+		return EBXML_URI.equals(xml.getNamespaceURI()) && name.equals(xml.getLocalName());
+	}
+
+	/**
+	 * Severities are compared case-insensitively by {@link EbxmlEnvelope.ErrorDetail} - the
+	 * known values are normalised so that routes can use a simple equality check
+	 */
+	private static String normaliseSeverity(final String severity) {
+		if (EbxmlEnvelope.ERROR_SEVERITY_WARNING.equalsIgnoreCase(severity)) {
+			return EbxmlEnvelope.ERROR_SEVERITY_WARNING;
+		} else if (EbxmlEnvelope.ERROR_SEVERITY_ERROR.equalsIgnoreCase(severity)) {
+			return EbxmlEnvelope.ERROR_SEVERITY_ERROR;
+		}
+		return severity;
+	}
+
+	private static void putIfNotNull(final Map<String, Object> headers, final String name, final Object value) {
+		if (value != null) {
+			headers.put(name, value);
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package uk.nhs.ciao.transport.spine.ebxml;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.ErrorDetail;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.ManifestReference;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.MessageData;
+
+/**
+ * Serializes an {@link EbxmlEnvelope} into XML from pre-rendered fragments
+ * <p>
+ * The output has the same structure as the <code>ebxmlEnvelope.ftl</code> template used by
+ * {@link EbxmlEnvelopeSerializer}. The constant parts of the document (namespaces, element names,
+ * fixed attributes) are encoded as UTF-8 once - only the variable values (IDs, timestamps, parties
+ * etc) are escaped and encoded for each envelope. This avoids the template model wrapping and
+ * interpretation cost for the acknowledgments and errors generated for each message.
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public class EbxmlEnvelopeFragmentSerializer {
+	private static final byte[] ENVELOPE_START = fragment("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+			+ "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"\n"
+			+ "\txmlns:eb=\"http://www.oasis-open.org/committees/ebxml-msg/schema/msg-header-2_0.xsd\"\n"
+			+ "\txmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+	private static final byte[] MANIFEST_NAMESPACES = fragment("\n"
+			+ "\txmlns:hl7ebxml=\"urn:hl7-org:transport/ebxml/DSTUv1.0\"\n"
+			+ "\txmlns:xlink=\"http://www.w3.org/1999/xlink\"");
+	private static final byte[] HEADER_START = fragment(">\n"
+			+ "\t<soap:Header>\n"
+			+ "\t\t<eb:MessageHeader eb:version=\"2.0\" soap:mustUnderstand=\"1\">\n");
+	private static final byte[] FROM_START = fragment("\t\t\t<eb:From>\n"
+			+ "\t\t\t\t<eb:PartyId eb:type=\"urn:nhs:names:partyType:ocs+serviceInstance\">");
+	private static final byte[] FROM_END = fragment("</eb:PartyId>\n"
+			+ "\t\t\t</eb:From>\n");
+	private static final byte[] TO_START = fragment("\t\t\t<eb:To>\n"
+			+ "\t\t\t\t<eb:PartyId eb:type=\"urn:nhs:names:partyType:ocs+serviceInstance\">");
+	private static final byte[] TO_END = fragment("</eb:PartyId>\n"
+			+ "\t\t\t</eb:To>\n");
+	private static final byte[] CPA_ID_START = fragment("\t\t\t<eb:CPAId>");
+	private static final byte[] CPA_ID_END = fragment("</eb:CPAId>\n");
+	private static final byte[] CONVERSATION_ID_START = fragment("\t\t\t<eb:ConversationId>");
+	private static final byte[] CONVERSATION_ID_END = fragment("</eb:ConversationId>\n");
+	private static final byte[] SERVICE_START = fragment("\t\t\t<eb:Service>");
+	private static final byte[] SERVICE_END = fragment("</eb:Service>\n");
+	private static final byte[] ACTION_START = fragment("\t\t\t<eb:Action>");
+	private static final byte[] ACTION_END = fragment("</eb:Action>\n");
+	private static final byte[] MESSAGE_DATA_START = fragment("\n\t\t\t<eb:MessageData>\n");
+	private static final byte[] MESSAGE_ID_START = fragment("\t\t\t\t<eb:MessageId>");
+	private static final byte[] MESSAGE_ID_END = fragment("</eb:MessageId>\n");
+	private static final byte[] TIMESTAMP_START = fragment("\t\t\t\t<eb:Timestamp>");
+	private static final byte[] TIMESTAMP_END = fragment("</eb:Timestamp>\n");
+	private static final byte[] REF_TO_MESSAGE_ID_START = fragment("\t\t\t\t<eb:RefToMessageId>");
+	private static final byte[] REF_TO_MESSAGE_ID_END = fragment("</eb:RefToMessageId>\n");
+	private static final byte[] MESSAGE_DATA_END = fragment("\t\t\t</eb:MessageData>\n");
+	private static final byte[] DUPLICATE_ELIMINATION = fragment("\t\t\t\n"
+			+ "\t\t\t<eb:DuplicateElimination />\n");
+	private static final byte[] MESSAGE_HEADER_END = fragment("\t\t</eb:MessageHeader>\n");
+	private static final byte[] ACK_REQUESTED = fragment("\t\t<eb:AckRequested eb:version=\"2.0\" soap:mustUnderstand=\"1\""
+			+ " soap:actor=\"urn:oasis:names:tc:ebxml-msg:actor:toPartyMSH\" eb:signed=\"false\"/>\n");
+	private static final byte[] ACKNOWLEDGMENT_START = fragment("\t\t<eb:Acknowledgment eb:version=\"2.0\" soap:mustUnderstand=\"1\""
+			+ " soap:actor=\"urn:oasis:names:tc:ebxml-msg:actor:toPartyMSH\">\n");
+	private static final byte[] ACKNOWLEDGMENT_TIMESTAMP_START = fragment("\t\t\t<eb:Timestamp>");
+	private static final byte[] ACKNOWLEDGMENT_REF_TO_MESSAGE_ID_START = fragment("\t\t\t<eb:RefToMessageId>");
+	private static final byte[] ACKNOWLEDGMENT_FROM_START = fragment("\t\t\t<eb:From>\n"
+			+ "\t\t\t\t<eb:PartyId eb:type=\"urn:nhs:names:partyType:ocs+serviceInstance\">");
+	private static final byte[] ACKNOWLEDGMENT_END = fragment("\t\t</eb:Acknowledgment>\n");
+	private static final byte[] ERROR_LIST_START = fragment("\t\t<eb:ErrorList");
+	private static final byte[] ERROR_LIST_ID = fragment(" eb:id=\"");
+	private static final byte[] ERROR_LIST_HIGHEST_SEVERITY = fragment(" eb:highestSeverity=\"");
+	private static final byte[] ERROR_LIST_ATTRIBUTES_END = fragment(" eb:version=\"2.0\" soap:mustUnderstand=\"1\">\n"
+			+ "\t\t\t<eb:Error");
+	private static final byte[] ERROR_ID = fragment(" eb:id=\"");
+	private static final byte[] ERROR_CODE = fragment(" eb:errorCode=\"");
+	private static final byte[] ERROR_SEVERITY = fragment(" eb:severity=\"");
+	private static final byte[] ERROR_CODE_CONTEXT = fragment(" eb:codeContext=\"");
+	private static final byte[] ERROR_ATTRIBUTES_END = fragment(">\n");
+	private static final byte[] ERROR_DESCRIPTION_START = fragment("\t\t\t\t<eb:Description xml:lang=\"en-GB\">");
+	private static final byte[] ERROR_DESCRIPTION_END = fragment("</eb:Description>\n");
+	private static final byte[] ERROR_LIST_END = fragment("\t\t\t</eb:Error>\n"
+			+ "\t\t</eb:ErrorList>\n");
+	private static final byte[] HEADER_END = fragment("\t</soap:Header>\n");
+	private static final byte[] MANIFEST_START = fragment("\t<soap:Body>\n"
+			+ "\t\t<eb:Manifest eb:version=\"2.0\">\n");
+	private static final byte[] REFERENCE_START = fragment("\t\t\t<eb:Reference");
+	private static final byte[] REFERENCE_HREF = fragment(" xlink:href=\"");
+	private static final byte[] REFERENCE_ATTRIBUTES_END = fragment(">\n");
+	private static final byte[] REFERENCE_SCHEMA = fragment("\t\t\t\t<eb:Schema eb:location=\"http://www.nhsia.nhs.uk/schemas/HL7-Message.xsd\" eb:version=\"1.0\"/>\n");
+	private static final byte[] REFERENCE_DESCRIPTION_START = fragment("\t\t\t\t<eb:Description xml:lang=\"en\">");
+	private static final byte[] REFERENCE_DESCRIPTION_END = fragment("</eb:Description>\n");
+	private static final byte[] REFERENCE_PAYLOAD = fragment("\t\t\t\t<hl7ebxml:Payload style=\"HL7\" encoding=\"XML\" version=\"3.0\"/>\n");
+	private static final byte[] REFERENCE_END = fragment("\t\t\t</eb:Reference>\n");
+	private static final byte[] MANIFEST_END = fragment("\t\t</eb:Manifest>\n"
+			+ "\t</soap:Body>\n");
+	private static final byte[] EMPTY_BODY = fragment("\t<soap:Body />\n");
+	private static final byte[] ENVELOPE_END = fragment("</soap:Envelope>");
+	private static final byte[] ATTRIBUTE_END = fragment("\"");
+
+	private static final byte[] ESCAPED_AMP = fragment("&amp;");
+	private static final byte[] ESCAPED_LT = fragment("&lt;");
+	private static final byte[] ESCAPED_GT = fragment("&gt;");
+	private static final byte[] ESCAPED_QUOT = fragment("&quot;");
+	private static final byte[] ESCAPED_APOS = fragment("&#39;");
+
+	/**
+	 * Serializes an EbxmlEnvelope into an xml string
+	 */
+	public String serialize(final EbxmlEnvelope envelope) {
+		final FragmentBuffer buffer = write(envelope);
+		return new String(buffer.bytes, 0, buffer.count, Charsets.UTF_8);
+	}
+
+	/**
+	 * Serializes an EbxmlEnvelope into UTF-8 encoded xml
+	 */
+	public byte[] serializeToBytes(final EbxmlEnvelope envelope) {
+		final FragmentBuffer buffer = write(envelope);
+		return Arrays.copyOf(buffer.bytes, buffer.count);
+	}
+
+	private FragmentBuffer write(final EbxmlEnvelope envelope) {
+		final FragmentBuffer out = new FragmentBuffer();
+		final MessageData messageData = envelope.getMessageData();
+
+		out.write(ENVELOPE_START);
+		if (envelope.isManifest()) {
+			out.write(MANIFEST_NAMESPACES);
+		}
+		out.write(HEADER_START);
+
+		out.writeElement(FROM_START, envelope.getFromParty(), FROM_END);
+		out.writeElement(TO_START, envelope.getToParty(), TO_END);
+		out.writeElement(CPA_ID_START, envelope.getCpaId(), CPA_ID_END);
+		out.writeElement(CONVERSATION_ID_START, envelope.getConversationId(), CONVERSATION_ID_END);
+		out.writeElement(SERVICE_START, envelope.getService(), SERVICE_END);
+		out.writeElement(ACTION_START, envelope.getAction(), ACTION_END);
+
+		out.write(MESSAGE_DATA_START);
+		out.writeElement(MESSAGE_ID_START, messageData.getMessageId(), MESSAGE_ID_END);
+		out.writeElement(TIMESTAMP_START, messageData.getTimestamp(), TIMESTAMP_END);
+		out.writeElement(REF_TO_MESSAGE_ID_START, messageData.getRefToMessageId(), REF_TO_MESSAGE_ID_END);
+		out.write(MESSAGE_DATA_END);
+		if (envelope.isDuplicateElimination()) {
+			out.write(DUPLICATE_ELIMINATION);
+		}
+		out.write(MESSAGE_HEADER_END);
+
+		if (envelope.isAckRequested()) {
+			out.write(ACK_REQUESTED);
+		}
+
+		if (envelope.isAcknowledgment()) {
+			out.write(ACKNOWLEDGMENT_START);
+			out.writeElement(ACKNOWLEDGMENT_TIMESTAMP_START, messageData.getTimestamp(), TIMESTAMP_END);
+			out.writeElement(ACKNOWLEDGMENT_REF_TO_MESSAGE_ID_START, messageData.getRefToMessageId(), REF_TO_MESSAGE_ID_END);
+			out.writeElement(ACKNOWLEDGMENT_FROM_START, envelope.getFromParty(), FROM_END);
+			out.write(ACKNOWLEDGMENT_END);
+		}
+
+		if (envelope.isErrorMessage()) {
+			writeError(out, envelope.getError());
+		}
+		out.write(HEADER_END);
+
+		if (envelope.isManifest()) {
+			writeManifest(out, envelope.getManifestReferences());
+		} else {
+			out.write(EMPTY_BODY);
+		}
+		out.write(ENVELOPE_END);
+
+		return out;
+	}
+
+	private void writeError(final FragmentBuffer out, final ErrorDetail error) {
+		out.write(ERROR_LIST_START);
+		out.writeElement(ERROR_LIST_ID, error.getListId(), ATTRIBUTE_END);
+		out.writeElement(ERROR_LIST_HIGHEST_SEVERITY, error.getSeverity(), ATTRIBUTE_END);
+		out.write(ERROR_LIST_ATTRIBUTES_END);
+		out.writeElement(ERROR_ID, error.getId(), ATTRIBUTE_END);
+		out.writeElement(ERROR_CODE, error.getCode(), ATTRIBUTE_END);
+		out.writeElement(ERROR_SEVERITY, error.getSeverity(), ATTRIBUTE_END);
+		out.writeElement(ERROR_CODE_CONTEXT, error.getCodeContext(), ATTRIBUTE_END);
+		out.write(ERROR_ATTRIBUTES_END);
+		out.writeElement(ERROR_DESCRIPTION_START, error.getDescription(), ERROR_DESCRIPTION_END);
+		out.write(ERROR_LIST_END);
+	}
+
+	private void writeManifest(final FragmentBuffer out, final List<ManifestReference> references) {
+		out.write(MANIFEST_START);
+		for (final ManifestReference reference: references) {
+			out.write(REFERENCE_START);
+			out.writeElement(REFERENCE_HREF, reference.getHref(), ATTRIBUTE_END);
+			out.write(REFERENCE_ATTRIBUTES_END);
+			if (reference.isHl7()) {
+				out.write(REFERENCE_SCHEMA);
+			}
+			out.writeElement(REFERENCE_DESCRIPTION_START, reference.getDescription(), REFERENCE_DESCRIPTION_END);
+			if (reference.isHl7()) {
+				out.write(REFERENCE_PAYLOAD);
+			}
+			out.write(REFERENCE_END);
+		}
+		out.write(MANIFEST_END);
+	}
+
+	private static byte[] fragment(final String value) {
+		return value.getBytes(Charsets.UTF_8);
+	}
+
+	/**
+	 * Growable byte buffer which writes pre-encoded fragments and escaped values
+	 */
+	private static class FragmentBuffer {
+		private byte[] bytes = new byte[2048];
+		private int count;
+
+		public void write(final byte[] fragment) {
+			ensureCapacity(fragment.length);
+			System.arraycopy(fragment, 0, bytes, count, fragment.length);
+			count += fragment.length;
+		}
+
+		/**
+		 * Writes the value (escaped) surrounded by the start and end fragments - nothing is
+		 * written if the value is null
+		 */
+		public void writeElement(final byte[] start, final String value, final byte[] end) {
+			if (value == null) {
+				return;
+			}
+
+			write(start);
+			writeEscaped(value);
+			write(end);
+		}
+
+		/**
+		 * Writes the value as UTF-8 - escaping XML markup characters (matching FreeMarker's ?xml)
+		 */
+		private void writeEscaped(final String value) {
+			final int length = value.length();
+			ensureCapacity(length);
+
+			for (int index = 0; index < length; index++) {
+				final char c = value.charAt(index);
+				if (c >= 0x80) {
+					// Fall back to the standard encoder for the remaining (non-ASCII) value
+					writeNonAscii(value, index);
+					return;
+				}
+
+				switch (c) {
+				case '&':
+					write(ESCAPED_AMP);
+					break;
+				case '<':
+					write(ESCAPED_LT);
+					break;
+				case '>':
+					write(ESCAPED_GT);
+					break;
+				case '"':
+					write(ESCAPED_QUOT);
+					break;
+				case '\'':
+					write(ESCAPED_APOS);
+					break;
+				default:
+					ensureCapacity(1);
+					bytes[count++] = (byte) c;
+					break;
+				}
+			}
+		}
+
+		private void writeNonAscii(final String value, final int offset) {
+			final String remaining = value.substring(offset)
+				.replace("&", "&amp;")
+				.replace("<", "&lt;")
+				.replace(">", "&gt;")
+				.replace("\"", "&quot;")
+				.replace("'", "&#39;");
+			write(remaining.getBytes(Charsets.UTF_8));
+		}
+
+		private void ensureCapacity(final int additional) {
+			if (count + additional > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + additional));
+			}
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package uk.nhs.ciao.transport.spine.ebxml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.ErrorDetail;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.ManifestReference;
+
+/**
+ * Parses a SOAP/ebXml document into a corresponding {@link EbxmlEnvelope} using StAX.
+ * <p>
+ * The parser has the same semantics as the Digester-based {@link EbxmlEnvelopeParser}, but the
+ * element paths are matched against a pre-built tree and properties are set directly (rather
+ * than via reflective bean property rules).
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public class EbxmlEnvelopeStaxParser {
+	private static final String SOAP_URI = "http://schemas.xmlsoap.org/soap/envelope/";
+	private static final String EBXML_URI = "http://www.oasis-open.org/committees/ebxml-msg/schema/msg-header-2_0.xsd";
+	private static final String XLINK_URI = "http://www.w3.org/1999/xlink";
+	private static final String HL7EBML_URI = "urn:hl7-org:transport/ebxml/DSTUv1.0";
+	private static final int MAX_DEPTH = 64;
+
+	/**
+	 * Root of the tree of element paths handled by the parser (matches the Digester rules)
+	 */
+	private static final Node ENVELOPE = createNodes();
+
+	private final XMLInputFactory factory;
+
+	/**
+	 * Creates a new parser using the default XMLInputFactory
+	 */
+	public EbxmlEnvelopeStaxParser() {
+		this(XMLInputFactory.newInstance());
+	}
+
+	/**
+	 * Creates a new parser using the specified XMLInputFactory
+	 * <p>
+	 * The factory is configured by the parser and should not be altered afterwards.
+	 */
+	public EbxmlEnvelopeStaxParser(final XMLInputFactory factory) {
+		this.factory = factory;
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Parses the specified XML input stream into a corresponding {@link EbxmlEnvelope} instance.
+	 * <p>
+	 * The InputStream is not closed by this method.
+	 *
+	 * @param in The input stream to parse
+	 * @return An {@link EbxmlEnvelope} corresponding to <code>in</code>, or null if the root element is not an Envelope
+	 * @throws IOException If the stream could not be read, or if the stream represents an invalid XML document
+	 */
+	public EbxmlEnvelope parse(final InputStream in) throws IOException {
+		XMLStreamReader xml = null;
+		try {
+			xml = factory.createXMLStreamReader(in);
+			return new ParseState(xml).parse();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			if (xml != null) {
+				try {
+					xml.close();
+				} catch (XMLStreamException e) {
+					// ignore - the underlying stream is owned by the caller
+				}
+			}
+		}
+	}
+
+	/**
+	 * Actions performed when a matching element is seen
+	 */
+	private enum Action {
+		NONE,
+		FROM_PARTY,
+		TO_PARTY,
+		CPA_ID,
+		CONVERSATION_ID,
+		SERVICE,
+		ACTION,
+		DUPLICATE_ELIMINATION,
+		MESSAGE_ID,
+		TIMESTAMP,
+		REF_TO_MESSAGE_ID,
+		ACK_REQUESTED,
+		ACKNOWLEDGMENT,
+		ERROR_LIST,
+		ERROR,
+		ERROR_DESCRIPTION,
+		REFERENCE,
+		REFERENCE_DESCRIPTION,
+		HL7_PAYLOAD;
+
+		/**
+		 * Tests if the action sets a property from the element text
+		 */
+		public boolean isText() {
+			switch (this) {
+			case FROM_PARTY:
+			case TO_PARTY:
+			case CPA_ID:
+			case CONVERSATION_ID:
+			case SERVICE:
+			case ACTION:
+			case MESSAGE_ID:
+			case TIMESTAMP:
+			case REF_TO_MESSAGE_ID:
+			case ERROR_DESCRIPTION:
+			case REFERENCE_DESCRIPTION:
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * A known element path
+	 * <p>
+	 * As with Digester, paths are matched by local name - the namespace only determines
+	 * whether the action of the final element is performed.
+	 */
+	private static class Node {
+		private final String namespaceURI;
+		private final Action action;
+		private final Map<String, Node> children = Maps.newHashMap();
+
+		public Node(final String namespaceURI, final Action action) {
+			this.namespaceURI = namespaceURI;
+			this.action = action;
+		}
+
+		public Node add(final String name, final String namespaceURI, final Action action) {
+			final Node child = new Node(namespaceURI, action);
+			children.put(name, child);
+			return child;
+		}
+
+		public Node add(final String name) {
+			return add(name, null, Action.NONE);
+		}
+
+		public Node getChild(final String name) {
+			return children.get(name);
+		}
+
+		public Action getAction(final String elementNamespaceURI) {
+			return namespaceURI != null && namespaceURI.equals(elementNamespaceURI) ? action : Action.NONE;
+		}
+	}
+
+	private static Node createNodes() {
+		final Node envelope = new Node(SOAP_URI, Action.NONE);
+
+		final Node header = envelope.add("Header");
+		final Node messageHeader = header.add("MessageHeader");
+		messageHeader.add("From").add("PartyId", EBXML_URI, Action.FROM_PARTY);
+		messageHeader.add("To").add("PartyId", EBXML_URI, Action.TO_PARTY);
+		messageHeader.add("CPAId", EBXML_URI, Action.CPA_ID);
+		messageHeader.add("ConversationId", EBXML_URI, Action.CONVERSATION_ID);
+		messageHeader.add("Service", EBXML_URI, Action.SERVICE);
+		messageHeader.add("Action", EBXML_URI, Action.ACTION);
+		messageHeader.add("DuplicateElimination", EBXML_URI, Action.DUPLICATE_ELIMINATION);
+
+		final Node messageData = messageHeader.add("MessageData");
+		messageData.add("MessageId", EBXML_URI, Action.MESSAGE_ID);
+		messageData.add("Timestamp", EBXML_URI, Action.TIMESTAMP);
+		messageData.add("RefToMessageId", EBXML_URI, Action.REF_TO_MESSAGE_ID);
+
+		header.add("AckRequested", EBXML_URI, Action.ACK_REQUESTED);
+		header.add("Acknowledgment", EBXML_URI, Action.ACKNOWLEDGMENT);
+
+		final Node errorList = header.add("ErrorList", EBXML_URI, Action.ERROR_LIST);
+		errorList.add("Error", EBXML_URI, Action.ERROR)
+			.add("Description", EBXML_URI, Action.ERROR_DESCRIPTION);
+
+		final Node reference = envelope.add("Body").add("Manifest").add("Reference", EBXML_URI, Action.REFERENCE);
+		reference.add("Description", EBXML_URI, Action.REFERENCE_DESCRIPTION);
+		reference.add("Payload", HL7EBML_URI, Action.HL7_PAYLOAD);
+
+		return envelope;
+	}
+
+	/**
+	 * State of a single parse
+	 */
+	private static class ParseState {
+		private final XMLStreamReader xml;
+		private final EbxmlEnvelope envelope = new EbxmlEnvelope();
+		private final Node[] nodes = new Node[MAX_DEPTH];
+		private final StringBuilder text = new StringBuilder();
+		private int depth;
+		private int unknownDepth;
+		private Action textAction;
+		private int textDepth;
+		private ErrorDetail error;
+		private ManifestReference reference;
+
+		public ParseState(final XMLStreamReader xml) {
+			this.xml = xml;
+		}
+
+		public EbxmlEnvelope parse() throws XMLStreamException {
+			xml.nextTag();
+			if (!"Envelope".equals(xml.getLocalName())) {
+				return null; // no rules match the document
+			} else if (!SOAP_URI.equals(xml.getNamespaceURI())) {
+				throw new XMLStreamException("Root element is not a SOAP Envelope", xml.getLocation());
+			}
+
+			nodes[0] = ENVELOPE;
+			depth = 1;
+
+			while (depth > 0) {
+				switch (xml.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					startElement();
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					endElement();
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (textAction != null && depth == textDepth && unknownDepth == 0) {
+						text.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+					}
+					break;
+				default:
+					break;
+				}
+			}
+
+			return envelope;
+		}
+
+		private void startElement() throws XMLStreamException {
+			final Node parent = nodes[depth - 1];
+			final Node node = unknownDepth > 0 ? null : parent.getChild(xml.getLocalName());
+			if (node == null) {
+				// Descendants of an unknown element can never match
+				unknownDepth++;
+				return;
+			} else if (depth == MAX_DEPTH) {
+				throw new XMLStreamException("Maximum element depth exceeded", xml.getLocation());
+			}
+
+			nodes[depth++] = node;
+
+			final Action action = node.getAction(xml.getNamespaceURI());
+			if (action.isText()) {
+				textAction = action;
+				textDepth = depth;
+				text.setLength(0);
+				return;
+			}
+
+			switch (action) {
+			case DUPLICATE_ELIMINATION:
+				envelope.setDuplicateElimination(true);
+				break;
+			case ACK_REQUESTED:
+				envelope.setAckRequested(true);
+				break;
+			case ACKNOWLEDGMENT:
+				envelope.setAcknowledgment(true);
+				break;
+			case ERROR_LIST:
+				error = envelope.addError();
+				final String listId = xml.getAttributeValue(EBXML_URI, "id");
+				if (listId != null) {
+					error.setListId(listId);
+				}
+				break;
+			case ERROR:
+				startError();
+				break;
+			case REFERENCE:
+				reference = envelope.addManifestReference();
+				final String href = xml.getAttributeValue(XLINK_URI, "href");
+				if (href != null) {
+					reference.setHref(href);
+				}
+				break;
+			case HL7_PAYLOAD:
+				if (reference != null) {
+					reference.setHl7(true);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void startError() {
+			if (error == null) {
+				return;
+			}
+
+			final String id = xml.getAttributeValue(EBXML_URI, "id");
+			if (id != null) {
+				error.setId(id);
+			}
+
+			final String code = xml.getAttributeValue(EBXML_URI, "errorCode");
+			if (code != null) {
+				error.setCode(code);
+			}
+
+			final String severity = xml.getAttributeValue(EBXML_URI, "severity");
+			if (severity != null) {
+				error.setSeverity(severity);
+			}
+
+			final String codeContext = xml.getAttributeValue(EBXML_URI, "codeContext");
+			if (codeContext != null) {
+				error.setCodeContext(codeContext);
+			}
+		}
+
+		private void endElement() {
+			if (unknownDepth > 0) {
+				unknownDepth--;
+				return;
+			}
+
+			if (textAction != null && depth == textDepth) {
+				// Matches BeanPropertySetterRule - the body text is trimmed
+				setText(textAction, text.toString().trim());
+				textAction = null;
+			}
+
+			final Action action = nodes[depth - 1].getAction(xml.getNamespaceURI());
+			if (action == Action.ERROR_LIST) {
+				error = null;
+			} else if (action == Action.REFERENCE) {
+				reference = null;
+			}
+
+			nodes[--depth] = null;
+		}
+
+		private void setText(final Action action, final String value) {
+			switch (action) {
+			case FROM_PARTY:
+				envelope.setFromParty(value);
+				break;
+			case TO_PARTY:
+				envelope.setToParty(value);
+				break;
+			case CPA_ID:
+				envelope.setCpaId(value);
+				break;
+			case CONVERSATION_ID:
+				envelope.setConversationId(value);
+				break;
+			case SERVICE:
+				envelope.setService(value);
+				break;
+			case ACTION:
+				envelope.setAction(value);
+				break;
+			case MESSAGE_ID:
+				envelope.getMessageData().setMessageId(value);
+				break;
+			case TIMESTAMP:
+				envelope.getMessageData().setTimestamp(value);
+				break;
+			case REF_TO_MESSAGE_ID:
+				envelope.getMessageData().setRefToMessageId(value);
+				break;
+			case ERROR_DESCRIPTION:
+				if (error != null) {
+					error.setDescription(value);
+				}
+				break;
+			case REFERENCE_DESCRIPTION:
+				if (reference != null) {
+					reference.setDescription(value);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+	}
+}
@@ -4,7 +4,6 @@ import static uk.nhs.ciao.transport.itk.util.TypeConverterHelper.*;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.camel.Converter;
 import org.apache.camel.Exchange;
@@ -13,7 +12,6 @@ import org.apache.camel.spi.TypeConverterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Throwables;
 import com.google.common.io.Closeables;
 
 /**
@@ -27,24 +25,14 @@ public final class EbxmlEnvelopeTypeConverter {
 	private static final Logger LOGGER = LoggerFactory.getLogger(EbxmlEnvelopeTypeConverter.class);
 	
 	/**
-	 * Holds a single parser instance per thread (the parsers are not thread-safe)
+	 * Holds a single parser instance across all threads (the StAX parser is thread-safe)
 	 */
-	private static final ThreadLocal<EbxmlEnvelopeParser> PARSER = new ThreadLocal<EbxmlEnvelopeParser>() {
-		@Override
-		protected EbxmlEnvelopeParser initialValue() {
-			try {
-				return new EbxmlEnvelopeParser();
-			} catch (Exception e) {
-				LOGGER.error("Unable to create EbxmlEnvelopeParser", e);
-				throw Throwables.propagate(e);
-			}
-		}
-	};
+	private static final EbxmlEnvelopeStaxParser PARSER = new EbxmlEnvelopeStaxParser();
 
 	/**
-	 * Holds a single serializer instance across all threads (lazy-loaded)
+	 * Holds a single serializer instance across all threads (the fragment serializer is thread-safe)
 	 */
-	private static AtomicReference<EbxmlEnvelopeSerializer> SERIALIZER = new AtomicReference<EbxmlEnvelopeSerializer>();
+	private static final EbxmlEnvelopeFragmentSerializer SERIALIZER = new EbxmlEnvelopeFragmentSerializer();
 	
 	private EbxmlEnvelopeTypeConverter() {
 		// Suppress default constructor
@@ -59,22 +47,31 @@ public final class EbxmlEnvelopeTypeConverter {
 	public static EbxmlEnvelope fromInputStream(final InputStream in) throws IOException {
 		LOGGER.debug("fromInputStream()");
 		
-		final EbxmlEnvelopeParser parser = PARSER.get();
-		return parser.parse(in);
+		return PARSER.parse(in);
 	}
 	
 	/**
-	 * Encodes the envelope as an XML string (via a freemarker template)
-	 * 
-	 * @throws Exception If the envelope could not be encoded
+	 * Encodes the envelope as an XML string (from pre-rendered fragments)
 	 */
 	@Converter
-	public static String toString(final EbxmlEnvelope envelope) throws IOException {
+	public static String toString(final EbxmlEnvelope envelope) {
 		if (envelope == null) {
 			return null;
 		}
 		
-		return getSerializer().serialize(envelope);
+		return SERIALIZER.serialize(envelope);
+	}
+	
+	/**
+	 * Encodes the envelope as UTF-8 encoded XML (from pre-rendered fragments)
+	 */
+	@Converter
+	public static byte[] toByteArray(final EbxmlEnvelope envelope) {
+		if (envelope == null) {
+			return null;
+		}
+		
+		return SERIALIZER.serializeToBytes(envelope);
 	}
 	
 	/**
@@ -131,22 +128,4 @@ public final class EbxmlEnvelopeTypeConverter {
 		final String string = toString((EbxmlEnvelope)value);		
 		return castOrConvert(type, exchange, string, registry);
 	}
-		
-	/**
-	 * Lazy loads the single serializer instance
-	 */
-	private static EbxmlEnvelopeSerializer getSerializer() throws IOException {
-		EbxmlEnvelopeSerializer serializer = SERIALIZER.get();
-		
-		// lazy-load
-		if (serializer == null) {
-			serializer = new EbxmlEnvelopeSerializer();
-			if (!SERIALIZER.compareAndSet(null, serializer)) {
-				// some other thread got there first - use their instance
-				serializer = SERIALIZER.get();
-			}
-		}
-		
-		return serializer;
-	}
 }
@@ -0,0 +1,147 @@
+package uk.nhs.ciao.transport.spine.hl7;
+
+import java.io.IOException;
+
+import com.google.common.base.Objects;
+import com.google.common.escape.Escaper;
+import com.google.common.xml.XmlEscapers;
+
+/**
+ * Serializes an {@link HL7Part} into an XML string without a template
+ * <p>
+ * The output has the same structure as the <code>hl7Part.ftl</code> template used by
+ * {@link HL7PartSerializer}. The sender sections (<code>communicationFunctionSnd</code> and the
+ * <code>ControlActEvent</code> agent system) are constant for a deployment because they are copied
+ * from the prototype {@link HL7Part} - these sections are rendered once (when the serializer is
+ * created) and re-used for each part with the same sender values.
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public class HL7PartFragmentSerializer {
+	private static final Escaper ESCAPER = XmlEscapers.xmlAttributeEscaper();
+
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<";
+	private static final String ROOT_ATTRIBUTES = " xmlns=\"urn:hl7-org:v3\">\n";
+	private static final String VERSION_CODE = "   <versionCode code=\"V3NPfIT4.2.00\"/>\n";
+	private static final String PROCESSING_CODES = "   <processingCode code=\"P\"/>\n"
+			+ "   <processingModeCode code=\"T\"/>\n"
+			+ "   <acceptAckCode code=\"NE\"/>\n";
+	private static final String RECEIVER_START = "   <communicationFunctionRcv>\n"
+			+ "      <device classCode=\"DEV\" determinerCode=\"INSTANCE\">\n"
+			+ "         <id extension=\"";
+	private static final String RECEIVER_END = "\" root=\"1.2.826.0.1285.0.2.0.107\"/>\n"
+			+ "      </device>\n"
+			+ "   </communicationFunctionRcv>\n";
+	private static final String SENDER_START = "   <communicationFunctionSnd>\n"
+			+ "      <device classCode=\"DEV\" determinerCode=\"INSTANCE\">\n"
+			+ "         <id extension=\"";
+	private static final String SENDER_END = "\" root=\"1.2.826.0.1285.0.2.0.107\"/>\n"
+			+ "      </device>\n"
+			+ "   </communicationFunctionSnd>\n";
+	private static final String AGENT_SYSTEM_START = "   \n"
+			+ "   <ControlActEvent classCode=\"CACT\" moodCode=\"EVN\">\n"
+			+ "      <author1 typeCode=\"AUT\">\n"
+			+ "         <AgentSystemSDS classCode=\"AGNT\">\n"
+			+ "            <agentSystemSDS classCode=\"DEV\" determinerCode=\"INSTANCE\">\n"
+			+ "               <id extension=\"";
+	private static final String AGENT_SYSTEM_END = "\" root=\"1.2.826.0.1285.0.2.0.107\"/>\n"
+			+ "            </agentSystemSDS>\n"
+			+ "         </AgentSystemSDS>\n"
+			+ "      </author1>\n"
+			+ "\t</ControlActEvent>\n";
+
+	private final String prototypeSenderAsid;
+	private final String prototypeSenderSection;
+	private final String prototypeAgentSystemAsid;
+	private final String prototypeAgentSystemSection;
+
+	/**
+	 * Constructs a new serializer without cached sender sections
+	 */
+	public HL7PartFragmentSerializer() {
+		this(null);
+	}
+
+	/**
+	 * Constructs a new serializer which caches the sender sections rendered from the prototype
+	 *
+	 * @param prototype The prototype whose values are copied into outgoing parts (may be null)
+	 */
+	public HL7PartFragmentSerializer(final HL7Part prototype) {
+		String senderAsid = null;
+		String agentSystemAsid = null;
+		if (prototype != null) {
+			// Match the sender values of parts built from the prototype (including defaults)
+			final HL7Part defaults = new HL7Part();
+			final boolean overwrite = true;
+			defaults.copyFrom(prototype, overwrite);
+			defaults.applyDefaults();
+
+			senderAsid = defaults.getSenderAsid();
+			agentSystemAsid = defaults.getAgentSystemAsid();
+		}
+
+		this.prototypeSenderAsid = senderAsid;
+		this.prototypeSenderSection = renderSection(SENDER_START, senderAsid, SENDER_END);
+		this.prototypeAgentSystemAsid = agentSystemAsid;
+		this.prototypeAgentSystemSection = renderSection(AGENT_SYSTEM_START, agentSystemAsid, AGENT_SYSTEM_END);
+	}
+
+	/**
+	 * Serializes an HL7Part into an xml string
+	 *
+	 * @throws IOException If the part does not have an interactionId (required for the root element)
+	 */
+	public String serialize(final HL7Part part) throws IOException {
+		final String interactionId = part.getInteractionId();
+		if (interactionId == null) {
+			throw new IOException("An interactionId is required to serialize an HL7Part");
+		}
+
+		final String escapedInteractionId = ESCAPER.escape(interactionId);
+		final StringBuilder builder = new StringBuilder(2048);
+
+		builder.append(HEADER).append(escapedInteractionId).append(ROOT_ATTRIBUTES);
+		appendSection(builder, "   <id root=\"", part.getId(), "\"/>\n");
+		appendSection(builder, "   <creationTime value=\"", part.getCreationTime(), "\"/>\n");
+		builder.append(VERSION_CODE);
+		builder.append("   <interactionId extension=\"").append(escapedInteractionId)
+			.append("\" root=\"2.16.840.1.113883.2.1.3.2.4.12\"/>\n");
+		builder.append(PROCESSING_CODES);
+		appendSection(builder, RECEIVER_START, part.getReceiverAsid(), RECEIVER_END);
+
+		if (prototypeSenderSection != null && Objects.equal(prototypeSenderAsid, part.getSenderAsid())) {
+			builder.append(prototypeSenderSection);
+		} else {
+			appendSection(builder, SENDER_START, part.getSenderAsid(), SENDER_END);
+		}
+
+		if (prototypeAgentSystemSection != null && Objects.equal(prototypeAgentSystemAsid, part.getAgentSystemAsid())) {
+			builder.append(prototypeAgentSystemSection);
+		} else {
+			appendSection(builder, AGENT_SYSTEM_START, part.getAgentSystemAsid(), AGENT_SYSTEM_END);
+		}
+
+		builder.append("</").append(escapedInteractionId).append('>');
+		return builder.toString();
+	}
+
+	/**
+	 * Appends the section (with the escaped value) - nothing is appended if the value is null
+	 */
+	private static void appendSection(final StringBuilder builder, final String start, final String value, final String end) {
+		if (value != null) {
+			builder.append(start).append(ESCAPER.escape(value)).append(end);
+		}
+	}
+
+	private static String renderSection(final String start, final String value, final String end) {
+		if (value == null) {
+			return null;
+		}
+
+		final StringBuilder builder = new StringBuilder();
+		appendSection(builder, start, value, end);
+		return builder.toString();
+	}
+}
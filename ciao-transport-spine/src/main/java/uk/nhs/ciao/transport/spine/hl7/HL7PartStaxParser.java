@@ -0,0 +1,204 @@
+package uk.nhs.ciao.transport.spine.hl7;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Parses an HL7 wrapper document into a corresponding {@link HL7Part} using StAX.
+ * <p>
+ * The parser has the same semantics as the Digester-based {@link HL7PartParser} (the root element
+ * name is ignored). Element paths are tracked as a stack of integer states rather than pattern
+ * strings - no per-element strings are created while matching.
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public class HL7PartStaxParser {
+	private static final String HL7_URI = "urn:hl7-org:v3";
+	private static final int MAX_DEPTH = 64;
+
+	// Element path states
+	private static final int UNKNOWN = -1;
+	private static final int ROOT = 0;
+	private static final int ID = 1;
+	private static final int CREATION_TIME = 2;
+	private static final int INTERACTION_ID = 3;
+	private static final int RECEIVER = 4;
+	private static final int RECEIVER_DEVICE = 5;
+	private static final int RECEIVER_ID = 6;
+	private static final int SENDER = 7;
+	private static final int SENDER_DEVICE = 8;
+	private static final int SENDER_ID = 9;
+	private static final int CONTROL_ACT_EVENT = 10;
+	private static final int AUTHOR = 11;
+	private static final int AGENT_SYSTEM = 12;
+	private static final int AGENT_SYSTEM_DEVICE = 13;
+	private static final int AGENT_SYSTEM_ID = 14;
+
+	private final XMLInputFactory factory;
+
+	/**
+	 * Creates a new parser using the default XMLInputFactory
+	 */
+	public HL7PartStaxParser() {
+		this(XMLInputFactory.newInstance());
+	}
+
+	/**
+	 * Creates a new parser using the specified XMLInputFactory
+	 * <p>
+	 * The factory is configured by the parser and should not be altered afterwards.
+	 */
+	public HL7PartStaxParser(final XMLInputFactory factory) {
+		this.factory = factory;
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Parses the specified XML input stream into a corresponding {@link HL7Part} instance.
+	 * <p>
+	 * The InputStream is not closed by this method.
+	 *
+	 * @param in The input stream to parse
+	 * @return An {@link HL7Part} corresponding to <code>in</code>, or null if the root element is not in the HL7 namespace
+	 * @throws IOException If the stream could not be read, or if the stream represents an invalid XML document
+	 */
+	public HL7Part parse(final InputStream in) throws IOException {
+		XMLStreamReader xml = null;
+		try {
+			xml = factory.createXMLStreamReader(in);
+			return parse(xml);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			if (xml != null) {
+				try {
+					xml.close();
+				} catch (XMLStreamException e) {
+					// ignore - the underlying stream is owned by the caller
+				}
+			}
+		}
+	}
+
+	private HL7Part parse(final XMLStreamReader xml) throws XMLStreamException {
+		xml.nextTag();
+		final HL7Part part = HL7_URI.equals(xml.getNamespaceURI()) ? new HL7Part() : null;
+
+		final int[] states = new int[MAX_DEPTH];
+		states[0] = ROOT;
+		int depth = 1;
+
+		while (depth > 0) {
+			final int event = xml.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			} else if (event == XMLStreamConstants.START_ELEMENT) {
+				if (depth == MAX_DEPTH) {
+					throw new XMLStreamException("Maximum element depth exceeded", xml.getLocation());
+				}
+
+				final int state = nextState(states[depth - 1], xml.getLocalName());
+				states[depth++] = state;
+				if (part != null && state != UNKNOWN && HL7_URI.equals(xml.getNamespaceURI())) {
+					setProperty(part, state, xml);
+				}
+			}
+		}
+
+		return part;
+	}
+
+	/**
+	 * Determines the state of a child element from the parent state and the element name
+	 */
+	private static int nextState(final int parent, final String name) {
+		switch (parent) {
+		case ROOT:
+			if ("id".equals(name)) {
+				return ID;
+			} else if ("creationTime".equals(name)) {
+				return CREATION_TIME;
+			} else if ("interactionId".equals(name)) {
+				return INTERACTION_ID;
+			} else if ("communicationFunctionRcv".equals(name)) {
+				return RECEIVER;
+			} else if ("communicationFunctionSnd".equals(name)) {
+				return SENDER;
+			} else if ("ControlActEvent".equals(name)) {
+				return CONTROL_ACT_EVENT;
+			}
+			return UNKNOWN;
+		case RECEIVER:
+			return "device".equals(name) ? RECEIVER_DEVICE : UNKNOWN;
+		case RECEIVER_DEVICE:
+			return "id".equals(name) ? RECEIVER_ID : UNKNOWN;
+		case SENDER:
+			return "device".equals(name) ? SENDER_DEVICE : UNKNOWN;
+		case SENDER_DEVICE:
+			return "id".equals(name) ? SENDER_ID : UNKNOWN;
+		case CONTROL_ACT_EVENT:
+			return "author1".equals(name) ? AUTHOR : UNKNOWN;
+		case AUTHOR:
+			return "AgentSystemSDS".equals(name) ? AGENT_SYSTEM : UNKNOWN;
+		case AGENT_SYSTEM:
+			return "agentSystemSDS".equals(name) ? AGENT_SYSTEM_DEVICE : UNKNOWN;
+		case AGENT_SYSTEM_DEVICE:
+			return "id".equals(name) ? AGENT_SYSTEM_ID : UNKNOWN;
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * Sets the part property associated with the element state (from the mapped attribute)
+	 */
+	private static void setProperty(final HL7Part part, final int state, final XMLStreamReader xml) {
+		switch (state) {
+		case ID:
+			final String id = xml.getAttributeValue(null, "root");
+			if (id != null) {
+				part.setId(id);
+			}
+			break;
+		case CREATION_TIME:
+			final String creationTime = xml.getAttributeValue(null, "value");
+			if (creationTime != null) {
+				part.setCreationTime(creationTime);
+			}
+			break;
+		case INTERACTION_ID:
+			final String interactionId = xml.getAttributeValue(null, "extension");
+			if (interactionId != null) {
+				part.setInteractionId(interactionId);
+			}
+			break;
+		case RECEIVER_ID:
+			final String receiverAsid = xml.getAttributeValue(null, "extension");
+			if (receiverAsid != null) {
+				part.setReceiverAsid(receiverAsid);
+			}
+			break;
+		case SENDER_ID:
+			final String senderAsid = xml.getAttributeValue(null, "extension");
+			if (senderAsid != null) {
+				part.setSenderAsid(senderAsid);
+			}
+			break;
+		case AGENT_SYSTEM_ID:
+			final String agentSystemAsid = xml.getAttributeValue(null, "extension");
+			if (agentSystemAsid != null) {
+				part.setAgentSystemAsid(agentSystemAsid);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+}
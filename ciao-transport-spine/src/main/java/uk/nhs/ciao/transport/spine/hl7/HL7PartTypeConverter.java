@@ -4,7 +4,6 @@ import static uk.nhs.ciao.transport.itk.util.TypeConverterHelper.*;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.camel.Converter;
 import org.apache.camel.Exchange;
@@ -13,7 +12,6 @@ import org.apache.camel.spi.TypeConverterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Throwables;
 import com.google.common.io.Closeables;
 
 /**
@@ -27,24 +25,14 @@ public final class HL7PartTypeConverter {
 	private static final Logger LOGGER = LoggerFactory.getLogger(HL7PartTypeConverter.class);
 	
 	/**
-	 * Holds a single parser instance per thread (the parsers are not thread-safe)
+	 * Holds a single parser instance across all threads (the StAX parser is thread-safe)
 	 */
-	private static final ThreadLocal<HL7PartParser> PARSER = new ThreadLocal<HL7PartParser>() {
-		@Override
-		protected HL7PartParser initialValue() {
-			try {
-				return new HL7PartParser();
-			} catch (Exception e) {
-				LOGGER.error("Unable to create HL7PartParser", e);
-				throw Throwables.propagate(e);
-			}
-		}
-	};
+	private static final HL7PartStaxParser PARSER = new HL7PartStaxParser();
 
 	/**
-	 * Holds a single serializer instance across all threads (lazy-loaded)
+	 * Holds a single serializer instance across all threads (the fragment serializer is thread-safe)
 	 */
-	private static AtomicReference<HL7PartSerializer> SERIALIZER = new AtomicReference<HL7PartSerializer>();
+	private static final HL7PartFragmentSerializer SERIALIZER = new HL7PartFragmentSerializer();
 	
 	private HL7PartTypeConverter() {
 		// Suppress default constructor
@@ -59,12 +47,11 @@ public final class HL7PartTypeConverter {
 	public static HL7Part fromInputStream(final InputStream in) throws IOException {
 		LOGGER.debug("fromInputStream()");
 		
-		final HL7PartParser parser = PARSER.get();
-		return parser.parse(in);
+		return PARSER.parse(in);
 	}
 	
 	/**
-	 * Encodes the part as an XML string (via a freemarker template)
+	 * Encodes the part as an XML string
 	 * 
 	 * @throws Exception If the part could not be encoded
 	 */
@@ -74,7 +61,7 @@ public final class HL7PartTypeConverter {
 			return null;
 		}
 		
-		return getSerializer().serialize(part);
+		return SERIALIZER.serialize(part);
 	}
 	
 	/**
@@ -131,22 +118,4 @@ public final class HL7PartTypeConverter {
 		final String string = toString((HL7Part)value);		
 		return castOrConvert(type, exchange, string, registry);
 	}
-		
-	/**
-	 * Lazy loads the single serializer instance
-	 */
-	private static HL7PartSerializer getSerializer() throws IOException {
-		HL7PartSerializer serializer = SERIALIZER.get();
-		
-		// lazy-load
-		if (serializer == null) {
-			serializer = new HL7PartSerializer();
-			if (!SERIALIZER.compareAndSet(null, serializer)) {
-				// some other thread got there first - use their instance
-				serializer = SERIALIZER.get();
-			}
-		}
-		
-		return serializer;
-	}
 }
@@ -0,0 +1,323 @@
+package uk.nhs.ciao.transport.spine.http;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+import org.apache.camel.support.SynchronizationAdapter;
+
+/**
+ * Admission control (load shedding) for incoming HTTP requests
+ * <p>
+ * The declared Content-Length of each request is checked <em>before</em> the body is parsed:
+ * <ul>
+ * <li>Requests larger than the maximum request size are rejected with <code>413 Request Entity Too Large</code>
+ * <li>Requests which would exceed the in-flight byte or request budget are rejected with
+ * <code>503 Service Unavailable</code> and a <code>Retry-After</code> header - spine will re-send the
+ * message later
+ * </ul>
+ * Rejected exchanges are stopped (see {@link Exchange#ROUTE_STOP}) with the HTTP response populated.
+ * <p>
+ * The checks run as the first step of the route, so they do not prevent the HTTP server from receiving the
+ * body: Jetty may already have buffered some (or, with stream caching, all) of the request. They bound the
+ * memory and processing used by the routes for each request rather than the network transfer itself.
+ * <p>
+ * An admitted request holds a {@link Ticket} against the budget until the HTTP exchange completes.
+ * Processing which continues after the HTTP response (e.g. publishing a payload via an in-memory
+ * queue) can retain the ticket via {@link #retainTicket()} and {@link #releaseTicketOnCompletion()}
+ * so that queued payloads continue to count towards the budget. If the exchange cannot be handed to the
+ * later stage, the retained reference must be released via {@link #releaseRetainedTicket()}.
+ * <p>
+ * When added to a CamelContext (via {@link org.apache.camel.CamelContext#addService(Object)})
+ * the admission statistics are published over JMX.
+ */
+@ManagedResource(description = "Spine HTTP server admission control")
+public class AdmissionController extends ServiceSupport implements Processor {
+	/**
+	 * The property used to store the admission ticket on the {@link Exchange}
+	 */
+	public static final String TICKET_PROPERTY = "http-admission-ticket";
+
+	/**
+	 * Property marking that the exchange holds an additional reference to the ticket
+	 * (to be released by a later processing stage)
+	 */
+	private static final String TICKET_RETAINED_PROPERTY = "http-admission-ticket-retained";
+
+	private final AtomicLong inFlightBytes = new AtomicLong();
+	private final AtomicInteger inFlightRequests = new AtomicInteger();
+	private final AtomicLong admittedCount = new AtomicLong();
+	private final AtomicLong rejectedTooLargeCount = new AtomicLong();
+	private final AtomicLong rejectedOverloadedCount = new AtomicLong();
+	private long maxRequestSize;
+	private long maxInFlightBytes;
+	private int maxInFlightRequests;
+	private int retryAfter = 30;
+
+	/**
+	 * Maximum declared Content-Length (in bytes) of a request (0 means no limit)
+	 */
+	public void setMaxRequestSize(final long maxRequestSize) {
+		this.maxRequestSize = maxRequestSize;
+	}
+
+	/**
+	 * Maximum total size (in bytes) of admitted requests which are still being processed (0 means no limit)
+	 * <p>
+	 * A single request is always admitted if nothing else is in-flight, even if it exceeds the budget
+	 */
+	public void setMaxInFlightBytes(final long maxInFlightBytes) {
+		this.maxInFlightBytes = maxInFlightBytes;
+	}
+
+	/**
+	 * Maximum number of admitted requests which are still being processed (0 means no limit)
+	 */
+	public void setMaxInFlightRequests(final int maxInFlightRequests) {
+		this.maxInFlightRequests = maxInFlightRequests;
+	}
+
+	/**
+	 * Value (in seconds) of the Retry-After header returned when a request is rejected due to load
+	 */
+	public void setRetryAfter(final int retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		// Content-Length is not known for chunked requests - these only count towards the request budget
+		final Long declaredLength = exchange.getIn().getHeader(Exchange.CONTENT_LENGTH, Long.class);
+		final long contentLength = declaredLength == null || declaredLength < 0 ? 0 : declaredLength;
+
+		if (maxRequestSize > 0 && contentLength > maxRequestSize) {
+			rejectedTooLargeCount.incrementAndGet();
+			reject(exchange, 413, "Request entity too large - maximum size is " + maxRequestSize + " bytes");
+			return;
+		}
+
+		final Ticket ticket = tryAdmit(contentLength);
+		if (ticket == null) {
+			rejectedOverloadedCount.incrementAndGet();
+			reject(exchange, 503, "Service unavailable - too many requests in progress");
+			exchange.getIn().setHeader("Retry-After", retryAfter);
+			return;
+		}
+
+		exchange.setProperty(TICKET_PROPERTY, ticket);
+		exchange.addOnCompletion(new SynchronizationAdapter() {
+			@Override
+			public void onDone(final Exchange exchange) {
+				ticket.release();
+
+				// The later stage will not run - release its reference as well
+				if (exchange.isFailed() && exchange.getProperty(TICKET_RETAINED_PROPERTY, false, Boolean.class)) {
+					ticket.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Attempts to reserve the specified number of bytes (and one request) from the budget
+	 *
+	 * @return The ticket holding the reservation, or null if the budget has been exceeded
+	 */
+	public Ticket tryAdmit(final long contentLength) {
+		final int requests = inFlightRequests.incrementAndGet();
+		final long bytes = inFlightBytes.addAndGet(contentLength);
+
+		final boolean overloaded = (maxInFlightRequests > 0 && requests > maxInFlightRequests)
+				|| (maxInFlightBytes > 0 && bytes > maxInFlightBytes && requests > 1);
+		if (overloaded) {
+			inFlightRequests.decrementAndGet();
+			inFlightBytes.addAndGet(-contentLength);
+			return null;
+		}
+
+		admittedCount.incrementAndGet();
+		return new Ticket(contentLength);
+	}
+
+	private void reject(final Exchange exchange, final int responseCode, final String reason) {
+		final Message message = exchange.getIn();
+		message.removeHeaders("*");
+		message.setHeader(Exchange.HTTP_RESPONSE_CODE, responseCode);
+		message.setHeader(Exchange.CONTENT_TYPE, "text/plain");
+		message.setBody(reason);
+		exchange.setProperty(Exchange.ROUTE_STOP, Boolean.TRUE);
+	}
+
+	/**
+	 * Processor which retains the admission ticket (if any) of the exchange for a later processing stage
+	 * <p>
+	 * This must be called while the original HTTP exchange is still in progress, and the later stage
+	 * must call {@link #releaseTicketOnCompletion()}. If the HTTP exchange fails the retained reference
+	 * is released automatically.
+	 */
+	public static Processor retainTicket() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				final Ticket ticket = exchange.getProperty(TICKET_PROPERTY, Ticket.class);
+				if (ticket != null && !exchange.getProperty(TICKET_RETAINED_PROPERTY, false, Boolean.class)
+						&& ticket.retain()) {
+					exchange.setProperty(TICKET_RETAINED_PROPERTY, Boolean.TRUE);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Processor which immediately releases a reference retained by {@link #retainTicket()}
+	 * <p>
+	 * This must be called if the exchange could not be handed to the later processing stage (e.g. the
+	 * stage is full or stopping) - the stage will never run {@link #releaseTicketOnCompletion()}, and the
+	 * reference would otherwise count towards the budget indefinitely.
+	 */
+	public static Processor releaseRetainedTicket() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				final Ticket ticket = exchange.getProperty(TICKET_PROPERTY, Ticket.class);
+				if (ticket == null || !exchange.getProperty(TICKET_RETAINED_PROPERTY, false, Boolean.class)) {
+					return;
+				}
+
+				exchange.removeProperty(TICKET_RETAINED_PROPERTY);
+				ticket.release();
+			}
+		};
+	}
+
+	/**
+	 * Processor which releases a previously retained admission ticket (if any) when the exchange completes
+	 */
+	public static Processor releaseTicketOnCompletion() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				final Ticket ticket = exchange.getProperty(TICKET_PROPERTY, Ticket.class);
+				if (ticket == null || !exchange.getProperty(TICKET_RETAINED_PROPERTY, false, Boolean.class)) {
+					return;
+				}
+
+				// Only release the reference once (the properties may be copied to further exchanges)
+				exchange.removeProperty(TICKET_PROPERTY);
+				exchange.removeProperty(TICKET_RETAINED_PROPERTY);
+				exchange.addOnCompletion(new SynchronizationAdapter() {
+					@Override
+					public void onDone(final Exchange exchange) {
+						ticket.release();
+					}
+				});
+			}
+		};
+	}
+
+	@ManagedAttribute(description = "Maximum request size (bytes)")
+	public long getMaxRequestSize() {
+		return maxRequestSize;
+	}
+
+	@ManagedAttribute(description = "Maximum in-flight request bytes")
+	public long getMaxInFlightBytes() {
+		return maxInFlightBytes;
+	}
+
+	@ManagedAttribute(description = "Maximum in-flight requests")
+	public int getMaxInFlightRequests() {
+		return maxInFlightRequests;
+	}
+
+	@ManagedAttribute(description = "Total declared size (bytes) of admitted requests still being processed")
+	public long getInFlightBytes() {
+		return inFlightBytes.get();
+	}
+
+	@ManagedAttribute(description = "Number of admitted requests still being processed (including queued payloads)")
+	public int getInFlightRequests() {
+		return inFlightRequests.get();
+	}
+
+	@ManagedAttribute(description = "Number of admitted requests")
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of requests rejected because they exceeded the maximum request size")
+	public long getRejectedTooLargeCount() {
+		return rejectedTooLargeCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of requests rejected because the in-flight budget was exceeded")
+	public long getRejectedOverloadedCount() {
+		return rejectedOverloadedCount.get();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		// NOOP
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		// NOOP
+	}
+
+	/**
+	 * Reference-counted reservation against the admission budget
+	 * <p>
+	 * The reservation is returned to the budget when the last reference is released.
+	 */
+	public class Ticket {
+		private final long contentLength;
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private Ticket(final long contentLength) {
+			this.contentLength = contentLength;
+		}
+
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		/**
+		 * Adds a reference to the ticket
+		 *
+		 * @return true if the reference was added, or false if the ticket has already been released
+		 */
+		public boolean retain() {
+			int current = references.get();
+			while (current > 0) {
+				if (references.compareAndSet(current, current + 1)) {
+					return true;
+				}
+				current = references.get();
+			}
+			return false;
+		}
+
+		/**
+		 * Removes a reference from the ticket - returning the reservation when no references remain
+		 */
+		public void release() {
+			int current = references.get();
+			while (current > 0) {
+				if (references.compareAndSet(current, current - 1)) {
+					if (current == 1) {
+						inFlightRequests.decrementAndGet();
+						inFlightBytes.addAndGet(-contentLength);
+					}
+					return;
+				}
+				current = references.get();
+			}
+		}
+	}
+}
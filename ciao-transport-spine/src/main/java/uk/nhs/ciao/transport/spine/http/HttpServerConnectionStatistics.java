@@ -0,0 +1,135 @@
+package uk.nhs.ciao.transport.spine.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import uk.nhs.ciao.transport.itk.util.RateCounter;
+
+/**
+ * Records connection reuse and TLS session resumption statistics for incoming HTTP requests
+ * <p>
+ * Connections are identified by the remote address/port of the request - a request arriving on
+ * a previously seen connection indicates that HTTP keep-alive is in use. For secure connections,
+ * a new connection presenting a previously seen TLS session id indicates that the handshake
+ * was resumed.
+ * <p>
+ * When added to a CamelContext (via {@link org.apache.camel.CamelContext#addService(Object)})
+ * the statistics are published over JMX.
+ */
+@ManagedResource(description = "Spine HTTP server connection statistics")
+public class HttpServerConnectionStatistics extends ServiceSupport implements Processor {
+	private static final String SSL_SESSION_ID_ATTRIBUTE = "javax.servlet.request.ssl_session_id";
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong newConnections = new AtomicLong();
+	private final AtomicLong fullHandshakes = new AtomicLong();
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+	private final RateCounter handshakeRate = new RateCounter();
+	private Cache<String, Boolean> connections;
+	private Cache<String, Boolean> sessions;
+	private long idleTimeout = 60000;
+	private int maximumSize = 10000;
+
+	/**
+	 * Connections/sessions which have not been seen for longer than this value (in milliseconds)
+	 * are forgotten
+	 */
+	public void setIdleTimeout(final long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Maximum number of connections/sessions to track
+	 */
+	public void setMaximumSize(final int maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final HttpServletRequest request = exchange.getIn().getHeader(Exchange.HTTP_SERVLET_REQUEST,
+				HttpServletRequest.class);
+		if (request == null || connections == null) {
+			return;
+		}
+
+		requests.incrementAndGet();
+		final String connectionKey = request.getRemoteAddr() + ":" + request.getRemotePort();
+		if (connections.asMap().putIfAbsent(connectionKey, Boolean.TRUE) != null) {
+			// keep-alive - connection has been reused
+			return;
+		}
+
+		newConnections.incrementAndGet();
+		if (!request.isSecure()) {
+			return;
+		}
+
+		final Object sessionId = request.getAttribute(SSL_SESSION_ID_ATTRIBUTE);
+		if (sessionId != null && sessions.asMap().putIfAbsent(sessionId.toString(), Boolean.TRUE) != null) {
+			resumedHandshakes.incrementAndGet();
+		} else {
+			fullHandshakes.incrementAndGet();
+		}
+		handshakeRate.increment();
+	}
+
+	@ManagedAttribute(description = "Total number of HTTP requests received")
+	public long getRequests() {
+		return requests.get();
+	}
+
+	@ManagedAttribute(description = "Number of HTTP requests received on a new connection")
+	public long getNewConnections() {
+		return newConnections.get();
+	}
+
+	@ManagedAttribute(description = "Number of HTTP requests received on a reused (keep-alive) connection")
+	public long getReusedConnections() {
+		return requests.get() - newConnections.get();
+	}
+
+	@ManagedAttribute(description = "Number of full TLS handshakes")
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	@ManagedAttribute(description = "Number of TLS handshakes which resumed a cached session")
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	@ManagedAttribute(description = "TLS handshakes per second (averaged over the last minute)")
+	public double getHandshakesPerSecond() {
+		return handshakeRate.getRatePerSecond();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		connections = CacheBuilder.newBuilder()
+				.expireAfterAccess(idleTimeout, TimeUnit.MILLISECONDS)
+				.maximumSize(maximumSize)
+				.build();
+		sessions = CacheBuilder.newBuilder()
+				.expireAfterAccess(idleTimeout, TimeUnit.MILLISECONDS)
+				.maximumSize(maximumSize)
+				.build();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		connections = null;
+		sessions = null;
+	}
+}
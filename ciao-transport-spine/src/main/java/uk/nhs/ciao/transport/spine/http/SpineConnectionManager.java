@@ -0,0 +1,472 @@
+package uk.nhs.ciao.transport.spine.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.camel.Service;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.util.jsse.SSLContextParameters;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import uk.nhs.ciao.transport.itk.util.RateCounter;
+
+/**
+ * Pooling connection manager for the http4 component used to send messages to spine.
+ * <p>
+ * In addition to the standard pool limits, the manager:
+ * <ul>
+ * <li>Periodically evicts expired and idle connections
+ * <li>Configures the TLS client session cache so that reconnections to an MHS can resume
+ * an existing session rather than performing a full mutual-TLS handshake
+ * <li>Publishes connection acquisition, pool exhaustion and handshake metrics over JMX
+ * (when added to a CamelContext as a service)
+ * </ul>
+ * The SSL context is created when the manager is started (or when the first secure connection
+ * is opened) - so an invalid key/trust store is reported on start rather than when the manager
+ * is constructed.
+ * <p>
+ * The pool can be shared between components by giving each component its own {@link #share()}.
+ * Components shut down their share when they stop - the pool itself is only shut down once
+ * every share has been shut down and the manager has been stopped.
+ */
+@ManagedResource(description = "Spine HTTP connection pool")
+public class SpineConnectionManager extends PoolingHttpClientConnectionManager implements Service {
+	private final LazySSLConnectionSocketFactory sslSocketFactory;
+	private final HandshakeStatistics handshakeStatistics;
+	private final AtomicLong connectionRequests = new AtomicLong();
+	private final AtomicLong totalAcquisitionTime = new AtomicLong();
+	private final AtomicLong maxAcquisitionTime = new AtomicLong();
+	private final AtomicLong poolExhaustedCount = new AtomicLong();
+	private final AtomicInteger references = new AtomicInteger(1); // the manager itself
+	private long idleTimeout = 60000;
+	private ScheduledExecutorService evictor;
+	private boolean released;
+
+	public SpineConnectionManager(final SSLContextParameters sslContextParameters) {
+		this(new HandshakeStatistics(), sslContextParameters);
+	}
+
+	private SpineConnectionManager(final HandshakeStatistics handshakeStatistics,
+			final SSLContextParameters sslContextParameters) {
+		this(handshakeStatistics, new LazySSLConnectionSocketFactory(sslContextParameters, handshakeStatistics));
+	}
+
+	private SpineConnectionManager(final HandshakeStatistics handshakeStatistics,
+			final LazySSLConnectionSocketFactory sslSocketFactory) {
+		super(RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", sslSocketFactory)
+				.build());
+		this.sslSocketFactory = sslSocketFactory;
+		this.handshakeStatistics = handshakeStatistics;
+	}
+
+	/**
+	 * Connections left idle for longer than this value (in milliseconds) are evicted from the pool
+	 */
+	public void setIdleTimeout(final long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Maximum number of TLS sessions retained for resumption (0 means no limit)
+	 */
+	public void setSslSessionCacheSize(final int size) {
+		sslSocketFactory.setSessionCacheSize(size);
+	}
+
+	/**
+	 * Time (in seconds) that cached TLS sessions can be resumed for (0 means no limit)
+	 */
+	public void setSslSessionTimeout(final int timeout) {
+		sslSocketFactory.setSessionTimeout(timeout);
+	}
+
+	/**
+	 * Returns a new reference to this pool for use by a single component
+	 * <p>
+	 * Shutting down the returned manager releases the reference rather than shutting down the pool.
+	 */
+	public HttpClientConnectionManager share() {
+		if (references.getAndIncrement() <= 0) {
+			references.decrementAndGet();
+			throw new IllegalStateException("Connection pool has been shut down");
+		}
+		return new SharedConnectionManager();
+	}
+
+	@Override
+	public synchronized void start() throws Exception {
+		if (evictor != null) {
+			return;
+		}
+
+		// Fail on start if the SSL configuration is invalid
+		sslSocketFactory.getSSLContext();
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("spine-connection-evictor-%d").setDaemon(true).build());
+		final long interval = Math.max(1000, idleTimeout / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				closeExpiredConnections();
+				closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void stop() throws Exception {
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+
+		shutdown();
+	}
+
+	/**
+	 * Releases the reference held by the manager itself - the pool is shut down once every
+	 * {@link #share()} has also been shut down
+	 */
+	@Override
+	public synchronized void shutdown() {
+		if (!released) {
+			released = true;
+			release();
+		}
+	}
+
+	private void release() {
+		if (references.decrementAndGet() == 0) {
+			super.shutdown();
+		}
+	}
+
+	@Override
+	public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+		final ConnectionRequest request = super.requestConnection(route, state);
+		return new ConnectionRequest() {
+			@Override
+			public HttpClientConnection get(final long timeout, final TimeUnit tunit) throws InterruptedException,
+					ExecutionException, ConnectionPoolTimeoutException {
+				final long startTime = System.nanoTime();
+				try {
+					return request.get(timeout, tunit);
+				} catch (ConnectionPoolTimeoutException e) {
+					poolExhaustedCount.incrementAndGet();
+					throw e;
+				} finally {
+					recordAcquisitionTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+				}
+			}
+
+			@Override
+			public boolean cancel() {
+				return request.cancel();
+			}
+		};
+	}
+
+	private void recordAcquisitionTime(final long time) {
+		connectionRequests.incrementAndGet();
+		totalAcquisitionTime.addAndGet(time);
+
+		long max = maxAcquisitionTime.get();
+		while (time > max && !maxAcquisitionTime.compareAndSet(max, time)) {
+			max = maxAcquisitionTime.get();
+		}
+	}
+
+	@ManagedAttribute(description = "Maximum number of connections in the pool")
+	@Override
+	public int getMaxTotal() {
+		return super.getMaxTotal();
+	}
+
+	@ManagedAttribute(description = "Maximum number of connections per route")
+	@Override
+	public int getDefaultMaxPerRoute() {
+		return super.getDefaultMaxPerRoute();
+	}
+
+	@ManagedAttribute(description = "Idle connection timeout (milliseconds)")
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	@ManagedAttribute(description = "Number of references (components and the manager itself) holding the pool open")
+	public int getReferenceCount() {
+		return references.get();
+	}
+
+	@ManagedAttribute(description = "Number of leased connections")
+	public int getLeasedConnections() {
+		return getTotalStats().getLeased();
+	}
+
+	@ManagedAttribute(description = "Number of idle connections available in the pool")
+	public int getAvailableConnections() {
+		return getTotalStats().getAvailable();
+	}
+
+	@ManagedAttribute(description = "Number of requests waiting for a connection")
+	public int getPendingConnectionRequests() {
+		return getTotalStats().getPending();
+	}
+
+	@ManagedAttribute(description = "Total number of connection requests")
+	public long getConnectionRequests() {
+		return connectionRequests.get();
+	}
+
+	@ManagedAttribute(description = "Mean time (milliseconds) taken to acquire a connection from the pool")
+	public double getMeanAcquisitionTime() {
+		final long requests = connectionRequests.get();
+		return requests == 0 ? 0 : totalAcquisitionTime.get() / (double) requests;
+	}
+
+	@ManagedAttribute(description = "Maximum time (milliseconds) taken to acquire a connection from the pool")
+	public long getMaxAcquisitionTime() {
+		return maxAcquisitionTime.get();
+	}
+
+	@ManagedAttribute(description = "Number of connection requests which timed out because the pool was exhausted")
+	public long getPoolExhaustedCount() {
+		return poolExhaustedCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of full TLS handshakes")
+	public long getFullHandshakes() {
+		return handshakeStatistics.fullHandshakes.get();
+	}
+
+	@ManagedAttribute(description = "Number of TLS handshakes which resumed a cached session")
+	public long getResumedHandshakes() {
+		return handshakeStatistics.resumedHandshakes.get();
+	}
+
+	@ManagedAttribute(description = "TLS handshakes per second (averaged over the last minute)")
+	public double getHandshakesPerSecond() {
+		return handshakeStatistics.handshakeRate.getRatePerSecond();
+	}
+
+	@ManagedAttribute(description = "Maximum number of cached TLS sessions")
+	public int getSslSessionCacheSize() {
+		return sslSocketFactory.getSessionCacheSize();
+	}
+
+	/**
+	 * Counts completed TLS handshakes
+	 * <p>
+	 * A handshake is counted as resumed if it presents a session id which has already been seen - a
+	 * resumed session keeps the id assigned by the server during the original full handshake.
+	 */
+	private static class HandshakeStatistics {
+		private final AtomicLong fullHandshakes = new AtomicLong();
+		private final AtomicLong resumedHandshakes = new AtomicLong();
+		private final RateCounter handshakeRate = new RateCounter();
+		private final Cache<String, Boolean> sessionIds = CacheBuilder.newBuilder()
+				.maximumSize(10000)
+				.expireAfterAccess(1, TimeUnit.DAYS)
+				.build();
+
+		public void handshakeCompleted(final byte[] sessionId) {
+			final boolean resumed = sessionId != null && sessionId.length > 0
+					&& sessionIds.asMap().putIfAbsent(BaseEncoding.base16().encode(sessionId), Boolean.TRUE) != null;
+			if (resumed) {
+				resumedHandshakes.incrementAndGet();
+			} else {
+				fullHandshakes.incrementAndGet();
+			}
+			handshakeRate.increment();
+		}
+	}
+
+	/**
+	 * SSL socket factory which creates the SSL context on first use and reports completed handshakes
+	 */
+	private static class LazySSLConnectionSocketFactory implements LayeredConnectionSocketFactory {
+		private final SSLContextParameters sslContextParameters;
+		private final HandshakeStatistics statistics;
+		private volatile int sessionCacheSize = -1;
+		private volatile int sessionTimeout = -1;
+		private volatile SSLContext sslContext;
+		private volatile SSLConnectionSocketFactory delegate;
+
+		public LazySSLConnectionSocketFactory(final SSLContextParameters sslContextParameters,
+				final HandshakeStatistics statistics) {
+			this.sslContextParameters = Preconditions.checkNotNull(sslContextParameters, "sslContextParameters");
+			this.statistics = statistics;
+		}
+
+		public synchronized void setSessionCacheSize(final int sessionCacheSize) {
+			this.sessionCacheSize = sessionCacheSize;
+			configureSessionContext();
+		}
+
+		public synchronized void setSessionTimeout(final int sessionTimeout) {
+			this.sessionTimeout = sessionTimeout;
+			configureSessionContext();
+		}
+
+		public int getSessionCacheSize() {
+			final SSLContext context = sslContext;
+			return context == null ? sessionCacheSize : context.getClientSessionContext().getSessionCacheSize();
+		}
+
+		public synchronized SSLContext getSSLContext() throws IOException {
+			if (sslContext == null) {
+				try {
+					sslContext = sslContextParameters.createSSLContext();
+				} catch (GeneralSecurityException e) {
+					throw new IOException("Unable to create SSL context for spine connections", e);
+				}
+				configureSessionContext();
+
+				delegate = new SSLConnectionSocketFactory(sslContext) {
+					@Override
+					protected void prepareSocket(final SSLSocket socket) throws IOException {
+						super.prepareSocket(socket);
+						socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+							@Override
+							public void handshakeCompleted(final HandshakeCompletedEvent event) {
+								statistics.handshakeCompleted(event.getSession().getId());
+							}
+						});
+					}
+				};
+			}
+			return sslContext;
+		}
+
+		@Override
+		public Socket createSocket(final HttpContext context) throws IOException {
+			return getDelegate().createSocket(context);
+		}
+
+		@Override
+		public Socket connectSocket(final int connectTimeout, final Socket socket, final HttpHost host,
+				final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+				final HttpContext context) throws IOException {
+			return getDelegate().connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+		}
+
+		@Override
+		public Socket createLayeredSocket(final Socket socket, final String target, final int port,
+				final HttpContext context) throws IOException {
+			return getDelegate().createLayeredSocket(socket, target, port, context);
+		}
+
+		private SSLConnectionSocketFactory getDelegate() throws IOException {
+			SSLConnectionSocketFactory result = delegate;
+			if (result == null) {
+				getSSLContext();
+				result = delegate;
+			}
+			return result;
+		}
+
+		private void configureSessionContext() {
+			if (sslContext == null) {
+				return; // applied when the context is created
+			}
+
+			final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+			if (sessionCacheSize >= 0) {
+				sessionContext.setSessionCacheSize(sessionCacheSize);
+			}
+			if (sessionTimeout >= 0) {
+				sessionContext.setSessionTimeout(sessionTimeout);
+			}
+		}
+	}
+
+	/**
+	 * A reference to the shared pool held by a single component
+	 */
+	private class SharedConnectionManager implements HttpClientConnectionManager {
+		private final AtomicBoolean shutdown = new AtomicBoolean();
+
+		@Override
+		public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+			return SpineConnectionManager.this.requestConnection(route, state);
+		}
+
+		@Override
+		public void releaseConnection(final HttpClientConnection connection, final Object newState,
+				final long validDuration, final TimeUnit timeUnit) {
+			SpineConnectionManager.this.releaseConnection(connection, newState, validDuration, timeUnit);
+		}
+
+		@Override
+		public void connect(final HttpClientConnection connection, final HttpRoute route, final int connectTimeout,
+				final HttpContext context) throws IOException {
+			SpineConnectionManager.this.connect(connection, route, connectTimeout, context);
+		}
+
+		@Override
+		public void upgrade(final HttpClientConnection connection, final HttpRoute route, final HttpContext context)
+				throws IOException {
+			SpineConnectionManager.this.upgrade(connection, route, context);
+		}
+
+		@Override
+		public void routeComplete(final HttpClientConnection connection, final HttpRoute route,
+				final HttpContext context) throws IOException {
+			SpineConnectionManager.this.routeComplete(connection, route, context);
+		}
+
+		@Override
+		public void closeIdleConnections(final long idletime, final TimeUnit timeUnit) {
+			SpineConnectionManager.this.closeIdleConnections(idletime, timeUnit);
+		}
+
+		@Override
+		public void closeExpiredConnections() {
+			SpineConnectionManager.this.closeExpiredConnections();
+		}
+
+		@Override
+		public void shutdown() {
+			if (shutdown.compareAndSet(false, true)) {
+				release();
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package uk.nhs.ciao.transport.spine.idempotent;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.processor.idempotent.MemoryIdempotentRepository;
+import org.apache.camel.spi.IdempotentRepository;
+import org.apache.camel.support.ServiceSupport;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
+
+/**
+ * Detects incoming messages which have already been processed, before the full message is handled.
+ * <p>
+ * A local Bloom filter of processed message IDs sits in front of the (potentially remote) idempotent
+ * repository: the repository is only queried if the filter reports that the ID might have been seen.
+ * A negative from the filter means the message has not been processed <em>by this node</em> - the
+ * standard idempotent consumer remains responsible for the final decision.
+ * <p>
+ * The filter is rotated (current and previous generations) once the expected number of insertions
+ * is reached so that the false-positive rate stays bounded. Acknowledgements sent for processed
+ * messages are cached so that duplicates can be acknowledged immediately.
+ * <p>
+ * The filter is held in memory. On start it is seeded from the repository if the repository can
+ * list its entries ({@link MemoryIdempotentRepository}) - other repositories (e.g. Hazelcast) cannot
+ * be enumerated, so after a restart only messages acknowledged by this node since it started are
+ * detected early. Other duplicates are still rejected by the idempotent consumer once the message
+ * has been fully parsed.
+ * <p>
+ * When added to a CamelContext (via {@link org.apache.camel.CamelContext#addService(Object)})
+ * the detection statistics are published over JMX.
+ */
+@ManagedResource(description = "Early duplicate detection for incoming spine messages")
+public class DuplicateMessageDetector extends ServiceSupport {
+	private final IdempotentRepository<String> repository;
+	private final AtomicLong checkedCount = new AtomicLong();
+	private final AtomicLong filteredCount = new AtomicLong();
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private int expectedInsertions = 100000;
+	private double falsePositiveProbability = 0.01;
+	private long acknowledgementCacheSize = 10000;
+	private long acknowledgementCacheExpiry = 24 * 60 * 60 * 1000;
+	
+	private BloomFilter<CharSequence> currentFilter;
+	private BloomFilter<CharSequence> previousFilter;
+	private int currentInsertions;
+	private Cache<String, EbxmlEnvelope> acknowledgements;
+	
+	public DuplicateMessageDetector(final IdempotentRepository<String> repository) {
+		this.repository = Preconditions.checkNotNull(repository);
+	}
+	
+	/**
+	 * The number of message IDs stored by each generation of the Bloom filter
+	 */
+	public void setExpectedInsertions(final int expectedInsertions) {
+		this.expectedInsertions = expectedInsertions;
+	}
+	
+	/**
+	 * The false positive probability of the Bloom filter (a false positive only results in
+	 * an additional repository lookup)
+	 */
+	public void setFalsePositiveProbability(final double falsePositiveProbability) {
+		this.falsePositiveProbability = falsePositiveProbability;
+	}
+	
+	/**
+	 * The maximum number of acknowledgements to cache
+	 */
+	public void setAcknowledgementCacheSize(final long acknowledgementCacheSize) {
+		this.acknowledgementCacheSize = acknowledgementCacheSize;
+	}
+	
+	/**
+	 * Time (in milliseconds) that acknowledgements are cached for
+	 */
+	public void setAcknowledgementCacheExpiry(final long acknowledgementCacheExpiry) {
+		this.acknowledgementCacheExpiry = acknowledgementCacheExpiry;
+	}
+	
+	/**
+	 * Tests if the message has already been processed
+	 * 
+	 * @return true if the message is a known duplicate, false if it has not been processed (or the status is unknown)
+	 */
+	public boolean isDuplicate(final String messageId) {
+		if (Strings.isNullOrEmpty(messageId)) {
+			return false;
+		}
+		
+		checkedCount.incrementAndGet();
+		if (!mightContain(messageId)) {
+			filteredCount.incrementAndGet();
+			return false;
+		}
+		
+		final boolean duplicate = repository.contains(messageId);
+		if (duplicate) {
+			duplicateCount.incrementAndGet();
+		}
+		return duplicate;
+	}
+	
+	/**
+	 * Records that the message has been processed and acknowledged
+	 * 
+	 * @param acknowledgement The acknowledgement sent for the message (optional)
+	 */
+	public void messageAcknowledged(final String messageId, final EbxmlEnvelope acknowledgement) {
+		if (Strings.isNullOrEmpty(messageId)) {
+			return;
+		}
+		
+		put(messageId);
+		if (acknowledgement != null && acknowledgements != null) {
+			acknowledgements.put(messageId, acknowledgement);
+		}
+	}
+	
+	/**
+	 * Returns the acknowledgement previously sent for the message
+	 * 
+	 * @return The cached acknowledgement, or null if the acknowledgement is not available
+	 */
+	public EbxmlEnvelope getAcknowledgement(final String messageId) {
+		return messageId == null || acknowledgements == null ? null : acknowledgements.getIfPresent(messageId);
+	}
+	
+	private synchronized boolean mightContain(final String messageId) {
+		if (currentFilter == null) {
+			return true; // not started - always check the repository
+		}
+		
+		return currentFilter.mightContain(messageId)
+				|| (previousFilter != null && previousFilter.mightContain(messageId));
+	}
+	
+	private synchronized void put(final String messageId) {
+		if (currentFilter == null) {
+			return;
+		}
+		
+		if (currentInsertions >= expectedInsertions) {
+			previousFilter = currentFilter;
+			currentFilter = createFilter();
+			currentInsertions = 0;
+		}
+		
+		if (currentFilter.put(messageId)) {
+			currentInsertions++;
+		}
+	}
+	
+	private BloomFilter<CharSequence> createFilter() {
+		return BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), expectedInsertions, falsePositiveProbability);
+	}
+	
+	@ManagedAttribute(description = "Number of incoming messages checked")
+	public long getCheckedCount() {
+		return checkedCount.get();
+	}
+	
+	@ManagedAttribute(description = "Number of checks answered by the Bloom filter without a repository lookup")
+	public long getFilteredCount() {
+		return filteredCount.get();
+	}
+	
+	@ManagedAttribute(description = "Number of duplicate messages detected")
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+	
+	@ManagedAttribute(description = "Number of cached acknowledgements")
+	public long getCachedAcknowledgementCount() {
+		return acknowledgements == null ? 0 : acknowledgements.size();
+	}
+	
+	@Override
+	protected synchronized void doStart() throws Exception {
+		currentFilter = createFilter();
+		previousFilter = null;
+		currentInsertions = 0;
+		acknowledgements = CacheBuilder.newBuilder()
+				.maximumSize(acknowledgementCacheSize)
+				.expireAfterWrite(acknowledgementCacheExpiry, TimeUnit.MILLISECONDS)
+				.build();
+		
+		seedFromRepository();
+	}
+	
+	/**
+	 * Adds the entries of the repository to the filter (if the repository can list its entries)
+	 * <p>
+	 * If the repository holds more entries than two generations of the filter, only the most
+	 * recently added entries are retained (assuming the repository iterates in insertion order).
+	 */
+	private void seedFromRepository() {
+		if (!(repository instanceof MemoryIdempotentRepository)) {
+			return;
+		}
+		
+		final Map<String, Object> cache = ((MemoryIdempotentRepository)repository).getCache();
+		synchronized (cache) {
+			for (final String messageId: cache.keySet()) {
+				put(messageId);
+			}
+		}
+	}
+	
+	@Override
+	protected synchronized void doStop() throws Exception {
+		currentFilter = null;
+		previousFilter = null;
+		acknowledgements = null;
+	}
+}
@@ -0,0 +1,762 @@
+package uk.nhs.ciao.transport.spine.journal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.support.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Local write-ahead journal of incoming payloads
+ * <p>
+ * Payloads are appended to the journal before the sync HTTP response is sent, and marked as done once
+ * they have been published. A single writer thread drains all pending appends, writes them to the
+ * current segment file and then issues <strong>one</strong> <code>force()</code> for the whole group
+ * (group commit) - so the cost of the fsync is shared by all concurrent requests.
+ * <p>
+ * Records are length-prefixed and protected by a CRC32 checksum - a torn write at the end of a segment
+ * (e.g. following a crash) is detected and ignored. If a group cannot be committed, its records are
+ * truncated from the segment (or, failing that, a new segment is started) so a torn record is only ever
+ * found at the end of a segment - a corrupt record followed by valid records is reported and skipped.
+ * The pending payloads are only updated once the group has been forced to disk. Payloads are written with gathering writes rather than
+ * being copied into a single record buffer. Appending an id which is still pending supersedes the
+ * earlier entry. The journal is split into segments: a segment is
+ * deleted once it is no longer being written to and all of its payloads are done.
+ * <p>
+ * When the journal is started, any payloads which were not marked as done are recovered (see
+ * {@link #takeRecoveredEntries()}) - they are copied into a new segment so that the older segments can
+ * be removed immediately.
+ * <p>
+ * When added to a CamelContext (via {@link org.apache.camel.CamelContext#addService(Object)})
+ * the journal statistics are published over JMX.
+ */
+@ManagedResource(description = "Write-ahead journal of incoming payloads")
+public class PayloadJournal extends ServiceSupport {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PayloadJournal.class);
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_DONE = 2;
+	private static final byte PAYLOAD_BYTES = 0;
+	private static final byte PAYLOAD_TEXT = 1;
+	private static final int RECORD_HEADER_LENGTH = 8; // length + CRC
+
+	private final File folder;
+	private final BlockingQueue<Write> writes = new LinkedBlockingQueue<Write>();
+	private final ConcurrentMap<String, Long> pendingIds = Maps.newConcurrentMap();
+	private final Map<Long, Integer> segmentPendingCounts = Maps.newHashMap(); // writer thread only
+	private final AtomicLong appendCount = new AtomicLong();
+	private final AtomicLong commitCount = new AtomicLong();
+	private final AtomicLong totalCommitTime = new AtomicLong();
+	private final AtomicLong corruptRecordCount = new AtomicLong();
+	private long segmentSize = 64 * 1024 * 1024;
+	private int maxBatchSize = 256;
+	private long appendTimeout = 30000;
+	private volatile List<Entry> recoveredEntries = Collections.emptyList();
+
+	private long currentSegment;
+	private FileChannel channel;
+	private Thread writer;
+	private volatile boolean running;
+
+	public PayloadJournal(final File folder) {
+		this.folder = Preconditions.checkNotNull(folder);
+	}
+
+	/**
+	 * Size (in bytes) after which a new segment file is started
+	 */
+	public void setSegmentSize(final long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Maximum number of records written by a single group commit
+	 */
+	public void setMaxBatchSize(final int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Maximum time (in milliseconds) to wait for an append to be committed
+	 */
+	public void setAppendTimeout(final long appendTimeout) {
+		this.appendTimeout = appendTimeout;
+	}
+
+	/**
+	 * Durably appends the payload to the journal
+	 * <p>
+	 * The method blocks until the group containing the payload has been forced to disk.
+	 *
+	 * @param id The unique id of the payload (e.g. the ebXml message id)
+	 * @param manifest Details required to process the payload (e.g. the serialized ebXml manifest)
+	 * @param payload The payload - either a String, a byte array or a ByteSource (read into memory and
+	 * 			recovered as a byte array)
+	 * @throws IOException If the payload could not be committed
+	 */
+	public void append(final String id, final String manifest, final Object payload) throws IOException {
+		Preconditions.checkState(running, "Journal is not running");
+
+		final Write write = new Write(id, encodeAdd(id, manifest, payload), true);
+		writes.add(write);
+		try {
+			write.future.get(appendTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while appending to journal", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to append to journal", e.getCause());
+		} catch (TimeoutException e) {
+			throw new IOException("Timed out while appending to journal", e);
+		}
+	}
+
+	/**
+	 * Marks the payload as done - it will not be recovered if the journal is restarted
+	 * <p>
+	 * The done record is written asynchronously (it is not forced to disk) - if lost the payload
+	 * is simply recovered again and the downstream idempotent handling applies.
+	 */
+	public void markDone(final String id) {
+		if (id == null || !pendingIds.containsKey(id) || !running) {
+			return;
+		}
+
+		writes.add(new Write(id, encodeDone(id), false));
+	}
+
+	/**
+	 * Returns the entries recovered when the journal was started (and not yet taken)
+	 * <p>
+	 * The recovered entries remain pending until they are marked as done.
+	 */
+	public List<Entry> takeRecoveredEntries() {
+		final List<Entry> entries = recoveredEntries;
+		recoveredEntries = Collections.emptyList();
+		return entries;
+	}
+
+	@ManagedAttribute(description = "Journal folder")
+	public String getFolder() {
+		return folder.getAbsolutePath();
+	}
+
+	@ManagedAttribute(description = "Number of payloads appended")
+	public long getAppendCount() {
+		return appendCount.get();
+	}
+
+	@ManagedAttribute(description = "Number of group commits (forces)")
+	public long getCommitCount() {
+		return commitCount.get();
+	}
+
+	@ManagedAttribute(description = "Mean number of payloads per group commit")
+	public double getMeanGroupSize() {
+		final long commits = commitCount.get();
+		return commits == 0 ? 0 : appendCount.get() / (double) commits;
+	}
+
+	@ManagedAttribute(description = "Mean time (milliseconds) taken to write and force a group")
+	public double getMeanCommitTime() {
+		final long commits = commitCount.get();
+		return commits == 0 ? 0 : totalCommitTime.get() / (double) commits;
+	}
+
+	@ManagedAttribute(description = "Number of payloads which have not been marked as done")
+	public int getPendingCount() {
+		return pendingIds.size();
+	}
+
+	@ManagedAttribute(description = "Number of queued journal writes")
+	public int getQueuedWriteCount() {
+		return writes.size();
+	}
+
+	@ManagedAttribute(description = "Number of corrupt records skipped in the middle of a segment during recovery")
+	public long getCorruptRecordCount() {
+		return corruptRecordCount.get();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		if (!folder.isDirectory() && !folder.mkdirs()) {
+			throw new IOException("Unable to create journal folder: " + folder);
+		}
+
+		final List<Long> segments = listSegments();
+		final Map<String, Entry> pending = recover(segments);
+
+		// Start a new segment containing the entries which are still pending
+		currentSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+		channel = openSegment(currentSegment);
+		for (final Entry entry: pending.values()) {
+			writeRecord(encodeAdd(entry.getId(), entry.getManifest(), entry.getPayload()));
+		}
+		force(channel);
+		for (final Entry entry: pending.values()) {
+			applyRecord(entry.getId(), true);
+		}
+
+		for (final Long segment: segments) {
+			deleteSegment(segment);
+		}
+
+		recoveredEntries = Collections.unmodifiableList(Lists.newArrayList(pending.values()));
+		if (!pending.isEmpty()) {
+			LOGGER.info("Recovered {} pending payload(s) from journal {}", pending.size(), folder);
+		}
+
+		running = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		}, "payload-journal-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stops the journal once the queued writes have been committed
+	 * <p>
+	 * If the writer does not finish within the append timeout it is interrupted (closing the current
+	 * segment) - any writes which were not committed fail and are recovered from the journal or
+	 * re-sent by spine. If the writer still does not stop, the journal fails to stop and the
+	 * segment is left open.
+	 */
+	@Override
+	protected void doStop() throws Exception {
+		running = false;
+		if (writer != null) {
+			// Only interrupted as a last resort - an interrupt during a write closes the channel
+			writer.join(appendTimeout);
+			if (writer.isAlive()) {
+				LOGGER.warn("Journal writer did not finish within {} ms - interrupting", appendTimeout);
+				writer.interrupt();
+				writer.join(appendTimeout);
+				if (writer.isAlive()) {
+					throw new IllegalStateException("Unable to stop the writer of journal " + folder);
+				}
+			}
+			writer = null;
+		}
+
+		final List<Write> abandoned = Lists.newArrayList();
+		writes.drainTo(abandoned);
+		for (final Write write: abandoned) {
+			write.future.setException(new IOException("Journal has been stopped"));
+		}
+
+		if (channel != null) {
+			if (channel.isOpen()) {
+				force(channel);
+			}
+			channel.close();
+			channel = null;
+		}
+
+		pendingIds.clear();
+		segmentPendingCounts.clear();
+	}
+
+	private void runWriter() {
+		final List<Write> batch = Lists.newArrayList();
+		while (running || !writes.isEmpty()) {
+			try {
+				final Write first = writes.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+
+				batch.add(first);
+				writes.drainTo(batch, maxBatchSize - 1);
+				commit(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes and forces the batch - all records of the batch are written to the same segment
+	 * <p>
+	 * The pending payloads are only updated once the batch is durable. If the batch fails, the
+	 * partially written records are discarded.
+	 */
+	private void commit(final List<Write> batch) {
+		final long startTime = System.currentTimeMillis();
+		long startPosition = -1;
+		try {
+			long batchLength = 0;
+			boolean sync = false;
+			for (final Write write: batch) {
+				batchLength += length(write.record);
+				sync |= write.add;
+			}
+
+			if (channel == null) {
+				startSegment(currentSegment + 1);
+			} else if (channel.position() > 0 && channel.position() + batchLength > segmentSize) {
+				rollSegment();
+			}
+
+			startPosition = channel.position();
+			for (final Write write: batch) {
+				writeRecord(write.record);
+			}
+
+			if (sync) {
+				force(channel);
+				commitCount.incrementAndGet();
+				totalCommitTime.addAndGet(System.currentTimeMillis() - startTime);
+			}
+		} catch (Exception e) {
+			LOGGER.warn("Unable to write to journal " + folder, e);
+			discardBatch(startPosition);
+			for (final Write write: batch) {
+				write.future.setException(e);
+			}
+			return;
+		}
+
+		for (final Write write: batch) {
+			applyRecord(write.id, write.add);
+			if (write.add) {
+				appendCount.incrementAndGet();
+			}
+			write.future.set(null);
+		}
+	}
+
+	/**
+	 * Removes the records of a failed batch from the end of the current segment
+	 * <p>
+	 * If the segment cannot be truncated it is abandoned and a new segment is started - so any torn
+	 * record remains at the end of a segment.
+	 */
+	private void discardBatch(final long startPosition) {
+		if (channel != null && channel.isOpen() && startPosition >= 0) {
+			try {
+				channel.truncate(startPosition);
+				channel.position(startPosition);
+				return;
+			} catch (IOException e) {
+				LOGGER.warn("Unable to truncate journal segment - starting a new segment", e);
+			}
+		}
+
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.debug("Unable to close abandoned journal segment", e);
+			}
+			channel = null;
+		}
+
+		if (!segmentPendingCounts.containsKey(currentSegment)) {
+			deleteSegment(currentSegment);
+		}
+
+		try {
+			startSegment(currentSegment + 1);
+		} catch (IOException e) {
+			// Retried by the next commit
+			LOGGER.warn("Unable to start a new journal segment in " + folder, e);
+		}
+	}
+
+	/**
+	 * Writes the record to the current segment
+	 * <p>
+	 * Only called by the writer thread (or during startup)
+	 */
+	private void writeRecord(final ByteBuffer[] record) throws IOException {
+		long remaining = length(record);
+		while (remaining > 0) {
+			remaining -= channel.write(record);
+		}
+	}
+
+	private static long length(final ByteBuffer[] record) {
+		long length = 0;
+		for (final ByteBuffer buffer: record) {
+			length += buffer.remaining();
+		}
+		return length;
+	}
+
+	/**
+	 * Updates the pending payload accounting once the record is durable
+	 * <p>
+	 * Only called by the writer thread (or during startup)
+	 */
+	private void applyRecord(final String id, final boolean add) {
+		if (add) {
+			adjustPendingCount(currentSegment, 1);
+
+			// A repeated id supersedes the earlier entry (recovery keeps the last entry for an id)
+			final Long previousSegment = pendingIds.put(id, currentSegment);
+			if (previousSegment != null) {
+				releasePending(previousSegment);
+			}
+		} else {
+			final Long segment = pendingIds.remove(id);
+			if (segment != null) {
+				releasePending(segment);
+			}
+		}
+	}
+
+	/**
+	 * Removes a pending entry from the segment - deleting the segment if no longer required
+	 */
+	private void releasePending(final long segment) {
+		if (adjustPendingCount(segment, -1) == 0 && segment != currentSegment) {
+			deleteSegment(segment);
+		}
+	}
+
+	private void rollSegment() throws IOException {
+		force(channel);
+		channel.close();
+		channel = null;
+
+		final long previousSegment = currentSegment;
+		if (!segmentPendingCounts.containsKey(previousSegment)) {
+			deleteSegment(previousSegment);
+		}
+
+		startSegment(previousSegment + 1);
+	}
+
+	private void startSegment(final long segment) throws IOException {
+		currentSegment = segment;
+		channel = openSegment(segment);
+	}
+
+	/**
+	 * Forces the written records to disk
+	 */
+	protected void force(final FileChannel channel) throws IOException {
+		channel.force(false);
+	}
+
+	private int adjustPendingCount(final long segment, final int delta) {
+		final Integer current = segmentPendingCounts.get(segment);
+		final int count = (current == null ? 0 : current) + delta;
+		if (count <= 0) {
+			segmentPendingCounts.remove(segment);
+		} else {
+			segmentPendingCounts.put(segment, count);
+		}
+		return count;
+	}
+
+	private FileChannel openSegment(final long segment) throws IOException {
+		@SuppressWarnings("resource") // the channel closes the file
+		final RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "rw");
+		final FileChannel segmentChannel = file.getChannel();
+		segmentChannel.position(segmentChannel.size());
+		return segmentChannel;
+	}
+
+	private void deleteSegment(final long segment) {
+		final File file = getSegmentFile(segment);
+		if (file.exists() && !file.delete()) {
+			LOGGER.warn("Unable to delete journal segment {}", file);
+		}
+	}
+
+	private File getSegmentFile(final long segment) {
+		return new File(folder, String.format("%s%019d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+	}
+
+	private List<Long> listSegments() {
+		final String[] names = folder.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+
+		final List<Long> segments = Lists.newArrayList();
+		if (names != null) {
+			Arrays.sort(names);
+			for (final String name: names) {
+				try {
+					segments.add(Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					LOGGER.warn("Ignoring unexpected file in journal folder: {}", name);
+				}
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Reads the specified segments (in order) and returns the entries which were not marked as done
+	 */
+	private Map<String, Entry> recover(final List<Long> segments) throws IOException {
+		final Map<String, Entry> pending = Maps.newLinkedHashMap();
+		for (final Long segment: segments) {
+			recoverSegment(getSegmentFile(segment), pending);
+		}
+		return pending;
+	}
+
+	/**
+	 * Reads the records of a segment
+	 * <p>
+	 * Reading stops at a truncated record or a record with an invalid length (a torn tail). A record whose
+	 * checksum does not match is skipped: if valid records follow it the segment is corrupt (reported as an
+	 * error), otherwise it is the torn tail of the segment.
+	 */
+	private void recoverSegment(final File file, final Map<String, Entry> pending) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		int skippedRecords = 0;
+		try {
+			while (true) {
+				try {
+					if (!readRecord(in, pending)) {
+						break;
+					}
+				} catch (ChecksumMismatchException e) {
+					skippedRecords++;
+					continue;
+				}
+
+				if (skippedRecords > 0) {
+					LOGGER.error("Skipped {} corrupt record(s) in the middle of journal segment {} - the payloads they contained have been lost",
+							skippedRecords, file);
+					corruptRecordCount.addAndGet(skippedRecords);
+					skippedRecords = 0;
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Ignoring truncated/corrupt record at the end of journal segment " + file, e);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+
+		if (skippedRecords > 0) {
+			LOGGER.warn("Ignoring {} record(s) with invalid checksums at the end of journal segment {}", skippedRecords, file);
+		}
+	}
+
+	private boolean readRecord(final DataInputStream in, final Map<String, Entry> pending) throws IOException {
+		final int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return false;
+		}
+
+		final long expectedChecksum = in.readInt() & 0xFFFFFFFFL;
+		if (length <= 0) {
+			throw new IOException("Invalid record length: " + length);
+		}
+
+		final byte[] body = new byte[length];
+		in.readFully(body);
+
+		final CRC32 crc = new CRC32();
+		crc.update(body);
+		if (crc.getValue() != expectedChecksum) {
+			throw new ChecksumMismatchException();
+		}
+
+		final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+		final byte type = record.readByte();
+		final String id = record.readUTF();
+		if (type == RECORD_DONE) {
+			pending.remove(id);
+		} else if (type == RECORD_ADD) {
+			final String manifest = readString(record);
+			final byte payloadType = record.readByte();
+			final byte[] payload = new byte[record.readInt()];
+			record.readFully(payload);
+			pending.put(id, new Entry(id, manifest, payloadType == PAYLOAD_TEXT
+					? new String(payload, Charsets.UTF_8) : payload));
+		} else {
+			throw new IOException("Unknown record type: " + type);
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes an add record - the payload bytes are referenced by the returned buffers rather than copied
+	 */
+	private static ByteBuffer[] encodeAdd(final String id, final String manifest, final Object payload) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_ADD);
+		out.writeUTF(id);
+		writeString(out, manifest);
+
+		final byte[] payloadBytes;
+		if (payload instanceof byte[]) {
+			out.writeByte(PAYLOAD_BYTES);
+			payloadBytes = (byte[]) payload;
+		} else if (payload instanceof ByteSource) {
+			out.writeByte(PAYLOAD_BYTES);
+			payloadBytes = ((ByteSource) payload).read();
+		} else {
+			out.writeByte(PAYLOAD_TEXT);
+			payloadBytes = String.valueOf(payload).getBytes(Charsets.UTF_8);
+		}
+		out.writeInt(payloadBytes.length);
+		out.flush();
+
+		return frame(bytes.toByteArray(), payloadBytes);
+	}
+
+	private static ByteBuffer[] encodeDone(final String id) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(RECORD_DONE);
+			out.writeUTF(id);
+			out.flush();
+			return frame(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not expected for an in-memory stream
+		}
+	}
+
+	/**
+	 * Prefixes the record body (the concatenated parts) with its length and checksum
+	 *
+	 * @return The buffers to write (header followed by the wrapped parts)
+	 */
+	private static ByteBuffer[] frame(final byte[]... parts) {
+		final CRC32 crc = new CRC32();
+		int length = 0;
+		for (final byte[] part: parts) {
+			crc.update(part);
+			length += part.length;
+		}
+
+		final ByteBuffer[] record = new ByteBuffer[parts.length + 1];
+		record[0] = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+		record[0].putInt(length);
+		record[0].putInt((int) crc.getValue());
+		record[0].flip();
+		for (int index = 0; index < parts.length; index++) {
+			record[index + 1] = ByteBuffer.wrap(parts[index]);
+		}
+		return record;
+	}
+
+	/**
+	 * Strings are written with an int length prefix (writeUTF is limited to 64K)
+	 */
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		final byte[] bytes = value == null ? new byte[0] : value.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	/**
+	 * A pending write - completed by the writer thread once the group containing the write has been committed
+	 */
+	private static class Write {
+		private final String id;
+		private final ByteBuffer[] record;
+		private final boolean add;
+		private final SettableFuture<Void> future = SettableFuture.create();
+
+		public Write(final String id, final ByteBuffer[] record, final boolean add) {
+			this.id = id;
+			this.record = record;
+			this.add = add;
+		}
+	}
+
+	/**
+	 * Thrown when a complete record is read but its checksum does not match
+	 */
+	private static class ChecksumMismatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public ChecksumMismatchException() {
+			super("Record checksum mismatch");
+		}
+	}
+
+	/**
+	 * A payload recovered from the journal
+	 */
+	public static class Entry {
+		private final String id;
+		private final String manifest;
+		private final Object payload;
+
+		public Entry(final String id, final String manifest, final Object payload) {
+			this.id = id;
+			this.manifest = manifest;
+			this.payload = payload;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getManifest() {
+			return manifest;
+		}
+
+		/**
+		 * The payload - either a String or a byte array (matching the appended value)
+		 */
+		public Object getPayload() {
+			return payload;
+		}
+	}
+}
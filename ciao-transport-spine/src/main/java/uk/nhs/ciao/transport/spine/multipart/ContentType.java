@@ -29,6 +29,11 @@ public class ContentType {
 	 */
 	public static final String START = "start";
 	
+	/**
+	 * The charset parameter name
+	 */
+	public static final String CHARSET = "charset";
+	
 	private static final Pattern MAIN_AND_SUB_TYPE_PATTERN = Pattern.compile("\\A([\\w\\*]*)/([\\w\\*]*)");
 	private static final Pattern PARAMETER_PATTERN = Pattern.compile(";\\s*([\\w]+)=\"?([^\";]+)\"?");
 	
@@ -119,6 +124,24 @@ public class ContentType {
 		parameters.setOrRemove(START, start);
 	}
 	
+	/**
+	 * The (optional) charset parameter
+	 * 
+	 * @see #CHARSET
+	 */
+	public String getCharset() {
+		return parameters.getFirstValue(CHARSET);
+	}
+	
+	/**
+	 * The (optional) charset parameter
+	 * 
+	 * @see #CHARSET
+	 */
+	public void setCharset(final String charset) {
+		parameters.setOrRemove(CHARSET, charset);
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -2,12 +2,16 @@ package uk.nhs.ciao.transport.spine.multipart;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Utf8;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * Represents a Multipart body
@@ -28,6 +32,16 @@ public class MultipartBody {
 	private final List<Part> parts;
 	private String epilogue;
 	
+	/**
+	 * Lazily built index of parts keyed by raw content id
+	 * <p>
+	 * The index is built by the first lookup and only rebuilt if the number of parts changes.
+	 * Parts can be modified directly via {@link #getParts()} - entries are verified on lookup
+	 * and a linear scan is used if the index does not hold a matching part.
+	 */
+	private Map<String, Part> partsByRawContentId;
+	private int indexedPartCount;
+	
 	public MultipartBody() {
 		boundary = DEFAULT_BOUNDARY;
 		preamble = "";
@@ -69,15 +83,38 @@ public class MultipartBody {
 			return null;
 		}
 		
-		for (final Part part: parts) {
-			if (rawContentId.equals(part.getRawContentId())) {
-				return part;
+		if (partsByRawContentId == null || indexedPartCount != parts.size()) {
+			rebuildContentIdIndex();
+		}
+		
+		final Part part = partsByRawContentId.get(rawContentId);
+		if (part != null && rawContentId.equals(part.getRawContentId())) {
+			return part;
+		}
+		
+		// A content id may have changed since the index was built - misses do not rebuild the index
+		for (final Part candidate: parts) {
+			if (rawContentId.equals(candidate.getRawContentId())) {
+				return candidate;
 			}
 		}
 		
 		return null;
 	}
 	
+	private void rebuildContentIdIndex() {
+		partsByRawContentId = Maps.newHashMapWithExpectedSize(parts.size());
+		for (final Part part: parts) {
+			final String rawContentId = part.getRawContentId();
+			
+			// If duplicates exist, the first part wins
+			if (rawContentId != null && !partsByRawContentId.containsKey(rawContentId)) {
+				partsByRawContentId.put(rawContentId, part);
+			}
+		}
+		indexedPartCount = parts.size();
+	}
+	
 	public void addPart(final Part part) {
 		if (part != null) {
 			parts.add(part);
@@ -108,34 +145,55 @@ public class MultipartBody {
 	}
 
 	
-	public void write(final OutputStream out) throws IOException {
-		out.write(preamble.getBytes());
+	/**
+	 * The exact number of bytes which will be written by {@link #write(OutputStream)}
+	 * <p>
+	 * The length is calculated from the individual part sizes without serializing the body.
+	 * 
+	 * @return The content length, or -1 if the length of at least one part body cannot
+	 * 			be determined up front
+	 */
+	public long getContentLength() {
+		final long delimiterLength = 2 + Utf8.encodedLength(boundary);
+		long length = Utf8.encodedLength(preamble);
 		
 		boolean writeCrlfBeforeDelimiter = !preamble.isEmpty();
 		for (final Part part: parts) {
-			if (writeCrlfBeforeDelimiter) {
-				out.write(CRLF.getBytes());
+			final long partLength = part.getContentLength();
+			if (partLength < 0) {
+				return -1;
 			}
-
-			out.write("--".getBytes());
-			out.write(boundary.getBytes());
-			out.write(CRLF.getBytes());
 			
-			part.write(out);
-			
-			// Only the initial part needs special handling
-			// All other parts need CRLF
+			if (writeCrlfBeforeDelimiter) {
+				length += CRLF.length();
+			}
+			length += delimiterLength + CRLF.length() + partLength;
 			writeCrlfBeforeDelimiter = true;
 		}
 		
-		out.write(CRLF.getBytes());
-		out.write("--".getBytes());
-		out.write(boundary.getBytes());
-		out.write("--".getBytes());
-		out.write(CRLF.getBytes());
+		length += CRLF.length() + delimiterLength + 2 + CRLF.length();
+		length += Utf8.encodedLength(epilogue);
 		
-		out.write(epilogue.getBytes());
-		out.flush();
+		return length;
+	}
+	
+	/**
+	 * Writes the body to the specified stream
+	 * 
+	 * @see MultipartWriter
+	 */
+	public void write(final OutputStream out) throws IOException {
+		new MultipartWriter(this).write(out);
+	}
+	
+	/**
+	 * Writes the body to the specified channel using gathering writes
+	 * 
+	 * @return The number of bytes written
+	 * @see MultipartWriter
+	 */
+	public long write(final GatheringByteChannel channel) throws IOException {
+		return new MultipartWriter(this).write(channel);
 	}
 	
 	protected String generateContentId() {
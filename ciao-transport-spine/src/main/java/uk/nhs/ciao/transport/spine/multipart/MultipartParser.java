@@ -2,25 +2,55 @@ package uk.nhs.ciao.transport.spine.multipart;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 
 import org.apache.camel.Exchange;
-import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.TypeConverter;
 import org.apache.james.mime4j.MimeException;
 import org.apache.james.mime4j.stream.EntityState;
 import org.apache.james.mime4j.stream.Field;
 import org.apache.james.mime4j.stream.MimeTokenStream;
 import org.apache.james.mime4j.stream.RecursionMode;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
+import com.google.common.io.FileBackedOutputStream;
 
 /**
  * Parses a stream of bytes into a {@link MultipartBody}.
  * <p>
+ * By default part bodies are decoded into Strings (using the charset declared in the
+ * Content-Type of each part, or UTF-8). If a spool threshold is configured, part bodies
+ * are instead stored as raw bytes ({@link com.google.common.io.ByteSource}) - held in memory
+ * up to the threshold and spooled to a temporary file above it - and are only decoded when
+ * requested. Spooled files are deleted when the exchange being parsed completes, unless
+ * another owner has retained the content (see {@link SpooledByteSource}).
+ * <p>
  * <strong>Instances of this class are NOT thread-safe</strong>
  */
 public class MultipartParser {
+	/**
+	 * Value of the spool threshold which indicates that part bodies should be decoded into Strings
+	 */
+	public static final int DECODE_BODIES = -1;
+	
+	/**
+	 * Callback notified as each part is parsed
+	 */
+	public interface PartCallback {
+		/**
+		 * Called after the part has been parsed and added to the body
+		 * 
+		 * @return true to continue parsing, or false to stop parsing (the remaining content
+		 * 			of the stream is not read)
+		 */
+		boolean partParsed(MultipartBody body, Part part) throws IOException;
+	}
+	
 	private final MimeTokenStream tokens;
+	private int spoolThreshold = DECODE_BODIES;
 	
 	/**
 	 * Constructs a new parser instance
@@ -30,6 +60,20 @@ public class MultipartParser {
 		this.tokens.setRecursionMode(RecursionMode.M_NO_RECURSE);
 	}
 	
+	/**
+	 * The size (in bytes) above which part bodies are spooled to a temporary file
+	 * <p>
+	 * A non-negative value enables raw (byte) part bodies, while {@link #DECODE_BODIES}
+	 * restores the default behaviour of decoding bodies into Strings.
+	 */
+	public void setSpoolThreshold(final int spoolThreshold) {
+		this.spoolThreshold = spoolThreshold < 0 ? DECODE_BODIES : spoolThreshold;
+	}
+	
+	public int getSpoolThreshold() {
+		return spoolThreshold;
+	}
+	
 	/**
 	 * Parses the specified stream into a {@link MultipartBody}
 	 * <p>
@@ -47,23 +91,39 @@ public class MultipartParser {
 	 * Any nested multipart bodies are left as-is: i.e. a recursive parse is not
 	 * performed and the body is stored in the same way as any other part.
 	 * <p>
-	 * If an exchange is specified, it is set as the exchange property on any created {@link Part}s.
+	 * If an exchange is specified, the type converter of its CamelContext is shared by any created {@link Part}s.
 	 */
 	public MultipartBody parse(final String contentType, final Exchange exchange,
 			final InputStream in) throws IOException {
+		final PartCallback callback = null;
+		return parse(contentType, exchange, in, callback);
+	}
+	
+	/**
+	 * Parses the specified stream into a {@link MultipartBody} - notifying the callback as each part is parsed
+	 * <p>
+	 * The callback can stop parsing early (e.g. once the first part has been examined), in which case the
+	 * returned body only contains the parts parsed so far.
+	 * 
+	 * @see #parse(String, Exchange, InputStream)
+	 */
+	public MultipartBody parse(final String contentType, final Exchange exchange,
+			final InputStream in, final PartCallback callback) throws IOException {
 		tokens.parseHeadless(in, contentType);
 		try {
-			return convertTokensToMultipartBody(exchange);
+			return convertTokensToMultipartBody(exchange, callback);
 		} catch (MimeException e) {
 			throw new IOException("Unable to parse content as MIME stream", e);
 		}
 	}
 	
 	/**
-	 * Interprets the tokens until end of stream.
+	 * Interprets the tokens until end of stream (or until stopped by the callback).
 	 */
-	private MultipartBody convertTokensToMultipartBody(final Exchange exchange) throws IOException, MimeException {
+	private MultipartBody convertTokensToMultipartBody(final Exchange exchange, final PartCallback callback)
+			throws IOException, MimeException {
 		final MultipartBody body = new MultipartBody();
+		final TypeConverter typeConverter = exchange == null ? null : exchange.getContext().getTypeConverter();
 		
 		Part part = null;
 		
@@ -75,14 +135,12 @@ public class MultipartParser {
 				break;
 			
 			case T_PREAMBLE:
-				body.setPreamble(readDecodedContent());
+				body.setPreamble(readDecodedContent(Charsets.UTF_8));
 				break;
 				
 			case T_START_BODYPART:
 				part = new Part();
-				if (exchange != null) {
-					part.setExchange(new DefaultExchange(exchange));
-				}
+				part.setTypeConverter(typeConverter);
 				
 				break;
 			case T_FIELD:
@@ -91,16 +149,23 @@ public class MultipartParser {
 				break;
 				
 			case T_BODY:
-				part.setBody(readDecodedContent());
+				if (spoolThreshold == DECODE_BODIES) {
+					part.setBody(readDecodedContent(part.getCharset()));
+				} else {
+					part.setBody(readRawContent(exchange));
+				}
 				break;
 				
 			case T_END_BODYPART:
 				body.addPart(part);
+				if (callback != null && !callback.partParsed(body, part)) {
+					return body;
+				}
 				part = null;
 				break;
 				
 			case T_EPILOGUE:
-				body.setEpilogue(readDecodedContent());
+				body.setEpilogue(readDecodedContent(Charsets.UTF_8));
 				break;
 
 			default:
@@ -111,13 +176,37 @@ public class MultipartParser {
 		return body;
 	}
 	
-	private String readDecodedContent() throws IOException {
+	private String readDecodedContent(final Charset charset) throws IOException {
 		final InputStream in = tokens.getDecodedInputStream();
 		try {
 			final byte[] bytes = ByteStreams.toByteArray(in);
-			return new String(bytes);
+			return new String(bytes, charset);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+	
+	/**
+	 * Reads the content as raw bytes - spooling to a temporary file if the threshold is exceeded
+	 * <p>
+	 * If an exchange is specified the exchange owns the initial reference to the content and releases it
+	 * when the exchange completes (the synchronization is handed over with the exchange, e.g. to a seda
+	 * consumer). Otherwise the temporary file is only deleted when the returned source is garbage collected.
+	 */
+	private ByteSource readRawContent(final Exchange exchange) throws IOException {
+		final InputStream in = tokens.getDecodedInputStream();
+		final FileBackedOutputStream out = new FileBackedOutputStream(spoolThreshold, exchange == null);
+		final SpooledByteSource source = new SpooledByteSource(out);
+		if (exchange != null) {
+			source.releaseOnCompletion(exchange);
+		}
+		
+		try {
+			ByteStreams.copy(in, out);
 		} finally {
 			Closeables.closeQuietly(in);
+			Closeables.close(out, true);
 		}
+		return source;
 	}
 }
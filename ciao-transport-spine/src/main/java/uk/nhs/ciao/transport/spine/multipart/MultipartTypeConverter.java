@@ -5,6 +5,7 @@ import static uk.nhs.ciao.transport.itk.util.TypeConverterHelper.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 
 import org.apache.camel.Converter;
 import org.apache.camel.Exchange;
@@ -13,6 +14,8 @@ import org.apache.camel.spi.TypeConverterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
 import com.google.common.io.Closeables;
 
 /**
@@ -25,6 +28,14 @@ import com.google.common.io.Closeables;
 public final class MultipartTypeConverter {
 	private static final Logger LOGGER = LoggerFactory.getLogger(MultipartTypeConverter.class);
 	
+	/**
+	 * Optional exchange property (Integer) which enables raw part bodies when converting to
+	 * MultipartBody
+	 * 
+	 * @see MultipartParser#setSpoolThreshold(int)
+	 */
+	public static final String SPOOL_THRESHOLD_PROPERTY = "multipart-spool-threshold";
+	
 	/**
 	 * Holds a single parser instance per thread (the parsers are not thread-safe)
 	 */
@@ -50,19 +61,57 @@ public final class MultipartTypeConverter {
 		
 		final String contentType = exchange.getIn().getHeader(Exchange.CONTENT_TYPE, String.class);		
 		final MultipartParser parser = PARSER.get();
+		final Integer spoolThreshold = exchange.getProperty(SPOOL_THRESHOLD_PROPERTY, Integer.class);
+		parser.setSpoolThreshold(spoolThreshold == null ? MultipartParser.DECODE_BODIES : spoolThreshold);
 		return parser.parse(contentType, exchange, in);
 	}
 	
+	/**
+	 * Converts a raw part body to an input stream
+	 */
+	@Converter
+	public static InputStream fromByteSourceToInputStream(final ByteSource source) throws IOException {
+		return source.openStream();
+	}
+	
+	/**
+	 * Converts a raw part body to a byte array
+	 * <p>
+	 * The whole body is loaded into memory - code which only needs to write the body (e.g.
+	 * {@link MultipartWriter}) should copy it from {@link ByteSource#openStream()} instead
+	 */
+	@Converter
+	public static byte[] fromByteSourceToByteArray(final ByteSource source) throws IOException {
+		return source.read();
+	}
+	
+	/**
+	 * Converts a raw part body to a String using the charset of the exchange (or UTF-8)
+	 * <p>
+	 * {@link Part#getBody(Class)} should be preferred - it uses the charset declared by the part
+	 */
+	@Converter
+	public static String fromByteSourceToString(final ByteSource source, final Exchange exchange) throws IOException {
+		final String charsetName = exchange == null ? null : exchange.getProperty(Exchange.CHARSET_NAME, String.class);
+		final Charset charset = charsetName == null ? Charsets.UTF_8 : Charset.forName(charsetName);
+		return source.asCharSource(charset).read();
+	}
+	
 	/**
 	 * Converts the specified MultipartBody into a byte array
+	 * <p>
+	 * The output buffer is pre-sized from the content length (when known) to avoid
+	 * repeated buffer growth while serializing large messages
 	 */
 	@Converter
 	public static byte[] toByteArray(final MultipartBody body) throws IOException {
 		LOGGER.debug("toByteArray()");
 		
+		final long contentLength = body.getContentLength();
 		ByteArrayOutputStream out = null;
 		try {
-			out = new ByteArrayOutputStream();
+			out = contentLength < 0 || contentLength > Integer.MAX_VALUE ? new ByteArrayOutputStream()
+					: new ByteArrayOutputStream((int)contentLength);
 			body.write(out);
 			out.flush();
 			return out.toByteArray();
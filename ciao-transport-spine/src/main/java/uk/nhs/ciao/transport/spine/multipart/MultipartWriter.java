@@ -0,0 +1,201 @@
+package uk.nhs.ciao.transport.spine.multipart;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Serializes a {@link MultipartBody} to an OutputStream or NIO channel
+ * <p>
+ * Constant segments are encoded once rather than for every part of every message: CRLF and the
+ * common header names are encoded statically, and the boundary delimiters are encoded once per body.
+ * Structural segments are US-ASCII and the boundary and header values are UTF-8, while String part
+ * bodies use the charset declared by the part (matching {@link MultipartBody#getContentLength()}).
+ * <p>
+ * Instances are bound to a single body and are not thread-safe.
+ */
+public class MultipartWriter {
+	private static final byte[] CRLF = "\r\n".getBytes(Charsets.US_ASCII);
+	private static final String HEADER_SEPARATOR = ": ";
+
+	/**
+	 * Pre-encoded <code>name: </code> segments for the headers written for every part
+	 */
+	private static final Map<String, byte[]> HEADER_NAMES = ImmutableMap.of(
+			ContentId.HEADER_NAME, encodeHeaderName(ContentId.HEADER_NAME),
+			ContentType.HEADER_NAME, encodeHeaderName(ContentType.HEADER_NAME),
+			Part.CONTENT_TRANSFER_ENCODING, encodeHeaderName(Part.CONTENT_TRANSFER_ENCODING));
+
+	private final MultipartBody body;
+	private final byte[] firstDelimiter;
+	private final byte[] delimiter;
+	private final byte[] closeDelimiter;
+
+	public MultipartWriter(final MultipartBody body) {
+		this.body = Preconditions.checkNotNull(body);
+
+		final String boundary = body.getBoundary();
+		this.firstDelimiter = ("--" + boundary + "\r\n").getBytes(Charsets.UTF_8);
+		this.delimiter = ("\r\n--" + boundary + "\r\n").getBytes(Charsets.UTF_8);
+		this.closeDelimiter = ("\r\n--" + boundary + "--\r\n").getBytes(Charsets.UTF_8);
+	}
+
+	/**
+	 * Writes the body to the specified stream
+	 * <p>
+	 * The stream is flushed but not closed by this method.
+	 */
+	public void write(final OutputStream out) throws IOException {
+		final String preamble = body.getPreamble();
+		if (!preamble.isEmpty()) {
+			out.write(preamble.getBytes(Charsets.UTF_8));
+		}
+
+		// Only the initial part needs special handling (no CRLF before the delimiter unless there is a preamble)
+		boolean first = preamble.isEmpty();
+		for (final Part part: body.getParts()) {
+			out.write(first ? firstDelimiter : delimiter);
+			first = false;
+
+			writePart(part, out);
+		}
+
+		out.write(closeDelimiter);
+
+		final String epilogue = body.getEpilogue();
+		if (!epilogue.isEmpty()) {
+			out.write(epilogue.getBytes(Charsets.UTF_8));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes the body to the specified channel using gathering writes
+	 * <p>
+	 * Byte array part bodies are wrapped rather than copied. Raw (spooled) {@link ByteSource}
+	 * bodies and other body types are not read into memory: the pending buffers are written and the body is then
+	 * copied to the channel from its stream. The channel is not closed by this method.
+	 *
+	 * @return The number of bytes written
+	 */
+	public long write(final GatheringByteChannel channel) throws IOException {
+		final List<ByteBuffer> buffers = Lists.newArrayList();
+		long written = 0;
+
+		final String preamble = body.getPreamble();
+		if (!preamble.isEmpty()) {
+			buffers.add(ByteBuffer.wrap(preamble.getBytes(Charsets.UTF_8)));
+		}
+
+		boolean first = preamble.isEmpty();
+		for (final Part part: body.getParts()) {
+			buffers.add(ByteBuffer.wrap(first ? firstDelimiter : delimiter));
+			first = false;
+
+			for (final Entry<String, String> entry: part.getHeaders()) {
+				buffers.add(ByteBuffer.wrap(getHeaderName(entry.getKey())));
+				buffers.add(ByteBuffer.wrap(entry.getValue().getBytes(Charsets.UTF_8)));
+				buffers.add(ByteBuffer.wrap(CRLF));
+			}
+			buffers.add(ByteBuffer.wrap(CRLF));
+
+			final Object partBody = part.getBody();
+			if (partBody instanceof byte[]) {
+				buffers.add(ByteBuffer.wrap((byte[])partBody));
+			} else if (partBody instanceof String) {
+				buffers.add(ByteBuffer.wrap(((String)partBody).getBytes(part.getCharset())));
+			} else if (partBody != null) {
+				written += writeBuffers(channel, buffers);
+				written += writeBody(channel, part);
+			}
+		}
+
+		buffers.add(ByteBuffer.wrap(closeDelimiter));
+
+		final String epilogue = body.getEpilogue();
+		if (!epilogue.isEmpty()) {
+			buffers.add(ByteBuffer.wrap(epilogue.getBytes(Charsets.UTF_8)));
+		}
+
+		written += writeBuffers(channel, buffers);
+
+		return written;
+	}
+
+	/**
+	 * Writes the headers and body of a single part to the specified stream
+	 */
+	static void writePart(final Part part, final OutputStream out) throws IOException {
+		for (final Entry<String, String> entry: part.getHeaders()) {
+			out.write(getHeaderName(entry.getKey()));
+			out.write(entry.getValue().getBytes(Charsets.UTF_8));
+			out.write(CRLF);
+		}
+		out.write(CRLF);
+
+		part.writeBody(out);
+	}
+
+	/**
+	 * Writes the pending buffers to the channel using a gathering write and clears the list
+	 *
+	 * @return The number of bytes written
+	 */
+	private static long writeBuffers(final GatheringByteChannel channel, final List<ByteBuffer> buffers) throws IOException {
+		final ByteBuffer[] sources = buffers.toArray(new ByteBuffer[buffers.size()]);
+		buffers.clear();
+
+		long remaining = 0;
+		for (final ByteBuffer source: sources) {
+			remaining += source.remaining();
+		}
+
+		long written = 0;
+		while (written < remaining) {
+			written += channel.write(sources);
+		}
+
+		return written;
+	}
+
+	/**
+	 * Copies the body of the part to the channel via the part's standard stream conversions
+	 * <p>
+	 * ByteSource bodies are copied from {@link ByteSource#openStream()} in
+	 * fixed-size chunks rather than being read into a single array.
+	 *
+	 * @return The number of bytes written
+	 */
+	private static long writeBody(final GatheringByteChannel channel, final Part part) throws IOException {
+		// The stream is not closed - closing it would close the channel
+		final CountingOutputStream out = new CountingOutputStream(Channels.newOutputStream(channel));
+		part.writeBody(out);
+		out.flush();
+
+		return out.getCount();
+	}
+
+	private static byte[] getHeaderName(final String name) {
+		final byte[] encoded = HEADER_NAMES.get(name);
+		return encoded == null ? encodeHeaderName(name) : encoded;
+	}
+
+	/**
+	 * Header names are encoded as UTF-8 (the same as header values) - this must match Part.getContentLength()
+	 */
+	private static byte[] encodeHeaderName(final String name) {
+		return (name + HEADER_SEPARATOR).getBytes(Charsets.UTF_8);
+	}
+}
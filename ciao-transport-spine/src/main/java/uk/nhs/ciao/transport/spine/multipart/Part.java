@@ -3,14 +3,23 @@ package uk.nhs.ciao.transport.spine.multipart;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 
+import org.apache.camel.InvalidPayloadException;
+import org.apache.camel.Message;
+import org.apache.camel.NoTypeConversionAvailableException;
+import org.apache.camel.RuntimeCamelException;
+import org.apache.camel.TypeConverter;
 import org.apache.camel.impl.DefaultMessage;
 
-import com.google.common.base.Preconditions;
+import com.google.common.base.Charsets;
+import com.google.common.base.Utf8;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 
@@ -18,23 +27,51 @@ import com.google.common.io.Closeables;
  * Represents a part/entity contained within a multipart body
  * <p>
  * The entity is made up of a series of name/value headers and a body.
+ * <p>
+ * The body may be a {@link ByteSource} (e.g. when parsed with {@link MultipartParser#setSpoolThreshold(int)}).
+ * In this case the bytes are only decoded as text when a String body is requested, using the charset declared in
+ * the Content-Type of the part.
+ * <p>
+ * Parts are not Camel messages: other body types are converted using a shared {@link TypeConverter}
+ * reference (typically the converter of the CamelContext) rather than an exchange per part. Code which
+ * requires a {@link Message} can use {@link #toMessage()}.
  */
-public class Part extends DefaultMessage {
+public class Part {
 	public static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
 
 	private static final String CRLF = "\r\n";
 	private static final String HEADER_SEPARATOR = ": ";
 	
+	private final EntrySeries headers = new EntrySeries();
+	private Object body;
+	private TypeConverter typeConverter;
+	
 	/**
-	 * {@inheritDoc}
-	 * <p>
 	 * Represents the name/value headers of a part.
 	 * <p>
 	 * Multiple values for the same name are allowed and names are case-insensitive (RFC 5234, 2045, 822).
 	 */
-	@Override
-	public Map<String, Object> getHeaders() {
-		return super.getHeaders();
+	public EntrySeries getHeaders() {
+		return headers;
+	}
+	
+	public Object getBody() {
+		return body;
+	}
+	
+	public void setBody(final Object body) {
+		this.body = body;
+	}
+	
+	/**
+	 * The converter used for body types without a direct conversion (may be null)
+	 */
+	public TypeConverter getTypeConverter() {
+		return typeConverter;
+	}
+	
+	public void setTypeConverter(final TypeConverter typeConverter) {
+		this.typeConverter = typeConverter;
 	}
 	
 	public String getRawContentId() {
@@ -55,6 +92,93 @@ public class Part extends DefaultMessage {
 		setRawContentId(rawContentId);
 	}
 	
+	/**
+	 * The charset declared by the Content-Type of this part - or UTF-8 if no
+	 * (supported) charset has been declared
+	 */
+	public Charset getCharset() {
+		final ContentType contentType = ContentType.valueOf(getContentType());
+		final String charset = contentType == null ? null : contentType.getCharset();
+		if (charset != null) {
+			try {
+				return Charset.forName(charset);
+			} catch (IllegalCharsetNameException e) {
+				// fall through to default
+			} catch (UnsupportedCharsetException e) {
+				// fall through to default
+			}
+		}
+		
+		return Charsets.UTF_8;
+	}
+	
+	/**
+	 * Returns the body converted to the specified type
+	 * <p>
+	 * {@link ByteSource} bodies are converted directly to String (using {@link #getCharset()}),
+	 * byte[] and InputStream - other types are converted via the type converter (if set).
+	 * 
+	 * @return The converted body, or null if the body could not be converted
+	 */
+	public <T> T getBody(final Class<T> type) {
+		if (body == null) {
+			return null;
+		} else if (type.isInstance(body)) {
+			return type.cast(body);
+		} else if (body instanceof ByteSource) {
+			final T value = convertByteSource(type, (ByteSource)body);
+			if (value != null) {
+				return value;
+			}
+		}
+		
+		return typeConverter == null ? null : typeConverter.convertTo(type, body);
+	}
+	
+	/**
+	 * Returns the body converted to the specified type
+	 * 
+	 * @throws InvalidPayloadException If the body is null or could not be converted
+	 */
+	public <T> T getMandatoryBody(final Class<T> type) throws InvalidPayloadException {
+		if (type.isInstance(body)) {
+			return type.cast(body);
+		} else if (body instanceof ByteSource) {
+			final T value = convertByteSource(type, (ByteSource)body);
+			if (value != null) {
+				return value;
+			}
+		}
+		
+		if (body != null && typeConverter != null) {
+			try {
+				return typeConverter.mandatoryConvertTo(type, body);
+			} catch (NoTypeConversionAvailableException e) {
+				throw new InvalidPayloadException(null, type, toMessage(), e);
+			}
+		}
+		
+		throw new InvalidPayloadException(null, type, toMessage());
+	}
+	
+	private <T> T convertByteSource(final Class<T> type, final ByteSource source) {
+		try {
+			if (type.isInstance(source)) {
+				return type.cast(source);
+			} else if (String.class.equals(type)) {
+				return type.cast(source.asCharSource(getCharset()).read());
+			} else if (byte[].class.equals(type)) {
+				return type.cast(source.read());
+			} else if (InputStream.class.equals(type)) {
+				return type.cast(source.openStream());
+			}
+		} catch (IOException e) {
+			throw new RuntimeCamelException("Unable to read body of Part", e);
+		}
+		
+		return null;
+	}
+	
 	public String getContentType() {
 		return getFirstHeader(ContentType.HEADER_NAME);
 	}
@@ -77,82 +201,122 @@ public class Part extends DefaultMessage {
 	}
 	
 	public String getFirstHeader(final String name, final String defaultValue) {
-		Object value = getHeader(name);
-		if (value instanceof List<?>) {
-			final List<?> values = (List<?>)value;
-			value = values.isEmpty() ? null : values.get(0);
-		}
-		
-		return value == null ? defaultValue : value.toString();
+		return headers.getFirstValue(name, defaultValue);
 	}
 	
 	public void addHeader(final String name, final String value) {
-		Preconditions.checkNotNull(name, "name");
-		Preconditions.checkNotNull(value, "value");
-		
-		Object previousValue = getHeader(name);
-		if (previousValue == null) {
-			// first value - store string directly
-			setHeader(name, value);
-		} else if (previousValue instanceof List<?>) {
-			// multiple existing values - add to end of list
-			@SuppressWarnings("unchecked")
-			final List<? super String> values = (List<? super String>)previousValue;
-			values.add(value);
-		} else {
-			// second value - move values into list form
-			final List<Object> values = Lists.newArrayList();
-			values.add(previousValue);
-			values.add(value);
-			setHeader(name, values);
-		}
+		headers.add(name, value);
 	}
 	
 	public void setOrRemoveHeader(final String name, final String value) {
-		if (value == null) {
-			removeHeader(name);
-		} else {
-			getHeaders().put(name, value);
-		}
+		headers.setOrRemove(name, value);
 	}
 	
-	public void write(final OutputStream out) throws IOException {
-		writeHeaders(out);
-		writeBody(out);
-	}
-	
-	private void writeHeaders(final OutputStream out) throws IOException {
-		for (final Entry<String, Object> entry: getHeaders().entrySet()) {
-			writeHeader(out, entry.getKey(), entry.getValue());
+	/**
+	 * Creates a Camel {@link Message} containing a copy of the headers and the body of this part
+	 * <p>
+	 * Repeated headers are stored as a List of values (in the order they appear in the part). Changes
+	 * to the returned message are not reflected in this part.
+	 */
+	public Message toMessage() {
+		final DefaultMessage message = new DefaultMessage();
+		for (final Entry<String, String> header: headers) {
+			final Object previousValue = message.getHeader(header.getKey());
+			if (previousValue == null) {
+				message.setHeader(header.getKey(), header.getValue());
+			} else if (previousValue instanceof List<?>) {
+				@SuppressWarnings("unchecked")
+				final List<Object> values = (List<Object>)previousValue;
+				values.add(header.getValue());
+			} else {
+				final List<Object> values = Lists.newArrayList();
+				values.add(previousValue);
+				values.add(header.getValue());
+				message.setHeader(header.getKey(), values);
+			}
 		}
-		out.write(CRLF.getBytes());
+		message.setBody(body);
+		
+		return message;
 	}
 	
-	private void writeHeader(final OutputStream out, final String name, final Object value) throws IOException {
-		if (value instanceof List<?>) {
-			for (final Object nestedValue: (List<?>)value) {
-				writeHeader(out, name, nestedValue);
+	/**
+	 * The exact number of bytes which will be written by {@link #write(OutputStream)}
+	 * 
+	 * @return The content length, or -1 if the body is not a String, byte array or ByteSource (the
+	 * 			length of other body types is only known after conversion)
+	 */
+	public long getContentLength() {
+		final long bodyLength;
+		if (body == null) {
+			bodyLength = 0;
+		} else if (body instanceof byte[]) {
+			bodyLength = ((byte[])body).length;
+		} else if (body instanceof String) {
+			bodyLength = getEncodedLength((String)body);
+		} else if (body instanceof ByteSource) {
+			try {
+				bodyLength = ((ByteSource)body).size();
+			} catch (IOException e) {
+				return -1;
 			}
-		} else if (value != null) {
-			out.write(name.getBytes());
-			out.write(HEADER_SEPARATOR.getBytes());
-			out.write(value.toString().getBytes());
-			out.write(CRLF.getBytes());
+		} else {
+			return -1;
+		}
+		
+		long length = CRLF.length();
+		for (final Entry<String, String> entry: headers) {
+			length += Utf8.encodedLength(entry.getKey()) + HEADER_SEPARATOR.length()
+					+ Utf8.encodedLength(entry.getValue()) + CRLF.length();
 		}
+		
+		return length + bodyLength;
 	}
 	
-	private void writeBody(final OutputStream out) throws IOException {
-		if (getBody() == null) {
+	/**
+	 * Writes the headers and body of this part
+	 * 
+	 * @see MultipartWriter
+	 */
+	public void write(final OutputStream out) throws IOException {
+		MultipartWriter.writePart(this, out);
+	}
+	
+	/**
+	 * The number of bytes in the specified String when encoded using {@link #getCharset()}
+	 */
+	private long getEncodedLength(final String value) {
+		final Charset charset = getCharset();
+		return Charsets.UTF_8.equals(charset) ? Utf8.encodedLength(value) : value.getBytes(charset).length;
+	}
+	
+	/**
+	 * Writes the body of this part (without headers)
+	 * <p>
+	 * String bodies are encoded using {@link #getCharset()} - other types are written via Camel type conversion
+	 */
+	void writeBody(final OutputStream out) throws IOException {
+		if (body == null) {
 			// Nothing to do
 			return;
+		} else if (body instanceof byte[]) {
+			out.write((byte[])body);
+			return;
+		} else if (body instanceof String) {
+			// Encoding must match getContentLength()
+			out.write(((String)body).getBytes(getCharset()));
+			return;
+		} else if (body instanceof ByteSource) {
+			((ByteSource)body).copyTo(out);
+			return;
 		}
 		
 		// Try to write the body from a couple of standard types
-		// If the exchange has been set, camel's type converter should
+		// If the type converter has been set, it should
 		// be able to convert the body
 		// try a stream first, falling back to a string is that fails
 		if (!writeBodyAsStream(out) && !writeBodyAsString(out)) {
-			throw new IOException("Unable to write body of Part: " + getBody());
+			throw new IOException("Unable to write body of Part: " + body);
 		}
 	}
 	
@@ -177,7 +341,7 @@ public class Part extends DefaultMessage {
 			return false;
 		}
 		
-		out.write(body.getBytes());
+		out.write(body.getBytes(getCharset()));
 		return true;
 	}
 }
@@ -0,0 +1,103 @@
+package uk.nhs.ciao.transport.spine.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSource;
+import com.google.common.io.FileBackedOutputStream;
+
+/**
+ * Raw part content held in memory or spooled to a temporary file
+ * <p>
+ * The content is reference counted: the memory / temporary file is released when the last
+ * owner calls {@link #release()}. This allows the content to be handed from the exchange which
+ * parsed it to a later exchange (e.g. a publisher) without copying or decoding it.
+ */
+public class SpooledByteSource extends ByteSource {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpooledByteSource.class);
+
+	private final FileBackedOutputStream out;
+	private final ByteSource source;
+	private final AtomicInteger references;
+
+	/**
+	 * Constructs a new source over the content written to <code>out</code> - the caller owns the initial reference
+	 */
+	public SpooledByteSource(final FileBackedOutputStream out) {
+		this.out = Preconditions.checkNotNull(out);
+		this.source = out.asByteSource();
+		this.references = new AtomicInteger(1);
+	}
+
+	@Override
+	public InputStream openStream() throws IOException {
+		return source.openStream();
+	}
+
+	@Override
+	public long size() throws IOException {
+		return source.size();
+	}
+
+	/**
+	 * Adds an owner of the content
+	 *
+	 * @throws IllegalStateException If the content has already been released
+	 */
+	public SpooledByteSource retain() {
+		while (true) {
+			final int count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Spooled content has already been released");
+			} else if (references.compareAndSet(count, count + 1)) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * Removes an owner of the content - the memory / temporary file is released when no owners remain
+	 */
+	public void release() {
+		if (references.decrementAndGet() != 0) {
+			return;
+		}
+
+		try {
+			out.reset();
+		} catch (IOException e) {
+			LOGGER.warn("Unable to delete spooled multipart content", e);
+		}
+	}
+
+	/**
+	 * Releases one reference to the content when the exchange completes (successfully or not)
+	 */
+	public void releaseOnCompletion(final Exchange exchange) {
+		exchange.addOnCompletion(new SynchronizationAdapter() {
+			@Override
+			public void onDone(final Exchange exchange) {
+				release();
+			}
+		});
+	}
+
+	/**
+	 * Releases one reference to the content if the exchange fails
+	 */
+	public void releaseOnFailure(final Exchange exchange) {
+		exchange.addOnCompletion(new SynchronizationAdapter() {
+			@Override
+			public void onFailure(final Exchange exchange) {
+				release();
+			}
+		});
+	}
+}
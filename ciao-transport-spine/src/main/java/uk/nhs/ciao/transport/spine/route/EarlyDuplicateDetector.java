@@ -0,0 +1,112 @@
+package uk.nhs.ciao.transport.spine.route;
+
+import static uk.nhs.ciao.transport.spine.route.EbxmlManifestVerifier.MANIFEST_PROPERTY;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.TypeConversionException;
+
+import com.google.common.base.Preconditions;
+
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
+import uk.nhs.ciao.transport.spine.idempotent.DuplicateMessageDetector;
+import uk.nhs.ciao.transport.spine.multipart.MultipartBody;
+import uk.nhs.ciao.transport.spine.multipart.MultipartParser;
+import uk.nhs.ciao.transport.spine.multipart.MultipartParser.PartCallback;
+import uk.nhs.ciao.transport.spine.multipart.MultipartTypeConverter;
+import uk.nhs.ciao.transport.spine.multipart.Part;
+
+/**
+ * Processor which parses an incoming multipart message manifest-first, and stops parsing
+ * if the message is a known duplicate.
+ * <p>
+ * The ebxml manifest (first part) is parsed and stored as {@link EbxmlManifestVerifier#MANIFEST_PROPERTY}.
+ * If the message ID is a known duplicate, the remaining parts (i.e. the payload bytes) are skipped and
+ * the {@link #DUPLICATE_PROPERTY} is set on the exchange. Otherwise the message is parsed in full.
+ * <p>
+ * The incoming body is replaced by the (possibly partial) {@link MultipartBody}.
+ */
+public class EarlyDuplicateDetector implements Processor {
+	/**
+	 * The property set on the {@link Exchange} if the message is a known duplicate
+	 */
+	public static final String DUPLICATE_PROPERTY = "multipart-duplicate";
+	
+	/**
+	 * Holds a single parser instance per thread (the parsers are not thread-safe)
+	 */
+	private static final ThreadLocal<MultipartParser> PARSER = new ThreadLocal<MultipartParser>() {
+		@Override
+		protected MultipartParser initialValue() {
+			return new MultipartParser();
+		}
+	};
+	
+	private final DuplicateMessageDetector detector;
+	
+	public EarlyDuplicateDetector(final DuplicateMessageDetector detector) {
+		this.detector = Preconditions.checkNotNull(detector);
+	}
+	
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final Message message = exchange.getIn();
+		if (message.getBody() instanceof MultipartBody) {
+			// Already parsed - too late to skip the payload
+			return;
+		}
+		
+		final InputStream in = message.getMandatoryBody(InputStream.class);
+		final String contentType = message.getHeader(Exchange.CONTENT_TYPE, String.class);
+		final Integer spoolThreshold = exchange.getProperty(MultipartTypeConverter.SPOOL_THRESHOLD_PROPERTY, Integer.class);
+		
+		final MultipartParser parser = PARSER.get();
+		parser.setSpoolThreshold(spoolThreshold == null ? MultipartParser.DECODE_BODIES : spoolThreshold);
+		
+		final ManifestCallback callback = new ManifestCallback();
+		final MultipartBody body = parser.parse(contentType, exchange, in, callback);
+		
+		if (callback.manifest != null) {
+			exchange.setProperty(MANIFEST_PROPERTY, callback.manifest);
+		}
+		
+		if (callback.duplicate) {
+			exchange.setProperty(DUPLICATE_PROPERTY, Boolean.TRUE);
+		}
+		
+		message.setBody(body);
+	}
+	
+	/**
+	 * Examines the first (manifest) part and stops parsing for known duplicates
+	 */
+	private class ManifestCallback implements PartCallback {
+		private EbxmlEnvelope manifest;
+		private boolean duplicate;
+		
+		@Override
+		public boolean partParsed(final MultipartBody body, final Part part) throws IOException {
+			if (body.getParts().size() > 1) {
+				return true;
+			}
+			
+			// Invalid manifests are reported later by the EbxmlManifestVerifier
+			try {
+				manifest = part.getBody(EbxmlEnvelope.class);
+			} catch (TypeConversionException e) {
+				return true;
+			}
+			
+			if (manifest == null || manifest.getMessageData() == null) {
+				return true;
+			}
+			
+			duplicate = detector.isDuplicate(manifest.getMessageData().getMessageId());
+			return !duplicate;
+		}
+	}
+}
@@ -1,15 +1,21 @@
 package uk.nhs.ciao.transport.spine.route;
 
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.camel.Body;
 import org.apache.camel.ExchangePattern;
+import org.apache.camel.Headers;
 
 import uk.nhs.ciao.camel.BaseRouteBuilder;
-import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlAckScanner;
 
 /**
  * Incoming ebXml ACK receiver route
  * <ul>
  * <li>Receives ebXml acks from a direct route (but originally from an HTTP request) [sync]
  * <li>Extracts the related original message id (for correlation)
+ * <li>Extracts the ack/error fields as headers (see {@link EbxmlAckScanner}) so that the ack can be processed without parsing the XML again
  * <li>Adds the ebXml ack to a JMS topic for later processing (by the process holding the associated transaction open)
  */
 public class EbxmlAckReceiverRoute extends BaseRouteBuilder {
@@ -27,10 +33,25 @@ public class EbxmlAckReceiverRoute extends BaseRouteBuilder {
 	public void configure() throws Exception {
 		from(ebxmlAckReceiverUrl)
 			.id("ebxml-ack-receiver")
-			.setProperty("envelope").body(EbxmlEnvelope.class)
-			.setHeader("JMSCorrelationID").simple("${property.envelope.messageData.refToMessageId}", String.class)
+			.convertBodyTo(String.class)
+			.bean(new AckScanner())
+			.setHeader("JMSCorrelationID").header(EbxmlAckScanner.HEADER_REF_TO_MESSAGE_ID)
 			.setExchangePattern(ExchangePattern.InOnly)
 			.to(ebxmlAckDestinationUrl)
 		.end();
 	}
+	
+	// Processor / bean methods
+	// The methods can't live in the route builder - it causes havoc with the debug/tracer logging
+	
+	/**
+	 * Adds the ack/error fields of the incoming ebXml document to the message headers
+	 */
+	public static class AckScanner {
+		private final EbxmlAckScanner scanner = new EbxmlAckScanner();
+		
+		public void scanAck(@Body final String body, @Headers final Map<String, Object> headers) throws IOException {
+			headers.putAll(scanner.scan(body));
+		}
+	}
 }
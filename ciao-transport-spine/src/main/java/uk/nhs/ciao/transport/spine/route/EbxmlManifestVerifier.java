@@ -14,6 +14,8 @@ import uk.nhs.ciao.transport.spine.multipart.Part;
  * that the manifest properly describes the remaining parts of the multipart body.
  * <p>
  * The extracted manifest is stored as a property on the exchange called {@link #MANIFEST_PROPERTY}.
+ * If the property has already been populated (e.g. by {@link EarlyDuplicateDetector}) the existing
+ * manifest is used rather than parsing the first part again.
  */
 public class EbxmlManifestVerifier implements Processor {
 	/**
@@ -24,7 +26,7 @@ public class EbxmlManifestVerifier implements Processor {
 	@Override
 	public void process(final Exchange exchange) throws Exception {
 		final MultipartBody multipartBody = exchange.getIn().getMandatoryBody(MultipartBody.class);
-		final EbxmlEnvelope manifest = getManifest(multipartBody);
+		final EbxmlEnvelope manifest = getManifest(exchange, multipartBody);
 		storeManifest(exchange, manifest);
 		
 		final EbxmlEnvelope soapFault = verifyManifest(manifest, multipartBody);			
@@ -40,7 +42,12 @@ public class EbxmlManifestVerifier implements Processor {
 		}
 	}
 	
-	private EbxmlEnvelope getManifest(final MultipartBody multipartBody) throws Exception {
+	private EbxmlEnvelope getManifest(final Exchange exchange, final MultipartBody multipartBody) throws Exception {
+		final EbxmlEnvelope manifest = exchange.getProperty(MANIFEST_PROPERTY, EbxmlEnvelope.class);
+		if (manifest != null) {
+			return manifest;
+		}
+		
 		final Part ebxmlPart = multipartBody.getParts().get(0);
 		return ebxmlPart.getMandatoryBody(EbxmlEnvelope.class);
 	}
@@ -8,6 +8,7 @@ import org.apache.camel.Exchange;
 import org.apache.camel.Headers;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.PredicateBuilder;
+import org.apache.camel.model.RouteDefinition;
 import org.apache.camel.util.toolbox.AggregationStrategies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,6 +16,8 @@ import org.slf4j.LoggerFactory;
 import uk.nhs.ciao.camel.BaseRouteBuilder;
 import uk.nhs.ciao.logging.CiaoCamelLogMessage;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
+import uk.nhs.ciao.transport.spine.http.AdmissionController;
+import uk.nhs.ciao.transport.spine.http.HttpServerConnectionStatistics;
 
 /**
  * HTTP server for incoming messages
@@ -30,6 +33,8 @@ public class HttpServerRoute extends BaseRouteBuilder {
 	private String httpServerUrl;
 	private String ebxmlAckReceiverUrl;
 	private String multipartMessageReceiverUrl;
+	private HttpServerConnectionStatistics connectionStatistics;
+	private AdmissionController admissionController = new AdmissionController(); // no limits
 	
 	public void setHttpServerUrl(final String httpServerUrl) {
 		this.httpServerUrl = httpServerUrl;
@@ -43,11 +48,33 @@ public class HttpServerRoute extends BaseRouteBuilder {
 		this.multipartMessageReceiverUrl = multipartMessageReceiverUrl;
 	}
 	
+	/**
+	 * Optional statistics recording connection reuse / TLS session resumption for incoming requests
+	 */
+	public void setConnectionStatistics(final HttpServerConnectionStatistics connectionStatistics) {
+		this.connectionStatistics = connectionStatistics;
+	}
+	
+	/**
+	 * Admission control applied to incoming multipart messages before the body is read (by
+	 * default no limits are applied)
+	 * <p>
+	 * Acks are always accepted - they are small and are required to complete outgoing messages
+	 */
+	public void setAdmissionController(final AdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+	
 	@Override
 	public void configure() throws Exception {
-		from(httpServerUrl)
-			.id("http-server")
-			
+		final RouteDefinition route = from(httpServerUrl)
+			.id("http-server");
+		
+		if (connectionStatistics != null) {
+			route.process(connectionStatistics);
+		}
+		
+		route
 			.process(LOGGER.debug(camelLogMsg("Received incoming HTTP request")
 				.uri(header(Exchange.HTTP_URI))
 				.soapAction(header("SOAPAction"))))
@@ -76,7 +103,8 @@ public class HttpServerRoute extends BaseRouteBuilder {
 						.uri(header(Exchange.HTTP_URI))
 						.soapAction(header("SOAPAction"))
 						.eventName("incoming-spine-multipart-message")))
-				
+					
+					.process(admissionController)
 					.to(multipartMessageReceiverUrl)
 				.endChoice()
 				.otherwise()
@@ -3,13 +3,36 @@ package uk.nhs.ciao.transport.spine.route;
 import static uk.nhs.ciao.logging.CiaoCamelLogMessage.camelLogMsg;
 import static uk.nhs.ciao.transport.spine.route.EbxmlManifestVerifier.MANIFEST_PROPERTY;
 
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.camel.Body;
+import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.Property;
+import org.apache.camel.StartupListener;
+import org.apache.camel.model.ProcessorDefinition;
 import org.apache.camel.spi.IdempotentRepository;
+import org.apache.camel.support.SynchronizationAdapter;
+
+import com.google.common.io.ByteSource;
 
 import uk.nhs.ciao.camel.BaseRouteBuilder;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
+import uk.nhs.ciao.transport.itk.stage.StageConfiguration;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.ManifestReference;
+import uk.nhs.ciao.transport.spine.http.AdmissionController;
+import uk.nhs.ciao.transport.spine.idempotent.DuplicateMessageDetector;
+import uk.nhs.ciao.transport.spine.journal.PayloadJournal;
 import uk.nhs.ciao.transport.spine.multipart.MultipartBody;
+import uk.nhs.ciao.transport.spine.multipart.MultipartParser;
+import uk.nhs.ciao.transport.spine.multipart.MultipartTypeConverter;
+import uk.nhs.ciao.transport.spine.multipart.Part;
+import uk.nhs.ciao.transport.spine.multipart.SpooledByteSource;
 
 /**
  * Routes to handle incoming multipart messages from spine.
@@ -18,15 +41,27 @@ import uk.nhs.ciao.transport.spine.multipart.MultipartBody;
  * acknowledgement is sent. The processing of the underlying payload is the 
  * responsibility of another route. The ebxml ack is sent after the payload has
  * been extracted and stored for later processing.
+ * <p>
+ * If a {@link DuplicateMessageDetector} is configured, messages which are known to
+ * have been processed already are acknowledged without parsing the payload.
+ * <p>
+ * If a {@link PayloadJournal} is configured, the payload is durably journaled before
+ * the sync HTTP response is sent. Payloads which were not published before a restart
+ * are recovered from the journal and re-published when the context starts.
  */
 public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 	private static final CiaoCamelLogger LOGGER = CiaoCamelLogger.getLogger(MultipartMessageReceiverRoute.class);
 	private static final String PAYLOAD_PROPERTY = "multipart-payload";
+	private static final String JOURNAL_ID_PROPERTY = "multipart-journal-id";
 	
 	private String multipartReceiverUri;
 	private String payloadDestinationUri;
 	private String ebxmlResponseDestinationUri;
 	private IdempotentRepository<?> idempotentRepository;
+	private int spoolThreshold = MultipartParser.DECODE_BODIES;
+	private DuplicateMessageDetector duplicateMessageDetector;
+	private StageConfiguration stageConfiguration;
+	private PayloadJournal payloadJournal;
 	
 	/**
 	 * URI where incoming multipart messages are received from
@@ -59,6 +94,39 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 		this.idempotentRepository = idempotentRepository;
 	}
 	
+	/**
+	 * Size (in bytes) above which incoming parts are spooled to a temporary file
+	 * <p>
+	 * A non-negative value enables raw (byte) part bodies - text is only decoded if required.
+	 * The default ({@link MultipartParser#DECODE_BODIES}) decodes all parts into Strings.
+	 */
+	public void setSpoolThreshold(final int spoolThreshold) {
+		this.spoolThreshold = spoolThreshold;
+	}
+	
+	/**
+	 * Optional detector used to identify duplicate messages as soon as the manifest has been
+	 * parsed - the payload of a known duplicate is skipped and the message is acknowledged immediately
+	 */
+	public void setDuplicateMessageDetector(final DuplicateMessageDetector duplicateMessageDetector) {
+		this.duplicateMessageDetector = duplicateMessageDetector;
+	}
+	
+	/**
+	 * Optional configuration of the internal seda stages - if not specified unbounded
+	 * seda queues are used
+	 */
+	public void setStageConfiguration(final StageConfiguration stageConfiguration) {
+		this.stageConfiguration = stageConfiguration;
+	}
+	
+	/**
+	 * Optional journal used to durably store incoming payloads before the sync response is sent
+	 */
+	public void setPayloadJournal(final PayloadJournal payloadJournal) {
+		this.payloadJournal = payloadJournal;
+	}
+	
 	
 	/**
 	 * URI of internal route to publish outgoing payloads and to create the
@@ -80,10 +148,20 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 	}	
 	
 	@Override
-	public void configure() throws Exception {		
+	public void configure() throws Exception {
+		if (stageConfiguration != null) {
+			stageConfiguration.registerStage(getContext(), getPayloadPublisherUri(), "multipart-payload-publisher");
+			stageConfiguration.registerStage(getContext(), getEbxmlResponseSenderUri(), "ebxml-response-sender");
+		}
+		
 		configureMultipartReceiver();
 		configurePayloadPublisher();
 		configureEbxmlResponseSender();
+		
+		if (payloadJournal != null) {
+			// Re-publish any payloads recovered from the journal once the routes are running
+			getContext().addStartupListener(new JournalReplayer(payloadJournal, getPayloadPublisherUri()));
+		}
 	}
 	
 	/**
@@ -93,26 +171,74 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 	 * The payload is extracted and sent for publishing via a separate route
 	 */
 	private void configureMultipartReceiver() {
-		from(multipartReceiverUri)
+		final ProcessorDefinition<?> route = from(multipartReceiverUri)
 			// Start publishing the payload after the initial HTTP response has been sent
+			// Known duplicates are acknowledged instead
 			.onCompletion().onCompleteOnly()
-				.setBody(property(PAYLOAD_PROPERTY))
-				.to(ExchangePattern.InOnly, getPayloadPublisherUri())
+				.choice()
+					.when(property(EarlyDuplicateDetector.DUPLICATE_PROPERTY).isNotNull())
+						.setBody(method(new Acknowledger(duplicateMessageDetector), "getAcknowledgement"))
+						.to(ExchangePattern.InOnly, getEbxmlResponseSenderUri())
+					.endChoice()
+					.otherwise()
+						.setBody(property(PAYLOAD_PROPERTY))
+						.doTry()
+							.to(ExchangePattern.InOnly, getPayloadPublisherUri())
+						.doCatch(Exception.class)
+							// The publisher stage never received the payload (e.g. the stage is full) - no ack is
+							// sent so spine will resend the message
+							.process(AdmissionController.releaseRetainedTicket())
+							.bean(new PayloadReleaser(), "release")
+							.process(LOGGER.warn(camelLogMsg("Unable to queue spine multipart message payload for publishing")
+								.ebxmlMessageId("${property." + MANIFEST_PROPERTY + ".messageData.messageId}")
+								.service("${property." + MANIFEST_PROPERTY + ".service}")
+								.action("${property." + MANIFEST_PROPERTY + ".action}")
+								.eventName("queueing-spine-multipart-message-payload-error")))
+						.end()
+					.endChoice()
+				.end()
 			.end()
 			
-			.convertBodyTo(MultipartBody.class)
+			.setProperty(MultipartTypeConverter.SPOOL_THRESHOLD_PROPERTY, constant(spoolThreshold));
+		
+		if (duplicateMessageDetector != null) {
+			// Parse the manifest first - skipping the payload of known duplicates
+			route.process(new EarlyDuplicateDetector(duplicateMessageDetector));
+		}
+		
+		final ProcessorDefinition<?> receiver = route.convertBodyTo(MultipartBody.class)
 			
 			.process(LOGGER.info(camelLogMsg("Receieved incoming spine multipart message")
 				.eventName("receieved-spine-multipart-message")))
 			
 			.removeHeaders("*")
+			
+			.filter(property(EarlyDuplicateDetector.DUPLICATE_PROPERTY).isNotNull())
+				.process(LOGGER.info(camelLogMsg("Received duplicate spine multipart message - payload will not be processed")
+					.ebxmlMessageId("${property." + MANIFEST_PROPERTY + ".messageData.messageId}")
+					.service("${property." + MANIFEST_PROPERTY + ".service}")
+					.action("${property." + MANIFEST_PROPERTY + ".action}")
+					.eventName("received-duplicate-spine-multipart-message")))
+				.setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
+				.setBody(constant(""))
+				.stop()
+			.end()
+			
 			.process(new EbxmlManifestVerifier())
 	
 			// Store the payload in a property so it can be published after the main response is sent
-			.setProperty(PAYLOAD_PROPERTY).spel("#{body.parts[2].body}")
+			.setProperty(PAYLOAD_PROPERTY, method(new PayloadExtractor(), "getPayload"))
 			
-			// HTTP sync response
-			.setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
+			// Queued payloads continue to count towards the HTTP admission budget (if any) until published
+			.process(AdmissionController.retainTicket());
+		
+		if (payloadJournal != null) {
+			// The payload must be durable before it is accepted (group committed with concurrent requests)
+			receiver.bean(new JournalWriter(payloadJournal), "append");
+		}
+		
+		// HTTP sync response
+		receiver.setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
 			.setBody(constant(""))
 		.end();
 	}
@@ -125,7 +251,7 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 	 * determined by the type / content of the payload.
 	 */
 	private void configurePayloadPublisher() {
-		from(getPayloadPublisherUri())
+		final ProcessorDefinition<?> route = from(getPayloadPublisherUri())
 			// On failure - send ebxml delivery failure notification
 			.onCompletion().onFailureOnly()
 				.process(LOGGER.warn(camelLogMsg("Unable to publish spine multipart message")
@@ -140,7 +266,17 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 				.setBody().spel("#{body.generateDeliveryFailureNotification('Unable to deliver payload')}")
 				.to(ExchangePattern.InOnly, getEbxmlResponseSenderUri())
 			.end()
-	
+			
+			// The publisher owns any spooled payload content handed over by the receiver
+			.bean(new PayloadReleaser(), "releaseOnCompletion")
+			.process(AdmissionController.releaseTicketOnCompletion());
+		
+		if (payloadJournal != null) {
+			// Either the payload is published and acked, or a delivery failure notification is sent
+			route.bean(new JournalWriter(payloadJournal), "markDoneOnCompletion");
+		}
+		
+		route
 			// Publish payload message for processing - but only if not successfully processed already
 			.idempotentConsumer(simple("${property." + MANIFEST_PROPERTY + ".messageData.messageId}"),
 					idempotentRepository)
@@ -156,6 +292,11 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 						.action("${property.multipart-manifest.action}")
 						.receiverMHSPartyKey("${property.multipart-manifest.toParty}")
 						.eventName("publishing-spine-multipart-message-payload")))
+					
+					// Raw (spooled) payloads are published as bytes - they are not decoded into text
+					.filter(body().isInstanceOf(ByteSource.class))
+						.convertBodyTo(byte[].class)
+					.end()
 				
 					.to(ExchangePattern.InOnly, payloadDestinationUri)
 				.end()
@@ -163,6 +304,7 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 				// always send ebxml ack (i.e. if previously acked or if publishing was successful)
 				.setBody().property(MANIFEST_PROPERTY)
 				.setBody(simple("${body.generateAcknowledgment()}"))
+				.bean(new Acknowledger(duplicateMessageDetector), "messageAcknowledged")
 				.to(ExchangePattern.InOnly, getEbxmlResponseSenderUri())
 			.end()
 		.end();
@@ -170,6 +312,9 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 	
 	/**
 	 * Route to send outgoing ebxml acknowledgement and delivery fault async responses
+	 * <p>
+	 * The route is not transacted - if the destination uses a non-blocking client (e.g. <code>jetty</code>)
+	 * the sending thread is released while the HTTP response is awaited.
 	 */
 	// TODO: does outgoing ack response need retry logic / error hander?
 	private void configureEbxmlResponseSender() {
@@ -206,4 +351,175 @@ public class MultipartMessageReceiverRoute extends BaseRouteBuilder {
 			.end()
 		.end();
 	}
+	
+	// Processor / bean methods
+	// The methods can't live in the route builder - it causes havoc with the debug/tracer logging
+	
+	/**
+	 * Generates ebxml acknowledgements and records acknowledged messages with the (optional) duplicate detector
+	 */
+	public static class Acknowledger {
+		private final DuplicateMessageDetector detector;
+		
+		public Acknowledger(final DuplicateMessageDetector detector) {
+			this.detector = detector;
+		}
+		
+		/**
+		 * Returns the acknowledgement previously sent for the message (if cached) or generates a new acknowledgement
+		 */
+		public EbxmlEnvelope getAcknowledgement(@Property(MANIFEST_PROPERTY) final EbxmlEnvelope manifest) {
+			final EbxmlEnvelope acknowledgement = detector == null ? null
+					: detector.getAcknowledgement(manifest.getMessageData().getMessageId());
+			return acknowledgement == null ? manifest.generateAcknowledgment() : acknowledgement;
+		}
+		
+		public void messageAcknowledged(@Property(MANIFEST_PROPERTY) final EbxmlEnvelope manifest,
+				@Body final EbxmlEnvelope acknowledgement) {
+			if (detector != null) {
+				detector.messageAcknowledged(manifest.getMessageData().getMessageId(), acknowledgement);
+			}
+		}
+	}
+	
+	/**
+	 * Appends incoming payloads to the journal and marks them as done once they have been handled
+	 */
+	public static class JournalWriter {
+		private final PayloadJournal journal;
+		
+		public JournalWriter(final PayloadJournal journal) {
+			this.journal = journal;
+		}
+		
+		public void append(final Exchange exchange, @Property(MANIFEST_PROPERTY) final EbxmlEnvelope manifest,
+				@Property(PAYLOAD_PROPERTY) final Object payload) throws IOException {
+			final String id = manifest.getMessageData().getMessageId();
+			final String serializedManifest = exchange.getContext().getTypeConverter().convertTo(String.class, exchange, manifest);
+			journal.append(id, serializedManifest, payload);
+			exchange.setProperty(JOURNAL_ID_PROPERTY, id);
+		}
+		
+		public void markDoneOnCompletion(final Exchange exchange) {
+			final String id = exchange.getProperty(JOURNAL_ID_PROPERTY, String.class);
+			if (id == null) {
+				return;
+			}
+			
+			// Only mark the entry once (the properties may be copied to further exchanges)
+			exchange.removeProperty(JOURNAL_ID_PROPERTY);
+			exchange.addOnCompletion(new SynchronizationAdapter() {
+				@Override
+				public void onDone(final Exchange exchange) {
+					journal.markDone(id);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Releases the reference to spooled payload content retained by {@link PayloadExtractor}
+	 */
+	public static class PayloadReleaser {
+		/**
+		 * Releases the payload content when the publishing exchange completes
+		 */
+		public void releaseOnCompletion(final Exchange exchange, @Body final Object payload) {
+			if (payload instanceof SpooledByteSource) {
+				((SpooledByteSource) payload).releaseOnCompletion(exchange);
+			}
+		}
+		
+		/**
+		 * Releases the payload content immediately (e.g. it could not be handed to the publisher)
+		 */
+		public void release(@Body final Object payload) {
+			if (payload instanceof SpooledByteSource) {
+				((SpooledByteSource) payload).release();
+			}
+		}
+	}
+	
+	/**
+	 * Sends the payloads recovered from the journal to the payload publisher when the context starts
+	 */
+	public static class JournalReplayer implements StartupListener {
+		private final PayloadJournal journal;
+		private final String payloadPublisherUri;
+		
+		public JournalReplayer(final PayloadJournal journal, final String payloadPublisherUri) {
+			this.journal = journal;
+			this.payloadPublisherUri = payloadPublisherUri;
+		}
+		
+		@Override
+		public void onCamelContextStarted(final CamelContext context, final boolean alreadyStarted) throws Exception {
+			final List<PayloadJournal.Entry> entries = journal.takeRecoveredEntries();
+			if (entries.isEmpty()) {
+				return;
+			}
+			
+			final ProducerTemplate producerTemplate = context.createProducerTemplate();
+			try {
+				for (final PayloadJournal.Entry entry: entries) {
+					producerTemplate.send(payloadPublisherUri, ExchangePattern.InOnly, new Processor() {
+						@Override
+						public void process(final Exchange exchange) throws Exception {
+							exchange.setProperty(MANIFEST_PROPERTY, exchange.getContext().getTypeConverter()
+									.mandatoryConvertTo(EbxmlEnvelope.class, exchange, entry.getManifest()));
+							exchange.setProperty(JOURNAL_ID_PROPERTY, entry.getId());
+							exchange.getIn().setBody(entry.getPayload());
+						}
+					});
+				}
+			} finally {
+				producerTemplate.stop();
+			}
+		}
+	}
+	
+	/**
+	 * Extracts the payload body from the multipart message
+	 * <p>
+	 * The payload is the (non-HL7) part referenced by the manifest, looked up by Content-Id. Raw
+	 * (spooled) bodies are not decoded: a reference to the spooled content is retained and handed to
+	 * the publisher, which releases it once the payload has been published. The reference is released
+	 * here if the request fails before the payload is handed over.
+	 */
+	public static class PayloadExtractor {
+		public Object getPayload(final Exchange exchange, @Body final MultipartBody body,
+				@Property(MANIFEST_PROPERTY) final EbxmlEnvelope manifest) throws IOException {
+			Part part = findPayloadPart(body, manifest);
+			if (part == null) {
+				// Fall back to the standard position of the ITK part
+				part = body.getParts().get(2);
+			}
+			
+			final Object payload = part.getBody();
+			if (payload instanceof SpooledByteSource) {
+				final SpooledByteSource source = ((SpooledByteSource) payload).retain();
+				source.releaseOnFailure(exchange);
+				return source;
+			} else if (payload instanceof ByteSource) {
+				return ((ByteSource) payload).read();
+			}
+			
+			return payload;
+		}
+		
+		private Part findPayloadPart(final MultipartBody body, final EbxmlEnvelope manifest) {
+			if (manifest == null) {
+				return null;
+			}
+			
+			for (final ManifestReference reference: manifest.getManifestReferences()) {
+				final String href = reference.getHref();
+				if (!reference.isHl7() && href != null && href.toLowerCase().startsWith("cid:")) {
+					return body.findPartByContentId(href.substring(4));
+				}
+			}
+			
+			return null;
+		}
+	}
 }
\ No newline at end of file
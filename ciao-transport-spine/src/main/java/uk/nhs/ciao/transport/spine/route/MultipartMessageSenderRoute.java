@@ -8,20 +8,26 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.apache.activemq.ScheduledMessage;
 import org.apache.camel.Endpoint;
 import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
+import org.apache.camel.Message;
 import org.apache.camel.Processor;
-import org.apache.camel.component.http4.HttpMethods;
+import org.apache.camel.model.ProcessorDefinition;
 import org.apache.camel.processor.aggregate.UseOriginalAggregationStrategy;
 import org.apache.camel.processor.idempotent.MemoryIdempotentRepository;
 import org.apache.camel.spring.spi.TransactionErrorHandlerBuilder;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.camel.util.IntrospectionSupport;
 
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.SettableFuture;
 
 import uk.nhs.ciao.camel.BaseRouteBuilder;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
+import uk.nhs.ciao.transport.spine.concurrency.DestinationConcurrencyLimiter;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlAckScanner;
 import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
 import uk.nhs.ciao.transport.spine.forwardexpress.ForwardExpressMessageExchange;
 import uk.nhs.ciao.transport.spine.multipart.MultipartBody;
@@ -32,11 +38,29 @@ import uk.nhs.ciao.transport.spine.multipart.MultipartBody;
  * <li>Sends a multi-part trunk request message over the spine
  * <li>Blocks until an async ebXml ack is received off a configured JMS topic or a timeout occurs
  * <li>Marks message as success, retry or failure based on the ACK content
+ * </ul>
+ * If a {@link DestinationConcurrencyLimiter} is configured, messages for a destination which has
+ * reached its concurrency limit are re-queued (after a delay) rather than blocking a sender thread.
+ * The delay is requested via the ActiveMQ scheduler - if a re-queued message is redelivered before the
+ * delay has passed (i.e. the broker does not have scheduler support enabled) it is re-queued again
+ * straight away. Sender threads never wait for the delay.
  */
 public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 	private static final CiaoCamelLogger LOGGER = CiaoCamelLogger.getLogger(MultipartMessageSenderRoute.class);
 	
+	/**
+	 * Header containing the MHS party key of the receiver - used to apply per-destination concurrency limits
+	 */
+	public static final String HEADER_RECEIVER_MHS_PARTY_KEY = "spineReceiverMHSPartyKey";
+	
+	/**
+	 * Header containing the time (in millis) before which a re-queued message should not be redelivered
+	 */
+	public static final String HEADER_REQUEUE_NOT_BEFORE = "spineRequeueNotBefore";
+	
 	private final Set<String> inprogressIds = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+	private final EbxmlAckHeaders ebxmlAckHeaders = new EbxmlAckHeaders();
+	private final RequeueDelay requeueDelayHandler = new RequeueDelay();
 	private String multipartMessageSenderUri;
 	private String multipartMessageDestinationUri;
 	private String ebxmlAckReceiverUri;
@@ -45,6 +69,11 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 	private int redeliveryDelay = 2000;
 	private int aggregatorTimeout = 30000;
 	
+	// optional properties
+	private DestinationConcurrencyLimiter destinationConcurrencyLimiter;
+	private String multipartMessageRequeueUri;
+	private long requeueDelay = 1000;
+	
 	public void setMultipartMessageSenderUri(final String multipartMessageSenderUri) {
 		this.multipartMessageSenderUri = multipartMessageSenderUri;
 	}
@@ -73,6 +102,35 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 		this.aggregatorTimeout = aggregatorTimeout;
 	}
 	
+	/**
+	 * Limiter used to restrict the number of in-flight messages per destination
+	 * <p>
+	 * If not specified, messages are not limited by destination
+	 */
+	public void setDestinationConcurrencyLimiter(final DestinationConcurrencyLimiter destinationConcurrencyLimiter) {
+		this.destinationConcurrencyLimiter = destinationConcurrencyLimiter;
+	}
+	
+	/**
+	 * URI where messages for a saturated destination are re-queued to
+	 * <p>
+	 * output only - if not specified, the multipart message sender URI is used
+	 */
+	public void setMultipartMessageRequeueUri(final String multipartMessageRequeueUri) {
+		this.multipartMessageRequeueUri = multipartMessageRequeueUri;
+	}
+	
+	/**
+	 * Delay (in milliseconds) before a re-queued message is redelivered
+	 * <p>
+	 * The delay is requested via the ActiveMQ scheduler. If the broker does not have scheduler support
+	 * enabled, the message is redelivered immediately and is re-queued again (without being sent) until
+	 * the delay has passed - the sender thread is not blocked, but the message cycles through the queue.
+	 */
+	public void setRequeueDelay(final long requeueDelay) {
+		this.requeueDelay = requeueDelay;
+	}
+	
 	private String getForwardExpressHandlerUrl() {
 		return internalDirectUri("forward-express-handler");
 	}
@@ -108,7 +166,7 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 	 * @see #configureForwardExpressHandler()
 	 */
 	private void configureMultipartMessageSender() throws Exception {
-		from(multipartMessageSenderUri)
+		final ProcessorDefinition<?> sender = from(multipartMessageSenderUri)
 			.id("trunk-request-sender")
 			.errorHandler(new TransactionErrorHandlerBuilder()
 				.maximumRedeliveries(0)) // redeliveries are handled by the onException clause
@@ -135,13 +193,43 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 				.setBody().spel("#{body.generateDeliveryFailureNotification(\"Maximum redelivery attempts exhausted\")}")
 				.to(ExchangePattern.InOnly, multipartMessageResponseUri)
 			.end()
-			.transacted("PROPAGATION_NOT_SUPPORTED")
-
-			/*
-			 * do all handling in a separate route - on retry all logic will be retried
-			 * see http://camel.apache.org/how-do-i-retry-processing-a-message-from-a-certain-point-back-or-an-entire-route.html
-			 */
-			.to(getForwardExpressHandlerUrl())
+			.transacted("PROPAGATION_NOT_SUPPORTED");
+		
+		if (destinationConcurrencyLimiter != null) {
+			final String requeueUri = multipartMessageRequeueUri == null ? multipartMessageSenderUri : multipartMessageRequeueUri;
+			
+			// Messages redelivered early were not delayed by the broker - reject them back onto the queue
+			// (keeping the original not-before time) rather than holding the sender thread
+			sender.filter(method(requeueDelayHandler, "isEarly"))
+				.process(LOGGER.debug(camelLogMsg("Re-queued spine multipart message was redelivered before the requested delay - "
+						+ "the broker may not have scheduler support enabled, will re-queue again")
+					.documentId(header(Exchange.CORRELATION_ID))
+					.receiverMHSPartyKey("${header." + HEADER_RECEIVER_MHS_PARTY_KEY + "}")
+					.eventName("spine-multipart-message-requeue-not-delayed")))
+				.setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, method(requeueDelayHandler, "getRemainingDelay"))
+				.to(ExchangePattern.InOnly, requeueUri)
+				.stop()
+			.end()
+			.removeHeader(HEADER_REQUEUE_NOT_BEFORE);
+			
+			// Saturated destinations are re-queued instead of tying up the sender thread
+			sender.filter(not(method(new DestinationPermitAcquirer(), "tryAcquire")))
+				.process(LOGGER.info(camelLogMsg("Spine destination is saturated - will re-queue multipart message")
+					.documentId(header(Exchange.CORRELATION_ID))
+					.receiverMHSPartyKey("${header." + HEADER_RECEIVER_MHS_PARTY_KEY + "}")
+					.eventName("spine-multipart-message-requeued")))
+				.setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, constant(requeueDelay))
+				.setHeader(HEADER_REQUEUE_NOT_BEFORE, method(requeueDelayHandler, "getNotBefore"))
+				.to(ExchangePattern.InOnly, requeueUri)
+				.stop()
+			.end();
+		}
+		
+		/*
+		 * do all handling in a separate route - on retry all logic will be retried
+		 * see http://camel.apache.org/how-do-i-retry-processing-a-message-from-a-certain-point-back-or-an-entire-route.html
+		 */
+		sender.to(getForwardExpressHandlerUrl())
 		.end();
 	}
 
@@ -161,7 +249,7 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 			.errorHandler(noErrorHandler()) // disable error handler (the transaction handler from the top-level caller will be used)
 			.doTry()
 				.setHeader(ForwardExpressMessageExchange.MESSAGE_TYPE, constant(ForwardExpressMessageExchange.REQUEST_MESSAGE))
-				.setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.POST))
+				.setHeader(Exchange.HTTP_METHOD, constant("POST")) // plain string - understood by both http4 and jetty producers
 		
 				.multicast(new UseOriginalAggregationStrategy() {
 					@Override
@@ -182,7 +270,7 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 				.to(getForwardExpressAggregatorUrl())
 				.process(new ForwardExpressMessageExchange.WaitForAck(aggregatorTimeout + 1000)) // timeout is slightly higher than the corresponding value in the aggregate
 				.validate().simple("${body.isComplete()}")
-				.setBody().simple("${body.getAckBody()}")
+				.bean(ebxmlAckHeaders, "extractAck")
 				
 				.to(getEbxmlAckProcessorUrl())
 			.endDoTry()
@@ -236,11 +324,18 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 	/**
 	 * Sends multipart requests (over HTTP) and processes the associated synchronous responses
 	 * (e.g. no-content success, SOAPError, etc)
+	 * <p>
+	 * Any HTTP component supporting the <code>throwExceptionOnFailure</code> option can be used for
+	 * the destination - e.g. the blocking <code>http4</code> component or the non-blocking <code>jetty</code>
+	 * client.
+	 * <p>
+	 * The calling route is transacted, so Camel processes the exchange synchronously - the calling
+	 * thread waits for the response whichever component is used. Asynchronous completion only applies
+	 * to the non-transacted ebXml response sender in {@link MultipartMessageReceiverRoute}.
 	 */
-	@SuppressWarnings("deprecation")
 	private void configureHttpRequestHandler() throws Exception {
 		final Endpoint endpoint = getContext().getEndpoint(multipartMessageDestinationUri);
-		endpoint.getEndpointConfiguration().setParameter("throwExceptionOnFailure", false);
+		IntrospectionSupport.setProperty(getContext().getTypeConverter(), endpoint, "throwExceptionOnFailure", false);
 		
 		from(getHttpRequestHandlerUrl())
 			.routeId(getInternalRoutePrefix() + "-http-request-handler")
@@ -345,19 +440,20 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 			.process(LOGGER.debug(camelLogMsg("Received ebXml acknowledgment")
 					.documentId(header(Exchange.CORRELATION_ID))))
 			
-			.convertBodyTo(EbxmlEnvelope.class)
+			// The ack fields are normally provided as headers by EbxmlAckReceiverRoute
+			.bean(ebxmlAckHeaders, "resolveHeaders")
 			.choice()
-				.when().simple("${body.errorMessage}")
+				.when(header(EbxmlAckScanner.HEADER_ERROR_MESSAGE).isEqualTo(true))
 					.pipeline()
 						.choice()
-							.when().simple("${body.error.warning}")
+							.when(header(EbxmlAckScanner.HEADER_ERROR_SEVERITY).isEqualTo(EbxmlEnvelope.ERROR_SEVERITY_WARNING))
 								.process(LOGGER.info(camelLogMsg("ebXml delivery failure (warning) received - will retry (if applicable)")
 									.documentId(header(Exchange.CORRELATION_ID))
-									.ebxmlMessageId("${body.messageData.messageId}")
-									.ebxmlRefToMessageId("${body.messageData.refToMessageId}")
-									.service("${body.service}")
-									.action("${body.action}")
-									.receiverMHSPartyKey("${body.toParty}")
+									.ebxmlMessageId("${header.spineEbxmlMessageId}")
+									.ebxmlRefToMessageId("${header.spineEbxmlRefToMessageId}")
+									.service("${header.spineEbxmlService}")
+									.action("${header.spineEbxmlAction}")
+									.receiverMHSPartyKey("${header.spineEbxmlToParty}")
 									.eventName("spine-multipart-message-delivery-warning")))
 								
 								.throwException(new Exception("ebXml delivery failure (error) received - will retry (if applicable)"))
@@ -365,11 +461,11 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 							.otherwise()
 								.process(LOGGER.info(camelLogMsg("ebXml delivery failure (warning) received - will not retry")
 									.documentId(header(Exchange.CORRELATION_ID))
-									.ebxmlMessageId("${body.messageData.messageId}")
-									.ebxmlRefToMessageId("${body.messageData.refToMessageId}")
-									.service("${body.service}")
-									.action("${body.action}")
-									.receiverMHSPartyKey("${body.toParty}")
+									.ebxmlMessageId("${header.spineEbxmlMessageId}")
+									.ebxmlRefToMessageId("${header.spineEbxmlRefToMessageId}")
+									.service("${header.spineEbxmlService}")
+									.action("${header.spineEbxmlAction}")
+									.receiverMHSPartyKey("${header.spineEbxmlToParty}")
 									.eventName("spine-multipart-message-delivery-error")))
 									
 								.to(ExchangePattern.InOnly, multipartMessageResponseUri)
@@ -381,11 +477,11 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 				.otherwise()
 					.process(LOGGER.info(camelLogMsg("ebXml ack received")
 						.documentId(header(Exchange.CORRELATION_ID))
-						.ebxmlMessageId("${body.messageData.messageId}")
-						.ebxmlRefToMessageId("${body.messageData.refToMessageId}")
-						.service("${body.service}")
-						.action("${body.action}")
-						.receiverMHSPartyKey("${body.toParty}")
+						.ebxmlMessageId("${header.spineEbxmlMessageId}")
+						.ebxmlRefToMessageId("${header.spineEbxmlRefToMessageId}")
+						.service("${header.spineEbxmlService}")
+						.action("${header.spineEbxmlAction}")
+						.receiverMHSPartyKey("${header.spineEbxmlToParty}")
 						.eventName("spine-multipart-message-ack")))
 					
 					.to(ExchangePattern.InOnly, multipartMessageResponseUri)
@@ -393,4 +489,95 @@ public class MultipartMessageSenderRoute extends BaseRouteBuilder {
 			.end()
 		.end();
 	}
+	
+	// Processor / bean methods
+	// The methods can't live in the route builder - it causes havoc with the debug/tracer logging
+	
+	/**
+	 * Acquires a destination permit for the exchange - the permit is released when the exchange completes
+	 */
+	public class DestinationPermitAcquirer {
+		public boolean tryAcquire(final Exchange exchange) {
+			final String destination = exchange.getIn().getHeader(HEADER_RECEIVER_MHS_PARTY_KEY, String.class);
+			if (!destinationConcurrencyLimiter.tryAcquire(destination)) {
+				return false;
+			}
+			
+			final long startTime = System.currentTimeMillis();
+			exchange.addOnCompletion(new SynchronizationAdapter() {
+				@Override
+				public void onDone(final Exchange exchange) {
+					// Retries, handled failures and outright failures are all treated as congestion signals
+					final boolean success = !exchange.isFailed()
+							&& !exchange.getProperty(Exchange.FAILURE_HANDLED, false, Boolean.class)
+							&& !exchange.getIn().getHeader(Exchange.REDELIVERED, false, Boolean.class);
+					destinationConcurrencyLimiter.release(destination, System.currentTimeMillis() - startTime, success);
+				}
+			});
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * Determines whether a re-queued message has been redelivered before the requested delay has passed
+	 */
+	public class RequeueDelay {
+		public long getNotBefore() {
+			return System.currentTimeMillis() + requeueDelay;
+		}
+		
+		public boolean isEarly(final Exchange exchange) {
+			return getRemainingDelay(exchange) > 0;
+		}
+		
+		public long getRemainingDelay(final Exchange exchange) {
+			final Long notBefore = exchange.getIn().getHeader(HEADER_REQUEUE_NOT_BEFORE, Long.class);
+			return notBefore == null ? 0 : Math.max(0, notBefore - System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * Provides the ebXml ack fields (see {@link EbxmlAckScanner}) as headers on the exchange
+	 * <p>
+	 * The fields are normally extracted once by {@link EbxmlAckReceiverRoute} and travel with the
+	 * JMS message - the XML is only scanned again if an ack is received without them.
+	 */
+	public static class EbxmlAckHeaders {
+		private final EbxmlAckScanner scanner = new EbxmlAckScanner();
+		
+		/**
+		 * Replaces the aggregated message exchange body with the body and ack headers of the async ack
+		 */
+		public void extractAck(final Exchange exchange) {
+			final Message message = exchange.getIn();
+			final ForwardExpressMessageExchange messageExchange = message.getBody(ForwardExpressMessageExchange.class);
+			final Exchange ack = messageExchange.getAck();
+			
+			message.setBody(messageExchange.getAckBody());
+			for (final String name: EbxmlAckScanner.HEADERS) {
+				final Object value = ack.getIn().getHeader(name);
+				if (value != null) {
+					message.setHeader(name, value);
+				}
+			}
+		}
+		
+		/**
+		 * Adds the ack headers to the exchange (if they are not already present)
+		 */
+		public void resolveHeaders(final Exchange exchange) throws Exception {
+			final Message message = exchange.getIn();
+			if (message.getHeader(EbxmlAckScanner.HEADER_ERROR_MESSAGE) != null) {
+				return;
+			}
+			
+			final Object body = message.getBody();
+			if (body instanceof EbxmlEnvelope) {
+				message.getHeaders().putAll(EbxmlAckScanner.getHeaders((EbxmlEnvelope)body));
+			} else {
+				message.getHeaders().putAll(scanner.scan(message.getMandatoryBody(String.class)));
+			}
+		}
+	}
 }
@@ -15,6 +15,7 @@ import uk.nhs.ciao.transport.spine.address.SpineEndpointAddress;
 import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
 import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.ManifestReference;
 import uk.nhs.ciao.transport.spine.hl7.HL7Part;
+import uk.nhs.ciao.transport.spine.hl7.HL7PartFragmentSerializer;
 import uk.nhs.ciao.transport.spine.multipart.MultipartBody;
 import uk.nhs.ciao.transport.spine.multipart.Part;
 
@@ -35,6 +36,7 @@ public class SpineDistributionEnvelopeSenderRoute extends DistributionEnvelopeSe
 	// optional properties
 	private EbxmlEnvelope prototypeEbxmlManifest;
 	private HL7Part prototypeHl7Part;
+	private HL7PartFragmentSerializer hl7PartSerializer = new HL7PartFragmentSerializer();
 	
 	/**
 	 * URI where outgoing multi-part messages are sent to
@@ -76,6 +78,9 @@ public class SpineDistributionEnvelopeSenderRoute extends DistributionEnvelopeSe
 	 */
 	public void setPrototypeHl7Part(final HL7Part prototype) {
 		prototypeHl7Part = prototype;
+		
+		// The sender sections are constant for all parts built from the prototype
+		hl7PartSerializer = new HL7PartFragmentSerializer(prototype);
 	}
 	
 	@Override
@@ -104,6 +109,7 @@ public class SpineDistributionEnvelopeSenderRoute extends DistributionEnvelopeSe
 			.bean(new EbxmlManifestBuilder())
 			.setHeader(Exchange.CORRELATION_ID).simple("${body.messageData.messageId}")
 			.setHeader("SOAPAction").simple("${body.service}/${body.action}")
+			.setHeader(MultipartMessageSenderRoute.HEADER_RECEIVER_MHS_PARTY_KEY).simple("${body.toParty}")
 			.setProperty("ebxmlManifest").body()
 			
 			// add hl7 part
@@ -127,7 +133,9 @@ public class SpineDistributionEnvelopeSenderRoute extends DistributionEnvelopeSe
 				.receiverMHSPartyKey("${property.ebxmlManifest.toParty}")
 				.eventName("constructed-spine-multipart-message")))
 			
-			.convertBodyTo(String.class)
+			// The message must be serialized to queue it on JMS - the queued bytes are sent
+			// over HTTP without re-encoding
+			.convertBodyTo(byte[].class)
 			
 			.to(multipartMessageSenderUri)
 		.end();
@@ -246,8 +254,9 @@ public class SpineDistributionEnvelopeSenderRoute extends DistributionEnvelopeSe
 	 */
 	public class MultipartBodyBuilder {
 		public MultipartBody createMultipartBody(@Property("ebxmlManifest") final EbxmlEnvelope ebxmlManifest,
-				@Property("hl7Part") final String hl7Payload,
+				@Property("hl7Part") final HL7Part hl7Part,
 				@Property("distributionEnvelope") final String itkPayload) throws Exception {
+			final String hl7Payload = hl7PartSerializer.serialize(hl7Part);
 			final MultipartBody body = new MultipartBody();
 			final Part ebxmlPart = body.addPart("text/xml", ebxmlManifest);
 			final String hl7Id = body.addPart("application/xml; charset=UTF-8", hl7Payload).getContentId();
@@ -0,0 +1,80 @@
+package uk.nhs.ciao.transport.spine.concurrency;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DestinationConcurrencyLimiter}
+ */
+public class DestinationConcurrencyLimiterTest {
+	private DestinationConcurrencyLimiter limiter;
+
+	@Before
+	public void setup() {
+		limiter = new DestinationConcurrencyLimiter();
+		limiter.setInitialLimit(2);
+		limiter.setMinLimit(1);
+		limiter.setMaxLimit(4);
+		limiter.setLatencyThreshold(1000);
+		limiter.setBackoffRatio(0.5);
+	}
+
+	@Test
+	public void testSaturatedDestinationIsRejected() {
+		assertTrue(limiter.tryAcquire("slow"));
+		assertTrue(limiter.tryAcquire("slow"));
+		assertFalse(limiter.tryAcquire("slow"));
+		assertEquals(2, limiter.getInFlight("slow"));
+		assertEquals(1, limiter.getRejectedCount());
+	}
+
+	@Test
+	public void testDestinationsAreIsolated() {
+		assertTrue(limiter.tryAcquire("slow"));
+		assertTrue(limiter.tryAcquire("slow"));
+		assertFalse(limiter.tryAcquire("slow"));
+
+		assertTrue(limiter.tryAcquire("healthy"));
+		assertEquals(1, limiter.getInFlight("healthy"));
+	}
+
+	@Test
+	public void testUnknownDestinationIsNotLimited() {
+		for (int index = 0; index < 10; index++) {
+			assertTrue(limiter.tryAcquire(null));
+		}
+		assertTrue(limiter.getInFlightCounts().isEmpty());
+	}
+
+	@Test
+	public void testLimitIsReducedOnFailure() {
+		assertTrue(limiter.tryAcquire("dest"));
+		limiter.release("dest", 10, false);
+
+		assertEquals(1, limiter.getLimit("dest"));
+		assertEquals(0, limiter.getInFlight("dest"));
+	}
+
+	@Test
+	public void testLimitIsReducedOnSlowAck() {
+		assertTrue(limiter.tryAcquire("dest"));
+		limiter.release("dest", 5000, true);
+
+		assertEquals(1, limiter.getLimit("dest"));
+	}
+
+	@Test
+	public void testLimitGrowsUpToMaximumOnFastAcks() {
+		for (int index = 0; index < 100; index++) {
+			assertTrue(limiter.tryAcquire("dest"));
+			assertTrue(limiter.tryAcquire("dest"));
+			limiter.release("dest", 10, true);
+			limiter.release("dest", 10, true);
+		}
+
+		assertEquals(4, limiter.getLimit("dest"));
+		assertEquals(Integer.valueOf(4), limiter.getLimits().get("dest"));
+	}
+}
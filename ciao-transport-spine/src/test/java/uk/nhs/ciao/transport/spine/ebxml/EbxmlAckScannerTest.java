@@ -0,0 +1,79 @@
+package uk.nhs.ciao.transport.spine.ebxml;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Unit tests for {@link EbxmlAckScanner}
+ */
+public class EbxmlAckScannerTest {
+	private EbxmlAckScanner scanner;
+
+	@Before
+	public void setup() {
+		scanner = new EbxmlAckScanner();
+	}
+
+	@Test
+	public void testScanAck() throws Exception {
+		final Map<String, Object> headers = scan("./test-ack.xml");
+
+		assertEquals(Boolean.TRUE, headers.get(EbxmlAckScanner.HEADER_ACKNOWLEDGMENT));
+		assertEquals(Boolean.FALSE, headers.get(EbxmlAckScanner.HEADER_ERROR_MESSAGE));
+		assertNull(headers.get(EbxmlAckScanner.HEADER_ERROR_SEVERITY));
+		assertEquals("F5FECB6E-E891-4381-94AA-E5106A990B04", headers.get(EbxmlAckScanner.HEADER_MESSAGE_ID));
+		assertEquals("5F21C7C0-6CD2-4A50-A879-F3241BA7BE29", headers.get(EbxmlAckScanner.HEADER_REF_TO_MESSAGE_ID));
+		assertEquals("AAA-123456", headers.get(EbxmlAckScanner.HEADER_TO_PARTY));
+		assertEquals("Acknowledgment", headers.get(EbxmlAckScanner.HEADER_ACTION));
+	}
+
+	@Test
+	public void testScanError() throws Exception {
+		final Map<String, Object> headers = scan("./test-error.xml");
+
+		assertEquals(Boolean.FALSE, headers.get(EbxmlAckScanner.HEADER_ACKNOWLEDGMENT));
+		assertEquals(Boolean.TRUE, headers.get(EbxmlAckScanner.HEADER_ERROR_MESSAGE));
+		assertEquals(EbxmlEnvelope.ERROR_SEVERITY_ERROR, headers.get(EbxmlAckScanner.HEADER_ERROR_SEVERITY));
+	}
+
+	@Test
+	public void testScanMatchesParsedEnvelope() throws Exception {
+		final EbxmlEnvelopeParser parser = new EbxmlEnvelopeParser();
+		for (final String resourceName: new String[] {"./test-ack.xml", "./test-error.xml", "./test-delivery-failure.xml"}) {
+			final InputStream in = getClass().getResourceAsStream(resourceName);
+			try {
+				final EbxmlEnvelope envelope = parser.parse(in);
+				assertEquals(resourceName, EbxmlAckScanner.getHeaders(envelope), scan(resourceName));
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	@Test
+	public void testSeverityIsNormalised() throws Exception {
+		final EbxmlEnvelope envelope = new EbxmlEnvelope();
+		envelope.addError().setSeverity("warning");
+
+		assertEquals(EbxmlEnvelope.ERROR_SEVERITY_WARNING,
+				EbxmlAckScanner.getHeaders(envelope).get(EbxmlAckScanner.HEADER_ERROR_SEVERITY));
+	}
+
+	@Test(expected=IOException.class)
+	public void testInvalidXmlIsRejected() throws Exception {
+		scanner.scan("<soap:Envelope");
+	}
+
+	private Map<String, Object> scan(final String resourceName) throws IOException {
+		return scanner.scan(Resources.toString(getClass().getResource(resourceName), Charsets.UTF_8));
+	}
+}
@@ -0,0 +1,111 @@
+package uk.nhs.ciao.transport.spine.ebxml;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * JMH comparison of the Digester/freemarker and StAX/fragment ebXml implementations
+ * <p>
+ * Not run as part of the unit tests - run via {@link #main(String[])} from the test classpath
+ * (the benchmark classes are generated by the JMH annotation processor during test-compile).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class EbxmlEnvelopeBenchmark {
+	@Param({"./test-ack.xml", "./test-error.xml", "./test-manifest.xml"})
+	public String resourceName;
+	
+	private byte[] xml;
+	private EbxmlEnvelope manifest;
+	private EbxmlEnvelopeParser digesterParser;
+	private EbxmlEnvelopeStaxParser staxParser;
+	private EbxmlEnvelopeSerializer templateSerializer;
+	private EbxmlEnvelopeFragmentSerializer fragmentSerializer;
+	
+	@Setup
+	public void setup() throws Exception {
+		final InputStream in = getClass().getResourceAsStream(resourceName);
+		try {
+			xml = ByteStreams.toByteArray(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		
+		digesterParser = new EbxmlEnvelopeParser();
+		staxParser = new EbxmlEnvelopeStaxParser();
+		templateSerializer = new EbxmlEnvelopeSerializer();
+		fragmentSerializer = new EbxmlEnvelopeFragmentSerializer();
+		manifest = staxParser.parse(new ByteArrayInputStream(xml));
+	}
+	
+	@Benchmark
+	public EbxmlEnvelope parseDigester() throws Exception {
+		return digesterParser.parse(new ByteArrayInputStream(xml));
+	}
+	
+	@Benchmark
+	public EbxmlEnvelope parseStax() throws Exception {
+		return staxParser.parse(new ByteArrayInputStream(xml));
+	}
+	
+	@Benchmark
+	public String serializeAckTemplate() throws Exception {
+		return templateSerializer.serialize(manifest.generateAcknowledgment());
+	}
+	
+	@Benchmark
+	public String serializeAckFragments() {
+		return fragmentSerializer.serialize(manifest.generateAcknowledgment());
+	}
+	
+	@Benchmark
+	public String serializeDeliveryFailureTemplate() throws Exception {
+		return templateSerializer.serialize(manifest.generateDeliveryFailureNotification("Unable to deliver payload"));
+	}
+	
+	@Benchmark
+	public String serializeDeliveryFailureFragments() {
+		return fragmentSerializer.serialize(manifest.generateDeliveryFailureNotification("Unable to deliver payload"));
+	}
+	
+	@Benchmark
+	public String serializeEnvelopeTemplate() throws Exception {
+		return templateSerializer.serialize(manifest);
+	}
+	
+	@Benchmark
+	public String serializeEnvelopeFragments() {
+		return fragmentSerializer.serialize(manifest);
+	}
+	
+	public static void main(final String[] args) throws Exception {
+		final Options options = new OptionsBuilder()
+			.include(EbxmlEnvelopeBenchmark.class.getSimpleName())
+			.addProfiler("gc")
+			.build();
+		new Runner(options).run();
+	}
+}
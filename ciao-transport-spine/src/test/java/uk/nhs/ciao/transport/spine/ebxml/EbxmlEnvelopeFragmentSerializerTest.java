@@ -0,0 +1,98 @@
+package uk.nhs.ciao.transport.spine.ebxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link EbxmlEnvelopeFragmentSerializer}
+ * <p>
+ * The serialized documents are compared against the output of the freemarker-based
+ * {@link EbxmlEnvelopeSerializer}
+ */
+public class EbxmlEnvelopeFragmentSerializerTest {
+	private EbxmlEnvelopeParser parser;
+	private EbxmlEnvelopeSerializer templateSerializer;
+	private EbxmlEnvelopeFragmentSerializer serializer;
+	
+	@Before
+	public void setup() throws Exception {
+		parser = new EbxmlEnvelopeParser();
+		templateSerializer = new EbxmlEnvelopeSerializer();
+		serializer = new EbxmlEnvelopeFragmentSerializer();
+	}
+	
+	@Test
+	public void testSerializeAck() throws Exception {
+		assertRoundtrip(parseResource("./test-ack.xml"));
+	}
+	
+	@Test
+	public void testSerializeError() throws Exception {
+		assertRoundtrip(parseResource("./test-error.xml"));
+	}
+	
+	@Test
+	public void testSerializeDeliveryFailure() throws Exception {
+		assertRoundtrip(parseResource("./test-delivery-failure.xml"));
+	}
+	
+	@Test
+	public void testSerializeManifest() throws Exception {
+		assertRoundtrip(parseResource("./test-manifest.xml"));
+	}
+	
+	@Test
+	public void testSerializeGeneratedResponses() throws Exception {
+		final EbxmlEnvelope manifest = parseResource("./test-manifest.xml");
+		
+		assertRoundtrip(manifest.generateAcknowledgment());
+		assertRoundtrip(manifest.generateDeliveryFailureNotification("Unable to deliver payload"));
+		assertRoundtrip(manifest.generateSOAPFault(EbxmlEnvelope.ERROR_CODE_CLIENT, "Invalid <message> & 'content'"));
+	}
+	
+	@Test
+	public void testValuesAreEscaped() throws Exception {
+		final EbxmlEnvelope envelope = new EbxmlEnvelope();
+		envelope.setService("<service> & \"quoted\" 'text' é€ & more");
+		envelope.applyDefaults();
+		
+		final String xml = serializer.serialize(envelope);
+		assertTrue(xml.contains("&lt;service&gt; &amp; &quot;quoted&quot; &#39;text&#39; é€ &amp; more"));
+		assertEquals(xml, new String(serializer.serializeToBytes(envelope), Charsets.UTF_8));
+		assertRoundtrip(envelope);
+	}
+	
+	/**
+	 * Checks that the fragment output is parsed into the same envelope as the template output
+	 * <p>
+	 * The parsed envelope may differ from the original (e.g. ackRequested defaults to true when parsed)
+	 */
+	private void assertRoundtrip(final EbxmlEnvelope envelope) throws Exception {
+		final EbxmlEnvelope expected = parse(templateSerializer.serialize(envelope));
+		final EbxmlEnvelope actual = parse(serializer.serialize(envelope));
+		
+		ReflectionAssert.assertReflectionEquals(expected, actual);
+	}
+	
+	private EbxmlEnvelope parseResource(final String resourceName) throws Exception {
+		final InputStream in = getClass().getResourceAsStream(resourceName);
+		try {
+			return parser.parse(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+	
+	private EbxmlEnvelope parse(final String xml) throws Exception {
+		return parser.parse(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)));
+	}
+}
@@ -0,0 +1,96 @@
+package uk.nhs.ciao.transport.spine.ebxml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link EbxmlEnvelopeStaxParser}
+ * <p>
+ * The results are compared against the Digester-based {@link EbxmlEnvelopeParser}
+ */
+public class EbxmlEnvelopeStaxParserTest {
+	private EbxmlEnvelopeStaxParser parser;
+	private EbxmlEnvelopeParser digesterParser;
+	
+	@Before
+	public void setup() throws Exception {
+		parser = new EbxmlEnvelopeStaxParser();
+		digesterParser = new EbxmlEnvelopeParser();
+	}
+	
+	@Test
+	public void testParseAck() throws IOException {
+		assertSameAsDigester("./test-ack.xml");
+	}
+	
+	@Test
+	public void testParseError() throws IOException {
+		assertSameAsDigester("./test-error.xml");
+	}
+	
+	@Test
+	public void testParseDeliveryFailure() throws IOException {
+		assertSameAsDigester("./test-delivery-failure.xml");
+	}
+	
+	@Test
+	public void testParseManifest() throws IOException {
+		assertSameAsDigester("./test-manifest.xml");
+	}
+	
+	@Test
+	public void testElementsInOtherNamespacesAreIgnored() throws IOException {
+		final String xml = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\""
+				+ " xmlns:eb=\"http://www.oasis-open.org/committees/ebxml-msg/schema/msg-header-2_0.xsd\">"
+				+ "<soap:Header><eb:MessageHeader>"
+				+ "<other:Service xmlns:other=\"urn:other\">ignored</other:Service>"
+				+ "<eb:Action> trimmed <other:Nested xmlns:other=\"urn:other\">ignored</other:Nested></eb:Action>"
+				+ "</eb:MessageHeader></soap:Header></soap:Envelope>";
+		
+		final EbxmlEnvelope expected = digesterParser.parse(toStream(xml));
+		final EbxmlEnvelope actual = parser.parse(toStream(xml));
+		
+		ReflectionAssert.assertReflectionEquals(expected, actual);
+		assertNull(actual.getService());
+		assertEquals("trimmed", actual.getAction());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testInvalidXmlIsRejected() throws IOException {
+		parser.parse(toStream("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"));
+	}
+	
+	private void assertSameAsDigester(final String resourceName) throws IOException {
+		final EbxmlEnvelope expected = parse(digesterParser, resourceName);
+		
+		InputStream in = getClass().getResourceAsStream(resourceName);
+		try {
+			ReflectionAssert.assertReflectionEquals(expected, parser.parse(in));
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+	
+	private EbxmlEnvelope parse(final EbxmlEnvelopeParser parser, final String resourceName) throws IOException {
+		final InputStream in = getClass().getResourceAsStream(resourceName);
+		try {
+			return parser.parse(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+	
+	private InputStream toStream(final String xml) {
+		return new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8));
+	}
+}
@@ -0,0 +1,90 @@
+package uk.nhs.ciao.transport.spine.hl7;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * JMH comparison of the Digester/freemarker and StAX/fragment HL7 part implementations
+ * <p>
+ * Not run as part of the unit tests - run via {@link #main(String[])} from the test classpath
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HL7PartBenchmark {
+	private byte[] xml;
+	private HL7Part part;
+	private HL7PartParser digesterParser;
+	private HL7PartStaxParser staxParser;
+	private HL7PartSerializer templateSerializer;
+	private HL7PartFragmentSerializer fragmentSerializer;
+	
+	@Setup
+	public void setup() throws Exception {
+		final InputStream in = getClass().getResourceAsStream("test-hl7.xml");
+		try {
+			xml = ByteStreams.toByteArray(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		
+		digesterParser = new HL7PartParser();
+		staxParser = new HL7PartStaxParser();
+		part = staxParser.parse(new ByteArrayInputStream(xml));
+		
+		final HL7Part prototype = new HL7Part();
+		prototype.setSenderAsid(part.getSenderAsid());
+		prototype.setAgentSystemAsid(part.getAgentSystemAsid());
+		templateSerializer = new HL7PartSerializer();
+		fragmentSerializer = new HL7PartFragmentSerializer(prototype);
+	}
+	
+	@Benchmark
+	public HL7Part parseDigester() throws Exception {
+		return digesterParser.parse(new ByteArrayInputStream(xml));
+	}
+	
+	@Benchmark
+	public HL7Part parseStax() throws Exception {
+		return staxParser.parse(new ByteArrayInputStream(xml));
+	}
+	
+	@Benchmark
+	public String serializeTemplate() throws Exception {
+		return templateSerializer.serialize(part);
+	}
+	
+	@Benchmark
+	public String serializeFragments() throws Exception {
+		return fragmentSerializer.serialize(part);
+	}
+	
+	public static void main(final String[] args) throws Exception {
+		final Options options = new OptionsBuilder()
+			.include(HL7PartBenchmark.class.getSimpleName())
+			.addProfiler("gc")
+			.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,91 @@
+package uk.nhs.ciao.transport.spine.hl7;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Unit tests for {@link HL7PartFragmentSerializer}
+ */
+public class HL7PartFragmentSerializerTest {
+	private HL7Part prototype;
+	private HL7PartFragmentSerializer serializer;
+	private HL7PartSerializer templateSerializer;
+	private HL7PartParser parser;
+	
+	@Before
+	public void setup() throws Exception {
+		prototype = new HL7Part();
+		prototype.setSenderAsid("000000000000");
+		
+		serializer = new HL7PartFragmentSerializer(prototype);
+		templateSerializer = new HL7PartSerializer();
+		parser = new HL7PartParser();
+	}
+	
+	@Test
+	public void testSerializePartFromPrototype() throws IOException {
+		final HL7Part part = createPart();
+		part.copyFrom(prototype, false);
+		part.applyDefaults();
+		
+		assertSameAsTemplate(part);
+		assertTrue(serializer.serialize(part).contains("<id extension=\"000000000000\""));
+	}
+	
+	@Test
+	public void testSerializePartWithOtherSender() throws IOException {
+		final HL7Part part = createPart();
+		part.setSenderAsid("111111111111");
+		part.setAgentSystemAsid("222222222222");
+		
+		assertSameAsTemplate(part);
+		
+		final String xml = serializer.serialize(part);
+		assertFalse(xml.contains("000000000000"));
+		assertTrue(xml.contains("<id extension=\"222222222222\""));
+	}
+	
+	@Test
+	public void testSerializeWithoutPrototype() throws IOException {
+		final HL7Part part = createPart();
+		part.setReceiverAsid("<receiver> & 'asid'");
+		
+		final HL7Part expected = parse(templateSerializer.serialize(part));
+		final HL7Part actual = parse(new HL7PartFragmentSerializer().serialize(part));
+		ReflectionAssert.assertReflectionEquals(expected, actual);
+		assertEquals("<receiver> & 'asid'", actual.getReceiverAsid());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testInteractionIdIsRequired() throws IOException {
+		serializer.serialize(new HL7Part());
+	}
+	
+	private HL7Part createPart() {
+		final HL7Part part = new HL7Part();
+		part.setInteractionId("COPC_IN000001GB01");
+		part.setReceiverAsid("866971180017");
+		part.setId("43D71317-C71C-427E-B780-5BF73B2EE99E");
+		part.setCreationTime("20150603082736");
+		return part;
+	}
+	
+	private void assertSameAsTemplate(final HL7Part part) throws IOException {
+		final HL7Part expected = parse(templateSerializer.serialize(part));
+		final HL7Part actual = parse(serializer.serialize(part));
+		ReflectionAssert.assertReflectionEquals(expected, actual);
+		ReflectionAssert.assertReflectionEquals(part, actual);
+	}
+	
+	private HL7Part parse(final String xml) throws IOException {
+		return parser.parse(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)));
+	}
+}
@@ -0,0 +1,80 @@
+package uk.nhs.ciao.transport.spine.hl7;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link HL7PartStaxParser}
+ * <p>
+ * The results are compared against the Digester-based {@link HL7PartParser}
+ */
+public class HL7PartStaxParserTest {
+	private HL7PartStaxParser parser;
+	private HL7PartParser digesterParser;
+	
+	@Before
+	public void setup() throws Exception {
+		parser = new HL7PartStaxParser();
+		digesterParser = new HL7PartParser();
+	}
+	
+	@Test
+	public void testParseExample() throws IOException {
+		final HL7Part expected;
+		InputStream in = getClass().getResourceAsStream("test-hl7.xml");
+		try {
+			expected = digesterParser.parse(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		
+		final HL7Part actual;
+		in = getClass().getResourceAsStream("test-hl7.xml");
+		try {
+			actual = parser.parse(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		
+		ReflectionAssert.assertReflectionEquals(expected, actual);
+		assertEquals("000000000000", actual.getAgentSystemAsid());
+		assertEquals("866971180017", actual.getReceiverAsid());
+	}
+	
+	@Test
+	public void testElementsOutsideKnownPathsAreIgnored() throws IOException {
+		final String xml = "<MCCI_IN010000UK13 xmlns=\"urn:hl7-org:v3\">"
+				+ "<communicationFunctionRcv><other><id extension=\"ignored\"/></other></communicationFunctionRcv>"
+				+ "<ControlActEvent><author><AgentSystemSDS><agentSystemSDS><id extension=\"ignored\"/>"
+				+ "</agentSystemSDS></AgentSystemSDS></author></ControlActEvent>"
+				+ "<interactionId extension=\"MCCI_IN010000UK13\"/>"
+				+ "</MCCI_IN010000UK13>";
+		
+		final HL7Part expected = digesterParser.parse(toStream(xml));
+		final HL7Part actual = parser.parse(toStream(xml));
+		
+		ReflectionAssert.assertReflectionEquals(expected, actual);
+		assertEquals("MCCI_IN010000UK13", actual.getInteractionId());
+		assertNull(actual.getReceiverAsid());
+		assertNull(actual.getAgentSystemAsid());
+	}
+	
+	@Test
+	public void testRootOutsideHl7NamespaceIsNotParsed() throws IOException {
+		assertNull(parser.parse(toStream("<COPC_IN000001GB01><id root=\"1234\"/></COPC_IN000001GB01>")));
+	}
+	
+	private InputStream toStream(final String xml) {
+		return new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8));
+	}
+}
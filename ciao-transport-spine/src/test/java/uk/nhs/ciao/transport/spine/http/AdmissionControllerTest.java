@@ -0,0 +1,101 @@
+package uk.nhs.ciao.transport.spine.http;
+
+import static org.junit.Assert.*;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.transport.spine.http.AdmissionController.Ticket;
+
+/**
+ * Unit tests for {@link AdmissionController}
+ */
+public class AdmissionControllerTest {
+	private CamelContext context;
+	private AdmissionController controller;
+
+	@Before
+	public void setup() {
+		context = new DefaultCamelContext();
+		controller = new AdmissionController();
+		controller.setMaxRequestSize(1000);
+		controller.setMaxInFlightBytes(1500);
+		controller.setMaxInFlightRequests(3);
+		controller.setRetryAfter(10);
+	}
+
+	@Test
+	public void testOversizedRequestIsRejected() throws Exception {
+		final Exchange exchange = createExchange(1001);
+		controller.process(exchange);
+
+		assertEquals(413, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+		assertTrue(exchange.getProperty(Exchange.ROUTE_STOP, false, Boolean.class));
+		assertEquals(1, controller.getRejectedTooLargeCount());
+		assertEquals(0, controller.getInFlightRequests());
+	}
+
+	@Test
+	public void testRequestIsRejectedWhenByteBudgetIsExceeded() throws Exception {
+		assertNotNull(controller.tryAdmit(1000));
+
+		final Exchange exchange = createExchange(600);
+		controller.process(exchange);
+
+		assertEquals(503, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+		assertEquals(10, exchange.getIn().getHeader("Retry-After"));
+		assertEquals(1, controller.getRejectedOverloadedCount());
+		assertEquals(1000, controller.getInFlightBytes());
+	}
+
+	@Test
+	public void testRequestIsRejectedWhenRequestBudgetIsExceeded() {
+		assertNotNull(controller.tryAdmit(1));
+		assertNotNull(controller.tryAdmit(1));
+		assertNotNull(controller.tryAdmit(1));
+		assertNull(controller.tryAdmit(1));
+
+		assertEquals(3, controller.getInFlightRequests());
+		assertEquals(3, controller.getAdmittedCount());
+	}
+
+	@Test
+	public void testReservationIsReturnedWhenLastReferenceIsReleased() {
+		final Ticket ticket = controller.tryAdmit(1000);
+		assertTrue(ticket.retain());
+
+		ticket.release();
+		assertEquals(1000, controller.getInFlightBytes());
+		assertEquals(1, controller.getInFlightRequests());
+
+		ticket.release();
+		assertEquals(0, controller.getInFlightBytes());
+		assertEquals(0, controller.getInFlightRequests());
+
+		// Released tickets cannot be retained or released again
+		assertFalse(ticket.retain());
+		ticket.release();
+		assertEquals(0, controller.getInFlightRequests());
+	}
+
+	@Test
+	public void testAdmittedRequestStoresTicket() throws Exception {
+		final Exchange exchange = createExchange(500);
+		controller.process(exchange);
+
+		assertNull(exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+		assertNotNull(exchange.getProperty(AdmissionController.TICKET_PROPERTY, Ticket.class));
+		assertEquals(500, controller.getInFlightBytes());
+	}
+
+	private Exchange createExchange(final long contentLength) {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setHeader(Exchange.CONTENT_LENGTH, contentLength);
+		exchange.getIn().setBody("body");
+		return exchange;
+	}
+}
@@ -0,0 +1,76 @@
+package uk.nhs.ciao.transport.spine.http;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link HttpServerConnectionStatistics}
+ */
+public class HttpServerConnectionStatisticsTest {
+	private HttpServerConnectionStatistics statistics;
+
+	@Before
+	public void setup() throws Exception {
+		statistics = new HttpServerConnectionStatistics();
+		statistics.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		statistics.stop();
+	}
+
+	@Test
+	public void testReusedConnectionsAreCounted() throws Exception {
+		statistics.process(createExchange(1000, null));
+		statistics.process(createExchange(1000, null));
+		statistics.process(createExchange(1001, null));
+
+		assertEquals(3, statistics.getRequests());
+		assertEquals(2, statistics.getNewConnections());
+		assertEquals(1, statistics.getReusedConnections());
+		assertEquals(0, statistics.getFullHandshakes());
+	}
+
+	@Test
+	public void testResumedSessionsAreCounted() throws Exception {
+		statistics.process(createExchange(1000, "session1"));
+		statistics.process(createExchange(1001, "session1"));
+		statistics.process(createExchange(1002, "session2"));
+
+		// A request on an existing connection does not involve a handshake
+		statistics.process(createExchange(1002, "session2"));
+
+		assertEquals(2, statistics.getFullHandshakes());
+		assertEquals(1, statistics.getResumedHandshakes());
+	}
+
+	@Test
+	public void testRequestsAreIgnoredWhenStopped() throws Exception {
+		statistics.stop();
+		statistics.process(createExchange(1000, null));
+
+		assertEquals(0, statistics.getRequests());
+	}
+
+	private Exchange createExchange(final int remotePort, final String sessionId) {
+		final HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+		when(request.getRemotePort()).thenReturn(remotePort);
+		when(request.isSecure()).thenReturn(sessionId != null);
+		when(request.getAttribute("javax.servlet.request.ssl_session_id")).thenReturn(sessionId);
+
+		final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		exchange.getIn().setHeader(Exchange.HTTP_SERVLET_REQUEST, request);
+		return exchange;
+	}
+}
@@ -0,0 +1,104 @@
+package uk.nhs.ciao.transport.spine.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.util.jsse.KeyManagersParameters;
+import org.apache.camel.util.jsse.KeyStoreParameters;
+import org.apache.camel.util.jsse.SSLContextParameters;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SpineConnectionManager}
+ */
+public class SpineConnectionManagerTest {
+	private final HttpRoute route = new HttpRoute(new HttpHost("localhost", 8123));
+	private SpineConnectionManager manager;
+
+	@Before
+	public void setup() throws Exception {
+		manager = new SpineConnectionManager(new SSLContextParameters());
+		manager.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.stop();
+	}
+
+	@Test
+	public void testInvalidKeyStoreIsReportedOnStart() throws Exception {
+		final KeyStoreParameters keyStore = new KeyStoreParameters();
+		keyStore.setResource("missing-keystore.jks");
+		keyStore.setPassword("password");
+
+		final KeyManagersParameters keyManagers = new KeyManagersParameters();
+		keyManagers.setKeyStore(keyStore);
+		keyManagers.setKeyPassword("password");
+
+		final SSLContextParameters parameters = new SSLContextParameters();
+		parameters.setKeyManagers(keyManagers);
+
+		// Construction (e.g. when the spring context is loaded) must not fail
+		final SpineConnectionManager invalidManager = new SpineConnectionManager(parameters);
+		try {
+			invalidManager.start();
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			invalidManager.stop();
+		}
+	}
+
+	@Test
+	public void testPoolSurvivesShutdownOfOneShare() throws Exception {
+		final HttpClientConnectionManager http = manager.share();
+		final HttpClientConnectionManager https = manager.share();
+		assertEquals(3, manager.getReferenceCount());
+
+		// Repeated shutdowns of the same share only release one reference
+		http.shutdown();
+		http.shutdown();
+		assertEquals(2, manager.getReferenceCount());
+
+		final HttpClientConnection connection = https.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+		https.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+		assertEquals(1, manager.getConnectionRequests());
+	}
+
+	@Test
+	public void testPoolIsShutdownWhenAllReferencesAreReleased() throws Exception {
+		final HttpClientConnectionManager share = manager.share();
+		manager.stop();
+
+		// Still referenced by the share
+		assertEquals(1, manager.getReferenceCount());
+		final HttpClientConnection connection = share.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+		share.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+
+		share.shutdown();
+		assertEquals(0, manager.getReferenceCount());
+		try {
+			manager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+			fail("Expected the pool to be shut down");
+		} catch (Exception e) {
+			// expected
+		}
+
+		try {
+			manager.share();
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package uk.nhs.ciao.transport.spine.idempotent;
+
+import static org.junit.Assert.*;
+
+import org.apache.camel.processor.idempotent.MemoryIdempotentRepository;
+import org.apache.camel.spi.IdempotentRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
+
+/**
+ * Unit tests for {@link DuplicateMessageDetector}
+ */
+public class DuplicateMessageDetectorTest {
+	private IdempotentRepository<String> repository;
+	private DuplicateMessageDetector detector;
+
+	@Before
+	public void setup() throws Exception {
+		repository = MemoryIdempotentRepository.memoryIdempotentRepository();
+		detector = new DuplicateMessageDetector(repository);
+		detector.setExpectedInsertions(10);
+		detector.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		detector.stop();
+	}
+
+	@Test
+	public void testUnknownMessageIsFilteredWithoutRepositoryLookup() {
+		// Present in the repository (e.g. processed by another node) but not seen locally
+		repository.add("message-1");
+
+		assertFalse(detector.isDuplicate("message-1"));
+		assertEquals(1, detector.getCheckedCount());
+		assertEquals(1, detector.getFilteredCount());
+		assertEquals(0, detector.getDuplicateCount());
+	}
+
+	@Test
+	public void testAcknowledgedMessageIsDuplicate() {
+		final EbxmlEnvelope ack = new EbxmlEnvelope();
+		repository.add("message-1");
+		detector.messageAcknowledged("message-1", ack);
+
+		assertTrue(detector.isDuplicate("message-1"));
+		assertEquals(1, detector.getDuplicateCount());
+		assertSame(ack, detector.getAcknowledgement("message-1"));
+	}
+
+	@Test
+	public void testRepositoryIsAuthoritative() {
+		// Filter reports a possible match but the repository no longer contains the entry
+		detector.messageAcknowledged("message-1", null);
+
+		assertFalse(detector.isDuplicate("message-1"));
+		assertNull(detector.getAcknowledgement("message-1"));
+	}
+
+	@Test
+	public void testFilterIsSeededFromRepositoryOnStart() throws Exception {
+		detector.stop();
+		repository.add("message-1");
+		detector.start();
+
+		assertTrue(detector.isDuplicate("message-1"));
+		assertEquals(0, detector.getFilteredCount());
+	}
+
+	@Test
+	public void testPreviousGenerationIsRetainedAfterRotation() {
+		for (int index = 0; index < 15; index++) {
+			final String messageId = "message-" + index;
+			repository.add(messageId);
+			detector.messageAcknowledged(messageId, null);
+		}
+
+		assertTrue(detector.isDuplicate("message-0"));
+		assertTrue(detector.isDuplicate("message-14"));
+	}
+}
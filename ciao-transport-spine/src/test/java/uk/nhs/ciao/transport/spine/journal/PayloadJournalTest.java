@@ -0,0 +1,247 @@
+package uk.nhs.ciao.transport.spine.journal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link PayloadJournal}
+ */
+public class PayloadJournalTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File folder;
+	private PayloadJournal journal;
+
+	@Before
+	public void setup() throws Exception {
+		folder = temporaryFolder.newFolder("journal");
+		journal = startJournal();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		journal.stop();
+	}
+
+	@Test
+	public void testPendingEntriesAreRecovered() throws Exception {
+		journal.append("1", "<manifest-1/>", "text payload");
+		journal.append("2", "<manifest-2/>", new byte[] {1, 2, 3});
+		assertEquals(2, journal.getPendingCount());
+
+		restartJournal();
+
+		final List<PayloadJournal.Entry> entries = journal.takeRecoveredEntries();
+		assertEquals(2, entries.size());
+		assertEquals("1", entries.get(0).getId());
+		assertEquals("<manifest-1/>", entries.get(0).getManifest());
+		assertEquals("text payload", entries.get(0).getPayload());
+		assertEquals("2", entries.get(1).getId());
+		assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) entries.get(1).getPayload());
+
+		// entries can only be taken once - but remain pending until marked as done
+		assertTrue(journal.takeRecoveredEntries().isEmpty());
+		assertEquals(2, journal.getPendingCount());
+	}
+
+	@Test
+	public void testDoneEntriesAreNotRecovered() throws Exception {
+		journal.append("1", "<manifest-1/>", "first");
+		journal.append("2", "<manifest-2/>", "second");
+		journal.markDone("1");
+
+		restartJournal();
+
+		final List<PayloadJournal.Entry> entries = journal.takeRecoveredEntries();
+		assertEquals(1, entries.size());
+		assertEquals("2", entries.get(0).getId());
+	}
+
+	@Test
+	public void testRepeatedAppendSupersedesPendingEntry() throws Exception {
+		journal.stop();
+		journal = new PayloadJournal(folder);
+		journal.setSegmentSize(100);
+		journal.start();
+
+		journal.append("1", "<manifest/>", "a payload which fills the segment quickly");
+		journal.append("1", "<manifest/>", "a resent payload which fills the segment quickly");
+		assertEquals(1, journal.getPendingCount());
+
+		// The superseded entry no longer holds its segment
+		journal.markDone("1");
+		journal.append("last", "<manifest/>", "a payload which fills the segment quickly");
+		assertEquals(1, folder.listFiles().length);
+
+		restartJournal();
+		final List<PayloadJournal.Entry> entries = journal.takeRecoveredEntries();
+		assertEquals(1, entries.size());
+		assertEquals("last", entries.get(0).getId());
+	}
+
+	@Test
+	public void testTornRecordIsIgnored() throws Exception {
+		journal.append("1", "<manifest-1/>", "first");
+		journal.stop();
+
+		// simulate a partial write at the end of the segment
+		final File[] segments = folder.listFiles();
+		assertEquals(1, segments.length);
+		appendBytes(segments[0], new byte[] {0, 0, 0, 100, 1, 2});
+
+		journal = startJournal();
+		final List<PayloadJournal.Entry> entries = journal.takeRecoveredEntries();
+		assertEquals(1, entries.size());
+		assertEquals("1", entries.get(0).getId());
+	}
+
+	@Test
+	public void testFailedCommitIsDiscarded() throws Exception {
+		journal.stop();
+		final AtomicBoolean failForce = new AtomicBoolean();
+		journal = new PayloadJournal(folder) {
+			@Override
+			protected void force(final FileChannel channel) throws IOException {
+				if (failForce.getAndSet(false)) {
+					throw new IOException("Simulated force failure");
+				}
+				super.force(channel);
+			}
+		};
+		journal.start();
+
+		journal.append("1", "<manifest-1/>", "first");
+		failForce.set(true);
+		try {
+			journal.append("2", "<manifest-2/>", "second");
+			fail("Expected the append to fail");
+		} catch (IOException e) {
+			// expected
+		}
+		journal.append("3", "<manifest-3/>", "third");
+
+		// The failed payload was never pending
+		assertEquals(2, journal.getPendingCount());
+
+		// Records committed after the failed batch are recovered
+		restartJournal();
+		final List<PayloadJournal.Entry> entries = journal.takeRecoveredEntries();
+		assertEquals(2, entries.size());
+		assertEquals("1", entries.get(0).getId());
+		assertEquals("3", entries.get(1).getId());
+		assertEquals(0, journal.getCorruptRecordCount());
+	}
+
+	@Test
+	public void testCorruptRecordIsSkipped() throws Exception {
+		final File segment = folder.listFiles()[0];
+		journal.append("1", "<manifest-1/>", "first");
+		journal.append("2", "<manifest-2/>", "second");
+		final long corruptPosition = segment.length() - 1; // last byte of the second payload
+		journal.append("3", "<manifest-3/>", "third");
+		journal.stop();
+
+		final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(corruptPosition);
+			final int value = file.read();
+			file.seek(corruptPosition);
+			file.write(value ^ 0xFF);
+		} finally {
+			file.close();
+		}
+
+		journal = startJournal();
+		final List<PayloadJournal.Entry> entries = journal.takeRecoveredEntries();
+		assertEquals(2, entries.size());
+		assertEquals("1", entries.get(0).getId());
+		assertEquals("3", entries.get(1).getId());
+		assertEquals(1, journal.getCorruptRecordCount());
+	}
+
+	@Test
+	public void testCompletedSegmentsAreDeleted() throws Exception {
+		journal.stop();
+		journal = new PayloadJournal(folder);
+		journal.setSegmentSize(100);
+		journal.start();
+
+		for (int index = 0; index < 5; index++) {
+			journal.append(Integer.toString(index), "<manifest/>", "a payload which fills the segment quickly");
+		}
+		for (int index = 0; index < 5; index++) {
+			journal.markDone(Integer.toString(index));
+		}
+		journal.append("last", "<manifest/>", "a payload which fills the segment quickly");
+
+		// only the current segment (containing the last payload) remains
+		assertEquals(0, journal.getQueuedWriteCount());
+		assertEquals(1, folder.listFiles().length);
+		assertEquals(1, journal.getPendingCount());
+	}
+
+	@Test
+	public void testConcurrentAppendsShareCommits() throws Exception {
+		final int threadCount = 8;
+		final int appendsPerThread = 20;
+		final Thread[] threads = new Thread[threadCount];
+		for (int thread = 0; thread < threadCount; thread++) {
+			final int threadIndex = thread;
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int index = 0; index < appendsPerThread; index++) {
+						try {
+							journal.append(threadIndex + "-" + index, "<manifest/>", "payload");
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				}
+			});
+			threads[thread].start();
+		}
+
+		for (final Thread thread: threads) {
+			thread.join();
+		}
+
+		assertEquals(threadCount * appendsPerThread, journal.getAppendCount());
+		assertEquals(threadCount * appendsPerThread, journal.getPendingCount());
+		assertTrue(journal.getCommitCount() <= journal.getAppendCount());
+	}
+
+	private PayloadJournal startJournal() throws Exception {
+		final PayloadJournal journal = new PayloadJournal(folder);
+		journal.start();
+		return journal;
+	}
+
+	private void restartJournal() throws Exception {
+		journal.stop();
+		journal = startJournal();
+	}
+
+	private void appendBytes(final File file, final byte[] bytes) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package uk.nhs.ciao.transport.spine.multipart;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MultipartBody}
+ */
+public class MultipartBodyTest {
+	@Test
+	public void testFindPartByContentId() {
+		final MultipartBody body = new MultipartBody();
+		final Part first = body.addPart("text/xml", "first");
+		final Part second = body.addPart("text/xml", "second");
+		
+		assertSame(first, body.findPartByContentId(first.getContentId()));
+		assertSame(second, body.findPartByRawContentId(second.getRawContentId()));
+		assertNull(body.findPartByContentId("unknown"));
+		assertNull(body.findPartByContentId(null));
+	}
+	
+	@Test
+	public void testFindPartByContentIdReflectsModifiedParts() {
+		final MultipartBody body = new MultipartBody();
+		final Part first = body.addPart("text/xml", "first");
+		assertSame(first, body.findPartByContentId(first.getContentId()));
+		
+		// Parts added after the index is built
+		final Part second = body.addPart("text/xml", "second");
+		assertSame(second, body.findPartByContentId(second.getContentId()));
+		
+		// Content id changed after the index is built
+		final String previousContentId = first.getContentId();
+		first.setContentId("updated");
+		assertNull(body.findPartByContentId(previousContentId));
+		assertSame(first, body.findPartByContentId("updated"));
+		
+		// Part removed after the index is built
+		body.getParts().remove(second);
+		assertNull(body.findPartByContentId(second.getContentId()));
+	}
+}
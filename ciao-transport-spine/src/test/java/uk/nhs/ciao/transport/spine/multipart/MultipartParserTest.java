@@ -0,0 +1,122 @@
+package uk.nhs.ciao.transport.spine.multipart;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.spi.Synchronization;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteSource;
+
+/**
+ * Unit tests for {@link MultipartParser}
+ */
+public class MultipartParserTest {
+	private static final String CONTENT_TYPE = "multipart/related; boundary=\"--=_MIME-Boundary\"";
+	private static final String LATIN1_TEXT = "caf\u00e9";
+	
+	private MultipartParser parser;
+	private String largeText;
+	private byte[] message;
+	
+	@Before
+	public void setup() throws Exception {
+		parser = new MultipartParser();
+		largeText = Strings.repeat("0123456789", 100);
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("----=_MIME-Boundary\r\n"
+				+ "Content-Type: text/plain; charset=ISO-8859-1\r\n\r\n").getBytes(Charsets.US_ASCII));
+		out.write(LATIN1_TEXT.getBytes(Charsets.ISO_8859_1));
+		out.write(("\r\n----=_MIME-Boundary\r\n"
+				+ "Content-Type: text/xml\r\n\r\n").getBytes(Charsets.US_ASCII));
+		out.write(largeText.getBytes(Charsets.UTF_8));
+		out.write("\r\n----=_MIME-Boundary--\r\n".getBytes(Charsets.US_ASCII));
+		message = out.toByteArray();
+	}
+	
+	@Test
+	public void testBodiesAreDecodedUsingDeclaredCharset() throws Exception {
+		final MultipartBody body = parser.parse(CONTENT_TYPE, new ByteArrayInputStream(message));
+		
+		assertEquals(2, body.getParts().size());
+		assertEquals(LATIN1_TEXT, body.getParts().get(0).getBody());
+		assertEquals(largeText, body.getParts().get(1).getBody());
+	}
+	
+	@Test
+	public void testRawBodiesAreDecodedOnDemand() throws Exception {
+		parser.setSpoolThreshold(100);
+		final MultipartBody body = parser.parse(CONTENT_TYPE, new ByteArrayInputStream(message));
+		
+		final Part smallPart = body.getParts().get(0);
+		assertTrue(smallPart.getBody() instanceof ByteSource);
+		assertArrayEquals(LATIN1_TEXT.getBytes(Charsets.ISO_8859_1), smallPart.getBody(byte[].class));
+		assertEquals(LATIN1_TEXT, smallPart.getBody(String.class));
+		
+		// spooled to disk
+		final Part largePart = body.getParts().get(1);
+		assertTrue(largePart.getBody() instanceof ByteSource);
+		assertEquals(largeText, largePart.getMandatoryBody(String.class));
+		assertEquals(largeText.length(), ((ByteSource)largePart.getBody()).size());
+	}
+	
+	@Test
+	public void testSpooledBodiesAreReleasedWhenExchangeCompletes() throws Exception {
+		parser.setSpoolThreshold(100);
+		final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		final MultipartBody body = parser.parse(CONTENT_TYPE, exchange, new ByteArrayInputStream(message));
+		
+		final ByteSource largeBody = (ByteSource)body.getParts().get(1).getBody();
+		assertEquals(largeText.length(), largeBody.size());
+		
+		for (final Synchronization synchronization: exchange.handoverCompletions()) {
+			synchronization.onComplete(exchange);
+		}
+		
+		// The spooled file has been deleted
+		assertEquals(0, largeBody.size());
+	}
+	
+	@Test
+	public void testRetainedSpooledBodiesOutliveTheExchange() throws Exception {
+		parser.setSpoolThreshold(100);
+		final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		final MultipartBody body = parser.parse(CONTENT_TYPE, exchange, new ByteArrayInputStream(message));
+		
+		final SpooledByteSource largeBody = ((SpooledByteSource)body.getParts().get(1).getBody()).retain();
+		for (final Synchronization synchronization: exchange.handoverCompletions()) {
+			synchronization.onComplete(exchange);
+		}
+		
+		// Still readable by the new owner
+		assertEquals(largeText.length(), largeBody.size());
+		
+		largeBody.release();
+		assertEquals(0, largeBody.size());
+	}
+	
+	@Test
+	public void testRawBodiesAreWrittenUnchanged() throws Exception {
+		parser.setSpoolThreshold(0);
+		final MultipartBody body = parser.parse(CONTENT_TYPE, new ByteArrayInputStream(message));
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.write(out);
+		assertEquals(out.size(), body.getContentLength());
+		
+		// Re-parse the written bytes
+		parser.setSpoolThreshold(MultipartParser.DECODE_BODIES);
+		final MultipartBody actual = parser.parse(CONTENT_TYPE, new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(LATIN1_TEXT, actual.getParts().get(0).getBody());
+		assertEquals(largeText, actual.getParts().get(1).getBody());
+	}
+}
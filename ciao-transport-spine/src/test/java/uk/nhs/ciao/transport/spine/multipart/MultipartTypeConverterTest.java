@@ -2,6 +2,7 @@ package uk.nhs.ciao.transport.spine.multipart;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -24,6 +25,7 @@ import org.slf4j.LoggerFactory;
 
 import uk.nhs.ciao.camel.CamelUtils;
 
+import com.google.common.base.Charsets;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Closeables;
 
@@ -129,6 +131,43 @@ public class MultipartTypeConverterTest {
 		assertEquals("the second part", actual.getParts().get(1).getBody(String.class));
 	}
 	
+	/**
+	 * Tests that the pre-computed content length matches the number of bytes written (including
+	 * multi-byte characters)
+	 */
+	@Test
+	public void testContentLengthMatchesSerializedLength() throws IOException {
+		final MultipartBody body = new MultipartBody();
+		body.setBoundary(boundary);
+		body.setPreamble("preamble");
+		body.addPart("text/xml", "<root>the first part \u00e9\u20ac</root>").setRawContentId(start);
+		body.addPart("application/octet-stream", new byte[] {1, 2, 3, 4});
+		body.setEpilogue("epilogue");
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.write(out);
+		
+		assertEquals(out.size(), body.getContentLength());
+		assertEquals(out.size(), MultipartTypeConverter.toByteArray(body).length);
+	}
+	
+	/**
+	 * Tests that String part bodies are encoded using the charset declared by the part
+	 */
+	@Test
+	public void testStringPartsUseDeclaredCharset() throws IOException {
+		final String text = "caf\u00e9";
+		final MultipartBody body = new MultipartBody();
+		body.setBoundary(boundary);
+		body.addPart("text/plain; charset=ISO-8859-1", text).setRawContentId(start);
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.write(out);
+		assertEquals(out.size(), body.getContentLength());
+		
+		assertTrue(new String(out.toByteArray(), Charsets.ISO_8859_1).contains(text));
+	}
+	
 	/**
 	 * Asserts the multi-part body contains values matching the 'trunk-test.multipart' fixture
 	 */
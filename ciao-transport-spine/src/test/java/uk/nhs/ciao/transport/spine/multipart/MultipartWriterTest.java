@@ -0,0 +1,107 @@
+package uk.nhs.ciao.transport.spine.multipart;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link MultipartWriter}
+ */
+public class MultipartWriterTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private MultipartBody body;
+	
+	@Before
+	public void setup() {
+		body = new MultipartBody();
+		body.setBoundary("--=_MIME-Boundary");
+		body.addPart("text/xml", "<root>the first part \u00e9</root>").setRawContentId("<first-part>");
+		body.addPart("application/octet-stream", new byte[] {1, 2, 3, 4});
+		body.getParts().get(1).addHeader("X-Custom", "value1");
+		body.getParts().get(1).addHeader("X-Custom", "value2");
+	}
+	
+	@Test
+	public void testStreamOutput() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new MultipartWriter(body).write(out);
+		
+		final String actual = new String(out.toByteArray(), Charsets.UTF_8);
+		assertTrue(actual.startsWith("----=_MIME-Boundary\r\nContent-Id: <first-part>\r\n"));
+		assertTrue(actual.contains("<root>the first part \u00e9</root>\r\n----=_MIME-Boundary\r\n"));
+		assertTrue(actual.contains("X-Custom: value1\r\nX-Custom: value2\r\n"));
+		assertTrue(actual.endsWith("\r\n----=_MIME-Boundary--\r\n"));
+		assertEquals(body.getContentLength(), out.size());
+	}
+	
+	@Test
+	public void testChannelOutputMatchesStreamOutput() throws Exception {
+		body.setPreamble("preamble");
+		body.setEpilogue("epilogue");
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new MultipartWriter(body).write(out);
+		
+		final File file = folder.newFile();
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			assertEquals(out.size(), new MultipartWriter(body).write(channel));
+		} finally {
+			randomAccessFile.close();
+		}
+		
+		assertArrayEquals(out.toByteArray(), Files.toByteArray(file));
+	}
+	
+	/**
+	 * Raw (spooled) bodies must be streamed to the channel rather than read into memory
+	 */
+	@Test
+	public void testChannelOutputStreamsRawBodies() throws Exception {
+		final byte[] bytes = "<root>the spooled part</root>".getBytes(Charsets.UTF_8);
+		body.addPart("text/xml", new ByteSource() {
+			@Override
+			public InputStream openStream() throws IOException {
+				return new ByteArrayInputStream(bytes);
+			}
+			
+			@Override
+			public byte[] read() throws IOException {
+				throw new AssertionError("The raw body should not be read into memory");
+			}
+		});
+		
+		final File file = folder.newFile();
+		final long written;
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			written = new MultipartWriter(body).write(channel);
+		} finally {
+			randomAccessFile.close();
+		}
+		assertEquals(written, file.length());
+		
+		final String actual = new String(Files.toByteArray(file), Charsets.UTF_8);
+		assertTrue(actual.contains("<root>the spooled part</root>\r\n----=_MIME-Boundary--\r\n"));
+		assertEquals(body.getContentLength(), file.length());
+	}
+}
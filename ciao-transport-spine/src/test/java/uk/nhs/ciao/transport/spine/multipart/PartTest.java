@@ -0,0 +1,105 @@
+package uk.nhs.ciao.transport.spine.multipart;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.InvalidPayloadException;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Unit tests for {@link Part}
+ */
+public class PartTest {
+	private CamelContext context;
+	private Part part;
+
+	@Before
+	public void setup() throws Exception {
+		context = new DefaultCamelContext();
+		context.start();
+
+		part = new Part();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		context.stop();
+	}
+
+	@Test
+	public void testHeadersAreCaseInsensitiveAndRepeatable() {
+		part.addHeader("X-Example", "first");
+		part.addHeader("x-example", "second");
+		part.setContentType("text/plain");
+
+		assertEquals("first", part.getFirstHeader("X-EXAMPLE"));
+		assertEquals(Arrays.asList("first", "second"), part.getHeaders().getValues("X-Example"));
+		assertEquals("text/plain", part.getFirstHeader("content-type"));
+
+		part.setContentType(null);
+		assertNull(part.getContentType());
+	}
+
+	@Test
+	public void testBodyIsConvertedWithTypeConverter() throws Exception {
+		part.setBody(Integer.valueOf(42));
+		assertNull(part.getBody(String.class));
+
+		part.setTypeConverter(context.getTypeConverter());
+		assertEquals("42", part.getBody(String.class));
+		assertEquals("42", part.getMandatoryBody(String.class));
+	}
+
+	@Test(expected=InvalidPayloadException.class)
+	public void testMissingMandatoryBodyIsRejected() throws Exception {
+		part.setTypeConverter(context.getTypeConverter());
+		part.getMandatoryBody(String.class);
+	}
+
+	@Test
+	public void testToMessageCopiesHeadersAndBody() {
+		part.setContentId("part-1@example.com");
+		part.addHeader("X-Example", "first");
+		part.addHeader("X-Example", "second");
+		part.setBody("content");
+
+		final Message message = part.toMessage();
+		assertEquals("content", message.getBody());
+		assertEquals(part.getRawContentId(), message.getHeader(ContentId.HEADER_NAME));
+		assertEquals(Arrays.asList("first", "second"), message.getHeader("x-example"));
+	}
+
+	@Test
+	public void testContentLengthMatchesWrittenBytes() throws Exception {
+		part.setContentType("text/plain; charset=UTF-8");
+		part.addHeader("X-Example", "caf\u00e9");
+		part.setBody("caf\u00e9 content");
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		part.write(out);
+
+		assertEquals(out.size(), part.getContentLength());
+		assertTrue(new String(out.toByteArray(), Charsets.UTF_8).startsWith("Content-Type: text/plain; charset=UTF-8\r\n"));
+	}
+
+	@Test
+	public void testContentLengthMatchesNonAsciiHeaderName() throws Exception {
+		part.addHeader("X-Caf\u00e9", "value");
+		part.setBody("content");
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		part.write(out);
+
+		assertEquals(out.size(), part.getContentLength());
+		assertTrue(new String(out.toByteArray(), Charsets.UTF_8).contains("X-Caf\u00e9: value\r\n"));
+	}
+}
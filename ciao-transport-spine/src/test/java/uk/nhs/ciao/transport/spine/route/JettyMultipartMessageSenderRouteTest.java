@@ -0,0 +1,186 @@
+package uk.nhs.ciao.transport.spine.route;
+
+import java.net.ServerSocket;
+import java.util.UUID;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Predicate;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.DefaultProducerTemplate;
+import org.apache.camel.impl.SimpleRegistry;
+import org.apache.camel.spring.spi.SpringTransactionPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import uk.nhs.ciao.camel.CamelUtils;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
+import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.ManifestReference;
+import uk.nhs.ciao.transport.spine.multipart.ContentType;
+import uk.nhs.ciao.transport.spine.multipart.MultipartBody;
+import uk.nhs.ciao.transport.spine.multipart.Part;
+
+/**
+ * Unit tests for {@link MultipartMessageSenderRoute} using the non-blocking jetty
+ * HTTP client to send requests to a local Jetty stub (in place of spine)
+ */
+public class JettyMultipartMessageSenderRouteTest {
+	private CamelContext context;
+	private ProducerTemplate producerTemplate;
+	private String spineUri;
+
+	private MockEndpoint ebxmlResponseDestination;
+
+	@Before
+	public void setup() throws Exception {
+		final SimpleRegistry registry = new SimpleRegistry();
+
+		final SpringTransactionPolicy propegationRequiresNew = new SpringTransactionPolicy();
+		propegationRequiresNew.setTransactionManager(Mockito.mock(PlatformTransactionManager.class, Mockito.RETURNS_MOCKS));
+		propegationRequiresNew.setPropagationBehaviorName("PROPAGATION_NOT_SUPPORTED");
+		registry.put("PROPAGATION_NOT_SUPPORTED", propegationRequiresNew);
+
+		context = new DefaultCamelContext(registry);
+		context.setStreamCaching(true);
+		producerTemplate = new DefaultProducerTemplate(context);
+		spineUri = "http://localhost:" + findFreePort() + "/spine";
+
+		final MultipartMessageSenderRoute route = new MultipartMessageSenderRoute();
+		route.setInternalRoutePrefix("multipart-message-sender");
+		route.setMultipartMessageSenderUri("direct:multipart-message-sender");
+		route.setMultipartMessageDestinationUri("jetty:" + spineUri);
+		route.setEbxmlAckReceiverUri("seda:multipart-ack-receiver");
+		route.setMultipartMessageResponseUri("mock:ebxml-response-destination");
+		route.setMaximumRedeliveries(2);
+		route.setRedeliveryDelay(0);
+		route.setAggregatorTimeout(1000);
+
+		context.addRoutes(route);
+		context.addRoutes(new SpineStubRoute());
+
+		context.start();
+		producerTemplate.start();
+
+		ebxmlResponseDestination = MockEndpoint.resolve(context, "mock:ebxml-response-destination");
+	}
+
+	@After
+	public void teardown() {
+		CamelUtils.stopQuietly(producerTemplate, context);
+	}
+
+	@Test
+	public void testResponseIsPublishedOnAsyncAck() throws Exception {
+		final MultipartBody exampleRequest = createExampleRequest();
+		final String correlationId = getCorrelationId(exampleRequest);
+
+		final MockEndpoint spine = MockEndpoint.resolve(context, "mock:spine");
+		spine.expectedMessageCount(1);
+
+		ebxmlResponseDestination.expectedMessageCount(1);
+		ebxmlResponseDestination.expectedMessagesMatches(new Predicate() {
+			@Override
+			public boolean matches(final Exchange exchange) {
+				final EbxmlEnvelope envelope = exchange.getIn().getBody(EbxmlEnvelope.class);
+				return envelope != null && envelope.isAcknowledgment()
+						&& correlationId.equals(envelope.getMessageData().getRefToMessageId());
+			}
+		});
+
+		sendMultipartMessage(exampleRequest);
+
+		spine.assertIsSatisfied();
+		ebxmlResponseDestination.assertIsSatisfied();
+	}
+
+	/**
+	 * Local stub standing in for spine - accepts the request and publishes an async ack
+	 */
+	private class SpineStubRoute extends RouteBuilder {
+		@Override
+		public void configure() throws Exception {
+			from("jetty:" + spineUri)
+				.to("mock:spine")
+				.process(new Processor() {
+					@Override
+					public void process(final Exchange exchange) throws Exception {
+						final MultipartBody body = exchange.getIn().getMandatoryBody(MultipartBody.class);
+						final EbxmlEnvelope manifest = body.getParts().get(0).getMandatoryBody(EbxmlEnvelope.class);
+						sendAsyncResponse(manifest.generateAcknowledgment());
+
+						exchange.getOut().setBody("");
+						exchange.getOut().setHeader(Exchange.HTTP_RESPONSE_CODE, 202);
+					}
+				});
+		}
+	}
+
+	private MultipartBody createExampleRequest() throws Exception {
+		final MultipartBody body = new MultipartBody();
+
+		final EbxmlEnvelope manifest = new EbxmlEnvelope();
+		manifest.applyDefaults();
+
+		final Part ebxmlPart = body.addPart("text/xml", manifest);
+
+		final Part hl7Part = body.addPart("application/xml; charset=UTF-8", "<COPC_IN000001GB01 xmlns=\"urn:hl7-org:v3\" />");
+		final ManifestReference hl7Reference = manifest.addManifestReference();
+		hl7Reference.setHref("cid:" + hl7Part.getContentId());
+		hl7Reference.setHl7(true);
+		hl7Reference.setDescription("HL7 payload");
+
+		final Part payloadPart = body.addPart("text/xml", "<itk:DistributionEnvelope xmlns:itk=\"urn:nhs-itk:ns:201005\" />");
+		final ManifestReference itkReference = manifest.addManifestReference();
+		itkReference.setHref("cid:" + payloadPart.getContentId());
+		itkReference.setDescription("ITK Trunk Message");
+
+		ebxmlPart.setBody(context.getTypeConverter().convertTo(String.class, manifest));
+
+		return body;
+	}
+
+	private String getCorrelationId(final MultipartBody body) {
+		final EbxmlEnvelope envelope = context.getTypeConverter().convertTo(EbxmlEnvelope.class,
+				body.getParts().get(0).getBody(String.class));
+		return envelope.getMessageData().getMessageId();
+	}
+
+	private void sendMultipartMessage(final MultipartBody body) throws Exception {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setBody(body, String.class); // convert the body
+		exchange.getIn().setHeader(Exchange.CORRELATION_ID, getCorrelationId(body));
+
+		final ContentType contentType = new ContentType("multipart", "related");
+		contentType.setBoundary(body.getBoundary());
+		contentType.setStart(body.getParts().get(0).getRawContentId());
+		exchange.getIn().setHeader(Exchange.CONTENT_TYPE, contentType.toString());
+
+		producerTemplate.send("direct:multipart-message-sender", exchange);
+	}
+
+	private void sendAsyncResponse(final EbxmlEnvelope envelope) {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setBody(envelope, String.class); // convert the body
+		exchange.getIn().setHeader("JMSMessageID", UUID.randomUUID().toString());
+		exchange.getIn().setHeader("JMSCorrelationID", envelope.getMessageData().getRefToMessageId());
+
+		producerTemplate.send("seda:multipart-ack-receiver", exchange);
+	}
+
+	private static int findFreePort() throws Exception {
+		final ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
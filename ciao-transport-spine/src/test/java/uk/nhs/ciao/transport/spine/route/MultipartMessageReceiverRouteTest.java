@@ -1,11 +1,15 @@
 package uk.nhs.ciao.transport.spine.route;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
 import org.apache.camel.InvalidPayloadException;
 import org.apache.camel.Processor;
 import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
 import org.apache.camel.impl.DefaultCamelContext;
 import org.apache.camel.impl.DefaultExchange;
@@ -17,10 +21,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import uk.nhs.ciao.camel.CamelUtils;
+import uk.nhs.ciao.transport.itk.stage.StageConfiguration;
+import uk.nhs.ciao.transport.spine.http.AdmissionController;
 import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope;
 import uk.nhs.ciao.transport.spine.ebxml.EbxmlEnvelope.ManifestReference;
 import uk.nhs.ciao.transport.spine.multipart.ContentType;
 import uk.nhs.ciao.transport.spine.multipart.MultipartBody;
+import uk.nhs.ciao.transport.spine.multipart.MultipartParser;
 import uk.nhs.ciao.transport.spine.multipart.Part;
 
 public class MultipartMessageReceiverRouteTest {
@@ -32,6 +39,15 @@ public class MultipartMessageReceiverRouteTest {
 	
 	@Before
 	public void setup() throws Exception {
+		createContext(MultipartParser.DECODE_BODIES);
+	}
+	
+	private void createContext(final int spoolThreshold) throws Exception {
+		final StageConfiguration stageConfiguration = null;
+		createContext(spoolThreshold, stageConfiguration);
+	}
+	
+	private void createContext(final int spoolThreshold, final StageConfiguration stageConfiguration) throws Exception {
 		context = new DefaultCamelContext();
 		producerTemplate = new DefaultProducerTemplate(context);
 		
@@ -40,6 +56,8 @@ public class MultipartMessageReceiverRouteTest {
 		route.setPayloadDestinationUri("mock:multipart-payloads");
 		route.setEbxmlResponseDestinationUri("mock:ebxml-responses");
 		route.setIdempotentRepository(new MemoryIdempotentRepository());
+		route.setSpoolThreshold(spoolThreshold);
+		route.setStageConfiguration(stageConfiguration);
 		context.addRoutes(route);
 		
 		context.start();
@@ -76,6 +94,79 @@ public class MultipartMessageReceiverRouteTest {
 		Assert.assertTrue("Acknowledgment", ack.isAcknowledgment());
 	}
 	
+	@Test
+	public void testRawPayloadIsPublishedAsBytes() throws Exception {
+		teardown();
+		createContext(0);
+		
+		final MultipartBody body = createExampleRequest();
+		
+		// Move the payload away from the standard position - it should be found via the manifest
+		body.getParts().add(1, body.getParts().remove(2));
+		
+		final EbxmlEnvelope syncResponse = sendMultipartMessage(body);
+		Assert.assertNull("SOAPFault", syncResponse);
+		
+		payloadReceiver.expectedMessageCount(1);
+		ebxmlResponseReceiver.expectedMessageCount(1);
+		
+		ebxmlResponseReceiver.assertIsSatisfied(1000);
+		payloadReceiver.assertIsSatisfied();
+		
+		final Object payload = payloadReceiver.getExchanges().get(0).getIn().getBody();
+		Assert.assertTrue("Raw payload", payload instanceof byte[]);
+		Assert.assertArrayEquals(body.getParts().get(1).getMandatoryBody(byte[].class), (byte[]) payload);
+	}
+	
+	@Test
+	public void testAdmissionTicketIsReleasedWhenPublisherStageIsFull() throws Exception {
+		teardown();
+		final StageConfiguration stageConfiguration = new StageConfiguration();
+		stageConfiguration.setCapacity(1);
+		stageConfiguration.setBlockWhenFull(false);
+		createContext(MultipartParser.DECODE_BODIES, stageConfiguration);
+		
+		final AdmissionController admissionController = new AdmissionController();
+		context.addRoutes(new RouteBuilder() {
+			@Override
+			public void configure() throws Exception {
+				from("direct:admitted-multipart-receiver")
+					.process(admissionController)
+					.to("direct:multipart-receiver");
+			}
+		});
+		
+		// Hold up the publisher while it handles the first payload
+		final CountDownLatch publishing = new CountDownLatch(1);
+		final CountDownLatch published = new CountDownLatch(1);
+		payloadReceiver.whenAnyExchangeReceived(new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				publishing.countDown();
+				published.await(5, TimeUnit.SECONDS);
+			}
+		});
+		
+		Assert.assertNull("SOAPFault", sendMultipartMessage(createExampleRequest(), "direct:admitted-multipart-receiver"));
+		Assert.assertTrue("Publishing", publishing.await(5, TimeUnit.SECONDS));
+		
+		// The second payload fills the stage and the third is rejected by it
+		Assert.assertNull("SOAPFault", sendMultipartMessage(createExampleRequest(), "direct:admitted-multipart-receiver"));
+		Assert.assertNull("SOAPFault", sendMultipartMessage(createExampleRequest(), "direct:admitted-multipart-receiver"));
+		Assert.assertEquals("Requests holding the budget", 2, admissionController.getInFlightRequests());
+		
+		published.countDown();
+		payloadReceiver.expectedMessageCount(2);
+		payloadReceiver.assertIsSatisfied(5000);
+		
+		// Tickets are released once the publisher exchanges complete
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (admissionController.getInFlightRequests() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals("Requests holding the budget", 0, admissionController.getInFlightRequests());
+	}
+	
 	@Test
 	public void testDuplicateDetection() throws Exception {
 		final MultipartBody body = createExampleRequest();
@@ -242,6 +333,10 @@ public class MultipartMessageReceiverRouteTest {
 	}
 	
 	private EbxmlEnvelope sendMultipartMessage(final MultipartBody body) throws Exception {
+		return sendMultipartMessage(body, "direct:multipart-receiver");
+	}
+	
+	private EbxmlEnvelope sendMultipartMessage(final MultipartBody body, final String uri) throws Exception {
 		final Exchange exchange = new DefaultExchange(context);
 		exchange.getIn().setBody(body, String.class); // convert the body
 
@@ -250,13 +345,17 @@ public class MultipartMessageReceiverRouteTest {
 		contentType.setStart(body.getParts().get(0).getRawContentId());
 		exchange.getIn().setHeader(Exchange.CONTENT_TYPE, contentType.toString());
 		
-		return sendMultipartMessage(exchange);
+		return sendMultipartMessage(exchange, uri);
 	}
 	
 	private EbxmlEnvelope sendMultipartMessage(final Exchange exchange) throws Exception {
+		return sendMultipartMessage(exchange, "direct:multipart-receiver");
+	}
+	
+	private EbxmlEnvelope sendMultipartMessage(final Exchange exchange, final String uri) throws Exception {
 		exchange.setPattern(ExchangePattern.InOut);
 		
-		producerTemplate.send("direct:multipart-receiver", exchange);
+		producerTemplate.send(uri, exchange);
 		if (exchange.getException() != null) {
 			throw exchange.getException();
 		} else if (exchange.getOut().isFault()) {